@@ -0,0 +1,89 @@
+import java.nio.charset.StandardCharsets;
+import kvbench.ServerBenchmarks;
+
+/**
+ * The ServerWorkloads class sets up the {@link Server} hot paths that
+ * {@link kvbench.ServerBenchmarks} measures. It sits in the default package next to the server,
+ * where the JMH benchmarks cannot, and is looked up by name.
+ */
+public final class ServerWorkloads {
+
+  private ServerWorkloads() {
+  }
+
+  /**
+   * Creates the state and operation of one benchmark, once per fork, before the warmup.
+   *
+   * @param name     the benchmark's workload name.
+   * @param keys     the number of distinct keys the operation cycles through.
+   * @param replicas the number of in-process replicas of the two-phase commit benchmark.
+   * @return the operation to measure.
+   * @throws Exception if the servers cannot be set up.
+   */
+  public static ServerBenchmarks.Operation create(String name, int keys, int replicas)
+      throws Exception {
+    switch (name) {
+      case "processRequest.get": {
+        Server server = populatedServer(keys);
+        String[] requests = requests("GET key", "", keys);
+        return i -> server.processRequest(requests[(int) (i % keys)]);
+      }
+      case "processRequest.parseInvalid": {
+        Server server = new Server();
+        return i -> server.processRequest("NOOP key=value");
+      }
+      case "processGet": {
+        Server server = populatedServer(keys);
+        String[] keyNames = requests("key", "", keys);
+        return i -> server.processGet(keyNames[(int) (i % keys)]);
+      }
+      case "receiveMessageWithACK.put": {
+        Server server = new Server();
+        String[] messages = requests("DO_COMMIT_PUT key", "=value", keys);
+        return i -> server.receiveMessageWithACK(messages[(int) (i % keys)]);
+      }
+      case "receiveReplicationMessage.put": {
+        Server server = new Server();
+        ReplicationMessage[] messages = new ReplicationMessage[keys];
+        byte[] value = "value".getBytes(StandardCharsets.UTF_8);
+        for (int k = 0; k < keys; k++) {
+          messages[k] = ReplicationMessage.commitPut(k + 1, "key" + k, value);
+        }
+        return i -> server.receiveReplicationMessage(messages[(int) (i % keys)]);
+      }
+      case "getCurrentTimestamp": {
+        Server server = new Server();
+        return i -> server.getCurrentTimestamp();
+      }
+      case "twoPhaseCommit.putDelete": {
+        Server coordinator = new Server();
+        for (int r = 0; r < replicas; r++) {
+          coordinator.registerReplicaServer(new Server());
+        }
+        String[] puts = requests("PUT key", "=value", keys);
+        String[] deletes = requests("DELETE key", "", keys);
+        // Alternate PUT and DELETE of the same key so the store stays small
+        return i -> coordinator.processRequest(
+            (i & 1) == 0 ? puts[(int) ((i >> 1) % keys)] : deletes[(int) ((i >> 1) % keys)]);
+      }
+      default:
+        throw new IllegalArgumentException("Unknown workload " + name);
+    }
+  }
+
+  private static Server populatedServer(int keys) throws Exception {
+    Server server = new Server();
+    for (int k = 0; k < keys; k++) {
+      server.receiveMessageWithACK("DO_COMMIT_PUT key" + k + "=value" + k);
+    }
+    return server;
+  }
+
+  private static String[] requests(String prefix, String suffix, int keys) {
+    String[] requests = new String[keys];
+    for (int k = 0; k < keys; k++) {
+      requests[k] = prefix + k + suffix;
+    }
+    return requests;
+  }
+}
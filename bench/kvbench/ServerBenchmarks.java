@@ -0,0 +1,154 @@
+package kvbench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The ServerBenchmarks class measures the hot paths of the server in process, without RMI or
+ * sockets, so that every performance change can be compared against the same baseline.
+ *
+ * <p>JMH does not accept benchmarks in the default package, and the server lives there, out of
+ * reach of named packages. Each benchmark therefore gets its operation from the default-package
+ * {@code ServerWorkloads}, looked up reflectively once per trial, and calls it through the
+ * {@link Operation} interface, which the JIT inlines as it would a direct call.
+ *
+ * <p>Run with {@code mvn test-compile exec:exec}, passing JMH options in {@code -Djmh.args},
+ * for example {@code -Djmh.args="twoPhase -p replicas=4"}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dkv.logLevel=WARN")
+public class ServerBenchmarks {
+
+  /**
+   * A benchmarked operation. The invocation counter lets operations vary their input.
+   */
+  @FunctionalInterface
+  public interface Operation {
+    Object run(long invocation) throws Exception;
+  }
+
+  /**
+   * The state of one benchmark: its operation, created once per fork, and the invocation
+   * counter.
+   */
+  @State(Scope.Thread)
+  public abstract static class Workload {
+    @Param("100000")
+    public int keys;
+
+    @Param("2")
+    public int replicas;
+
+    private final String name;
+    private Operation operation;
+    private long invocation;
+
+    Workload(String name) {
+      this.name = name;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws ReflectiveOperationException {
+      operation = (Operation) Class.forName("ServerWorkloads")
+          .getMethod("create", String.class, int.class, int.class)
+          .invoke(null, name, keys, replicas);
+    }
+
+    Object next() throws Exception {
+      return operation.run(invocation++);
+    }
+  }
+
+  public static class ProcessRequestGet extends Workload {
+    public ProcessRequestGet() {
+      super("processRequest.get");
+    }
+  }
+
+  public static class ProcessRequestParseInvalid extends Workload {
+    public ProcessRequestParseInvalid() {
+      super("processRequest.parseInvalid");
+    }
+  }
+
+  public static class ProcessGet extends Workload {
+    public ProcessGet() {
+      super("processGet");
+    }
+  }
+
+  public static class ReceiveMessageWithAckPut extends Workload {
+    public ReceiveMessageWithAckPut() {
+      super("receiveMessageWithACK.put");
+    }
+  }
+
+  public static class ReceiveReplicationMessagePut extends Workload {
+    public ReceiveReplicationMessagePut() {
+      super("receiveReplicationMessage.put");
+    }
+  }
+
+  public static class GetCurrentTimestamp extends Workload {
+    public GetCurrentTimestamp() {
+      super("getCurrentTimestamp");
+    }
+  }
+
+  public static class TwoPhaseCommitPutDelete extends Workload {
+    public TwoPhaseCommitPutDelete() {
+      super("twoPhaseCommit.putDelete");
+    }
+  }
+
+  @Benchmark
+  public Object processRequestGet(ProcessRequestGet workload) throws Exception {
+    return workload.next();
+  }
+
+  @Benchmark
+  public Object processRequestParseInvalid(ProcessRequestParseInvalid workload)
+      throws Exception {
+    return workload.next();
+  }
+
+  @Benchmark
+  public Object processGet(ProcessGet workload) throws Exception {
+    return workload.next();
+  }
+
+  @Benchmark
+  public Object receiveMessageWithAckPut(ReceiveMessageWithAckPut workload) throws Exception {
+    return workload.next();
+  }
+
+  @Benchmark
+  public Object receiveReplicationMessagePut(ReceiveReplicationMessagePut workload)
+      throws Exception {
+    return workload.next();
+  }
+
+  @Benchmark
+  public Object getCurrentTimestamp(GetCurrentTimestamp workload) throws Exception {
+    return workload.next();
+  }
+
+  @Benchmark
+  public Object twoPhaseCommitPutDelete(TwoPhaseCommitPutDelete workload) throws Exception {
+    return workload.next();
+  }
+}
@@ -0,0 +1,127 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * The AntiEntropy class finds and repairs divergence between the coordinator's key-value store
+ * and a replica's, using their {@link MerkleTree}s.
+ *
+ * <p>The coordinator descends both trees one level at a time, only following nodes whose
+ * hashes differ, until it reaches the differing leaves. It then compares the entries of just
+ * those leaves and sends the replica the coordinator's values for the keys that differ. Repair
+ * traffic is therefore proportional to how much the replicas have diverged, not to the size of
+ * the store.
+ *
+ * <p>Each repair carries the value the replica reported, and the replica only applies it if its
+ * value is still the same. A commit that reached the replica in the meantime is newer than the
+ * repair and is never overwritten. A repaired key also takes the coordinator's version and
+ * expiry deadline of it.
+ */
+public class AntiEntropy {
+  private final MerkleTree tree;
+  private final Supplier<StorageEngine> store;
+  private final ToLongFunction<String> versionOf;
+  private final ToLongFunction<String> expiresAtOf;
+
+  /**
+   * Constructs a new AntiEntropy instance.
+   *
+   * @param tree        the coordinator's tree.
+   * @param store       supplies the coordinator's current store.
+   * @param versionOf   returns the version of a key in the coordinator's store.
+   * @param expiresAtOf returns when a key in the coordinator's store expires, or 0 if it does
+   *                    not.
+   */
+  public AntiEntropy(MerkleTree tree, Supplier<StorageEngine> store,
+      ToLongFunction<String> versionOf, ToLongFunction<String> expiresAtOf) {
+    this.tree = tree;
+    this.store = store;
+    this.versionOf = versionOf;
+    this.expiresAtOf = expiresAtOf;
+  }
+
+  /**
+   * Compares the replica against the local store and repairs the keys that differ.
+   *
+   * @param replica the replica to repair.
+   * @return the number of keys the replica repaired.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  public int repair(RemoteInterface replica) throws RemoteException {
+    int[] differingLeaves = findDifferingLeaves(replica);
+    if (differingLeaves.length == 0) {
+      return 0;
+    }
+
+    Map<String, byte[]> localEntries = tree.entriesIn(store.get(), differingLeaves);
+    Map<String, byte[]> remoteEntries = toMap(replica.fetchMerkleLeafEntries(differingLeaves));
+
+    Set<String> keys = new HashSet<>(localEntries.keySet());
+    keys.addAll(remoteEntries.keySet());
+    List<String> repairKeys = new ArrayList<>();
+    List<byte[]> expectedValues = new ArrayList<>();
+    List<byte[]> newValues = new ArrayList<>();
+    for (String key : keys) {
+      byte[] local = localEntries.get(key);
+      byte[] remote = remoteEntries.get(key);
+      if (!Arrays.equals(local, remote)) {
+        repairKeys.add(key);
+        expectedValues.add(remote);
+        newValues.add(local);
+      }
+    }
+    if (repairKeys.isEmpty()) {
+      return 0;
+    }
+    long[] newVersions = new long[repairKeys.size()];
+    long[] newExpiresAt = new long[repairKeys.size()];
+    for (int i = 0; i < newVersions.length; i++) {
+      newVersions[i] = versionOf.applyAsLong(repairKeys.get(i));
+      newExpiresAt[i] = expiresAtOf.applyAsLong(repairKeys.get(i));
+    }
+    return replica.applyRepairs(repairKeys.toArray(new String[0]),
+        expectedValues.toArray(new byte[0][]), newValues.toArray(new byte[0][]), newVersions,
+        newExpiresAt);
+  }
+
+  /**
+   * Walks both trees from the root, following only the nodes whose hashes differ.
+   */
+  private int[] findDifferingLeaves(RemoteInterface replica) throws RemoteException {
+    int[] frontier = {1};
+    List<Integer> leaves = new ArrayList<>();
+    while (frontier.length > 0) {
+      long[] local = tree.nodeHashes(frontier);
+      long[] remote = replica.getMerkleNodeHashes(frontier);
+      List<Integer> next = new ArrayList<>();
+      for (int i = 0; i < frontier.length; i++) {
+        if (local[i] == remote[i]) {
+          continue;
+        }
+        if (tree.isLeaf(frontier[i])) {
+          leaves.add(frontier[i]);
+        } else {
+          next.add(2 * frontier[i]);
+          next.add(2 * frontier[i] + 1);
+        }
+      }
+      frontier = next.stream().mapToInt(Integer::intValue).toArray();
+    }
+    return leaves.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  private static Map<String, byte[]> toMap(StateChunk chunk) {
+    Map<String, byte[]> entries = new HashMap<>(chunk.size() * 2);
+    for (int i = 0; i < chunk.size(); i++) {
+      entries.put(chunk.getKey(i), chunk.getValue(i));
+    }
+    return entries;
+  }
+}
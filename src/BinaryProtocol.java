@@ -0,0 +1,398 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The BinaryProtocol class defines the compact frame format used by the NIO transport
+ * ({@link NioServer} and {@link NioClient}) as an alternative to Java RMI.
+ *
+ * <p>Every frame is length-prefixed:
+ * <pre>
+ *   int    length     number of bytes that follow
+ *   byte   opcode     request opcode, or status for a response
+ *   int    requestId  echoed back in the response
+ *   ...    body       opcode specific fields
+ * </pre>
+ * Strings are written as an int byte length followed by UTF-8 bytes, with a length of -1 for
+ * null. Byte arrays use the same length prefix, so GET and PUT values are sent as the server
+ * stores them, whether the client reads and writes them as strings or as bytes. Booleans are
+ * written as a single byte.
+ *
+ * <p>The decoders check every length and count against the bytes left in the frame before
+ * allocating, so a malformed frame fails with an {@link IllegalArgumentException} or a
+ * {@link java.nio.BufferUnderflowException} rather than an attempt to allocate gigabytes.
+ */
+public final class BinaryProtocol {
+
+  // Client operations
+  public static final byte OP_PROCESS_REQUEST = 1;
+  public static final byte OP_GET = 2;
+  public static final byte OP_PUT = 3;
+  public static final byte OP_DELETE = 4;
+  public static final byte OP_OPEN_SCAN = 5;
+  public static final byte OP_FETCH_SCAN_PAGE = 6;
+
+  // 2PC and replica management operations, one per RemoteInterface method
+  public static final byte OP_PREPARE_PUT = 10;
+  public static final byte OP_RECEIVE_PREPARE_PUT_REQUEST = 11;
+  public static final byte OP_RECEIVE_PREPARE_PUT_RESPONSE = 12;
+  public static final byte OP_PERFORM_COMMIT_PUT = 13;
+  public static final byte OP_PREPARE_DELETE = 14;
+  public static final byte OP_RECEIVE_PREPARE_DELETE_REQUEST = 15;
+  public static final byte OP_RECEIVE_PREPARE_DELETE_RESPONSE = 16;
+  public static final byte OP_PERFORM_COMMIT_DELETE = 17;
+  public static final byte OP_CAN_COMMIT_PUT = 18;
+  public static final byte OP_CAN_COMMIT_DELETE = 19;
+  public static final byte OP_UPDATE_KEY_VALUE_STORE = 20;
+  public static final byte OP_RECEIVE_MESSAGE_WITH_ACK = 21;
+  public static final byte OP_RECEIVE_MESSAGE_WITHOUT_ACK = 22;
+  public static final byte OP_REGISTER_REPLICA = 23;
+  public static final byte OP_UNREGISTER_REPLICA = 24;
+  public static final byte OP_RECEIVE_REPLICATION_MESSAGE = 25;
+  public static final byte OP_OPEN_STATE_TRANSFER = 26;
+  public static final byte OP_FETCH_STATE_CHUNK = 27;
+  public static final byte OP_FETCH_CHANGES_SINCE = 28;
+  public static final byte OP_GET_MERKLE_NODE_HASHES = 29;
+  public static final byte OP_FETCH_MERKLE_LEAF_ENTRIES = 30;
+  public static final byte OP_APPLY_REPAIRS = 31;
+  public static final byte OP_PROCESS_BATCH = 32;
+  public static final byte OP_COMMIT_TRANSACTION = 33;
+  public static final byte OP_AWAIT_CHANGES_SINCE = 34;
+
+  // Response status codes
+  public static final byte STATUS_OK = 0;
+  public static final byte STATUS_ERROR = 1;
+
+  /** Size of the length prefix. */
+  public static final int LENGTH_BYTES = 4;
+
+  /** Size of the opcode/status byte and request id that start every frame body. */
+  public static final int HEADER_BYTES = 5;
+
+  /** Frames larger than this are rejected to protect the server from bad peers. */
+  public static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+  private BinaryProtocol() {
+  }
+
+  /**
+   * Reads a length-prefixed UTF-8 string.
+   *
+   * @param buffer the buffer positioned at the string.
+   * @return the decoded string, or null if a null string was written.
+   */
+  public static String getString(ByteBuffer buffer) {
+    int length = getLength(buffer, 1);
+    if (length < 0) {
+      return null;
+    }
+    if (!buffer.hasArray()) {
+      byte[] bytes = new byte[length];
+      buffer.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+    String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+        StandardCharsets.UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+
+  /**
+   * Reads a length-prefixed byte array.
+   *
+   * @param buffer the buffer positioned at the byte array.
+   * @return the decoded bytes, or null if a null array was written.
+   */
+  public static byte[] getBytes(ByteBuffer buffer) {
+    int length = getLength(buffer, 1);
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Reads a count-prefixed int array.
+   *
+   * @param buffer the buffer positioned at the array.
+   * @return the decoded array.
+   */
+  public static int[] getIntArray(ByteBuffer buffer) {
+    int[] values = new int[getCount(buffer, 4)];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = buffer.getInt();
+    }
+    return values;
+  }
+
+  /**
+   * Reads a count-prefixed long array.
+   *
+   * @param buffer the buffer positioned at the array.
+   * @return the decoded array.
+   */
+  public static long[] getLongArray(ByteBuffer buffer) {
+    long[] values = new long[getCount(buffer, 8)];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = buffer.getLong();
+    }
+    return values;
+  }
+
+  /**
+   * Reads a count-prefixed string array.
+   *
+   * @param buffer the buffer positioned at the array.
+   * @return the decoded array.
+   */
+  public static String[] getStringArray(ByteBuffer buffer) {
+    String[] values = new String[getCount(buffer, 4)];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = getString(buffer);
+    }
+    return values;
+  }
+
+  /**
+   * Reads a count-prefixed array of byte arrays.
+   *
+   * @param buffer the buffer positioned at the array.
+   * @return the decoded array.
+   */
+  public static byte[][] getBytesArray(ByteBuffer buffer) {
+    byte[][] values = new byte[getCount(buffer, 4)][];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = getBytes(buffer);
+    }
+    return values;
+  }
+
+  /**
+   * Reads a length prefix and checks that the rest of the buffer can hold that many elements.
+   *
+   * @param buffer       the buffer positioned at the length prefix.
+   * @param elementBytes the fewest bytes one element takes up.
+   * @return the length, or a negative length as written, which stands for null.
+   * @throws IllegalArgumentException if the buffer is too short for the length.
+   */
+  public static int getLength(ByteBuffer buffer, int elementBytes) {
+    int length = buffer.getInt();
+    if (length > buffer.remaining() / elementBytes) {
+      throw new IllegalArgumentException("Length " + length + " exceeds the "
+          + buffer.remaining() + " bytes left in the frame");
+    }
+    return length;
+  }
+
+  /**
+   * Reads a count prefix and checks that the rest of the buffer can hold that many elements.
+   *
+   * @param buffer       the buffer positioned at the count prefix.
+   * @param elementBytes the fewest bytes one element takes up.
+   * @return the count.
+   * @throws IllegalArgumentException if the count is negative or the buffer is too short for it.
+   */
+  public static int getCount(ByteBuffer buffer, int elementBytes) {
+    int count = getLength(buffer, elementBytes);
+    if (count < 0) {
+      throw new IllegalArgumentException("Negative count " + count);
+    }
+    return count;
+  }
+
+  /**
+   * Reads a boolean written as a single byte.
+   *
+   * @param buffer the buffer positioned at the boolean.
+   * @return the decoded boolean.
+   */
+  public static boolean getBoolean(ByteBuffer buffer) {
+    return buffer.get() != 0;
+  }
+
+  /**
+   * The FrameBuilder class assembles a single frame into a growable heap buffer and fills in the
+   * length prefix when the frame is finished.
+   */
+  public static final class FrameBuilder {
+    private ByteBuffer buffer;
+
+    /**
+     * Starts a new frame.
+     *
+     * @param opcode    the request opcode or response status.
+     * @param requestId the id that ties a response to its request.
+     */
+    public FrameBuilder(byte opcode, int requestId) {
+      buffer = ByteBuffer.allocate(64);
+      buffer.position(LENGTH_BYTES);
+      buffer.put(opcode);
+      buffer.putInt(requestId);
+    }
+
+    /**
+     * Appends a length-prefixed UTF-8 string.
+     *
+     * @param value the string to append, may be null.
+     * @return this builder.
+     */
+    public FrameBuilder putString(String value) {
+      if (value == null) {
+        ensureCapacity(4);
+        buffer.putInt(-1);
+        return this;
+      }
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      ensureCapacity(4 + bytes.length);
+      buffer.putInt(bytes.length);
+      buffer.put(bytes);
+      return this;
+    }
+
+    /**
+     * Appends a length-prefixed byte array.
+     *
+     * @param value the bytes to append, may be null.
+     * @return this builder.
+     */
+    public FrameBuilder putBytes(byte[] value) {
+      if (value == null) {
+        ensureCapacity(4);
+        buffer.putInt(-1);
+        return this;
+      }
+      ensureCapacity(4 + value.length);
+      buffer.putInt(value.length);
+      buffer.put(value);
+      return this;
+    }
+
+    /**
+     * Appends a boolean as a single byte.
+     *
+     * @param value the boolean to append.
+     * @return this builder.
+     */
+    public FrameBuilder putBoolean(boolean value) {
+      ensureCapacity(1);
+      buffer.put(value ? (byte) 1 : (byte) 0);
+      return this;
+    }
+
+    /**
+     * Appends a single byte.
+     *
+     * @param value the byte to append.
+     * @return this builder.
+     */
+    public FrameBuilder putByte(byte value) {
+      ensureCapacity(1);
+      buffer.put(value);
+      return this;
+    }
+
+    /**
+     * Appends an int.
+     *
+     * @param value the int to append.
+     * @return this builder.
+     */
+    public FrameBuilder putInt(int value) {
+      ensureCapacity(4);
+      buffer.putInt(value);
+      return this;
+    }
+
+    /**
+     * Appends a long.
+     *
+     * @param value the long to append.
+     * @return this builder.
+     */
+    public FrameBuilder putLong(long value) {
+      ensureCapacity(8);
+      buffer.putLong(value);
+      return this;
+    }
+
+    /**
+     * Appends a count-prefixed int array.
+     *
+     * @param values the ints to append.
+     * @return this builder.
+     */
+    public FrameBuilder putIntArray(int[] values) {
+      ensureCapacity(4 + 4 * values.length);
+      buffer.putInt(values.length);
+      for (int value : values) {
+        buffer.putInt(value);
+      }
+      return this;
+    }
+
+    /**
+     * Appends a count-prefixed long array.
+     *
+     * @param values the longs to append.
+     * @return this builder.
+     */
+    public FrameBuilder putLongArray(long[] values) {
+      ensureCapacity(4 + 8 * values.length);
+      buffer.putInt(values.length);
+      for (long value : values) {
+        buffer.putLong(value);
+      }
+      return this;
+    }
+
+    /**
+     * Appends a count-prefixed string array.
+     *
+     * @param values the strings to append, elements may be null.
+     * @return this builder.
+     */
+    public FrameBuilder putStringArray(String[] values) {
+      putInt(values.length);
+      for (String value : values) {
+        putString(value);
+      }
+      return this;
+    }
+
+    /**
+     * Appends a count-prefixed array of byte arrays.
+     *
+     * @param values the byte arrays to append, elements may be null.
+     * @return this builder.
+     */
+    public FrameBuilder putBytesArray(byte[][] values) {
+      putInt(values.length);
+      for (byte[] value : values) {
+        putBytes(value);
+      }
+      return this;
+    }
+
+    /**
+     * Writes the length prefix and returns the frame ready to be written to a channel.
+     *
+     * @return the finished frame, flipped for reading.
+     */
+    public ByteBuffer finish() {
+      buffer.putInt(0, buffer.position() - LENGTH_BYTES);
+      buffer.flip();
+      return buffer;
+    }
+
+    private void ensureCapacity(int extra) {
+      if (buffer.remaining() < extra) {
+        int capacity = Math.max(buffer.capacity() * 2, buffer.position() + extra);
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+      }
+    }
+  }
+}
@@ -0,0 +1,230 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The ChangeLog class keeps the most recent committed writes of a replica in a fixed-size ring,
+ * each under a local, gap-free sequence number. It is the source of the delta phase of
+ * {@link StateTransfer}: a replica that already holds the state as of some sequence number only
+ * needs the changes after it. Clients with a {@link NearCache} follow it too, to learn which of
+ * their cached keys changed.
+ *
+ * <p>Transaction ids are handed out at prepare time, so a transaction can commit after one with
+ * a higher id, and a replica that has applied transaction T may still lack changes logged before
+ * T's. The coordinator therefore marks each transaction as {@link #replicating(long)} until its
+ * commit has been sent to the replicas, and every entry records the oldest sequence still being
+ * sent when it was appended. {@link #resumeSequence(long)} resumes from there, so a rejoining
+ * replica receives every change it may have missed, and some it already has, which it applies
+ * again harmlessly in order.
+ *
+ * <p>Once the ring wraps, the oldest changes are lost and a replica that is further behind must
+ * fall back to a full transfer.
+ *
+ * <p>Guarded by a lock rather than the monitor, so that clients waiting for changes do not pin
+ * the carrier thread when requests run on virtual threads.
+ */
+public class ChangeLog {
+  private final int capacity;
+  private final long[] transactionIds;
+  private final String[] keys;
+  private final byte[][] values;
+  private final long[] expiresAt;
+  // The oldest sequence still being sent to the replicas when each entry was appended
+  private final long[] floors;
+  // The first sequence of each transaction still being sent, or -1 before it has one
+  private final Map<Long, Long> replicatingFrom = new HashMap<>();
+  private final TreeSet<Long> replicatingSequences = new TreeSet<>();
+  private long maxDroppedTransactionId;
+  private long nextSequence;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition appended = lock.newCondition();
+
+  /**
+   * Constructs a new ChangeLog instance.
+   *
+   * @param capacity the number of recent changes to retain.
+   */
+  public ChangeLog(int capacity) {
+    this.capacity = capacity;
+    this.transactionIds = new long[capacity];
+    this.keys = new String[capacity];
+    this.values = new byte[capacity][];
+    this.expiresAt = new long[capacity];
+    this.floors = new long[capacity];
+  }
+
+  /**
+   * Marks a transaction as being sent to the replicas, before it is applied here.
+   *
+   * @param transactionId the coordinator's transaction id.
+   */
+  public void replicating(long transactionId) {
+    lock.lock();
+    try {
+      replicatingFrom.put(transactionId, -1L);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Marks a transaction as sent to the replicas, whether or not all of them acknowledged it.
+   * A replica that missed it is left to anti-entropy.
+   *
+   * @param transactionId the coordinator's transaction id.
+   */
+  public void replicated(long transactionId) {
+    lock.lock();
+    try {
+      Long first = replicatingFrom.remove(transactionId);
+      if (first != null && first >= 0) {
+        replicatingSequences.remove(first);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Records a committed write.
+   *
+   * @param transactionId the coordinator's transaction id.
+   * @param key           the key written.
+   * @param value         the value written, or null for a DELETE.
+   * @param expiresAt     when the key expires, or 0 if it does not.
+   */
+  public void append(long transactionId, String key, byte[] value, long expiresAt) {
+    lock.lock();
+    try {
+      int slot = (int) (nextSequence % capacity);
+      if (nextSequence >= capacity) {
+        maxDroppedTransactionId = Math.max(maxDroppedTransactionId, transactionIds[slot]);
+      }
+      Long first = replicatingFrom.get(transactionId);
+      if (first != null && first < 0) {
+        replicatingFrom.put(transactionId, nextSequence);
+        replicatingSequences.add(nextSequence);
+      }
+      floors[slot] = replicatingSequences.isEmpty() ? nextSequence
+          : Math.min(replicatingSequences.first(), nextSequence);
+      transactionIds[slot] = transactionId;
+      keys[slot] = key;
+      values[slot] = value;
+      this.expiresAt[slot] = expiresAt;
+      nextSequence++;
+      if (lock.hasWaiters(appended)) {
+        appended.signalAll();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * @return the sequence number the next change will get.
+   */
+  public long nextSequence() {
+    lock.lock();
+    try {
+      return nextSequence;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Lists retained changes starting at the given sequence number.
+   *
+   * @param sequence   the first sequence number wanted.
+   * @param maxEntries the most changes to return.
+   * @return the changes, or null if some of them have already been dropped from the ring.
+   */
+  public StateChunk changesSince(long sequence, int maxEntries) {
+    lock.lock();
+    try {
+      if (sequence < nextSequence - capacity || sequence > nextSequence) {
+        return null;
+      }
+      int count = (int) Math.min(maxEntries, nextSequence - sequence);
+      String[] chunkKeys = new String[count];
+      byte[][] chunkValues = new byte[count][];
+      long[] chunkTransactionIds = new long[count];
+      long[] chunkExpiresAt = new long[count];
+      for (int i = 0; i < count; i++) {
+        int slot = (int) ((sequence + i) % capacity);
+        chunkKeys[i] = keys[slot];
+        chunkValues[i] = values[slot];
+        chunkTransactionIds[i] = transactionIds[slot];
+        chunkExpiresAt[i] = expiresAt[slot];
+      }
+      long next = sequence + count;
+      return new StateChunk(0L, 0, true, next, next == nextSequence, chunkKeys, chunkValues,
+          chunkTransactionIds, chunkExpiresAt);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Lists retained changes starting at the given sequence number, waiting for one to be
+   * committed if there are none yet. Lets clients follow the commits as they happen.
+   *
+   * @param sequence      the first sequence number wanted, or -1 to only learn the next one.
+   * @param maxEntries    the most changes to return.
+   * @param timeoutMillis how long to wait for a change.
+   * @return the changes, empty if none was committed in time, or null if some of them have
+   *         already been dropped from the ring.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public StateChunk awaitChangesSince(long sequence, int maxEntries, long timeoutMillis)
+      throws InterruptedException {
+    lock.lock();
+    try {
+      if (sequence < 0) {
+        return changesSince(nextSequence, maxEntries);
+      }
+      long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      while (sequence == nextSequence && remaining > 0) {
+        remaining = appended.awaitNanos(remaining);
+      }
+      return changesSince(sequence, maxEntries);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Finds where a replica whose highest applied transaction is {@code transactionId} should
+   * resume from: the earlier of the oldest change still being sent to the replicas when that
+   * transaction was logged here, and the first logged change of a later transaction.
+   *
+   * @param transactionId the highest transaction id the replica has applied.
+   * @return the sequence number to resume from, or -1 if the transaction is not in the ring or
+   *         the ring no longer reaches back far enough.
+   */
+  public long resumeSequence(long transactionId) {
+    lock.lock();
+    try {
+      if (transactionId <= 0 || maxDroppedTransactionId > transactionId) {
+        return -1;
+      }
+      long oldest = Math.max(0, nextSequence - capacity);
+      long firstLater = Long.MAX_VALUE;
+      for (long sequence = oldest; sequence < nextSequence; sequence++) {
+        int slot = (int) (sequence % capacity);
+        if (transactionIds[slot] > transactionId) {
+          firstLater = Math.min(firstLater, sequence);
+        } else if (transactionIds[slot] == transactionId) {
+          long resume = Math.min(floors[slot], firstLater);
+          return resume < oldest ? -1 : resume;
+        }
+      }
+      return -1;
+    } finally {
+      lock.unlock();
+    }
+  }
+}
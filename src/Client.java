@@ -1,7 +1,6 @@
+import java.nio.charset.StandardCharsets;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Scanner;
@@ -23,14 +22,15 @@ public class Client {
    * @return a string representing the current timestamp.
    */
   private static String getCurrentTimestamp() {
-    SimpleDateFormat sdf = new SimpleDateFormat("MM-dd-yyyy HH:mm:ss.SSS");
-    return "<Time: " + sdf.format(new Date()) + "> ";
+    return "<Time: " + Log.formatTimestamp(System.currentTimeMillis()) + "> ";
   }
 
   /**
    * The main method of the `Client` class.
+   * With the argument "load", it runs the {@link LoadGenerator} against the replicas instead of
+   * the interactive menu; the workload is configured with {@code kv.load.*} system properties.
    *
-   * @param args command-line arguments (not used).
+   * @param args command-line arguments: optionally "load".
    */
   public static void main(String[] args) {
     Scanner sc = new Scanner(System.in);
@@ -73,9 +73,19 @@ public class Client {
         coordinatorStub.registerReplicaServer(replicaStubs.get(i));
       }
 
+      // Load-generator mode drives a workload instead of the interactive menu.
+      if (args.length > 0 && args[0].equalsIgnoreCase("load")) {
+        new LoadGenerator(Client::connectToReplica, replicaRegistryPorts,
+            new LoadGenerator.Workload()).run();
+        System.exit(0);
+      }
+
       // Prepopulating Key-Value store with data
       prepopulateKeyValues(coordinatorStub);
 
+      // Routes reads over all replicas and writes to the coordinator.
+      ReplicaRouter router = new ReplicaRouter(Client::connectToReplica, replicaRegistryPorts);
+
       // Client's main loop to handle user commands.
       while (true) {
         System.out.println("Choose an option:");
@@ -83,6 +93,10 @@ public class Client {
         System.out.println("2. GET");
         System.out.println("3. DELETE");
         System.out.println("4. Exit");
+        System.out.println("5. BATCH");
+        System.out.println("6. CONDITIONAL PUT");
+        System.out.println("7. SCAN");
+        System.out.println("8. PUT WITH TTL");
 
         int option = sc.nextInt();
         sc.nextLine();
@@ -96,28 +110,12 @@ public class Client {
             String key = keyValueArr[0].trim();
             String value = keyValueArr[1].trim();
 
-            System.out.println("Choose a replica to connect (1-" + replicaStubs.size() + " only):");
-            int replicaChoicePut = sc.nextInt();
-            sc.nextLine();
-
-            // Checking if the replica choice is valid.
-            if (replicaChoicePut < 1 || replicaChoicePut > replicaStubs.size()) {
-              System.out.println("Invalid replica choice! Please try again.");
-              break;
-            }
-
-            RemoteInterface replicaStubPut = replicaStubs.get(replicaChoicePut - 1);
-
-            boolean prepareResult = coordinatorStub.preparePut(key, value);
-            if (prepareResult) {
-              boolean commitResult = coordinatorStub.receivePreparePutResponse(key, value, true);
-              if (commitResult) {
-                System.out.println(getCurrentTimestamp() + "PUT request processed.");
-              } else {
-                System.out.println(getCurrentTimestamp() + "Failed to process PUT request.");
-              }
-            } else {
+            // Writes always go to the coordinator.
+            String putResponse = router.write("PUT " + key + "=" + value);
+            if (putResponse.contains("Failed")) {
               System.out.println(getCurrentTimestamp() + "Failed to process PUT request.");
+            } else {
+              System.out.println(getCurrentTimestamp() + "PUT request processed.");
             }
             break;
 
@@ -125,54 +123,106 @@ public class Client {
             System.out.print("Enter key: ");
             String k = sc.nextLine();
 
-            System.out.println("Choose a replica to connect (1-" + replicaStubs.size() + " only):");
-            int replicaChoiceGet = sc.nextInt();
-            sc.nextLine();
-
-            // Checking if the replica choice is valid.
-            if (replicaChoiceGet < 1 || replicaChoiceGet > replicaStubs.size()) {
-              System.out.println("Invalid replica choice! Please try again.");
-              break;
-            }
-
-            RemoteInterface replicaStubGet = replicaStubs.get(replicaChoiceGet - 1);
-
-            String getResponse = replicaStubGet.processRequest("GET " + k);
-            System.out.println(getCurrentTimestamp() + "Response: " + getResponse);
+            // Reads are spread over the replicas and fail over to another one, unless the
+            // near cache already holds the key.
+            String getValue = router.get(k.trim());
+            System.out.println(getCurrentTimestamp() + "Response: "
+                + (getValue != null ? "Value: " + getValue : "Key not found"));
             break;
 
           case 3:
             System.out.print("Enter key to delete: ");
             String deleteKey = sc.nextLine();
 
-            System.out.println("Choose a replica to connect (1-" + replicaStubs.size() + " only):");
-            int replicaChoiceDelete = sc.nextInt();
-            sc.nextLine();
-
-            // Checking if the replica choice is valid.
-            if (replicaChoiceDelete < 1 || replicaChoiceDelete > replicaStubs.size()) {
-              System.out.println("Invalid replica choice. Please try again.");
-              break;
+            String deleteResponse = router.write("DELETE " + deleteKey);
+            if (deleteResponse.contains("Failed")) {
+              System.out.println(getCurrentTimestamp() + "Failed to process DELETE request.");
+            } else {
+              System.out.println(getCurrentTimestamp() + "DELETE request processed.");
             }
+            break;
 
-            RemoteInterface replicaStubDelete = replicaStubs.get(replicaChoiceDelete - 1);
+          case 4:
+            System.out.println("Exiting...");
+            System.exit(0);
+            break;
 
-            boolean prepareResult2 = coordinatorStub.prepareDelete(deleteKey);
-            if (prepareResult2) {
-              boolean commitResult = coordinatorStub.receivePrepareDeleteResponse(deleteKey, true);
-              if (commitResult) {
-                System.out.println(getCurrentTimestamp() + "DELETE request processed.");
+          case 5:
+            System.out.println("Enter one operation per line as: PUT key=value or DELETE key");
+            System.out.println("Finish the batch with an empty line.");
+            WriteBatch batch = new WriteBatch();
+            String line;
+            while (!(line = sc.nextLine().trim()).isEmpty()) {
+              String[] operation = line.split(" ", 2);
+              if (operation[0].equalsIgnoreCase("PUT") && operation.length == 2
+                  && operation[1].contains("=")) {
+                String[] batchKeyValue = operation[1].split("=", 2);
+                batch.put(batchKeyValue[0].trim(), batchKeyValue[1].trim());
+              } else if (operation[0].equalsIgnoreCase("DELETE") && operation.length == 2) {
+                batch.delete(operation[1].trim());
               } else {
-                System.out.println(getCurrentTimestamp() + "Failed to process DELETE request.");
+                System.out.println("Skipping invalid operation: " + line);
               }
+            }
+
+            boolean batchProcessed;
+            try {
+              batchProcessed = router.write(coordinator -> coordinator.processBatch(batch));
+            } finally {
+              for (int i = 0; i < batch.size(); i++) {
+                router.invalidate(batch.getKey(i));
+              }
+            }
+            if (batchProcessed) {
+              System.out.println(getCurrentTimestamp() + "BATCH of " + batch.size()
+                  + " operations processed.");
             } else {
-              System.out.println(getCurrentTimestamp() + "Failed to process DELETE request.");
+              System.out.println(getCurrentTimestamp() + "Failed to process BATCH request.");
             }
             break;
 
-          case 4:
-            System.out.println("Exiting...");
-            System.exit(0);
+          case 6:
+            System.out.println("Enter one of: UPDATE key=value, PUT-IF-ABSENT key=value,");
+            System.out.println("REPLACE key=value, GETV key or CAS key version=value");
+            System.out.print("Enter command: ");
+            String conditionalRequest = sc.nextLine().trim();
+
+            String conditionalResponse = router.write(conditionalRequest);
+            System.out.println(getCurrentTimestamp() + "Response: " + conditionalResponse);
+            break;
+
+          case 7:
+            System.out.println("Enter one of: SCAN start end [limit] or");
+            System.out.println("SCAN-PREFIX prefix [limit], using * for no start or no end");
+            System.out.print("Enter command: ");
+            String[] scan = sc.nextLine().trim().split("\\s+");
+            boolean prefixScan = scan[0].equalsIgnoreCase("SCAN-PREFIX");
+            int scanArguments = prefixScan ? 2 : 3;
+            if (!(prefixScan || scan[0].equalsIgnoreCase("SCAN")) || scan.length < scanArguments
+                || scan.length > scanArguments + 1) {
+              System.out.println("Invalid SCAN command.");
+              break;
+            }
+            int scanLimit = scan.length > scanArguments ? Integer.parseInt(scan[scanArguments]) : 0;
+            String startKey = prefixScan || !scan[1].equals("*") ? scan[1] : "";
+            String endKey = prefixScan ? RangeScans.prefixEnd(scan[1])
+                : scan[2].equals("*") ? null : scan[2];
+
+            // The whole range is streamed from one replica in pages.
+            int scanned = router.scan(startKey, endKey, scanLimit, (scanKey, scanValue) ->
+                System.out.println(scanKey + "=" + new String(scanValue, StandardCharsets.UTF_8)));
+            System.out.println(getCurrentTimestamp() + "SCAN returned " + scanned + " entries.");
+            break;
+
+          case 8:
+            System.out.println("Enter the values as: key ttlMillis=value");
+            System.out.print("Enter key, TTL and value: ");
+            String expiringPut = sc.nextLine().trim();
+
+            // The key is hidden once the TTL has passed and deleted on every replica soon after.
+            String expiringResponse = router.write("PUT-TTL " + expiringPut);
+            System.out.println(getCurrentTimestamp() + "Response: " + expiringResponse);
+            break;
 
           default:
             System.out.println("Invalid option! Please try again.");
@@ -191,12 +241,17 @@ public class Client {
 
   /**
    * Connects to a replica server using the provided registry port.
+   * When the {@code kv.transport} system property is "nio", the binary protocol is used
+   * instead of an RMI registry lookup.
    *
    * @param registryPort the registry port of the replica server.
    * @return the stub of the connected replica server, or null if the connection failed.
    */
   private static RemoteInterface connectToReplica(int registryPort) {
     try {
+      if (Server.Transport.fromSystemProperty() == Server.Transport.NIO) {
+        return NioClient.connect("localhost", registryPort);
+      }
       Registry registry = LocateRegistry.getRegistry("localhost", registryPort);
       return (RemoteInterface) registry.lookup("RemoteInterface");
     } catch (Exception e) {
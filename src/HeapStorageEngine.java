@@ -0,0 +1,129 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The HeapStorageEngine class keeps keys as strings and values as byte arrays in a
+ * {@link ConcurrentHashMap}. It is the default engine: the fastest for stores that fit
+ * comfortably in the heap, at the cost of several objects per entry for the garbage collector
+ * to trace.
+ *
+ * <p>The keys are also kept in an {@link OrderedKeyIndex} for range reads. Adding and removing
+ * keys goes through the map's compute methods, so the index is updated under the lock the map
+ * holds for the key.
+ */
+public class HeapStorageEngine implements StorageEngine {
+  private final ConcurrentHashMap<String, byte[]> entries = new ConcurrentHashMap<>();
+  private final OrderedKeyIndex orderedKeys = new OrderedKeyIndex();
+
+  @Override
+  public byte[] get(String key) {
+    return entries.get(key);
+  }
+
+  @Override
+  public boolean containsKey(String key) {
+    return entries.containsKey(key);
+  }
+
+  @Override
+  public byte[] put(String key, byte[] value) {
+    // Overwriting a present key leaves the index as it is
+    byte[] previous = entries.replace(key, value);
+    if (previous != null) {
+      return previous;
+    }
+    byte[][] replaced = new byte[1][];
+    entries.compute(key, (k, current) -> {
+      if (current == null) {
+        orderedKeys.add(k);
+      }
+      replaced[0] = current;
+      return value;
+    });
+    return replaced[0];
+  }
+
+  @Override
+  public byte[] putIfAbsent(String key, byte[] value) {
+    byte[] current = entries.get(key);
+    if (current != null) {
+      return current;
+    }
+    byte[][] existing = new byte[1][];
+    entries.compute(key, (k, present) -> {
+      if (present != null) {
+        existing[0] = present;
+        return present;
+      }
+      orderedKeys.add(k);
+      return value;
+    });
+    return existing[0];
+  }
+
+  /**
+   * Replaces the value if it has the expected content. The map compares arrays by identity, so
+   * the array found is replaced only if it is still the one held.
+   */
+  @Override
+  public boolean replace(String key, byte[] expectedValue, byte[] value) {
+    while (true) {
+      byte[] current = entries.get(key);
+      if (current == null || !Arrays.equals(current, expectedValue)) {
+        return false;
+      }
+      if (entries.replace(key, current, value)) {
+        return true;
+      }
+    }
+  }
+
+  @Override
+  public byte[] remove(String key) {
+    byte[][] removed = new byte[1][];
+    entries.computeIfPresent(key, (k, current) -> {
+      orderedKeys.remove(k);
+      removed[0] = current;
+      return null;
+    });
+    return removed[0];
+  }
+
+  @Override
+  public boolean remove(String key, byte[] expectedValue) {
+    boolean[] removed = new boolean[1];
+    entries.computeIfPresent(key, (k, current) -> {
+      if (!Arrays.equals(current, expectedValue)) {
+        return current;
+      }
+      orderedKeys.remove(k);
+      removed[0] = true;
+      return null;
+    });
+    return removed[0];
+  }
+
+  @Override
+  public int size() {
+    return entries.size();
+  }
+
+  @Override
+  public void clear() {
+    for (String key : orderedKeys.keys()) {
+      remove(key);
+    }
+  }
+
+  @Override
+  public Iterator<Map.Entry<String, byte[]>> range(String fromKey, String toKey) {
+    return orderedKeys.range(fromKey, toKey, entries::get);
+  }
+
+  @Override
+  public Iterator<Map.Entry<String, byte[]>> iterator() {
+    return entries.entrySet().iterator();
+  }
+}
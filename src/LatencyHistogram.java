@@ -0,0 +1,125 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The LatencyHistogram class records a distribution of non-negative values, typically latencies
+ * in nanoseconds, in the log-linear layout of HdrHistogram.
+ *
+ * <p>Values below {@code 2^8} are counted exactly; above that, every power-of-two range is split
+ * into 128 linear sub-buckets, so a reported percentile is within 1% of the recorded value over
+ * the whole range of a long. Recording is a single atomic increment into a fixed array of about
+ * 7,500 counters, so any number of threads can record concurrently without locks or allocation.
+ */
+public class LatencyHistogram {
+  private static final int PRECISION_BITS = 8;
+  private static final int EXACT_COUNT = 1 << PRECISION_BITS;
+  private static final int HALF_COUNT = EXACT_COUNT >> 1;
+  private static final int BUCKET_COUNT = indexOf(Long.MAX_VALUE) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong totalCount = new AtomicLong();
+  private final AtomicLong totalValue = new AtomicLong();
+  private final AtomicLong maxValue = new AtomicLong();
+
+  /**
+   * Records a value. Negative values are recorded as 0.
+   *
+   * @param value the value to record.
+   */
+  public void record(long value) {
+    long clamped = Math.max(0L, value);
+    counts.incrementAndGet(indexOf(clamped));
+    totalCount.incrementAndGet();
+    totalValue.addAndGet(clamped);
+    if (clamped > maxValue.get()) {
+      maxValue.accumulateAndGet(clamped, Math::max);
+    }
+  }
+
+  /**
+   * Adds every value recorded in another histogram to this one.
+   *
+   * @param other the histogram to add.
+   */
+  public void add(LatencyHistogram other) {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      long count = other.counts.get(i);
+      if (count != 0) {
+        counts.addAndGet(i, count);
+      }
+    }
+    totalCount.addAndGet(other.totalCount.get());
+    totalValue.addAndGet(other.totalValue.get());
+    maxValue.accumulateAndGet(other.maxValue.get(), Math::max);
+  }
+
+  /**
+   * Clears all recorded values.
+   */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts.set(i, 0L);
+    }
+    totalCount.set(0L);
+    totalValue.set(0L);
+    maxValue.set(0L);
+  }
+
+  public long getCount() {
+    return totalCount.get();
+  }
+
+  public long getMax() {
+    return maxValue.get();
+  }
+
+  /**
+   * @return the mean of the recorded values, or 0 if there are none.
+   */
+  public double getMean() {
+    long count = totalCount.get();
+    return count == 0 ? 0.0 : (double) totalValue.get() / count;
+  }
+
+  /**
+   * Returns the value at the given percentile: the highest value that is equivalent, within the
+   * histogram's precision, to the value below which that percentage of recorded values fall.
+   *
+   * @param percentile the percentile, between 0 and 100.
+   * @return the value at that percentile, or 0 if nothing was recorded.
+   */
+  public long getValueAtPercentile(double percentile) {
+    long count = totalCount.get();
+    if (count == 0) {
+      return 0L;
+    }
+    long rank = Math.max(1L, (long) Math.ceil(Math.min(100.0, percentile) / 100.0 * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(highestEquivalentValue(i), maxValue.get());
+      }
+    }
+    return maxValue.get();
+  }
+
+  private static int indexOf(long value) {
+    if (value < EXACT_COUNT) {
+      return (int) value;
+    }
+    int shift = 64 - Long.numberOfLeadingZeros(value) - PRECISION_BITS;
+    int subBucket = (int) (value >>> shift);
+    return shift * HALF_COUNT + subBucket;
+  }
+
+  private static long highestEquivalentValue(int index) {
+    if (index < EXACT_COUNT) {
+      return index;
+    }
+    int shift = index / HALF_COUNT - 1;
+    long subBucket = index - (long) shift * HALF_COUNT;
+    long upper = ((subBucket + 1) << shift) - 1;
+    return upper < 0 ? Long.MAX_VALUE : upper;
+  }
+}
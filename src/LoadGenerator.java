@@ -0,0 +1,374 @@
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntFunction;
+
+/**
+ * The LoadGenerator class drives a YCSB-style workload against a running cluster and reports
+ * throughput and latency percentiles.
+ *
+ * <p>Reads are GETs spread over all replicas by a {@link ReplicaRouter}, following its
+ * {@code kv.client.readPolicy}, and answered by a {@link NearCache} shared by all threads when
+ * {@code kv.client.nearCacheSize} is set; writes are PUTs sent to the coordinator. PUT only
+ * succeeds for a key that is not yet present, so writes insert new records, as in YCSB workload
+ * D. Read keys are drawn from a uniform, zipfian or latest distribution over the records
+ * inserted so far.
+ *
+ * <p>With a target rate, the generator runs open-loop: every thread has a fixed schedule of
+ * intended start times, and latency is measured from the intended start rather than from when
+ * the request was actually sent. A stall therefore shows up in the latency of every request it
+ * delayed, instead of silently lowering the offered load, which is the coordinated-omission
+ * correction. Without a target rate it runs closed-loop and reports service times.
+ */
+public class LoadGenerator {
+  private final IntFunction<RemoteInterface> connector;
+  private final List<Integer> replicaPorts;
+  private final Workload workload;
+  private final NearCache nearCache;
+  private final AtomicLong insertedRecords = new AtomicLong();
+  private final AtomicLong readMisses = new AtomicLong();
+  private final AtomicLong failedWrites = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final LatencyHistogram readLatency = new LatencyHistogram();
+  private final LatencyHistogram writeLatency = new LatencyHistogram();
+  private final LatencyHistogram readServiceTime = new LatencyHistogram();
+  private final LatencyHistogram writeServiceTime = new LatencyHistogram();
+
+  /**
+   * The workload parameters, read from {@code kv.load.*} system properties.
+   */
+  public static final class Workload {
+    final double readRatio = Double.parseDouble(System.getProperty("kv.load.readRatio", "0.95"));
+    final String distribution = System.getProperty("kv.load.distribution", "zipfian");
+    final long records = Long.getLong("kv.load.records", 10000L);
+    final int valueSize = Integer.getInteger("kv.load.valueSize", 100);
+    final int threads = Integer.getInteger("kv.load.threads", 8);
+    final double targetRate = Double.parseDouble(System.getProperty("kv.load.rate", "0"));
+    final long warmupSeconds = Long.getLong("kv.load.warmupSec", 5L);
+    final long durationSeconds = Long.getLong("kv.load.durationSec", 30L);
+    final boolean preload = Boolean.parseBoolean(System.getProperty("kv.load.preload", "true"));
+    final int pipeline = Integer.getInteger("kv.load.pipeline", 1);
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT, "readRatio=%.2f distribution=%s records=%d "
+              + "valueSize=%d threads=%d pipeline=%d rate=%s warmup=%ds duration=%ds", readRatio,
+          distribution, records, valueSize, threads, pipeline,
+          targetRate > 0 ? String.format(Locale.ROOT, "%.0f/s", targetRate) : "unlimited",
+          warmupSeconds, durationSeconds);
+    }
+  }
+
+  /**
+   * Constructs a new LoadGenerator instance.
+   *
+   * @param connector    opens a connection to the replica on the given port, or returns null.
+   * @param replicaPorts the replica ports; the first one is the coordinator.
+   * @param workload     the workload to run.
+   */
+  public LoadGenerator(IntFunction<RemoteInterface> connector, List<Integer> replicaPorts,
+      Workload workload) {
+    this.connector = connector;
+    this.replicaPorts = replicaPorts;
+    this.workload = workload;
+    this.nearCache = NearCache.fromSystemProperty(connector, replicaPorts.get(0));
+  }
+
+  /**
+   * Loads the initial records if configured, then runs the workload and prints a report.
+   *
+   * @throws InterruptedException if interrupted while waiting for the worker threads.
+   */
+  public void run() throws InterruptedException {
+    System.out.println("Workload: " + workload + " readPolicy="
+        + ReplicaRouter.ReadPolicy.fromSystemProperty());
+    if (workload.preload) {
+      long start = System.nanoTime();
+      runWorkers(this::preload);
+      System.out.printf(Locale.ROOT, "Loaded %d records in %.1fs (%d errors)%n",
+          insertedRecords.get(), (System.nanoTime() - start) / 1e9, errors.get());
+    } else {
+      insertedRecords.set(workload.records);
+    }
+    errors.set(0L);
+
+    long measureStart = System.nanoTime() + TimeUnit.SECONDS.toNanos(workload.warmupSeconds);
+    long end = measureStart + TimeUnit.SECONDS.toNanos(workload.durationSeconds);
+    long startRecords = insertedRecords.get();
+    runWorkers(thread -> drive(thread, measureStart, end));
+    report(workload.durationSeconds, insertedRecords.get() - startRecords);
+  }
+
+  @FunctionalInterface
+  private interface Worker {
+    void run(int thread) throws Exception;
+  }
+
+  private void runWorkers(Worker worker) throws InterruptedException {
+    CountDownLatch done = new CountDownLatch(workload.threads);
+    for (int t = 0; t < workload.threads; t++) {
+      int thread = t;
+      Thread runner = new Thread(() -> {
+        try {
+          worker.run(thread);
+        } catch (Exception e) {
+          errors.incrementAndGet();
+          e.printStackTrace();
+        } finally {
+          done.countDown();
+        }
+      }, "load-" + t);
+      runner.setDaemon(true);
+      runner.start();
+    }
+    done.await();
+  }
+
+  /**
+   * Inserts this thread's share of the initial records through the coordinator.
+   */
+  private void preload(int thread) throws Exception {
+    RemoteInterface coordinator = connect(replicaPorts.get(0));
+    String value = randomValue();
+    for (long record = thread; record < workload.records; record += workload.threads) {
+      coordinator.processRequest("PUT " + keyOf(record) + "=" + value);
+      insertedRecords.incrementAndGet();
+    }
+  }
+
+  /**
+   * Runs one worker thread until {@code end}, recording only operations that were intended to
+   * start after {@code measureStart}.
+   */
+  private void drive(int thread, long measureStart, long end) throws Exception {
+    // One router per thread, so that every thread has its own connections to the replicas
+    ReplicaRouter router = new ReplicaRouter(connector, replicaPorts,
+        ReplicaRouter.ReadPolicy.fromSystemProperty(), nearCache);
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    ZipfianGenerator zipfian = new ZipfianGenerator(Math.max(1L, insertedRecords.get()));
+    String[] values = new String[16];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = randomValue();
+    }
+
+    boolean openLoop = workload.targetRate > 0;
+    long interval = openLoop ? (long) (workload.threads * 1e9 / workload.targetRate) : 0L;
+    long intendedStart = System.nanoTime()
+        + (openLoop ? interval * thread / workload.threads : 0L);
+    long insertSequence = thread;
+    // With a pipeline, the thread keeps that many operations in flight through the async API
+    boolean pipelined = workload.pipeline > 1;
+    Semaphore inFlight = new Semaphore(workload.pipeline);
+
+    while (true) {
+      if (openLoop) {
+        long wait;
+        while ((wait = intendedStart - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(wait);
+        }
+      } else {
+        intendedStart = System.nanoTime();
+      }
+      if (intendedStart >= end) {
+        // Waits for the operations still in flight
+        inFlight.acquire(workload.pipeline);
+        return;
+      }
+
+      boolean read = random.nextDouble() < workload.readRatio;
+      String key;
+      String request = null;
+      if (read) {
+        key = keyOf(chooseKey(random, zipfian));
+      } else {
+        // Keys past the preloaded range, partitioned between threads so inserts never collide
+        key = keyOf(workload.records + insertSequence);
+        insertSequence += workload.threads;
+        request = "PUT " + key + "=" + values[random.nextInt(values.length)];
+      }
+
+      if (pipelined) {
+        inFlight.acquire();
+        long sendTime = System.nanoTime();
+        long intended = intendedStart;
+        CompletableFuture<?> operation = read
+            ? router.getAsync(key).thenAccept(this::readDone)
+            : router.writeAsync(request).thenAccept(this::writeDone);
+        operation.whenComplete((result, error) -> {
+          if (error != null) {
+            errors.incrementAndGet();
+          }
+          record(read, measureStart, intended, sendTime);
+          inFlight.release();
+        });
+      } else {
+        long sendTime = System.nanoTime();
+        try {
+          if (read) {
+            readDone(router.get(key));
+          } else {
+            writeDone(router.write(request));
+          }
+        } catch (Exception e) {
+          errors.incrementAndGet();
+        }
+        record(read, measureStart, intendedStart, sendTime);
+      }
+      if (openLoop) {
+        intendedStart += interval;
+      }
+    }
+  }
+
+  private void readDone(String value) {
+    if (value == null) {
+      readMisses.incrementAndGet();
+    }
+  }
+
+  private void writeDone(String response) {
+    if (response.contains("Failed")) {
+      failedWrites.incrementAndGet();
+    } else {
+      insertedRecords.incrementAndGet();
+    }
+  }
+
+  /**
+   * Records a finished operation if it was intended to start after {@code measureStart}.
+   */
+  private void record(boolean read, long measureStart, long intendedStart, long sendTime) {
+    long finish = System.nanoTime();
+    if (intendedStart >= measureStart) {
+      (read ? readLatency : writeLatency).record(finish - intendedStart);
+      (read ? readServiceTime : writeServiceTime).record(finish - sendTime);
+    }
+  }
+
+  private long chooseKey(ThreadLocalRandom random, ZipfianGenerator zipfian) {
+    long records = Math.max(1L, insertedRecords.get());
+    switch (workload.distribution) {
+      case "uniform":
+        return random.nextLong(records);
+      case "latest":
+        // The most recently inserted records are the most popular
+        return Math.max(0L, records - 1 - zipfian.next(random, records));
+      case "zipfian":
+        // Scramble ranks so that popular keys are spread over the key space, as YCSB does
+        return Math.floorMod(mix(zipfian.next(random, records)), records);
+      default:
+        throw new IllegalArgumentException("Unknown distribution: " + workload.distribution);
+    }
+  }
+
+  private RemoteInterface connect(int port) {
+    RemoteInterface replica = connector.apply(port);
+    if (replica == null) {
+      throw new IllegalStateException("Cannot connect to the replica on port " + port);
+    }
+    return replica;
+  }
+
+  private String randomValue() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    char[] value = new char[workload.valueSize];
+    for (int i = 0; i < value.length; i++) {
+      value[i] = (char) ('a' + random.nextInt(26));
+    }
+    return new String(value);
+  }
+
+  private static String keyOf(long record) {
+    return "user" + record;
+  }
+
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+
+  private void report(long seconds, long inserted) {
+    long reads = readLatency.getCount();
+    long writes = writeLatency.getCount();
+    System.out.println("-------------------------------------");
+    System.out.printf(Locale.ROOT, "Throughput: %.1f ops/s (%d reads, %d writes in %ds)%n",
+        (reads + writes) / (double) seconds, reads, writes, seconds);
+    System.out.printf(Locale.ROOT, "Read misses: %d, failed writes: %d, errors: %d, inserted: %d%n",
+        readMisses.get(), failedWrites.get(), errors.get(), inserted);
+    if (nearCache != null) {
+      long hits = nearCache.hits();
+      long lookups = hits + nearCache.misses();
+      System.out.printf(Locale.ROOT, "Near cache: %d hits of %d reads (%.1f%%), warmup included%n",
+          hits, lookups, lookups == 0 ? 0.0 : 100.0 * hits / lookups);
+    }
+    boolean openLoop = workload.targetRate > 0;
+    System.out.printf(Locale.ROOT, "%-22s %9s %9s %9s %9s %9s %9s %9s%n", "Latency (us)", "mean",
+        "p50", "p90", "p99", "p99.9", "p99.99", "max");
+    printRow(openLoop ? "READ (corrected)" : "READ", readLatency);
+    printRow(openLoop ? "WRITE (corrected)" : "WRITE", writeLatency);
+    if (openLoop) {
+      printRow("READ (service time)", readServiceTime);
+      printRow("WRITE (service time)", writeServiceTime);
+    }
+  }
+
+  private static void printRow(String name, LatencyHistogram histogram) {
+    System.out.printf(Locale.ROOT, "%-22s %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f%n", name,
+        histogram.getMean() / 1e3, histogram.getValueAtPercentile(50) / 1e3,
+        histogram.getValueAtPercentile(90) / 1e3, histogram.getValueAtPercentile(99) / 1e3,
+        histogram.getValueAtPercentile(99.9) / 1e3, histogram.getValueAtPercentile(99.99) / 1e3,
+        histogram.getMax() / 1e3);
+  }
+
+  /**
+   * Draws ranks from a zipfian distribution with constant 0.99, using the method of Gray et al.
+   * that YCSB uses. The item count may grow between draws; zeta is then extended incrementally.
+   */
+  static final class ZipfianGenerator {
+    private static final double THETA = 0.99;
+    private static final double ALPHA = 1.0 / (1.0 - THETA);
+    private static final double ZETA_2 = 1.0 + Math.pow(0.5, THETA);
+
+    private long items;
+    private double zetaN;
+    private double eta;
+
+    ZipfianGenerator(long items) {
+      grow(items);
+    }
+
+    /**
+     * @return a rank in {@code [0, items)}, where rank 0 is the most popular.
+     */
+    long next(ThreadLocalRandom random, long itemCount) {
+      if (itemCount > items) {
+        grow(itemCount);
+      }
+      double u = random.nextDouble();
+      double uz = u * zetaN;
+      if (uz < 1.0) {
+        return 0L;
+      }
+      if (uz < ZETA_2) {
+        return Math.min(1L, itemCount - 1);
+      }
+      long rank = (long) (items * Math.pow(eta * u - eta + 1.0, ALPHA));
+      return Math.min(rank, itemCount - 1);
+    }
+
+    private void grow(long itemCount) {
+      for (long i = items + 1; i <= itemCount; i++) {
+        zetaN += 1.0 / Math.pow(i, THETA);
+      }
+      items = itemCount;
+      eta = (1.0 - Math.pow(2.0 / items, 1.0 - THETA)) / (1.0 - ZETA_2 / zetaN);
+    }
+  }
+}
@@ -0,0 +1,292 @@
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The Log class is the server's asynchronous logger. Request threads only fill a preallocated
+ * slot of a ring buffer; a single background thread formats the messages and writes them to
+ * standard output in batches, so that the synchronized {@code System.out} is never on the
+ * request path.
+ *
+ * <p>Messages are templates whose {@code {}} placeholders are filled with the arguments on the
+ * writer thread, so a call for a disabled level, or with constant text, allocates nothing. Each
+ * line is prefixed with "[Time: MM-dd-yyyy HH:mm:ss.SSS] " like the rest of the server's
+ * output. If the ring is full the message is dropped and counted rather than blocking the
+ * caller; the writer reports how many were dropped.
+ *
+ * <p>The level is set with {@code -Dkv.logLevel} (DEBUG, INFO, WARN or ERROR, default INFO) and
+ * the ring size with {@code -Dkv.logBufferSize} (rounded up to a power of two, default 8192).
+ */
+public final class Log {
+  /**
+   * The severity of a message.
+   */
+  public enum Level {
+    DEBUG,
+    INFO,
+    WARN,
+    ERROR
+  }
+
+  private static final Level THRESHOLD =
+      Level.valueOf(System.getProperty("kv.logLevel", "INFO").toUpperCase());
+  private static final int CAPACITY =
+      Integer.highestOneBit(Math.max(2, Integer.getInteger("kv.logBufferSize", 8192) - 1)) << 1;
+  private static final int MASK = CAPACITY - 1;
+  private static final long IDLE_PARK_NANOS = 1_000_000L;
+
+  private static final Slot[] SLOTS = new Slot[CAPACITY];
+  // Next sequence to claim, and next sequence the writer will consume
+  private static final AtomicLong CLAIMED = new AtomicLong();
+  private static final AtomicLong CONSUMED = new AtomicLong();
+  private static final AtomicLong DROPPED = new AtomicLong();
+  private static final Thread WRITER;
+
+  private static volatile TimestampCache timestampCache = new TimestampCache(Long.MIN_VALUE, "");
+
+  static {
+    for (int i = 0; i < CAPACITY; i++) {
+      SLOTS[i] = new Slot();
+    }
+    WRITER = new Thread(Log::writeLoop, "log-writer");
+    WRITER.setDaemon(true);
+    WRITER.start();
+    Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+  }
+
+  private Log() {
+  }
+
+  /**
+   * @param level the level to check.
+   * @return whether messages of that level are written.
+   */
+  public static boolean isEnabled(Level level) {
+    return level.compareTo(THRESHOLD) >= 0;
+  }
+
+  public static void debug(String template, Object... args) {
+    log(Level.DEBUG, template, null, args);
+  }
+
+  public static void info(String message) {
+    log(Level.INFO, message, null, null);
+  }
+
+  public static void info(String template, Object arg) {
+    log(Level.INFO, template, null, arg, null);
+  }
+
+  public static void info(String template, Object arg1, Object arg2) {
+    log(Level.INFO, template, null, arg1, arg2);
+  }
+
+  public static void warn(String template, Object... args) {
+    log(Level.WARN, template, null, args);
+  }
+
+  /**
+   * Logs an error with the stack trace of its cause.
+   *
+   * @param message the message.
+   * @param thrown  the cause, or null.
+   */
+  public static void error(String message, Throwable thrown) {
+    log(Level.ERROR, message, thrown, null);
+  }
+
+  /**
+   * Logs an error with the stack trace of its cause.
+   *
+   * @param template the message template.
+   * @param arg      the value of the template's placeholder.
+   * @param thrown   the cause, or null.
+   */
+  public static void error(String template, Object arg, Throwable thrown) {
+    log(Level.ERROR, template, thrown, arg, null);
+  }
+
+  private static void log(Level level, String template, Throwable thrown, Object arg1,
+      Object arg2) {
+    if (!isEnabled(level)) {
+      return;
+    }
+    enqueue(level, template, thrown, arg1, arg2, null);
+  }
+
+  private static void log(Level level, String template, Throwable thrown, Object[] args) {
+    if (!isEnabled(level)) {
+      return;
+    }
+    enqueue(level, template, thrown, null, null, args);
+  }
+
+  private static void enqueue(Level level, String template, Throwable thrown, Object arg1,
+      Object arg2, Object[] args) {
+    long sequence;
+    do {
+      sequence = CLAIMED.get();
+      if (sequence - CONSUMED.get() >= CAPACITY) {
+        DROPPED.incrementAndGet();
+        return;
+      }
+    } while (!CLAIMED.compareAndSet(sequence, sequence + 1));
+
+    Slot slot = SLOTS[(int) (sequence & MASK)];
+    slot.timeMillis = System.currentTimeMillis();
+    slot.level = level;
+    slot.template = template;
+    slot.thrown = thrown;
+    slot.arg1 = arg1;
+    slot.arg2 = arg2;
+    slot.args = args;
+    // The volatile write publishes the fields above to the writer
+    slot.published = sequence + 1;
+  }
+
+  /**
+   * Formats a wall-clock time as "MM-dd-yyyy HH:mm:ss.SSS". The part up to the seconds is only
+   * formatted once per second and shared by all threads.
+   *
+   * @param epochMillis the time to format.
+   * @return the formatted time.
+   */
+  public static String formatTimestamp(long epochMillis) {
+    long second = Math.floorDiv(epochMillis, 1000L);
+    TimestampCache cache = timestampCache;
+    if (cache.second != second) {
+      cache = new TimestampCache(second,
+          new SimpleDateFormat("MM-dd-yyyy HH:mm:ss.").format(new Date(second * 1000L)));
+      timestampCache = cache;
+    }
+    int millis = (int) Math.floorMod(epochMillis, 1000L);
+    StringBuilder builder = new StringBuilder(cache.prefix.length() + 3).append(cache.prefix);
+    if (millis < 100) {
+      builder.append('0');
+    }
+    if (millis < 10) {
+      builder.append('0');
+    }
+    return builder.append(millis).toString();
+  }
+
+  /**
+   * Writes every message logged so far. Called on shutdown so that the last messages are not
+   * lost.
+   */
+  public static void flush() {
+    synchronized (WRITER) {
+      drain(new StringBuilder(256));
+    }
+  }
+
+  private static void writeLoop() {
+    StringBuilder batch = new StringBuilder(4096);
+    while (true) {
+      boolean wrote;
+      synchronized (WRITER) {
+        wrote = drain(batch);
+      }
+      if (!wrote) {
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+      }
+    }
+  }
+
+  /**
+   * Formats and writes every published message, in order.
+   *
+   * @return whether anything was written.
+   */
+  private static boolean drain(StringBuilder batch) {
+    batch.setLength(0);
+    long dropped = DROPPED.getAndSet(0L);
+    if (dropped > 0) {
+      appendLine(batch, Level.WARN, System.currentTimeMillis(),
+          dropped + " log messages dropped because the log buffer was full", null, null, null);
+    }
+
+    long next = CONSUMED.get();
+    PrintStream out = System.out;
+    boolean wrote = false;
+    while (true) {
+      Slot slot = SLOTS[(int) (next & MASK)];
+      if (slot.published != next + 1) {
+        break;
+      }
+      appendLine(batch, slot.level, slot.timeMillis, slot.template, slot.arg1, slot.arg2,
+          slot.args);
+      Throwable thrown = slot.thrown;
+      slot.template = null;
+      slot.thrown = null;
+      slot.arg1 = null;
+      slot.arg2 = null;
+      slot.args = null;
+      next++;
+      CONSUMED.lazySet(next);
+      if (thrown != null) {
+        out.print(batch);
+        batch.setLength(0);
+        thrown.printStackTrace(out);
+        wrote = true;
+      }
+    }
+
+    if (batch.length() > 0) {
+      out.print(batch);
+      wrote = true;
+    }
+    if (wrote) {
+      out.flush();
+    }
+    return wrote;
+  }
+
+  private static void appendLine(StringBuilder batch, Level level, long timeMillis,
+      String template, Object arg1, Object arg2, Object[] args) {
+    batch.append("[Time: ").append(formatTimestamp(timeMillis)).append("] ");
+    if (level != Level.INFO) {
+      batch.append(level).append(' ');
+    }
+    int argument = 0;
+    int start = 0;
+    int placeholder;
+    while ((placeholder = template.indexOf("{}", start)) >= 0) {
+      batch.append(template, start, placeholder);
+      if (args != null) {
+        batch.append(argument < args.length ? args[argument] : "{}");
+      } else {
+        batch.append(argument == 0 ? arg1 : argument == 1 ? arg2 : "{}");
+      }
+      argument++;
+      start = placeholder + 2;
+    }
+    batch.append(template, start, template.length()).append(System.lineSeparator());
+  }
+
+  /**
+   * A ring buffer slot, reused for every message that maps to it.
+   */
+  private static final class Slot {
+    private volatile long published;
+    private long timeMillis;
+    private Level level;
+    private String template;
+    private Throwable thrown;
+    private Object arg1;
+    private Object arg2;
+    private Object[] args;
+  }
+
+  private static final class TimestampCache {
+    private final long second;
+    private final String prefix;
+
+    TimestampCache(long second, String prefix) {
+      this.second = second;
+      this.prefix = prefix;
+    }
+  }
+}
@@ -0,0 +1,962 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The LsmStorageEngine class is a log-structured merge tree, for stores larger than the memory
+ * of the replica. Only recent writes and a small index per file stay on the heap; the values
+ * live in sorted files on disk.
+ *
+ * <p>Writes go to a memtable, a sorted in-memory map in which a removed key is marked with a
+ * tombstone. Once the memtable holds {@code kv.lsmMemtableBytes}, it is frozen, a new one takes
+ * its place, and a background thread writes it out as an immutable segment file: the entries in
+ * key order, packed into blocks of about {@code kv.lsmBlockBytes}. Each segment keeps in memory
+ * <ul>
+ *   <li>a Bloom filter of its keys, with {@code kv.lsmBloomBitsPerKey} bits per key, so that
+ *   most segments without the key are skipped without reading them; and</li>
+ *   <li>a sparse index holding the first key of each block, so that a segment that may hold
+ *   the key is answered by reading the one block the key would be in.</li>
+ * </ul>
+ * A GET looks at the memtables and then the segments from newest to oldest, and stops at the
+ * first that has the key.
+ *
+ * <p>Once there are more than {@code kv.lsmCompactionThreshold} segments, a background thread
+ * merges the newest segments whose sizes are similar into one. A merge that includes the oldest
+ * segment drops the tombstones. Merged segments are deleted once no reader uses them.
+ *
+ * <p>Every write reads the previous value first, as {@link StorageEngine} returns it, so
+ * {@link #size()} is kept exactly. The segment files are not a recovery mechanism: the replica's
+ * write-ahead log and snapshots are, and {@link #open(Path)} starts from an empty directory that
+ * recovery then fills.
+ */
+public class LsmStorageEngine implements StorageEngine {
+  private static final long MEMTABLE_BYTES =
+      Long.getLong("kv.lsmMemtableBytes", 8L * 1024 * 1024);
+  private static final int BLOCK_BYTES = Integer.getInteger("kv.lsmBlockBytes", 4096);
+  private static final int BLOOM_BITS_PER_KEY = Integer.getInteger("kv.lsmBloomBitsPerKey", 10);
+  private static final int COMPACTION_THRESHOLD =
+      Integer.getInteger("kv.lsmCompactionThreshold", 4);
+  // Writers wait for the flush thread once this many frozen memtables are queued
+  private static final int MAX_IMMUTABLE_MEMTABLES = 2;
+  private static final long FLUSH_RETRY_MS = 1000L;
+  private static final int LOCK_STRIPES = 64;
+  // Approximate heap cost of a memtable entry besides its key and value
+  private static final int ENTRY_OVERHEAD_BYTES = 64;
+  // An entry starts with the key length and the value length
+  private static final int ENTRY_HEADER_BYTES = 8;
+  // The value length of a removed key in a segment file
+  private static final int TOMBSTONE_LENGTH = -1;
+  // Marks a removed key; compared by identity, so an empty value is not a tombstone
+  private static final byte[] TOMBSTONE = new byte[0];
+  private static final Cleaner CLEANER = Cleaner.create();
+
+  // Serializes the read-then-write of each key
+  private final ReentrantLock[] stripes = new ReentrantLock[LOCK_STRIPES];
+  // Held shared while writing to the memtable and exclusively while replacing it
+  private final ReentrantReadWriteLock memtableLock = new ReentrantReadWriteLock();
+  // Guards installing a new version
+  private final ReentrantLock versionLock = new ReentrantLock();
+  private final Condition flushed = versionLock.newCondition();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicLong nextSegmentId = new AtomicLong();
+  private final AtomicBoolean compacting = new AtomicBoolean();
+  private final ScheduledExecutorService flushExecutor;
+  private final ExecutorService compactionExecutor;
+  private volatile Version current =
+      new Version(new Memtable(), Collections.emptyList(), Collections.emptyList());
+  private volatile Path directory;
+
+  /**
+   * Constructs a new, empty LsmStorageEngine instance. Writes stay in the memtable until
+   * {@link #open(Path)} names the directory for the segment files.
+   */
+  public LsmStorageEngine() {
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i] = new ReentrantLock();
+    }
+    flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "lsm-flush");
+      thread.setDaemon(true);
+      return thread;
+    });
+    compactionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "lsm-compaction");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Keeps the segment files in the given directory, deleting any left by an earlier run.
+   */
+  @Override
+  public void open(Path directory) throws IOException {
+    Files.createDirectories(directory);
+    try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory, "segment-*.sst")) {
+      for (Path path : stale) {
+        Files.delete(path);
+      }
+    }
+    this.directory = directory;
+    afterWrite();
+  }
+
+  @Override
+  public byte[] get(String key) {
+    // Recent keys are answered from the memtables, which need no pinning
+    Version latest = current;
+    byte[] value = findInMemtables(latest, key);
+    if (value == null) {
+      Version version = acquire();
+      try {
+        value = find(version, key);
+      } finally {
+        release(version);
+      }
+    }
+    return value == TOMBSTONE ? null : value;
+  }
+
+  @Override
+  public boolean containsKey(String key) {
+    return get(key) != null;
+  }
+
+  @Override
+  public byte[] put(String key, byte[] value) {
+    ReentrantLock stripe = lock(key);
+    byte[] previous;
+    try {
+      previous = get(key);
+      write(key, value);
+      if (previous == null) {
+        size.incrementAndGet();
+      }
+    } finally {
+      stripe.unlock();
+    }
+    afterWrite();
+    return previous;
+  }
+
+  @Override
+  public byte[] putIfAbsent(String key, byte[] value) {
+    ReentrantLock stripe = lock(key);
+    try {
+      byte[] previous = get(key);
+      if (previous != null) {
+        return previous;
+      }
+      write(key, value);
+      size.incrementAndGet();
+    } finally {
+      stripe.unlock();
+    }
+    afterWrite();
+    return null;
+  }
+
+  @Override
+  public boolean replace(String key, byte[] expectedValue, byte[] value) {
+    ReentrantLock stripe = lock(key);
+    try {
+      byte[] previous = get(key);
+      if (previous == null || !Arrays.equals(previous, expectedValue)) {
+        return false;
+      }
+      write(key, value);
+    } finally {
+      stripe.unlock();
+    }
+    afterWrite();
+    return true;
+  }
+
+  @Override
+  public byte[] remove(String key) {
+    ReentrantLock stripe = lock(key);
+    byte[] previous;
+    try {
+      previous = get(key);
+      if (previous == null) {
+        return null;
+      }
+      write(key, TOMBSTONE);
+      size.decrementAndGet();
+    } finally {
+      stripe.unlock();
+    }
+    afterWrite();
+    return previous;
+  }
+
+  @Override
+  public boolean remove(String key, byte[] expectedValue) {
+    ReentrantLock stripe = lock(key);
+    try {
+      byte[] previous = get(key);
+      if (previous == null || !Arrays.equals(previous, expectedValue)) {
+        return false;
+      }
+      write(key, TOMBSTONE);
+      size.decrementAndGet();
+    } finally {
+      stripe.unlock();
+    }
+    afterWrite();
+    return true;
+  }
+
+  @Override
+  public int size() {
+    return size.get();
+  }
+
+  @Override
+  public void clear() {
+    memtableLock.writeLock().lock();
+    versionLock.lock();
+    try {
+      install(new Version(new Memtable(), Collections.emptyList(), Collections.emptyList()));
+      size.set(0);
+      flushed.signalAll();
+    } finally {
+      versionLock.unlock();
+      memtableLock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public long diskBytes() {
+    long total = 0L;
+    for (Segment segment : current.segments) {
+      total += segment.fileBytes();
+    }
+    return total;
+  }
+
+  /**
+   * Merges the memtables and segments in key order. The segments seen are kept on disk until the
+   * iteration ends or the iterator is garbage collected.
+   */
+  @Override
+  public Iterator<Map.Entry<String, byte[]>> iterator() {
+    return range("", null);
+  }
+
+  /**
+   * Merges the memtables and segments from the first key of the range on. Each segment is read
+   * from the block the first key would be in, so a short range reads a block or two per segment.
+   */
+  @Override
+  public Iterator<Map.Entry<String, byte[]>> range(String fromKey, String toKey) {
+    Version version = acquire();
+    List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<>();
+    sources.add(version.memtable.entries.tailMap(fromKey).entrySet().iterator());
+    for (Memtable memtable : version.immutables) {
+      sources.add(memtable.entries.tailMap(fromKey).entrySet().iterator());
+    }
+    for (Segment segment : version.segments) {
+      sources.add(segment.iterator(fromKey));
+    }
+    LiveEntries entries = new LiveEntries(new MergingIterator(sources), fromKey, toKey);
+    entries.pin = CLEANER.register(entries, () -> release(version));
+    return entries;
+  }
+
+  private ReentrantLock lock(String key) {
+    ReentrantLock stripe = stripes[(key.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    stripe.lock();
+    return stripe;
+  }
+
+  private void write(String key, byte[] value) {
+    memtableLock.readLock().lock();
+    try {
+      current.memtable.put(key, value);
+    } finally {
+      memtableLock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Freezes the memtable once it is full, and holds the writer back while too many frozen
+   * memtables are waiting to be flushed.
+   */
+  private void afterWrite() {
+    if (directory == null) {
+      return;
+    }
+    if (current.memtable.bytes.get() >= MEMTABLE_BYTES) {
+      freezeMemtable();
+    }
+    if (current.immutables.size() > MAX_IMMUTABLE_MEMTABLES) {
+      versionLock.lock();
+      try {
+        while (current.immutables.size() > MAX_IMMUTABLE_MEMTABLES) {
+          flushed.awaitUninterruptibly();
+        }
+      } finally {
+        versionLock.unlock();
+      }
+    }
+  }
+
+  private void freezeMemtable() {
+    memtableLock.writeLock().lock();
+    versionLock.lock();
+    try {
+      Version version = current;
+      // Another writer may have frozen it first
+      if (version.memtable.bytes.get() < MEMTABLE_BYTES) {
+        return;
+      }
+      List<Memtable> immutables = new ArrayList<>(version.immutables.size() + 1);
+      immutables.add(version.memtable);
+      immutables.addAll(version.immutables);
+      install(new Version(new Memtable(), immutables, version.segments));
+      flushExecutor.execute(this::flushOldest);
+    } finally {
+      versionLock.unlock();
+      memtableLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Writes the oldest frozen memtable to a new segment. Memtables are always flushed oldest
+   * first, so that each new segment is newer than those already installed.
+   */
+  private void flushOldest() {
+    List<Memtable> immutables = current.immutables;
+    if (immutables.isEmpty()) {
+      return;
+    }
+    Memtable memtable = immutables.get(immutables.size() - 1);
+    Segment segment;
+    try {
+      segment = writeSegment(memtable.entries.entrySet().iterator(), memtable.entries.size(),
+          false);
+    } catch (IOException e) {
+      Log.error("Could not flush a memtable to {}, retrying", directory, e);
+      flushExecutor.schedule(this::flushOldest, FLUSH_RETRY_MS, TimeUnit.MILLISECONDS);
+      return;
+    }
+    versionLock.lock();
+    try {
+      Version version = current;
+      if (!version.immutables.contains(memtable)) {
+        // Cleared while flushing
+        if (segment != null) {
+          segment.close();
+        }
+        return;
+      }
+      List<Memtable> remaining = new ArrayList<>(version.immutables);
+      remaining.remove(memtable);
+      List<Segment> segments = new ArrayList<>(version.segments.size() + 1);
+      if (segment != null) {
+        segments.add(segment);
+      }
+      segments.addAll(version.segments);
+      install(new Version(version.memtable, remaining, segments));
+      flushed.signalAll();
+    } finally {
+      versionLock.unlock();
+    }
+    maybeCompact();
+  }
+
+  private void maybeCompact() {
+    if (current.segments.size() > Math.max(1, COMPACTION_THRESHOLD)
+        && compacting.compareAndSet(false, true)) {
+      compactionExecutor.execute(this::compact);
+    }
+  }
+
+  /**
+   * Merges the newest run of segments of similar size. Merging a segment only with those no
+   * bigger than all the newer ones together keeps each key rewritten a logarithmic number of
+   * times rather than once per flush.
+   */
+  private void compact() {
+    boolean compacted = false;
+    try {
+      Version version = acquire();
+      try {
+        List<Segment> segments = version.segments;
+        int count = 1;
+        long total = segments.get(0).fileBytes();
+        while (count < segments.size() && segments.get(count).fileBytes() <= total) {
+          total += segments.get(count).fileBytes();
+          count++;
+        }
+        List<Segment> run = segments.subList(0, Math.max(2, count));
+        boolean includesOldest = run.size() == segments.size();
+        List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<>();
+        long keys = 0L;
+        for (Segment segment : run) {
+          sources.add(segment.iterator(""));
+          keys += segment.entryCount;
+        }
+        Segment merged = writeSegment(new MergingIterator(sources), keys, includesOldest);
+        compacted = replaceRun(run, merged);
+      } finally {
+        release(version);
+      }
+    } catch (IOException | UncheckedIOException e) {
+      Log.error("Could not compact the segments in {}", directory, e);
+    } finally {
+      compacting.set(false);
+    }
+    if (compacted) {
+      maybeCompact();
+    }
+  }
+
+  private boolean replaceRun(List<Segment> run, Segment merged) {
+    versionLock.lock();
+    try {
+      Version version = current;
+      List<Segment> segments = version.segments;
+      // Flushes since the merge started only add newer segments in front of the run
+      int start = segments.indexOf(run.get(0));
+      if (start < 0 || start + run.size() > segments.size()
+          || !segments.subList(start, start + run.size()).equals(run)) {
+        // Cleared while merging
+        if (merged != null) {
+          merged.close();
+        }
+        return false;
+      }
+      List<Segment> replaced = new ArrayList<>(segments.subList(0, start));
+      if (merged != null) {
+        replaced.add(merged);
+      }
+      replaced.addAll(segments.subList(start + run.size(), segments.size()));
+      install(new Version(version.memtable, version.immutables, replaced));
+      return true;
+    } finally {
+      versionLock.unlock();
+    }
+  }
+
+  /**
+   * Writes sorted entries to a new segment file.
+   *
+   * @param entries        the entries in key order, tombstones included.
+   * @param expectedKeys   the number of entries at most, to size the Bloom filter.
+   * @param dropTombstones whether to leave removed keys out.
+   * @return the segment, or null if there was nothing to write.
+   * @throws IOException if the file cannot be written.
+   */
+  private Segment writeSegment(Iterator<Map.Entry<String, byte[]>> entries, long expectedKeys,
+      boolean dropTombstones) throws IOException {
+    Path path = directory.resolve(
+        String.format("segment-%08d.sst", nextSegmentId.incrementAndGet()));
+    List<String> firstKeys = new ArrayList<>();
+    List<Long> blockOffsets = new ArrayList<>();
+    BloomFilter bloom = new BloomFilter(expectedKeys, BLOOM_BITS_PER_KEY);
+    ByteBuffer block = ByteBuffer.allocate(BLOCK_BYTES);
+    long position = 0L;
+    int count = 0;
+    try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.WRITE)) {
+      while (entries.hasNext()) {
+        Map.Entry<String, byte[]> entry = entries.next();
+        byte[] value = entry.getValue();
+        if (dropTombstones && value == TOMBSTONE) {
+          continue;
+        }
+        byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+        int entryBytes = ENTRY_HEADER_BYTES + key.length + value.length;
+        if (block.position() > 0 && block.position() + entryBytes > BLOCK_BYTES) {
+          position += writeBlock(out, block, position);
+        }
+        if (block.position() == 0) {
+          firstKeys.add(entry.getKey());
+          blockOffsets.add(position);
+          if (block.capacity() < entryBytes) {
+            // A large entry gets a block of its own
+            block = ByteBuffer.allocate(entryBytes);
+          }
+        }
+        block.putInt(key.length).putInt(value == TOMBSTONE ? TOMBSTONE_LENGTH : value.length)
+            .put(key).put(value);
+        bloom.add(hash(key));
+        count++;
+      }
+      if (block.position() > 0) {
+        position += writeBlock(out, block, position);
+      }
+      out.force(true);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(path);
+      throw e;
+    }
+    if (count == 0) {
+      Files.delete(path);
+      return null;
+    }
+    long[] offsets = new long[blockOffsets.size() + 1];
+    for (int i = 0; i < blockOffsets.size(); i++) {
+      offsets[i] = blockOffsets.get(i);
+    }
+    offsets[offsets.length - 1] = position;
+    return new Segment(path, firstKeys.toArray(new String[0]), offsets, bloom, count);
+  }
+
+  private static int writeBlock(FileChannel out, ByteBuffer block, long position)
+      throws IOException {
+    block.flip();
+    int length = block.remaining();
+    while (block.hasRemaining()) {
+      out.write(block, position + block.position());
+    }
+    block.clear();
+    return length;
+  }
+
+  private static byte[] findInMemtables(Version version, String key) {
+    byte[] value = version.memtable.entries.get(key);
+    for (int i = 0; value == null && i < version.immutables.size(); i++) {
+      value = version.immutables.get(i).entries.get(key);
+    }
+    return value;
+  }
+
+  /**
+   * @return the value, the tombstone if the newest entry for the key removed it, or null if no
+   *         memtable or segment has the key.
+   */
+  private static byte[] find(Version version, String key) {
+    byte[] value = findInMemtables(version, key);
+    if (value != null || version.segments.isEmpty()) {
+      return value;
+    }
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    long hash = hash(keyBytes);
+    try {
+      for (Segment segment : version.segments) {
+        value = segment.get(key, keyBytes, hash);
+        if (value != null) {
+          return value;
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return null;
+  }
+
+  /**
+   * Pins the current version, so that its segments are not deleted while being read.
+   */
+  private Version acquire() {
+    while (true) {
+      Version version = current;
+      int references = version.references.get();
+      if (references > 0 && version.references.compareAndSet(references, references + 1)) {
+        return version;
+      }
+    }
+  }
+
+  private static void release(Version version) {
+    if (version.references.decrementAndGet() == 0) {
+      for (Segment segment : version.segments) {
+        segment.release();
+      }
+    }
+  }
+
+  /**
+   * Makes a version current. Must be called holding the version lock.
+   */
+  private void install(Version version) {
+    Version previous = current;
+    current = version;
+    release(previous);
+  }
+
+  /**
+   * 64-bit FNV-1a of the key bytes, followed by a finalizer to spread the bits for the Bloom
+   * filter.
+   */
+  private static long hash(byte[] key) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : key) {
+      hash ^= b & 0xFF;
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /**
+   * The memtables and segments readers see at one point in time, newest first. A version is
+   * replaced rather than changed; the segments it holds are kept until no reader pins it.
+   */
+  private static final class Version {
+    private final Memtable memtable;
+    private final List<Memtable> immutables;
+    private final List<Segment> segments;
+    // One for being current, plus one per reader
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    Version(Memtable memtable, List<Memtable> immutables, List<Segment> segments) {
+      this.memtable = memtable;
+      this.immutables = immutables;
+      this.segments = segments;
+      for (Segment segment : segments) {
+        segment.retain();
+      }
+    }
+  }
+
+  private static final class Memtable {
+    private final ConcurrentSkipListMap<String, byte[]> entries = new ConcurrentSkipListMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+
+    void put(String key, byte[] value) {
+      byte[] previous = entries.put(key, value);
+      if (previous == null) {
+        bytes.addAndGet(2L * key.length() + value.length + ENTRY_OVERHEAD_BYTES);
+      } else {
+        bytes.addAndGet(value.length - previous.length);
+      }
+    }
+  }
+
+  /**
+   * An immutable sorted file of entries, with its Bloom filter and sparse block index in memory.
+   */
+  private static final class Segment {
+    private final Path path;
+    // The first key of each block, for finding the block a key would be in
+    private final String[] firstKeys;
+    // Where each block starts, followed by the file length
+    private final long[] blockOffsets;
+    private final BloomFilter bloom;
+    private final int entryCount;
+    private final AtomicInteger references = new AtomicInteger();
+    private volatile FileChannel channel;
+
+    Segment(Path path, String[] firstKeys, long[] blockOffsets, BloomFilter bloom,
+        int entryCount) throws IOException {
+      this.path = path;
+      this.firstKeys = firstKeys;
+      this.blockOffsets = blockOffsets;
+      this.bloom = bloom;
+      this.entryCount = entryCount;
+      this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    long fileBytes() {
+      return blockOffsets[blockOffsets.length - 1];
+    }
+
+    /**
+     * @return the value, the tombstone, or null if this segment does not have the key.
+     */
+    byte[] get(String key, byte[] keyBytes, long hash) throws IOException {
+      if (!bloom.mightContain(hash)) {
+        return null;
+      }
+      int block = blockFor(key);
+      if (block < 0) {
+        return null;
+      }
+      ByteBuffer buffer = readBlock(block);
+      byte[] bytes = buffer.array();
+      while (buffer.hasRemaining()) {
+        int keyLength = buffer.getInt();
+        int valueLength = buffer.getInt();
+        int keyStart = buffer.position();
+        buffer.position(keyStart + keyLength);
+        if (Arrays.equals(bytes, keyStart, keyStart + keyLength, keyBytes, 0, keyBytes.length)) {
+          if (valueLength == TOMBSTONE_LENGTH) {
+            return TOMBSTONE;
+          }
+          byte[] value = new byte[valueLength];
+          buffer.get(value);
+          return value;
+        }
+        buffer.position(buffer.position() + Math.max(0, valueLength));
+      }
+      return null;
+    }
+
+    /**
+     * @return the block the key would be in, or -1 if the key is before the first block.
+     */
+    private int blockFor(String key) {
+      int block = Arrays.binarySearch(firstKeys, key);
+      return block >= 0 ? block : -block - 2;
+    }
+
+    /**
+     * @param fromKey where to start; the entries before it in its block are returned too.
+     * @return the entries from the block the key would be in on.
+     */
+    Iterator<Map.Entry<String, byte[]>> iterator(String fromKey) {
+      int firstBlock = Math.max(0, blockFor(fromKey));
+      return new Iterator<>() {
+        private int block = firstBlock;
+        private ByteBuffer buffer = ByteBuffer.allocate(0);
+
+        @Override
+        public boolean hasNext() {
+          while (!buffer.hasRemaining() && block < firstKeys.length) {
+            try {
+              buffer = readBlock(block++);
+            } catch (IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          }
+          return buffer.hasRemaining();
+        }
+
+        @Override
+        public Map.Entry<String, byte[]> next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          int keyLength = buffer.getInt();
+          int valueLength = buffer.getInt();
+          String key =
+              new String(buffer.array(), buffer.position(), keyLength, StandardCharsets.UTF_8);
+          buffer.position(buffer.position() + keyLength);
+          byte[] value = valueLength == TOMBSTONE_LENGTH ? TOMBSTONE : new byte[valueLength];
+          buffer.get(value);
+          return new AbstractMap.SimpleImmutableEntry<>(key, value);
+        }
+      };
+    }
+
+    private ByteBuffer readBlock(int block) throws IOException {
+      long start = blockOffsets[block];
+      ByteBuffer buffer = ByteBuffer.allocate((int) (blockOffsets[block + 1] - start));
+      boolean interrupted = false;
+      try {
+        while (buffer.hasRemaining()) {
+          FileChannel file = channel;
+          try {
+            if (file.read(buffer, start + buffer.position()) < 0) {
+              throw new EOFException(path.toString());
+            }
+          } catch (ClosedChannelException e) {
+            // An interrupted reader closes the channel for all; pinned segments are still open
+            interrupted |= Thread.interrupted();
+            reopen(file);
+          }
+        }
+      } finally {
+        if (interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      buffer.flip();
+      return buffer;
+    }
+
+    private synchronized void reopen(FileChannel closed) throws IOException {
+      if (channel == closed) {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+      }
+    }
+
+    void retain() {
+      references.incrementAndGet();
+    }
+
+    void release() {
+      if (references.decrementAndGet() == 0) {
+        close();
+      }
+    }
+
+    /**
+     * Closes and deletes the file.
+     */
+    void close() {
+      try {
+        channel.close();
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        Log.warn("Could not delete segment {}: {}", path, e);
+      }
+    }
+  }
+
+  /**
+   * A Bloom filter probed with double hashing, the two halves of one 64-bit hash giving all the
+   * probe positions.
+   */
+  private static final class BloomFilter {
+    private final long[] bits;
+    private final int probes;
+
+    BloomFilter(long keys, int bitsPerKey) {
+      long words = Math.max(1L, (Math.max(1L, keys) * bitsPerKey + 63) >>> 6);
+      bits = new long[(int) Math.min(words, Integer.MAX_VALUE - 8)];
+      probes = Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * Math.log(2))));
+    }
+
+    void add(long hash) {
+      long bitCount = bits.length * 64L;
+      int first = (int) hash;
+      int second = (int) (hash >>> 32);
+      for (int i = 1; i <= probes; i++) {
+        long bit = Math.floorMod(first + (long) i * second, bitCount);
+        bits[(int) (bit >>> 6)] |= 1L << bit;
+      }
+    }
+
+    boolean mightContain(long hash) {
+      long bitCount = bits.length * 64L;
+      int first = (int) hash;
+      int second = (int) (hash >>> 32);
+      for (int i = 1; i <= probes; i++) {
+        long bit = Math.floorMod(first + (long) i * second, bitCount);
+        if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Merges sorted sources, listed newest first, into one sorted sequence with one entry per key:
+   * the one from the newest source that has it. Tombstones are passed on.
+   */
+  private static final class MergingIterator implements Iterator<Map.Entry<String, byte[]>> {
+    private final PriorityQueue<Source> heads = new PriorityQueue<>();
+
+    MergingIterator(List<Iterator<Map.Entry<String, byte[]>>> sources) {
+      for (int i = 0; i < sources.size(); i++) {
+        advance(new Source(i, sources.get(i)));
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !heads.isEmpty();
+    }
+
+    @Override
+    public Map.Entry<String, byte[]> next() {
+      Source newest = heads.poll();
+      if (newest == null) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<String, byte[]> entry = newest.entry;
+      advance(newest);
+      while (!heads.isEmpty() && heads.peek().entry.getKey().equals(entry.getKey())) {
+        advance(heads.poll());
+      }
+      return entry;
+    }
+
+    private void advance(Source source) {
+      if (source.iterator.hasNext()) {
+        source.entry = source.iterator.next();
+        heads.add(source);
+      }
+    }
+  }
+
+  private static final class Source implements Comparable<Source> {
+    private final int age;
+    private final Iterator<Map.Entry<String, byte[]>> iterator;
+    private Map.Entry<String, byte[]> entry;
+
+    Source(int age, Iterator<Map.Entry<String, byte[]>> iterator) {
+      this.age = age;
+      this.iterator = iterator;
+    }
+
+    @Override
+    public int compareTo(Source other) {
+      int order = entry.getKey().compareTo(other.entry.getKey());
+      return order != 0 ? order : Integer.compare(age, other.age);
+    }
+  }
+
+  /**
+   * The merged entries in a key range without tombstones. Unpins its version once exhausted.
+   */
+  private static final class LiveEntries implements Iterator<Map.Entry<String, byte[]>> {
+    private final MergingIterator merged;
+    private final String fromKey;
+    private final String toKey;
+    private Cleaner.Cleanable pin;
+    private Map.Entry<String, byte[]> next;
+    private boolean ended;
+
+    LiveEntries(MergingIterator merged, String fromKey, String toKey) {
+      this.merged = merged;
+      this.fromKey = fromKey;
+      this.toKey = toKey;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (next == null && !ended && merged.hasNext()) {
+        Map.Entry<String, byte[]> entry = merged.next();
+        if (toKey != null && entry.getKey().compareTo(toKey) >= 0) {
+          ended = true;
+        } else if (entry.getValue() != TOMBSTONE && entry.getKey().compareTo(fromKey) >= 0) {
+          next = entry;
+        }
+      }
+      if (next == null) {
+        pin.clean();
+      }
+      return next != null;
+    }
+
+    @Override
+    public Map.Entry<String, byte[]> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<String, byte[]> entry = next;
+      next = null;
+      return entry;
+    }
+  }
+}
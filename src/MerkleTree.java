@@ -0,0 +1,154 @@
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The MerkleTree class summarizes a replica's key-value store as a fixed-shape hash tree over
+ * key-hash ranges, so that two replicas can find where they differ by exchanging a few node
+ * hashes instead of their whole stores.
+ *
+ * <p>Keys are spread over {@code 2^depth} leaves by hash. A leaf's hash is the XOR of the
+ * hashes of its entries, which lets every put and remove update it in O(1) without locking and
+ * in any order. Nodes are numbered like a binary heap: the root is 1, the children of node
+ * {@code n} are {@code 2n} and {@code 2n + 1}, and the leaves are nodes
+ * {@code [leafCount, 2 * leafCount)}. Inner node hashes are computed on demand.
+ */
+public class MerkleTree {
+  private final int leafCount;
+  private final AtomicLongArray leaves;
+
+  /**
+   * Constructs a new MerkleTree instance.
+   *
+   * @param depth the number of levels below the root; the tree has {@code 2^depth} leaves.
+   */
+  public MerkleTree(int depth) {
+    this.leafCount = 1 << depth;
+    this.leaves = new AtomicLongArray(leafCount);
+  }
+
+  public int getLeafCount() {
+    return leafCount;
+  }
+
+  /**
+   * Records that a key's value changed.
+   *
+   * @param key      the key.
+   * @param oldValue the previous value, or null if the key was absent.
+   * @param newValue the new value, or null if the key was removed.
+   */
+  public void update(String key, byte[] oldValue, byte[] newValue) {
+    long delta = 0L;
+    if (oldValue != null) {
+      delta ^= entryHash(key, oldValue);
+    }
+    if (newValue != null) {
+      delta ^= entryHash(key, newValue);
+    }
+    if (delta == 0L) {
+      return;
+    }
+    int leaf = leafOf(key);
+    long current;
+    do {
+      current = leaves.get(leaf);
+    } while (!leaves.compareAndSet(leaf, current, current ^ delta));
+  }
+
+  /**
+   * Recomputes every leaf from the given store, for example after it was replaced wholesale.
+   *
+   * @param store the store to summarize.
+   */
+  public void rebuild(StorageEngine store) {
+    long[] rebuilt = new long[leafCount];
+    for (Map.Entry<String, byte[]> entry : store) {
+      rebuilt[leafOf(entry.getKey())] ^= entryHash(entry.getKey(), entry.getValue());
+    }
+    for (int i = 0; i < leafCount; i++) {
+      leaves.set(i, rebuilt[i]);
+    }
+  }
+
+  /**
+   * Computes the hashes of the given nodes.
+   *
+   * @param nodes heap-numbered node indexes.
+   * @return the hash of each node, in the same order.
+   */
+  public long[] nodeHashes(int[] nodes) {
+    long[] hashes = new long[nodes.length];
+    for (int i = 0; i < nodes.length; i++) {
+      hashes[i] = nodeHash(nodes[i]);
+    }
+    return hashes;
+  }
+
+  /**
+   * @param node a heap-numbered node index.
+   * @return whether the node is a leaf.
+   */
+  public boolean isLeaf(int node) {
+    return node >= leafCount;
+  }
+
+  /**
+   * Collects the entries of the store that fall into the given leaves.
+   *
+   * @param store  the store to scan.
+   * @param leafNodes heap-numbered leaf node indexes.
+   * @return the matching entries.
+   */
+  public Map<String, byte[]> entriesIn(StorageEngine store, int[] leafNodes) {
+    BitSet wanted = new BitSet(leafCount);
+    for (int node : leafNodes) {
+      wanted.set(node - leafCount);
+    }
+    Map<String, byte[]> entries = new LinkedHashMap<>();
+    for (Map.Entry<String, byte[]> entry : store) {
+      if (wanted.get(leafOf(entry.getKey()))) {
+        entries.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return entries;
+  }
+
+  private long nodeHash(int node) {
+    if (node >= leafCount) {
+      return leaves.get(node - leafCount);
+    }
+    long left = nodeHash(2 * node);
+    long right = nodeHash(2 * node + 1);
+    return mix(left * 0x9E3779B97F4A7C15L + right);
+  }
+
+  private int leafOf(String key) {
+    return (int) (mix(key.hashCode()) & (leafCount - 1));
+  }
+
+  /**
+   * Hashes a key-value pair with 64-bit FNV-1a over the key's characters and the value's bytes.
+   */
+  private static long entryHash(String key, byte[] value) {
+    long hash = 0xCBF29CE484222325L;
+    for (int i = 0; i < key.length(); i++) {
+      hash = (hash ^ key.charAt(i)) * 0x100000001B3L;
+    }
+    hash = (hash ^ 0xFFFF) * 0x100000001B3L;
+    for (byte b : value) {
+      hash = (hash ^ (b & 0xFF)) * 0x100000001B3L;
+    }
+    return mix(hash);
+  }
+
+  /**
+   * The finalizer of SplitMix64, used to spread bits.
+   */
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+    z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+    return z ^ (z >>> 31);
+  }
+}
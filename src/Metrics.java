@@ -0,0 +1,231 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+/**
+ * The Metrics class is a replica's registry of latency histograms, counters and gauges.
+ *
+ * <p>Histograms are {@link LatencyHistogram}s of nanoseconds and counters are
+ * {@link LongAdder}s, so recording is a few uncontended atomic additions and safe to leave on
+ * in production. Metrics are created on first use and looked up by name; hot paths should keep
+ * the returned instance instead of looking it up on every call.
+ *
+ * <p>The registry is published as a JMX MBean named
+ * {@code MultiThreadedKV:type=Replica,port=<port>}, with the percentiles of each histogram as
+ * attributes in microseconds, and as plain text over HTTP on the loopback interface at
+ * {@code http://127.0.0.1:<port + kv.metricsPortOffset>/metrics}. A negative offset disables
+ * the HTTP endpoint.
+ */
+public class Metrics implements DynamicMBean {
+  private static final int HTTP_PORT_OFFSET = Integer.getInteger("kv.metricsPortOffset", 1000);
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+  private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999", "p9999"};
+
+  private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+  private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+
+  /**
+   * Returns the latency histogram with the given name, creating it if needed.
+   *
+   * @param name the metric name.
+   * @return the histogram, recording nanoseconds.
+   */
+  public LatencyHistogram histogram(String name) {
+    return histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+  }
+
+  /**
+   * Returns the counter with the given name, creating it if needed.
+   *
+   * @param name the metric name.
+   * @return the counter.
+   */
+  public LongAdder counter(String name) {
+    return counters.computeIfAbsent(name, n -> new LongAdder());
+  }
+
+  /**
+   * Registers a gauge, read whenever the metrics are reported.
+   *
+   * @param name  the metric name.
+   * @param value supplies the current value.
+   */
+  public void gauge(String name, LongSupplier value) {
+    gauges.put(name, value);
+  }
+
+  /**
+   * Publishes the metrics over JMX and, unless disabled, the HTTP text endpoint.
+   *
+   * @param registryPort the replica's registry port, which identifies it.
+   * @throws IOException if the HTTP endpoint cannot be started.
+   * @throws JMException if the MBean cannot be registered.
+   */
+  public void publish(int registryPort) throws IOException, JMException {
+    ObjectName name = new ObjectName("MultiThreadedKV:type=Replica,port=" + registryPort);
+    if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+    }
+
+    if (HTTP_PORT_OFFSET >= 0) {
+      HttpServer httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+          registryPort + HTTP_PORT_OFFSET), 0);
+      httpServer.createContext("/metrics", exchange -> {
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+          out.write(body);
+        }
+      });
+      httpServer.start();
+    }
+  }
+
+  /**
+   * Renders every metric as one "name value" line, sorted by name. Histograms are rendered as
+   * their count, mean, percentiles and maximum in microseconds.
+   *
+   * @return the text report.
+   */
+  public String render() {
+    StringBuilder text = new StringBuilder();
+    for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+      text.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+    }
+    for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+      LatencyHistogram histogram = entry.getValue();
+      String name = entry.getKey();
+      text.append(name).append(".count ").append(histogram.getCount()).append('\n');
+      text.append(name).append(".mean_us ")
+          .append(String.format(Locale.ROOT, "%.1f", histogram.getMean() / 1e3)).append('\n');
+      for (int i = 0; i < PERCENTILES.length; i++) {
+        text.append(name).append('.').append(PERCENTILE_NAMES[i]).append("_us ")
+            .append(String.format(Locale.ROOT, "%.1f",
+                histogram.getValueAtPercentile(PERCENTILES[i]) / 1e3))
+            .append('\n');
+      }
+      text.append(name).append(".max_us ")
+          .append(String.format(Locale.ROOT, "%.1f", histogram.getMax() / 1e3)).append('\n');
+    }
+    return text.toString();
+  }
+
+  /**
+   * @return the current values of all counters and gauges, sorted by name.
+   */
+  private Map<String, Long> snapshot() {
+    Map<String, Long> values = new TreeMap<>();
+    counters.forEach((name, counter) -> values.put(name, counter.sum()));
+    gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+    return values;
+  }
+
+  @Override
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    LongAdder counter = counters.get(attribute);
+    if (counter != null) {
+      return counter.sum();
+    }
+    LongSupplier gauge = gauges.get(attribute);
+    if (gauge != null) {
+      return gauge.getAsLong();
+    }
+    int dot = attribute.lastIndexOf('.');
+    LatencyHistogram histogram = dot < 0 ? null : histograms.get(attribute.substring(0, dot));
+    if (histogram != null) {
+      String statistic = attribute.substring(dot + 1);
+      switch (statistic) {
+        case "count":
+          return histogram.getCount();
+        case "mean_us":
+          return histogram.getMean() / 1e3;
+        case "max_us":
+          return histogram.getMax() / 1e3;
+        default:
+          for (int i = 0; i < PERCENTILES.length; i++) {
+            if (statistic.equals(PERCENTILE_NAMES[i] + "_us")) {
+              return histogram.getValueAtPercentile(PERCENTILES[i]) / 1e3;
+            }
+          }
+      }
+    }
+    throw new AttributeNotFoundException(attribute);
+  }
+
+  @Override
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+  }
+
+  @Override
+  public AttributeList getAttributes(String[] attributes) {
+    AttributeList list = new AttributeList();
+    for (String attribute : attributes) {
+      try {
+        list.add(new Attribute(attribute, getAttribute(attribute)));
+      } catch (AttributeNotFoundException e) {
+        // Omitted, as the DynamicMBean contract allows
+      }
+    }
+    return list;
+  }
+
+  @Override
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  @Override
+  public Object invoke(String actionName, Object[] params, String[] signature) {
+    throw new UnsupportedOperationException(actionName);
+  }
+
+  /**
+   * Describes the metrics that exist right now; JMX clients see new ones on their next refresh.
+   */
+  @Override
+  public MBeanInfo getMBeanInfo() {
+    List<MBeanAttributeInfo> attributes = new ArrayList<>();
+    for (String name : snapshot().keySet()) {
+      attributes.add(new MBeanAttributeInfo(name, "long", name, true, false, false));
+    }
+    for (String name : new TreeMap<>(histograms).keySet()) {
+      attributes.add(new MBeanAttributeInfo(name + ".count", "long", name, true, false, false));
+      attributes.add(new MBeanAttributeInfo(name + ".mean_us", "double", name, true, false,
+          false));
+      for (String percentile : PERCENTILE_NAMES) {
+        attributes.add(new MBeanAttributeInfo(name + "." + percentile + "_us", "double", name,
+            true, false, false));
+      }
+      attributes.add(new MBeanAttributeInfo(name + ".max_us", "double", name, true, false,
+          false));
+    }
+    return new MBeanInfo(getClass().getName(), "Replica metrics",
+        attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0],
+        new MBeanNotificationInfo[0]);
+  }
+}
@@ -0,0 +1,291 @@
+import java.rmi.RemoteException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * The NearCache class keeps recently read values on the client, so that reads of hot keys are
+ * answered without a round trip to a replica.
+ *
+ * <p>The cache holds at most {@code kv.client.nearCacheSize} keys and evicts the least recently
+ * used one. It stays coherent by following the coordinator's {@link ChangeLog}: a background
+ * thread keeps a {@link RemoteInterface#awaitChangesSince(long, int, long)} call pending on its
+ * own connection, which returns as soon as a write commits, and drops every key written. Absent
+ * keys are cached too, until a write creates them.
+ *
+ * <p>A read that misses leaves a placeholder for the key while it asks a replica, and only
+ * caches the value if no invalidation removed the placeholder meanwhile, so a value read before
+ * a write committed is never cached after the invalidation for that write. This relies on the
+ * replicas' reads being linearizable, which they are while read leases are enabled. Whenever the
+ * change log cannot be followed, because the connection failed or the changes were dropped from
+ * the coordinator's ring before the client read them, the cache is emptied and bypassed until
+ * it has caught up again.
+ *
+ * <p>A client's own writes are also dropped as soon as the write returns, since their
+ * invalidation may arrive later.
+ */
+public class NearCache {
+  private static final long RETRY_AFTER_MILLIS = Long.getLong("kv.client.retryAfterMs", 1000L);
+  // How long each change log call waits for a commit before it is renewed
+  private static final long POLL_TIMEOUT_MILLIS = 10000L;
+  private static final int MAX_CHANGES_PER_POLL = 1024;
+  // Cached in place of null for a key that is absent
+  private static final Object ABSENT = new Object();
+
+  private final int capacity;
+  private final IntFunction<RemoteInterface> connector;
+  private final int coordinatorPort;
+  private final Thread follower;
+  // Guarded by this: key to cached value, ABSENT, or the Loading placeholder of a pending read
+  private final LinkedHashMap<String, Object> entries;
+  // Guarded by this: whether the change log is being followed, so cached values are coherent
+  private boolean following;
+  private volatile boolean closed;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+
+  /**
+   * Reads a key that is not cached.
+   */
+  @FunctionalInterface
+  public interface Loader {
+
+    /**
+     * Reads the key from a replica.
+     *
+     * @return the value, or null if the key is absent.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    String load() throws RemoteException;
+  }
+
+  /**
+   * A read of the key from a replica is in progress.
+   */
+  private static final class Loading {
+  }
+
+  /**
+   * Constructs a new NearCache instance and starts following the coordinator's change log.
+   *
+   * @param capacity        the most keys to cache.
+   * @param connector       connects to the replica listening on a port, returning null on failure.
+   * @param coordinatorPort the port of the coordinator.
+   */
+  public NearCache(int capacity, IntFunction<RemoteInterface> connector, int coordinatorPort) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("The near cache needs a positive capacity");
+    }
+    this.capacity = capacity;
+    this.connector = connector;
+    this.coordinatorPort = coordinatorPort;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+        return size() > NearCache.this.capacity;
+      }
+    };
+    this.follower = new Thread(this::followChanges, "near-cache-" + coordinatorPort);
+    follower.setDaemon(true);
+    follower.start();
+  }
+
+  /**
+   * Creates the near cache configured by the {@code kv.client.nearCacheSize} system property.
+   *
+   * @param connector       connects to the replica listening on a port, returning null on failure.
+   * @param coordinatorPort the port of the coordinator.
+   * @return the near cache, or null if it is disabled, which is the default.
+   */
+  public static NearCache fromSystemProperty(IntFunction<RemoteInterface> connector,
+      int coordinatorPort) {
+    int capacity = Integer.getInteger("kv.client.nearCacheSize", 0);
+    return capacity > 0 ? new NearCache(capacity, connector, coordinatorPort) : null;
+  }
+
+  /**
+   * Returns the cached value of a key, or reads it with the given call and caches it.
+   *
+   * @param key    the key to read.
+   * @param loader reads the key from a replica if it is not cached.
+   * @return the value, or null if the key is absent.
+   * @throws RemoteException if the key was not cached and the read failed.
+   */
+  public String get(String key, Loader loader) throws RemoteException {
+    Object cached = lookup(key);
+    if (cached != null && !(cached instanceof Loading)) {
+      return cached == ABSENT ? null : (String) cached;
+    }
+    String value;
+    try {
+      value = loader.load();
+    } catch (RemoteException | RuntimeException e) {
+      loaded(key, cached, null, false);
+      throw e;
+    }
+    loaded(key, cached, value, true);
+    return value;
+  }
+
+  /**
+   * Returns the cached value of a key, or starts reading it with the given call and caches it
+   * once read.
+   *
+   * @param key    the key to read.
+   * @param loader starts reading the key from a replica if it is not cached.
+   * @return the value, or null if the key is absent.
+   */
+  public CompletableFuture<String> getAsync(String key,
+      Supplier<CompletableFuture<String>> loader) {
+    Object cached = lookup(key);
+    if (cached != null && !(cached instanceof Loading)) {
+      return CompletableFuture.completedFuture(cached == ABSENT ? null : (String) cached);
+    }
+    return loader.get().whenComplete((value, error) -> loaded(key, cached, value, error == null));
+  }
+
+  /**
+   * Looks a key up, leaving a placeholder if it is not cached.
+   *
+   * @return the cached value or ABSENT, the new placeholder, or null if the value read must not
+   *         be cached.
+   */
+  private synchronized Object lookup(String key) {
+    if (!following) {
+      misses.increment();
+      return null;
+    }
+    Object cached = entries.get(key);
+    if (cached == null) {
+      misses.increment();
+      Loading loading = new Loading();
+      entries.put(key, loading);
+      return loading;
+    }
+    if (cached instanceof Loading) {
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return cached;
+  }
+
+  /**
+   * Caches the value read in place of its placeholder, unless an invalidation removed it.
+   */
+  private synchronized void loaded(String key, Object placeholder, String value,
+      boolean succeeded) {
+    if (placeholder == null) {
+      return;
+    }
+    if (succeeded) {
+      entries.replace(key, placeholder, value == null ? ABSENT : value);
+    } else {
+      entries.remove(key, placeholder);
+    }
+  }
+
+  /**
+   * Drops a key from the cache, including a read of it in progress.
+   *
+   * @param key the key written.
+   */
+  public synchronized void invalidate(String key) {
+    entries.remove(key);
+  }
+
+  /**
+   * @return the number of reads answered from the cache.
+   */
+  public long hits() {
+    return hits.sum();
+  }
+
+  /**
+   * @return the number of reads that went to a replica.
+   */
+  public long misses() {
+    return misses.sum();
+  }
+
+  /**
+   * Stops following the change log. The cache is bypassed from then on.
+   */
+  public void close() {
+    closed = true;
+    stopFollowing();
+    follower.interrupt();
+  }
+
+  /**
+   * Follows the coordinator's change log until closed, dropping every key written.
+   */
+  private void followChanges() {
+    RemoteInterface coordinator = null;
+    long sequence = -1L;
+    while (!closed) {
+      try {
+        if (coordinator == null) {
+          coordinator = connector.apply(coordinatorPort);
+          if (coordinator == null) {
+            throw new RemoteException("Unable to connect to coordinator on port "
+                + coordinatorPort);
+          }
+        }
+        StateChunk changes = coordinator.awaitChangesSince(sequence, MAX_CHANGES_PER_POLL,
+            POLL_TIMEOUT_MILLIS);
+        if (changes == null) {
+          // Changes were dropped before they were read: start over from the current sequence
+          stopFollowing();
+          sequence = -1L;
+          continue;
+        }
+        if (sequence < 0) {
+          startFollowing();
+        } else {
+          invalidateAll(changes);
+        }
+        sequence = changes.getNextSequence();
+      } catch (RemoteException e) {
+        stopFollowing();
+        if (coordinator instanceof NioClient) {
+          ((NioClient) coordinator).close();
+        }
+        coordinator = null;
+        sequence = -1L;
+        try {
+          Thread.sleep(RETRY_AFTER_MILLIS);
+        } catch (InterruptedException interrupted) {
+          return;
+        }
+      }
+    }
+    if (coordinator instanceof NioClient) {
+      ((NioClient) coordinator).close();
+    }
+  }
+
+  private synchronized void invalidateAll(StateChunk changes) {
+    for (int i = 0; i < changes.size(); i++) {
+      entries.remove(changes.getKey(i));
+    }
+  }
+
+  /**
+   * Starts caching from an empty cache, since the changes before the sequence number the log is
+   * now followed from are unknown.
+   */
+  private synchronized void startFollowing() {
+    entries.clear();
+    following = !closed;
+  }
+
+  private synchronized void stopFollowing() {
+    following = false;
+    entries.clear();
+  }
+}
@@ -0,0 +1,626 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The NioClient class is a {@link RemoteInterface} stub that talks to a {@link NioServer} using
+ * the {@link BinaryProtocol} frame format over a single blocking socket.
+ *
+ * <p>Because it implements {@link RemoteInterface}, the client and the coordinator can use it in
+ * place of an RMI stub. Requests are pipelined: any number of threads can call one instance, each
+ * request is written as soon as it is made, and a reader thread hands every response to its
+ * request by id, in whatever order the server answers. The {@code ...Async} methods return a
+ * {@link CompletableFuture} instead of waiting, so one thread can keep many requests in flight.
+ *
+ * <p>At most {@code kv.client.maxInFlight} requests are in flight on one connection; further
+ * requests wait for a response first. Requests made by the reader thread itself, from a callback
+ * of a future it completed, are never held back, since it would be waiting for itself.
+ */
+public class NioClient implements RemoteInterface {
+  private static final int MAX_IN_FLIGHT = Integer.getInteger("kv.client.maxInFlight", 128);
+
+  private final String host;
+  private final int port;
+  private final SocketChannel channel;
+  private final Object writeLock = new Object();
+  private final AtomicInteger nextRequestId = new AtomicInteger();
+  private final Map<Integer, Response> pending = new ConcurrentHashMap<>();
+  private final Semaphore window = new Semaphore(MAX_IN_FLIGHT);
+  private final Thread reader;
+  // Why the connection stopped working, or null while it works
+  private volatile RemoteException failure;
+
+  /**
+   * The response to a request in flight.
+   */
+  private static final class Response extends CompletableFuture<ByteBuffer> {
+    // Whether the request holds a place in the in-flight window
+    final boolean inWindow;
+
+    Response(boolean inWindow) {
+      this.inWindow = inWindow;
+    }
+  }
+
+  private NioClient(String host, int port, SocketChannel channel) {
+    this.host = host;
+    this.port = port;
+    this.channel = channel;
+    if (channel == null) {
+      reader = null;
+      return;
+    }
+    reader = new Thread(this::readResponses, "nio-client-" + host + ":" + port);
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /**
+   * Connects to a replica serving the binary protocol.
+   *
+   * @param host the replica host.
+   * @param port the replica port.
+   * @return a connected client.
+   * @throws IOException if the connection cannot be established.
+   */
+  public static NioClient connect(String host, int port) throws IOException {
+    SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+    channel.socket().setTcpNoDelay(true);
+    return new NioClient(host, port, channel);
+  }
+
+  /**
+   * Connects to a replica serving the binary protocol, reporting failure as a RemoteException.
+   *
+   * @param host the replica host.
+   * @param port the replica port.
+   * @return a connected client.
+   * @throws RemoteException if the connection cannot be established.
+   */
+  public static NioClient connectOrThrow(String host, int port) throws RemoteException {
+    try {
+      return connect(host, port);
+    } catch (IOException e) {
+      throw new RemoteException("Unable to connect to " + host + ":" + port, e);
+    }
+  }
+
+  /**
+   * Creates an unconnected client that only identifies a replica, for example to unregister it.
+   *
+   * @param host the replica host.
+   * @param port the replica port.
+   * @return an unconnected client.
+   */
+  public static NioClient unconnected(String host, int port) {
+    return new NioClient(host, port, null);
+  }
+
+  /**
+   * Closes the underlying connection.
+   */
+  public void close() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        Log.error("Failed to close the connection to {}", getAddress(), e);
+      }
+    }
+  }
+
+  private BinaryProtocol.FrameBuilder request(byte opcode) {
+    return new BinaryProtocol.FrameBuilder(opcode, nextRequestId.incrementAndGet());
+  }
+
+  /**
+   * Sends a request frame and blocks for the matching response.
+   *
+   * @param request the request to send.
+   * @return the response body, positioned after the status and request id.
+   * @throws RemoteException if the connection fails or the server reports an error.
+   */
+  private ByteBuffer call(BinaryProtocol.FrameBuilder request) throws RemoteException {
+    CompletableFuture<ByteBuffer> response = send(request);
+    try {
+      return response.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Interrupted waiting for " + host + ":" + port, e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RemoteException) {
+        throw (RemoteException) e.getCause();
+      }
+      throw new RemoteException("Binary transport failure with " + host + ":" + port,
+          e.getCause());
+    }
+  }
+
+  /**
+   * Sends a request frame without waiting for the response, once the in-flight window allows.
+   *
+   * @param request the request to send.
+   * @return the response body, positioned after the status and request id, or a
+   *         RemoteException if the connection fails or the server reports an error.
+   */
+  private CompletableFuture<ByteBuffer> send(BinaryProtocol.FrameBuilder request) {
+    if (channel == null) {
+      return CompletableFuture.failedFuture(
+          new RemoteException("Not connected to " + host + ":" + port));
+    }
+    if (failure != null) {
+      return CompletableFuture.failedFuture(failure);
+    }
+    boolean inWindow;
+    if (Thread.currentThread() == reader) {
+      inWindow = window.tryAcquire();
+    } else {
+      try {
+        window.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return CompletableFuture.failedFuture(
+            new RemoteException("Interrupted waiting to send to " + host + ":" + port, e));
+      }
+      inWindow = true;
+    }
+
+    ByteBuffer frame = request.finish();
+    int requestId = frame.getInt(BinaryProtocol.LENGTH_BYTES + 1);
+    Response response = new Response(inWindow);
+    pending.put(requestId, response);
+    // The reader may have failed the pending requests before this one was added
+    RemoteException failed = failure;
+    if (failed != null) {
+      complete(requestId, null, failed);
+      return response;
+    }
+    try {
+      synchronized (writeLock) {
+        while (frame.hasRemaining()) {
+          channel.write(frame);
+        }
+      }
+    } catch (IOException e) {
+      fail(new RemoteException("Binary transport failure with " + host + ":" + port, e));
+    }
+    return response;
+  }
+
+  /**
+   * Reads response frames until the connection fails, completing the matching requests.
+   */
+  private void readResponses() {
+    ByteBuffer lengthBuffer = ByteBuffer.allocate(BinaryProtocol.LENGTH_BYTES);
+    try {
+      while (true) {
+        lengthBuffer.clear();
+        readFully(lengthBuffer);
+        int length = lengthBuffer.getInt(0);
+        if (length < BinaryProtocol.HEADER_BYTES || length > BinaryProtocol.MAX_FRAME_BYTES) {
+          throw new RemoteException("Invalid frame length " + length + " from " + host + ":"
+              + port);
+        }
+        ByteBuffer response = ByteBuffer.allocate(length);
+        readFully(response);
+        response.flip();
+
+        byte status = response.get();
+        int requestId = response.getInt();
+        if (status != BinaryProtocol.STATUS_OK) {
+          complete(requestId, null, new RemoteException(BinaryProtocol.getString(response)));
+        } else {
+          complete(requestId, response, null);
+        }
+      }
+    } catch (IOException e) {
+      fail(e instanceof RemoteException ? (RemoteException) e
+          : new RemoteException("Binary transport failure with " + host + ":" + port, e));
+    }
+  }
+
+  private void readFully(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new IOException("Connection closed by " + host + ":" + port);
+      }
+    }
+  }
+
+  private void complete(int requestId, ByteBuffer response, RemoteException error) {
+    Response request = pending.remove(requestId);
+    if (request == null) {
+      return;
+    }
+    if (request.inWindow) {
+      window.release();
+    }
+    if (error == null) {
+      request.complete(response);
+    } else {
+      request.completeExceptionally(error);
+    }
+  }
+
+  /**
+   * Fails every request in flight and every later one, and closes the connection.
+   */
+  private void fail(RemoteException error) {
+    if (failure == null) {
+      failure = error;
+    }
+    close();
+    for (Integer requestId : pending.keySet()) {
+      complete(requestId, null, failure);
+    }
+  }
+
+  /**
+   * Looks up a key directly, without building a "GET key" request string.
+   *
+   * @param key the key to look up.
+   * @return the value, or null if the key is not present.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  @Override
+  public String get(String key) throws RemoteException {
+    return BinaryProtocol.getString(call(request(BinaryProtocol.OP_GET).putString(key)));
+  }
+
+  /**
+   * Looks up a key, returning the value bytes as the server stores them.
+   *
+   * @param key the key to look up.
+   * @return the value bytes, or null if the key is not present.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  @Override
+  public byte[] getBytes(String key) throws RemoteException {
+    return BinaryProtocol.getBytes(call(request(BinaryProtocol.OP_GET).putString(key)));
+  }
+
+  /**
+   * Prepares and commits a PUT of the given bytes, which the server stores as they are.
+   *
+   * @param key   the key to put.
+   * @param value the value bytes to put.
+   * @return true if the PUT was committed, false otherwise.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  @Override
+  public boolean putBytes(String key, byte[] value) throws RemoteException {
+    return BinaryProtocol.getBoolean(
+        call(request(BinaryProtocol.OP_PUT).putString(key).putBytes(value)));
+  }
+
+  /**
+   * Prepares and commits a PUT directly, without building a "PUT key=value" request string.
+   *
+   * @param key   the key to put.
+   * @param value the value to put.
+   * @return true if the PUT was committed, false otherwise.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  public boolean put(String key, String value) throws RemoteException {
+    return BinaryProtocol.getBoolean(
+        call(request(BinaryProtocol.OP_PUT).putString(key).putString(value)));
+  }
+
+  /**
+   * Prepares and commits a DELETE directly, without building a "DELETE key" request string.
+   *
+   * @param key the key to delete.
+   * @return true if the DELETE was committed, false otherwise.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  public boolean delete(String key) throws RemoteException {
+    return BinaryProtocol.getBoolean(call(request(BinaryProtocol.OP_DELETE).putString(key)));
+  }
+
+  @Override
+  public String processRequest(String request) throws RemoteException {
+    return BinaryProtocol.getString(
+        call(request(BinaryProtocol.OP_PROCESS_REQUEST).putString(request)));
+  }
+
+  @Override
+  public boolean processBatch(WriteBatch batch) throws RemoteException {
+    return BinaryProtocol.getBoolean(
+        call(request(BinaryProtocol.OP_PROCESS_BATCH).putBytes(batch.toBytes())));
+  }
+
+  /**
+   * Looks up a key without waiting for the response.
+   *
+   * @param key the key to look up.
+   * @return the value, or null if the key is not present.
+   */
+  public CompletableFuture<String> getAsync(String key) {
+    return send(request(BinaryProtocol.OP_GET).putString(key))
+        .thenApply(BinaryProtocol::getString);
+  }
+
+  /**
+   * Prepares and commits a PUT without waiting for the response.
+   *
+   * @param key   the key to put.
+   * @param value the value to put.
+   * @return true if the PUT was committed, false otherwise.
+   */
+  public CompletableFuture<Boolean> putAsync(String key, String value) {
+    return send(request(BinaryProtocol.OP_PUT).putString(key).putString(value))
+        .thenApply(BinaryProtocol::getBoolean);
+  }
+
+  /**
+   * Prepares and commits a DELETE without waiting for the response.
+   *
+   * @param key the key to delete.
+   * @return true if the DELETE was committed, false otherwise.
+   */
+  public CompletableFuture<Boolean> deleteAsync(String key) {
+    return send(request(BinaryProtocol.OP_DELETE).putString(key))
+        .thenApply(BinaryProtocol::getBoolean);
+  }
+
+  /**
+   * Sends a text request such as "PUT key=value" without waiting for the response.
+   *
+   * @param request the request.
+   * @return the replica's response.
+   */
+  public CompletableFuture<String> processRequestAsync(String request) {
+    return send(request(BinaryProtocol.OP_PROCESS_REQUEST).putString(request))
+        .thenApply(BinaryProtocol::getString);
+  }
+
+  /**
+   * Commits a batch of writes without waiting for the response.
+   *
+   * @param batch the writes to commit.
+   * @return true if every write was committed, false if none was.
+   */
+  public CompletableFuture<Boolean> processBatchAsync(WriteBatch batch) {
+    return send(request(BinaryProtocol.OP_PROCESS_BATCH).putBytes(batch.toBytes()))
+        .thenApply(BinaryProtocol::getBoolean);
+  }
+
+  @Override
+  public boolean commitTransaction(Transaction transaction) throws RemoteException {
+    return BinaryProtocol.getBoolean(call(
+        request(BinaryProtocol.OP_COMMIT_TRANSACTION).putBytes(transaction.toBytes())));
+  }
+
+  @Override
+  public boolean preparePut(String key, String value) throws RemoteException {
+    return BinaryProtocol.getBoolean(
+        call(request(BinaryProtocol.OP_PREPARE_PUT).putString(key).putString(value)));
+  }
+
+  @Override
+  public boolean receivePreparePutRequest(String key, String value)
+      throws RemoteException {
+    return BinaryProtocol.getBoolean(call(request(BinaryProtocol.OP_RECEIVE_PREPARE_PUT_REQUEST)
+        .putString(key).putString(value)));
+  }
+
+  @Override
+  public boolean receivePreparePutResponse(String key, String value,
+      boolean canCommit) throws RemoteException {
+    return BinaryProtocol.getBoolean(call(request(BinaryProtocol.OP_RECEIVE_PREPARE_PUT_RESPONSE)
+        .putString(key).putString(value).putBoolean(canCommit)));
+  }
+
+  @Override
+  public void performCommitPut(String key, String value) throws RemoteException {
+    call(request(BinaryProtocol.OP_PERFORM_COMMIT_PUT).putString(key).putString(value));
+  }
+
+  @Override
+  public boolean prepareDelete(String key) throws RemoteException {
+    return BinaryProtocol.getBoolean(
+        call(request(BinaryProtocol.OP_PREPARE_DELETE).putString(key)));
+  }
+
+  @Override
+  public boolean receivePrepareDeleteRequest(String key) throws RemoteException {
+    return BinaryProtocol.getBoolean(
+        call(request(BinaryProtocol.OP_RECEIVE_PREPARE_DELETE_REQUEST).putString(key)));
+  }
+
+  @Override
+  public boolean receivePrepareDeleteResponse(String key, boolean canCommit)
+      throws RemoteException {
+    return BinaryProtocol.getBoolean(call(request(
+        BinaryProtocol.OP_RECEIVE_PREPARE_DELETE_RESPONSE).putString(key).putBoolean(canCommit)));
+  }
+
+  @Override
+  public void performCommitDelete(String key) throws RemoteException {
+    call(request(BinaryProtocol.OP_PERFORM_COMMIT_DELETE).putString(key));
+  }
+
+  @Override
+  public boolean canCommitPut(String key, String value) throws RemoteException {
+    return BinaryProtocol.getBoolean(
+        call(request(BinaryProtocol.OP_CAN_COMMIT_PUT).putString(key).putString(value)));
+  }
+
+  @Override
+  public boolean canCommitDelete(String key) throws RemoteException {
+    return BinaryProtocol.getBoolean(
+        call(request(BinaryProtocol.OP_CAN_COMMIT_DELETE).putString(key)));
+  }
+
+  @Override
+  @Deprecated
+  public void updateKeyValueStore(Map<String, String> newKeyValueStore)
+      throws RemoteException {
+    BinaryProtocol.FrameBuilder request = request(BinaryProtocol.OP_UPDATE_KEY_VALUE_STORE)
+        .putInt(newKeyValueStore.size());
+    for (Map.Entry<String, String> entry : newKeyValueStore.entrySet()) {
+      request.putString(entry.getKey()).putString(entry.getValue());
+    }
+    call(request);
+  }
+
+  @Override
+  public ScanPage openScan(String startKey, String endKey, int limit, int pageSize)
+      throws RemoteException {
+    return ScanPage.readFrom(call(request(BinaryProtocol.OP_OPEN_SCAN).putString(startKey)
+        .putString(endKey).putInt(limit).putInt(pageSize)));
+  }
+
+  @Override
+  public ScanPage fetchScanPage(long cursorId, int pageNumber, int pageSize)
+      throws RemoteException {
+    return ScanPage.readFrom(call(request(BinaryProtocol.OP_FETCH_SCAN_PAGE).putLong(cursorId)
+        .putInt(pageNumber).putInt(pageSize)));
+  }
+
+  @Override
+  public StateChunk openStateTransfer(long knownTransactionId, int maxEntries)
+      throws RemoteException {
+    return StateChunk.readFrom(call(request(BinaryProtocol.OP_OPEN_STATE_TRANSFER)
+        .putLong(knownTransactionId).putInt(maxEntries)));
+  }
+
+  @Override
+  public StateChunk fetchStateChunk(long sessionId, int chunkNumber,
+      int maxEntries) throws RemoteException {
+    return StateChunk.readFrom(call(request(BinaryProtocol.OP_FETCH_STATE_CHUNK)
+        .putLong(sessionId).putInt(chunkNumber).putInt(maxEntries)));
+  }
+
+  @Override
+  public StateChunk fetchChangesSince(long sequence, int maxEntries)
+      throws RemoteException {
+    ByteBuffer response = call(request(BinaryProtocol.OP_FETCH_CHANGES_SINCE).putLong(sequence)
+        .putInt(maxEntries));
+    return BinaryProtocol.getBoolean(response) ? StateChunk.readFrom(response) : null;
+  }
+
+  @Override
+  public StateChunk awaitChangesSince(long sequence, int maxEntries,
+      long timeoutMillis) throws RemoteException {
+    ByteBuffer response = call(request(BinaryProtocol.OP_AWAIT_CHANGES_SINCE).putLong(sequence)
+        .putInt(maxEntries).putLong(timeoutMillis));
+    return BinaryProtocol.getBoolean(response) ? StateChunk.readFrom(response) : null;
+  }
+
+  @Override
+  public long[] getMerkleNodeHashes(int[] nodes) throws RemoteException {
+    return BinaryProtocol.getLongArray(
+        call(request(BinaryProtocol.OP_GET_MERKLE_NODE_HASHES).putIntArray(nodes)));
+  }
+
+  @Override
+  public StateChunk fetchMerkleLeafEntries(int[] leafNodes) throws RemoteException {
+    return StateChunk.readFrom(
+        call(request(BinaryProtocol.OP_FETCH_MERKLE_LEAF_ENTRIES).putIntArray(leafNodes)));
+  }
+
+  @Override
+  public int applyRepairs(String[] keys, byte[][] expectedValues,
+      byte[][] newValues, long[] newVersions, long[] newExpiresAt) throws RemoteException {
+    return call(request(BinaryProtocol.OP_APPLY_REPAIRS).putStringArray(keys)
+        .putBytesArray(expectedValues).putBytesArray(newValues).putLongArray(newVersions)
+        .putLongArray(newExpiresAt)).getInt();
+  }
+
+  @Override
+  public boolean receiveMessageWithACK(String message) throws RemoteException {
+    return BinaryProtocol.getBoolean(
+        call(request(BinaryProtocol.OP_RECEIVE_MESSAGE_WITH_ACK).putString(message)));
+  }
+
+  @Override
+  public boolean receiveReplicationMessage(ReplicationMessage message)
+      throws RemoteException {
+    return BinaryProtocol.getBoolean(call(request(BinaryProtocol.OP_RECEIVE_REPLICATION_MESSAGE)
+        .putByte(message.getOpcode()).putLong(message.getTransactionId())
+        .putBytes(message.getKey()).putBytes(message.getValue())));
+  }
+
+  @Override
+  public void receiveMessageWithoutACK(String message) throws RemoteException {
+    call(request(BinaryProtocol.OP_RECEIVE_MESSAGE_WITHOUT_ACK).putString(message));
+  }
+
+  /**
+   * Answered locally: a binary transport replica is identified by the address it is reached at.
+   *
+   * @return the replica's address as "host:port".
+   */
+  @Override
+  public String getReplicaAddress() {
+    return getAddress();
+  }
+
+  /**
+   * Registers a replica with the remote server. Only replicas reachable over the binary
+   * protocol can be registered, since the server connects back to them by host and port.
+   *
+   * @param replicaServer the replica server to be registered.
+   * @throws RemoteException if the replica is not a NioClient or communication fails.
+   */
+  @Override
+  public void registerReplicaServer(RemoteInterface replicaServer)
+      throws RemoteException {
+    NioClient replica = asNioClient(replicaServer);
+    call(request(BinaryProtocol.OP_REGISTER_REPLICA).putString(replica.host).putInt(replica.port));
+  }
+
+  @Override
+  public void unregisterReplicaServer(RemoteInterface replicaServer)
+      throws RemoteException {
+    NioClient replica = asNioClient(replicaServer);
+    call(request(BinaryProtocol.OP_UNREGISTER_REPLICA).putString(replica.host)
+        .putInt(replica.port));
+  }
+
+  private static NioClient asNioClient(RemoteInterface replicaServer) throws RemoteException {
+    if (!(replicaServer instanceof NioClient)) {
+      throw new RemoteException("Only binary transport replicas can be registered over NIO");
+    }
+    return (NioClient) replicaServer;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof NioClient)) {
+      return false;
+    }
+    NioClient other = (NioClient) o;
+    return port == other.port && host.equals(other.host);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(host, port);
+  }
+
+  /**
+   * @return the replica's address as "host:port".
+   */
+  public String getAddress() {
+    return host + ":" + port;
+  }
+
+  @Override
+  public String toString() {
+    return "NioClient[" + host + ":" + port + "]";
+  }
+}
@@ -0,0 +1,621 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The NioServer class serves a {@link Server} over the {@link BinaryProtocol} frame format using
+ * non-blocking sockets and a small number of selector event loops, instead of a thread per RMI
+ * connection.
+ *
+ * <p>Local operations (GET, the prepare votes, aborts and read leases) are handled directly on
+ * the event loop. Operations that call out to other replicas (PUT, DELETE and the coordinator
+ * side of 2PC), and commits, which wait for the write-ahead log to sync, would stall the loop, so
+ * they are handed to the server's own request executor and their responses are queued back to
+ * the loop that owns the connection.
+ *
+ * <p>The request executor is deliberately not the {@link Server}'s replica-call executor. A
+ * request that runs a 2PC round waits for the fan-out calls to the other replicas, and each of
+ * those needs a replica-call thread. With one bounded pool for both, enough concurrent writes
+ * fill every thread with a request waiting for calls that can never start, and all of them stall
+ * until the prepare timeout. The request executor therefore grows with the number of concurrent
+ * requests, like RMI's thread per call, or starts a virtual thread per request in the VIRTUAL
+ * thread mode.
+ *
+ * <p>A frame that fails to decode closes its own connection and leaves the event loop and the
+ * other connections it serves running.
+ */
+public class NioServer {
+  private static final int READ_BUFFER_BYTES = 64 * 1024;
+
+  private final Server server;
+  private final int port;
+  private final EventLoop[] eventLoops;
+  private final ExecutorService requestExecutor;
+  private final AtomicInteger nextEventLoop = new AtomicInteger();
+  private ServerSocketChannel serverChannel;
+  private volatile boolean running;
+
+  /**
+   * Constructs a new NioServer instance.
+   *
+   * @param server         the server whose operations are exposed.
+   * @param port           the port to listen on.
+   * @param eventLoopCount the number of selector event loops.
+   */
+  public NioServer(Server server, int port, int eventLoopCount) {
+    this.server = server;
+    this.port = port;
+    this.eventLoops = new EventLoop[eventLoopCount];
+    this.requestExecutor = newRequestExecutor(port);
+  }
+
+  /**
+   * Creates the executor for requests that would block the event loop. See the class comment
+   * for why it must not share threads with the replica calls those requests wait for.
+   *
+   * @param port the port served, used to name the threads.
+   * @return a virtual thread per task executor, or a platform thread pool without a bound.
+   */
+  private static ExecutorService newRequestExecutor(int port) {
+    ExecutorService virtual = Server.newVirtualThreadExecutor();
+    if (virtual != null) {
+      return virtual;
+    }
+    return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+        new SynchronousQueue<>(), runnable -> {
+          Thread thread = new Thread(runnable, "nio-request-" + port);
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  /**
+   * Binds the listening socket and starts the acceptor and event loop threads.
+   *
+   * @throws IOException if the socket cannot be bound or a selector cannot be opened.
+   */
+  public void start() throws IOException {
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(new InetSocketAddress(port));
+    running = true;
+
+    for (int i = 0; i < eventLoops.length; i++) {
+      eventLoops[i] = new EventLoop();
+      startDaemon(eventLoops[i], "nio-loop-" + port + "-" + i);
+    }
+    startDaemon(this::acceptLoop, "nio-accept-" + port);
+  }
+
+  /**
+   * Stops accepting connections and closes all event loops.
+   */
+  public void stop() {
+    running = false;
+    try {
+      serverChannel.close();
+    } catch (IOException e) {
+      Log.error("Failed to close the server socket on port {}", port, e);
+    }
+    for (EventLoop eventLoop : eventLoops) {
+      eventLoop.close();
+    }
+    requestExecutor.shutdown();
+  }
+
+  private static void startDaemon(Runnable runnable, String name) {
+    Thread thread = new Thread(runnable, name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Accepts connections and hands them to the event loops in round-robin order.
+   */
+  private void acceptLoop() {
+    while (running) {
+      try {
+        SocketChannel channel = serverChannel.accept();
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        int index = Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length);
+        eventLoops[index].register(channel);
+      } catch (IOException e) {
+        if (running) {
+          Log.error("Failed to accept a connection", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes the response body for a decoded request.
+   */
+  @FunctionalInterface
+  private interface ResponseBody {
+    void write(BinaryProtocol.FrameBuilder response) throws RemoteException;
+  }
+
+  /**
+   * Decodes one request frame and either answers it on the event loop or offloads it.
+   *
+   * @param connection the connection the frame arrived on.
+   * @param frame      the frame body, positioned after the length prefix.
+   */
+  @SuppressWarnings("deprecation")
+  private void dispatch(Connection connection, ByteBuffer frame) {
+    byte opcode = frame.get();
+    int requestId = frame.getInt();
+
+    switch (opcode) {
+      case BinaryProtocol.OP_PROCESS_REQUEST: {
+        String request = BinaryProtocol.getString(frame);
+        offload(connection, requestId, r -> r.putString(server.processRequest(request)));
+        break;
+      }
+      case BinaryProtocol.OP_GET: {
+        String key = BinaryProtocol.getString(frame);
+        // The stored bytes are the UTF-8 string the client decodes, so they are sent as they are
+        if (server.readsLocally(key)) {
+          respond(connection, requestId, r -> r.putBytes(server.processGetBytes(key)));
+        } else {
+          // Forwarded to the coordinator, which must not hold up the event loop
+          offload(connection, requestId, r -> r.putBytes(server.processGetBytes(key)));
+        }
+        break;
+      }
+      case BinaryProtocol.OP_PUT: {
+        String key = BinaryProtocol.getString(frame);
+        byte[] value = BinaryProtocol.getBytes(frame);
+        offload(connection, requestId, r -> r.putBoolean(server.processPut(key, value)));
+        break;
+      }
+      case BinaryProtocol.OP_DELETE: {
+        String key = BinaryProtocol.getString(frame);
+        offload(connection, requestId, r -> r.putBoolean(server.processDelete(key)));
+        break;
+      }
+      case BinaryProtocol.OP_OPEN_SCAN: {
+        String startKey = BinaryProtocol.getString(frame);
+        String endKey = BinaryProtocol.getString(frame);
+        int limit = frame.getInt();
+        int pageSize = frame.getInt();
+        offload(connection, requestId,
+            r -> server.openScan(startKey, endKey, limit, pageSize).writeTo(r));
+        break;
+      }
+      case BinaryProtocol.OP_FETCH_SCAN_PAGE: {
+        long cursorId = frame.getLong();
+        int pageNumber = frame.getInt();
+        int pageSize = frame.getInt();
+        offload(connection, requestId,
+            r -> server.fetchScanPage(cursorId, pageNumber, pageSize).writeTo(r));
+        break;
+      }
+      case BinaryProtocol.OP_PROCESS_BATCH: {
+        WriteBatch batch = WriteBatch.fromBytes(BinaryProtocol.getBytes(frame));
+        offload(connection, requestId, r -> r.putBoolean(server.processBatch(batch)));
+        break;
+      }
+      case BinaryProtocol.OP_COMMIT_TRANSACTION: {
+        Transaction transaction = Transaction.fromBytes(BinaryProtocol.getBytes(frame));
+        offload(connection, requestId,
+            r -> r.putBoolean(server.commitTransaction(transaction)));
+        break;
+      }
+      case BinaryProtocol.OP_PREPARE_PUT: {
+        String key = BinaryProtocol.getString(frame);
+        String value = BinaryProtocol.getString(frame);
+        offload(connection, requestId, r -> r.putBoolean(server.preparePut(key, value)));
+        break;
+      }
+      case BinaryProtocol.OP_RECEIVE_PREPARE_PUT_REQUEST: {
+        String key = BinaryProtocol.getString(frame);
+        String value = BinaryProtocol.getString(frame);
+        respond(connection, requestId,
+            r -> r.putBoolean(server.receivePreparePutRequest(key, value)));
+        break;
+      }
+      case BinaryProtocol.OP_RECEIVE_PREPARE_PUT_RESPONSE: {
+        String key = BinaryProtocol.getString(frame);
+        String value = BinaryProtocol.getString(frame);
+        boolean canCommit = BinaryProtocol.getBoolean(frame);
+        offload(connection, requestId,
+            r -> r.putBoolean(server.receivePreparePutResponse(key, value, canCommit)));
+        break;
+      }
+      case BinaryProtocol.OP_PERFORM_COMMIT_PUT: {
+        String key = BinaryProtocol.getString(frame);
+        String value = BinaryProtocol.getString(frame);
+        offload(connection, requestId, r -> server.performCommitPut(key, value));
+        break;
+      }
+      case BinaryProtocol.OP_PREPARE_DELETE: {
+        String key = BinaryProtocol.getString(frame);
+        offload(connection, requestId, r -> r.putBoolean(server.prepareDelete(key)));
+        break;
+      }
+      case BinaryProtocol.OP_RECEIVE_PREPARE_DELETE_REQUEST: {
+        String key = BinaryProtocol.getString(frame);
+        respond(connection, requestId,
+            r -> r.putBoolean(server.receivePrepareDeleteRequest(key)));
+        break;
+      }
+      case BinaryProtocol.OP_RECEIVE_PREPARE_DELETE_RESPONSE: {
+        String key = BinaryProtocol.getString(frame);
+        boolean canCommit = BinaryProtocol.getBoolean(frame);
+        offload(connection, requestId,
+            r -> r.putBoolean(server.receivePrepareDeleteResponse(key, canCommit)));
+        break;
+      }
+      case BinaryProtocol.OP_PERFORM_COMMIT_DELETE: {
+        String key = BinaryProtocol.getString(frame);
+        offload(connection, requestId, r -> server.performCommitDelete(key));
+        break;
+      }
+      case BinaryProtocol.OP_CAN_COMMIT_PUT: {
+        String key = BinaryProtocol.getString(frame);
+        String value = BinaryProtocol.getString(frame);
+        respond(connection, requestId, r -> r.putBoolean(server.canCommitPut(key, value)));
+        break;
+      }
+      case BinaryProtocol.OP_CAN_COMMIT_DELETE: {
+        String key = BinaryProtocol.getString(frame);
+        respond(connection, requestId, r -> r.putBoolean(server.canCommitDelete(key)));
+        break;
+      }
+      case BinaryProtocol.OP_UPDATE_KEY_VALUE_STORE: {
+        int size = frame.getInt();
+        Map<String, String> newKeyValueStore = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+          String key = BinaryProtocol.getString(frame);
+          newKeyValueStore.put(key, BinaryProtocol.getString(frame));
+        }
+        respond(connection, requestId, r -> server.updateKeyValueStore(newKeyValueStore));
+        break;
+      }
+      case BinaryProtocol.OP_OPEN_STATE_TRANSFER: {
+        long knownTransactionId = frame.getLong();
+        int maxEntries = frame.getInt();
+        offload(connection, requestId,
+            r -> server.openStateTransfer(knownTransactionId, maxEntries).writeTo(r));
+        break;
+      }
+      case BinaryProtocol.OP_FETCH_STATE_CHUNK: {
+        long sessionId = frame.getLong();
+        int chunkNumber = frame.getInt();
+        int maxEntries = frame.getInt();
+        offload(connection, requestId,
+            r -> server.fetchStateChunk(sessionId, chunkNumber, maxEntries).writeTo(r));
+        break;
+      }
+      case BinaryProtocol.OP_FETCH_CHANGES_SINCE: {
+        long sequence = frame.getLong();
+        int maxEntries = frame.getInt();
+        respond(connection, requestId, r -> {
+          StateChunk changes = server.fetchChangesSince(sequence, maxEntries);
+          r.putBoolean(changes != null);
+          if (changes != null) {
+            changes.writeTo(r);
+          }
+        });
+        break;
+      }
+      case BinaryProtocol.OP_AWAIT_CHANGES_SINCE: {
+        long sequence = frame.getLong();
+        int maxEntries = frame.getInt();
+        long timeoutMillis = frame.getLong();
+        offload(connection, requestId, r -> {
+          StateChunk changes = server.awaitChangesSince(sequence, maxEntries, timeoutMillis);
+          r.putBoolean(changes != null);
+          if (changes != null) {
+            changes.writeTo(r);
+          }
+        });
+        break;
+      }
+      case BinaryProtocol.OP_GET_MERKLE_NODE_HASHES: {
+        int[] nodes = BinaryProtocol.getIntArray(frame);
+        respond(connection, requestId,
+            r -> r.putLongArray(server.getMerkleNodeHashes(nodes)));
+        break;
+      }
+      case BinaryProtocol.OP_FETCH_MERKLE_LEAF_ENTRIES: {
+        int[] leafNodes = BinaryProtocol.getIntArray(frame);
+        offload(connection, requestId,
+            r -> server.fetchMerkleLeafEntries(leafNodes).writeTo(r));
+        break;
+      }
+      case BinaryProtocol.OP_APPLY_REPAIRS: {
+        String[] keys = BinaryProtocol.getStringArray(frame);
+        byte[][] expectedValues = BinaryProtocol.getBytesArray(frame);
+        byte[][] newValues = BinaryProtocol.getBytesArray(frame);
+        long[] newVersions = BinaryProtocol.getLongArray(frame);
+        long[] newExpiresAt = BinaryProtocol.getLongArray(frame);
+        offload(connection, requestId, r -> r.putInt(
+            server.applyRepairs(keys, expectedValues, newValues, newVersions, newExpiresAt)));
+        break;
+      }
+      case BinaryProtocol.OP_RECEIVE_MESSAGE_WITH_ACK: {
+        String message = BinaryProtocol.getString(frame);
+        respond(connection, requestId,
+            r -> r.putBoolean(server.receiveMessageWithACK(message)));
+        break;
+      }
+      case BinaryProtocol.OP_RECEIVE_REPLICATION_MESSAGE: {
+        ReplicationMessage message = new ReplicationMessage(frame.get(), frame.getLong(),
+            BinaryProtocol.getBytes(frame), BinaryProtocol.getBytes(frame));
+        ResponseBody body = r -> r.putBoolean(server.receiveReplicationMessage(message));
+        if (message.isCommit()) {
+          // Applying a commit waits for the write-ahead log to sync
+          offload(connection, requestId, body);
+        } else {
+          respond(connection, requestId, body);
+        }
+        break;
+      }
+      case BinaryProtocol.OP_RECEIVE_MESSAGE_WITHOUT_ACK: {
+        String message = BinaryProtocol.getString(frame);
+        respond(connection, requestId, r -> server.receiveMessageWithoutACK(message));
+        break;
+      }
+      case BinaryProtocol.OP_REGISTER_REPLICA: {
+        String host = BinaryProtocol.getString(frame);
+        int replicaPort = frame.getInt();
+        offload(connection, requestId,
+            r -> server.registerReplicaServer(NioClient.connectOrThrow(host, replicaPort)));
+        break;
+      }
+      case BinaryProtocol.OP_UNREGISTER_REPLICA: {
+        String host = BinaryProtocol.getString(frame);
+        int replicaPort = frame.getInt();
+        // Waits for the replica's read lease to expire
+        offload(connection, requestId,
+            r -> server.unregisterReplicaServer(NioClient.unconnected(host, replicaPort)));
+        break;
+      }
+      default:
+        respond(connection, requestId, r -> {
+          throw new RemoteException("Unknown opcode: " + opcode);
+        });
+        break;
+    }
+  }
+
+  /**
+   * Runs the operation on the request executor and queues its response back to the loop.
+   */
+  private void offload(Connection connection, int requestId, ResponseBody body) {
+    requestExecutor.execute(() -> respond(connection, requestId, body));
+  }
+
+  /**
+   * Runs the operation on the calling thread and queues its response on the connection.
+   */
+  private void respond(Connection connection, int requestId, ResponseBody body) {
+    ByteBuffer response;
+    try {
+      BinaryProtocol.FrameBuilder builder =
+          new BinaryProtocol.FrameBuilder(BinaryProtocol.STATUS_OK, requestId);
+      body.write(builder);
+      response = builder.finish();
+    } catch (RemoteException | RuntimeException e) {
+      response = new BinaryProtocol.FrameBuilder(BinaryProtocol.STATUS_ERROR, requestId)
+          .putString(String.valueOf(e.getMessage()))
+          .finish();
+    }
+    connection.enqueue(response);
+  }
+
+  /**
+   * A single selector thread that owns a set of connections.
+   */
+  private final class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Queue<Connection> pendingFlushes = new ConcurrentLinkedQueue<>();
+    private volatile Thread thread;
+
+    EventLoop() throws IOException {
+      selector = Selector.open();
+    }
+
+    void register(SocketChannel channel) {
+      pendingRegistrations.add(channel);
+      selector.wakeup();
+    }
+
+    void requestFlush(Connection connection) {
+      pendingFlushes.add(connection);
+      selector.wakeup();
+    }
+
+    boolean inEventLoop() {
+      return Thread.currentThread() == thread;
+    }
+
+    void close() {
+      try {
+        selector.close();
+      } catch (IOException e) {
+        Log.error("Failed to close an event loop on port {}", port, e);
+      }
+    }
+
+    @Override
+    public void run() {
+      thread = Thread.currentThread();
+      try {
+        while (running) {
+          selector.select();
+
+          SocketChannel channel;
+          while ((channel = pendingRegistrations.poll()) != null) {
+            try {
+              SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+              key.attach(new Connection(this, channel, key));
+            } catch (IOException e) {
+              closeQuietly(channel);
+            }
+          }
+
+          Connection flush;
+          while ((flush = pendingFlushes.poll()) != null) {
+            flush.flush();
+          }
+
+          Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+          while (keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+            Connection connection = (Connection) key.attachment();
+            try {
+              if (key.isValid() && key.isReadable()) {
+                connection.read();
+              }
+              if (key.isValid() && key.isWritable()) {
+                connection.flush();
+              }
+            } catch (RuntimeException e) {
+              // One bad connection must not stop the loop that serves all the others
+              Log.warn("Closing connection {} after an error: {}", connection, e.toString());
+              connection.close();
+            }
+          }
+        }
+      } catch (IOException | ClosedSelectorException e) {
+        if (running) {
+          Log.error("Event loop stopped", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Per-connection read buffer and queue of pending response frames.
+   */
+  private final class Connection {
+    private final EventLoop eventLoop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+
+    Connection(EventLoop eventLoop, SocketChannel channel, SelectionKey key) {
+      this.eventLoop = eventLoop;
+      this.channel = channel;
+      this.key = key;
+    }
+
+    void read() {
+      try {
+        if (channel.read(readBuffer) < 0) {
+          close();
+          return;
+        }
+      } catch (IOException e) {
+        close();
+        return;
+      }
+
+      readBuffer.flip();
+      while (readBuffer.remaining() >= BinaryProtocol.LENGTH_BYTES) {
+        int length = readBuffer.getInt(readBuffer.position());
+        if (length < BinaryProtocol.HEADER_BYTES || length > BinaryProtocol.MAX_FRAME_BYTES) {
+          close();
+          return;
+        }
+        if (readBuffer.remaining() < BinaryProtocol.LENGTH_BYTES + length) {
+          break;
+        }
+        int frameStart = readBuffer.position() + BinaryProtocol.LENGTH_BYTES;
+        ByteBuffer frame = readBuffer.duplicate();
+        frame.position(frameStart).limit(frameStart + length);
+        readBuffer.position(frameStart + length);
+        try {
+          dispatch(this, frame.slice());
+        } catch (RuntimeException e) {
+          // A frame that does not decode leaves the stream in an unknown state
+          Log.warn("Closing connection {} after a malformed frame: {}", this, e.toString());
+          close();
+          return;
+        }
+      }
+
+      if (readBuffer.remaining() >= BinaryProtocol.LENGTH_BYTES) {
+        int needed = BinaryProtocol.LENGTH_BYTES + readBuffer.getInt(readBuffer.position());
+        if (needed > readBuffer.capacity()) {
+          ByteBuffer grown = ByteBuffer.allocate(needed);
+          grown.put(readBuffer);
+          readBuffer = grown;
+          return;
+        }
+      }
+      readBuffer.compact();
+    }
+
+    void enqueue(ByteBuffer response) {
+      writeQueue.add(response);
+      if (eventLoop.inEventLoop()) {
+        flush();
+      } else {
+        eventLoop.requestFlush(this);
+      }
+    }
+
+    void flush() {
+      if (!key.isValid()) {
+        return;
+      }
+      try {
+        ByteBuffer buffer;
+        while ((buffer = writeQueue.peek()) != null) {
+          channel.write(buffer);
+          if (buffer.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return;
+          }
+          writeQueue.poll();
+        }
+        key.interestOps(SelectionKey.OP_READ);
+      } catch (IOException | CancelledKeyException e) {
+        // The key is also cancelled when the server stops and closes the selector
+        close();
+      }
+    }
+
+    void close() {
+      key.cancel();
+      closeQuietly(channel);
+    }
+
+    @Override
+    public String toString() {
+      return String.valueOf(channel.socket().getRemoteSocketAddress());
+    }
+  }
+
+  private static void closeQuietly(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException ignored) {
+      // Already closing, nothing else to do
+    }
+  }
+}
@@ -0,0 +1,533 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The OffHeapStorageEngine class keeps keys and values as bytes in direct memory, so that
+ * the Java heap stays nearly empty however large the store grows and garbage collection pauses
+ * do not grow with it.
+ *
+ * <p>The keys are split by hash over {@code kv.offHeapSegments} segments, each guarded by its
+ * own read-write lock. A segment has
+ * <ul>
+ *   <li>an open-addressing hash index with linear probing, itself in direct memory: each slot
+ *   holds a reference to an entry and the key's hash, so most probes never look at the key; and
+ *   </li>
+ *   <li>an arena of direct slabs the entries are allocated from in sequence, each entry being
+ *   its key and value lengths followed by the key and value bytes.</li>
+ * </ul>
+ * Removing a key shifts the entries after it back in the index instead of leaving a tombstone.
+ * An overwritten or removed entry becomes garbage in its slab; once garbage is half of a
+ * segment's slabs, the live entries are copied to new slabs and the old ones are released.
+ *
+ * <p>The only heap objects per segment are the lock and the slab handles. Arrays are only
+ * created for the values being read, and strings for the keys being iterated. The exception is
+ * the {@link OrderedKeyIndex} serving range reads, which keeps every key as a string on the heap;
+ * it is updated under the segment's write lock, like the hash index.
+ */
+public class OffHeapStorageEngine implements StorageEngine {
+  private static final int SEGMENTS =
+      Integer.highestOneBit(Math.max(1, Integer.getInteger("kv.offHeapSegments", 64)));
+  // A slot is an 8-byte entry reference, 0 when empty, and the 4-byte key hash
+  private static final int SLOT_BYTES = 16;
+  private static final int INITIAL_SLOTS = 16;
+  // An entry starts with the key length and the value length
+  private static final int ENTRY_HEADER_BYTES = 8;
+  private static final int FIRST_SLAB_BYTES = 64 * 1024;
+  private static final int MAX_SLAB_BYTES = 4 * 1024 * 1024;
+
+  private final Segment[] segments = new Segment[SEGMENTS];
+  private final int segmentShift = 32 - Integer.numberOfTrailingZeros(SEGMENTS);
+  private final OrderedKeyIndex orderedKeys = new OrderedKeyIndex();
+
+  /**
+   * Constructs a new, empty OffHeapStorageEngine instance.
+   */
+  public OffHeapStorageEngine() {
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment();
+    }
+  }
+
+  @Override
+  public byte[] get(String key) {
+    byte[] keyBytes = encode(key);
+    int hash = hash(key);
+    Segment segment = segmentFor(hash);
+    segment.lock.readLock().lock();
+    try {
+      int slot = segment.find(hash, keyBytes);
+      return slot < 0 ? null : segment.readValue(segment.ref(slot));
+    } finally {
+      segment.lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean containsKey(String key) {
+    byte[] keyBytes = encode(key);
+    int hash = hash(key);
+    Segment segment = segmentFor(hash);
+    segment.lock.readLock().lock();
+    try {
+      return segment.find(hash, keyBytes) >= 0;
+    } finally {
+      segment.lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public byte[] put(String key, byte[] value) {
+    byte[] keyBytes = encode(key);
+    int hash = hash(key);
+    Segment segment = segmentFor(hash);
+    segment.lock.writeLock().lock();
+    try {
+      int slot = segment.find(hash, keyBytes);
+      if (slot < 0) {
+        orderedKeys.add(key);
+        segment.insert(-slot - 1, hash, keyBytes, value);
+        return null;
+      }
+      byte[] previous = segment.readValue(segment.ref(slot));
+      segment.overwrite(slot, keyBytes, value);
+      return previous;
+    } finally {
+      segment.lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public byte[] putIfAbsent(String key, byte[] value) {
+    byte[] keyBytes = encode(key);
+    int hash = hash(key);
+    Segment segment = segmentFor(hash);
+    segment.lock.writeLock().lock();
+    try {
+      int slot = segment.find(hash, keyBytes);
+      if (slot >= 0) {
+        return segment.readValue(segment.ref(slot));
+      }
+      orderedKeys.add(key);
+      segment.insert(-slot - 1, hash, keyBytes, value);
+      return null;
+    } finally {
+      segment.lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean replace(String key, byte[] expectedValue, byte[] value) {
+    byte[] keyBytes = encode(key);
+    int hash = hash(key);
+    Segment segment = segmentFor(hash);
+    segment.lock.writeLock().lock();
+    try {
+      int slot = segment.find(hash, keyBytes);
+      if (slot < 0 || !segment.valueEquals(segment.ref(slot), expectedValue)) {
+        return false;
+      }
+      segment.overwrite(slot, keyBytes, value);
+      return true;
+    } finally {
+      segment.lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public byte[] remove(String key) {
+    byte[] keyBytes = encode(key);
+    int hash = hash(key);
+    Segment segment = segmentFor(hash);
+    segment.lock.writeLock().lock();
+    try {
+      int slot = segment.find(hash, keyBytes);
+      if (slot < 0) {
+        return null;
+      }
+      byte[] previous = segment.readValue(segment.ref(slot));
+      segment.delete(slot);
+      orderedKeys.remove(key);
+      return previous;
+    } finally {
+      segment.lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean remove(String key, byte[] expectedValue) {
+    byte[] keyBytes = encode(key);
+    int hash = hash(key);
+    Segment segment = segmentFor(hash);
+    segment.lock.writeLock().lock();
+    try {
+      int slot = segment.find(hash, keyBytes);
+      if (slot < 0 || !segment.valueEquals(segment.ref(slot), expectedValue)) {
+        return false;
+      }
+      segment.delete(slot);
+      orderedKeys.remove(key);
+      return true;
+    } finally {
+      segment.lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      size += segment.size;
+    }
+    return size;
+  }
+
+  /**
+   * Empties every segment. All the segment locks are held at once, so that the ordered index is
+   * emptied together with them.
+   */
+  @Override
+  public void clear() {
+    for (Segment segment : segments) {
+      segment.lock.writeLock().lock();
+    }
+    try {
+      for (Segment segment : segments) {
+        segment.reset();
+      }
+      orderedKeys.clear();
+    } finally {
+      for (Segment segment : segments) {
+        segment.lock.writeLock().unlock();
+      }
+    }
+  }
+
+  @Override
+  public long offHeapBytes() {
+    long bytes = 0L;
+    for (Segment segment : segments) {
+      segment.lock.readLock().lock();
+      try {
+        bytes += segment.allocatedBytes + segment.index.capacity();
+      } finally {
+        segment.lock.readLock().unlock();
+      }
+    }
+    return bytes;
+  }
+
+  @Override
+  public Iterator<Map.Entry<String, byte[]>> range(String fromKey, String toKey) {
+    return orderedKeys.range(fromKey, toKey, this::get);
+  }
+
+  /**
+   * Iterates over the keys one segment at a time, copying each segment's entries under its read
+   * lock, so that moving entries within a segment never makes the iteration skip one.
+   */
+  @Override
+  public Iterator<Map.Entry<String, byte[]>> iterator() {
+    return new Iterator<>() {
+      private int nextSegment;
+      private Iterator<Map.Entry<String, byte[]>> batch = Collections.emptyIterator();
+
+      @Override
+      public boolean hasNext() {
+        while (!batch.hasNext() && nextSegment < segments.length) {
+          batch = segments[nextSegment++].entries().iterator();
+        }
+        return batch.hasNext();
+      }
+
+      @Override
+      public Map.Entry<String, byte[]> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return batch.next();
+      }
+    };
+  }
+
+  private Segment segmentFor(int hash) {
+    return segments[(int) ((hash & 0xFFFFFFFFL) >>> segmentShift)];
+  }
+
+  /**
+   * Spreads the key's cached string hash; segments are chosen by its high bits and slots by its
+   * low bits.
+   */
+  private static int hash(String key) {
+    int h = key.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 15);
+  }
+
+  private static byte[] encode(String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * One lock's share of the keys: its hash index and the slabs holding its entries. Guarded by
+   * the lock, except that size is read without it.
+   */
+  private static final class Segment {
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    ByteBuffer index;
+    int mask;
+    volatile int size;
+    final List<ByteBuffer> slabs = new ArrayList<>();
+    ByteBuffer currentSlab;
+    int slabPosition;
+    long allocatedBytes;
+    // Bytes of overwritten and removed entries and of abandoned slab tails
+    long garbageBytes;
+
+    Segment() {
+      reset();
+    }
+
+    void reset() {
+      index = ByteBuffer.allocateDirect(INITIAL_SLOTS * SLOT_BYTES);
+      mask = INITIAL_SLOTS - 1;
+      size = 0;
+      slabs.clear();
+      currentSlab = null;
+      slabPosition = 0;
+      allocatedBytes = 0L;
+      garbageBytes = 0L;
+    }
+
+    long ref(int slot) {
+      return index.getLong(slot * SLOT_BYTES);
+    }
+
+    int hashAt(int slot) {
+      return index.getInt(slot * SLOT_BYTES + 8);
+    }
+
+    void setSlot(ByteBuffer target, int slot, long ref, int hash) {
+      target.putLong(slot * SLOT_BYTES, ref);
+      target.putInt(slot * SLOT_BYTES + 8, hash);
+    }
+
+    /**
+     * @return the slot holding the key, or {@code -slot - 1} for the empty slot where it would
+     *         be inserted.
+     */
+    int find(int hash, byte[] key) {
+      int slot = hash & mask;
+      while (true) {
+        long ref = ref(slot);
+        if (ref == 0L) {
+          return -slot - 1;
+        }
+        if (hashAt(slot) == hash && keyEquals(ref, key)) {
+          return slot;
+        }
+        slot = (slot + 1) & mask;
+      }
+    }
+
+    void insert(int slot, int hash, byte[] key, byte[] value) {
+      setSlot(index, slot, write(key, value), hash);
+      size++;
+      if (size > (mask + 1) / 4 * 3) {
+        resize();
+      }
+    }
+
+    /**
+     * Replaces the value of the entry in the slot, in place if the new value is no longer.
+     */
+    void overwrite(int slot, byte[] key, byte[] value) {
+      long ref = ref(slot);
+      ByteBuffer slab = slab(ref);
+      int offset = (int) ref;
+      int valueLength = slab.getInt(offset + 4);
+      if (value.length <= valueLength) {
+        slab.putInt(offset + 4, value.length);
+        slab.put(offset + ENTRY_HEADER_BYTES + key.length, value);
+        garbageBytes += valueLength - value.length;
+      } else {
+        garbageBytes += entryBytes(ref);
+        setSlot(index, slot, write(key, value), hashAt(slot));
+      }
+      compactIfWasteful();
+    }
+
+    /**
+     * Empties the slot, moving back the entries after it that probed past it.
+     */
+    void delete(int slot) {
+      garbageBytes += entryBytes(ref(slot));
+      int hole = slot;
+      int next = (hole + 1) & mask;
+      long ref;
+      while ((ref = ref(next)) != 0L) {
+        int hash = hashAt(next);
+        int home = hash & mask;
+        // The entry may fill the hole unless its home slot lies after the hole
+        if (((next - home) & mask) >= ((next - hole) & mask)) {
+          setSlot(index, hole, ref, hash);
+          hole = next;
+        }
+        next = (next + 1) & mask;
+      }
+      setSlot(index, hole, 0L, 0);
+      size--;
+      compactIfWasteful();
+    }
+
+    void resize() {
+      int capacity = (mask + 1) * 2;
+      ByteBuffer resized = ByteBuffer.allocateDirect(capacity * SLOT_BYTES);
+      int resizedMask = capacity - 1;
+      for (int slot = 0; slot <= mask; slot++) {
+        long ref = ref(slot);
+        if (ref != 0L) {
+          int hash = hashAt(slot);
+          int target = hash & resizedMask;
+          while (resized.getLong(target * SLOT_BYTES) != 0L) {
+            target = (target + 1) & resizedMask;
+          }
+          setSlot(resized, target, ref, hash);
+        }
+      }
+      index = resized;
+      mask = resizedMask;
+    }
+
+    /**
+     * Copies the live entries to new slabs once half of the slab bytes are garbage.
+     */
+    void compactIfWasteful() {
+      if (garbageBytes < FIRST_SLAB_BYTES || garbageBytes * 2 < allocatedBytes) {
+        return;
+      }
+      List<ByteBuffer> oldSlabs = new ArrayList<>(slabs);
+      slabs.clear();
+      currentSlab = null;
+      slabPosition = 0;
+      allocatedBytes = 0L;
+      garbageBytes = 0L;
+      for (int slot = 0; slot <= mask; slot++) {
+        long ref = ref(slot);
+        if (ref != 0L) {
+          ByteBuffer source = oldSlabs.get((int) (ref >>> 32) - 1);
+          int offset = (int) ref;
+          int length = ENTRY_HEADER_BYTES + source.getInt(offset) + source.getInt(offset + 4);
+          long copy = allocate(length);
+          slab(copy).put((int) copy, source, offset, length);
+          index.putLong(slot * SLOT_BYTES, copy);
+        }
+      }
+    }
+
+    /**
+     * Allocates an entry from the current slab, starting a new one if it has no room.
+     *
+     * @return the reference to the entry: the slab number plus one, then the offset in it.
+     */
+    long allocate(int bytes) {
+      if (currentSlab == null || currentSlab.capacity() - slabPosition < bytes) {
+        int slabBytes = currentSlab == null ? FIRST_SLAB_BYTES
+            : Math.min(MAX_SLAB_BYTES, currentSlab.capacity() * 2);
+        if (currentSlab != null) {
+          garbageBytes += currentSlab.capacity() - slabPosition;
+        }
+        currentSlab = ByteBuffer.allocateDirect(Math.max(bytes, slabBytes));
+        slabs.add(currentSlab);
+        slabPosition = 0;
+        allocatedBytes += currentSlab.capacity();
+      }
+      long ref = ((long) slabs.size() << 32) | slabPosition;
+      slabPosition += bytes;
+      return ref;
+    }
+
+    long write(byte[] key, byte[] value) {
+      long ref = allocate(ENTRY_HEADER_BYTES + key.length + value.length);
+      ByteBuffer slab = slab(ref);
+      int offset = (int) ref;
+      slab.putInt(offset, key.length);
+      slab.putInt(offset + 4, value.length);
+      slab.put(offset + ENTRY_HEADER_BYTES, key);
+      slab.put(offset + ENTRY_HEADER_BYTES + key.length, value);
+      return ref;
+    }
+
+    ByteBuffer slab(long ref) {
+      return slabs.get((int) (ref >>> 32) - 1);
+    }
+
+    int entryBytes(long ref) {
+      ByteBuffer slab = slab(ref);
+      int offset = (int) ref;
+      return ENTRY_HEADER_BYTES + slab.getInt(offset) + slab.getInt(offset + 4);
+    }
+
+    boolean keyEquals(long ref, byte[] key) {
+      ByteBuffer slab = slab(ref);
+      int offset = (int) ref;
+      return slab.getInt(offset) == key.length
+          && bytesEqual(slab, offset + ENTRY_HEADER_BYTES, key);
+    }
+
+    boolean valueEquals(long ref, byte[] value) {
+      ByteBuffer slab = slab(ref);
+      int offset = (int) ref;
+      return slab.getInt(offset + 4) == value.length
+          && bytesEqual(slab, offset + ENTRY_HEADER_BYTES + slab.getInt(offset), value);
+    }
+
+    static boolean bytesEqual(ByteBuffer slab, int offset, byte[] bytes) {
+      for (int i = 0; i < bytes.length; i++) {
+        if (slab.get(offset + i) != bytes[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    String readKey(long ref) {
+      ByteBuffer slab = slab(ref);
+      int offset = (int) ref;
+      byte[] key = new byte[slab.getInt(offset)];
+      slab.get(offset + ENTRY_HEADER_BYTES, key);
+      return new String(key, StandardCharsets.UTF_8);
+    }
+
+    byte[] readValue(long ref) {
+      ByteBuffer slab = slab(ref);
+      int offset = (int) ref;
+      int keyLength = slab.getInt(offset);
+      byte[] value = new byte[slab.getInt(offset + 4)];
+      slab.get(offset + ENTRY_HEADER_BYTES + keyLength, value);
+      return value;
+    }
+
+    List<Map.Entry<String, byte[]>> entries() {
+      lock.readLock().lock();
+      try {
+        List<Map.Entry<String, byte[]>> entries = new ArrayList<>(size);
+        for (int slot = 0; slot <= mask; slot++) {
+          long ref = ref(slot);
+          if (ref != 0L) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<>(readKey(ref), readValue(ref)));
+          }
+        }
+        return entries;
+      } finally {
+        lock.readLock().unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,91 @@
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Function;
+
+/**
+ * The OrderedKeyIndex class keeps the keys of a hash-indexed {@link StorageEngine} in a
+ * concurrent skip list, so that the engine can serve {@link StorageEngine#range(String, String)}
+ * in key order while point lookups keep using its hash index.
+ *
+ * <p>The engine adds a key before the key becomes visible in its hash index and removes it only
+ * while the key is being removed from there, both under the same per-key lock, so the index
+ * holds every key present and at most the keys being removed right now. A range therefore looks
+ * each key up in the engine and skips the ones that are gone.
+ */
+public class OrderedKeyIndex {
+  private final ConcurrentSkipListSet<String> keys = new ConcurrentSkipListSet<>();
+
+  /**
+   * @param key the key that is being added to the engine.
+   */
+  public void add(String key) {
+    keys.add(key);
+  }
+
+  /**
+   * @param key the key that is being removed from the engine.
+   */
+  public void remove(String key) {
+    keys.remove(key);
+  }
+
+  /**
+   * Removes every key.
+   */
+  public void clear() {
+    keys.clear();
+  }
+
+  /**
+   * @return the keys in order, weakly consistent.
+   */
+  public Iterable<String> keys() {
+    return keys;
+  }
+
+  /**
+   * Returns the entries with keys in the given range, looking each value up in the engine.
+   *
+   * @param fromKey the first key of the range, inclusive.
+   * @param toKey   the key the range ends before, or null for no end.
+   * @param lookup  returns the engine's value for a key, or null if it is absent.
+   * @return the entries in key order.
+   */
+  public Iterator<Map.Entry<String, byte[]>> range(String fromKey, String toKey,
+      Function<String, byte[]> lookup) {
+    NavigableSet<String> inRange = toKey == null
+        ? keys.tailSet(fromKey, true)
+        : fromKey.compareTo(toKey) < 0 ? keys.subSet(fromKey, true, toKey, false)
+        : keys.subSet(fromKey, true, fromKey, false);
+    Iterator<String> iterator = inRange.iterator();
+    return new Iterator<>() {
+      private Map.Entry<String, byte[]> next;
+
+      @Override
+      public boolean hasNext() {
+        while (next == null && iterator.hasNext()) {
+          String key = iterator.next();
+          byte[] value = lookup.apply(key);
+          if (value != null) {
+            next = new AbstractMap.SimpleImmutableEntry<>(key, value);
+          }
+        }
+        return next != null;
+      }
+
+      @Override
+      public Map.Entry<String, byte[]> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        Map.Entry<String, byte[]> entry = next;
+        next = null;
+        return entry;
+      }
+    };
+  }
+}
@@ -0,0 +1,142 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The PrepareLockTable class reserves keys between the prepare and commit phases of a two-phase
+ * commit, so that two transactions writing the same key cannot both vote yes.
+ *
+ * <p>Locks are entries of a {@link ConcurrentHashMap}, which only contends on the bin of the
+ * key, so transactions on unrelated keys never wait for each other. A lock is owned by a
+ * transaction id and only released by the same id, so a late abort can never release a newer
+ * transaction's lock. Acquisition never waits: a key held by another transaction is a NO vote,
+ * which rules out deadlocks between coordinators. Every lock is a lease that lapses after a
+ * timeout, so a coordinator that crashes between the phases does not block the key forever.
+ *
+ * <p>A coordinator aborts as soon as one replica votes NO, so the abort can reach a replica
+ * before that replica's prepare does, for example over another RMI connection. Aborted
+ * transactions are therefore remembered for one lease, and a prepare arriving late for one of
+ * them is refused instead of holding its keys until the lease lapses.
+ */
+public class PrepareLockTable {
+  private final long leaseNanos;
+  private final Map<String, Lease> locks = new ConcurrentHashMap<>();
+  // Aborted transaction id -> when it can be forgotten, in System.nanoTime()
+  private final Map<Long, Long> abortedTransactions = new ConcurrentHashMap<>();
+  private volatile long nextPruneNanos = System.nanoTime();
+
+  /**
+   * Constructs a new PrepareLockTable instance.
+   *
+   * @param leaseMillis how long a lock is held without a commit or abort before it lapses.
+   */
+  public PrepareLockTable(long leaseMillis) {
+    this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+  }
+
+  /**
+   * Reserves a key for a transaction, taking over a lapsed lock if there is one.
+   *
+   * @param key           the key to reserve.
+   * @param transactionId the transaction reserving it.
+   * @return true if the transaction now holds the key, false if another transaction does.
+   */
+  public boolean tryLock(String key, long transactionId) {
+    long now = System.nanoTime();
+    Lease lease = locks.compute(key, (k, current) ->
+        current == null || current.transactionId == transactionId
+            || now - current.expiresAtNanos > 0
+            ? new Lease(transactionId, now + leaseNanos) : current);
+    return lease.transactionId == transactionId;
+  }
+
+  /**
+   * Releases a key if the given transaction still holds it.
+   *
+   * @param key           the key to release.
+   * @param transactionId the transaction releasing it.
+   */
+  public void unlock(String key, long transactionId) {
+    locks.computeIfPresent(key, (k, current) ->
+        current.transactionId == transactionId ? null : current);
+  }
+
+  /**
+   * Reserves every key for a transaction, or none of them.
+   *
+   * @param keys          the keys to reserve; duplicates are allowed.
+   * @param transactionId the transaction reserving them.
+   * @return true if the transaction now holds all the keys.
+   */
+  public boolean tryLockAll(List<String> keys, long transactionId) {
+    if (abortedTransactions.containsKey(transactionId)) {
+      return false;
+    }
+    for (String key : keys) {
+      if (!tryLock(key, transactionId)) {
+        unlockAll(keys, transactionId);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Releases every key the given transaction still holds.
+   *
+   * @param keys          the keys to release.
+   * @param transactionId the transaction releasing them.
+   */
+  public void unlockAll(List<String> keys, long transactionId) {
+    for (String key : keys) {
+      unlock(key, transactionId);
+    }
+  }
+
+  /**
+   * Releases every key the given transaction holds and refuses its prepares from now on, in case
+   * one is still on its way.
+   *
+   * @param keys          the keys to release.
+   * @param transactionId the transaction aborted.
+   */
+  public void abortAll(List<String> keys, long transactionId) {
+    long now = System.nanoTime();
+    abortedTransactions.put(transactionId, now + leaseNanos);
+    unlockAll(keys, transactionId);
+    // A late prepare cannot hold a key longer than a lease anyway, so forget older aborts
+    if (now - nextPruneNanos > 0) {
+      nextPruneNanos = now + leaseNanos;
+      abortedTransactions.values().removeIf(forgetAt -> now - forgetAt > 0);
+    }
+  }
+
+  /**
+   * Tells whether a transaction holds the key. A lapsed lock still counts until it is taken over
+   * or released, since it means the outcome of its transaction never arrived.
+   *
+   * @param key the key to check.
+   * @return true if the key is reserved.
+   */
+  public boolean isReserved(String key) {
+    return locks.containsKey(key);
+  }
+
+  /**
+   * @return the number of keys currently reserved, including lapsed leases not yet taken over.
+   */
+  public int size() {
+    return locks.size();
+  }
+
+  private static final class Lease {
+    private final long transactionId;
+    private final long expiresAtNanos;
+
+    Lease(long transactionId, long expiresAtNanos) {
+      this.transactionId = transactionId;
+      this.expiresAtNanos = expiresAtNanos;
+    }
+  }
+}
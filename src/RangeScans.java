@@ -0,0 +1,164 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * The RangeScans class serves range and prefix scans of a replica's store in pages, so that a
+ * client lists any number of keys with one scan instead of one GET per key, and neither side
+ * holds more than a page at a time.
+ *
+ * <p>A scan walks {@link StorageEngine#range(String, String)}, which is weakly consistent: a key
+ * written while the scan runs may or may not be returned, but every key present and unchanged
+ * for the whole scan is. The replica keeps a cursor for each scan that has more pages, holding
+ * the range iterator, so each page continues where the last one stopped without seeking again.
+ * Like a state transfer session, the cursor remembers its last page, so a client that lost a
+ * response can ask for the same page number again. Cursors idle for {@code kv.scanCursorIdleMs}
+ * milliseconds are dropped. Keys that have expired but are not deleted yet are skipped.
+ */
+public class RangeScans {
+  private static final long CURSOR_TIMEOUT_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(Long.getLong("kv.scanCursorIdleMs", 60000L));
+  // Bounds a page so that a response frame stays well below the protocol's limit
+  private static final int MAX_PAGE_ENTRIES = Integer.getInteger("kv.scanMaxPageEntries", 10000);
+
+  private final Supplier<StorageEngine> store;
+  private final Predicate<String> expired;
+  private final Map<Long, Cursor> cursors = new ConcurrentHashMap<>();
+  private final AtomicLong nextCursorId = new AtomicLong();
+
+  /**
+   * Constructs a new RangeScans instance.
+   *
+   * @param store   supplies the replica's current store.
+   * @param expired tells whether a key in the store has expired.
+   */
+  public RangeScans(Supplier<StorageEngine> store, Predicate<String> expired) {
+    this.store = store;
+    this.expired = expired;
+  }
+
+  /**
+   * Returns the key a prefix scan ends before: the first key greater than every key that starts
+   * with the prefix.
+   *
+   * @param prefix the prefix.
+   * @return the end of the range, or null if the prefix has no end and the range has none.
+   */
+  public static String prefixEnd(String prefix) {
+    int end = prefix.length();
+    while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+      end--;
+    }
+    if (end == 0) {
+      return null;
+    }
+    return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+  }
+
+  /**
+   * Starts a scan.
+   *
+   * @param startKey the first key of the range, inclusive.
+   * @param endKey   the key the range ends before, or null for no end.
+   * @param limit    the most entries to return over all pages, 0 or less for no limit.
+   * @param pageSize the most entries to return per page.
+   * @return the first page.
+   */
+  public ScanPage open(String startKey, String endKey, int limit, int pageSize) {
+    expireIdleCursors();
+
+    Cursor cursor = new Cursor(nextCursorId.incrementAndGet(),
+        store.get().range(startKey, endKey), expired, limit > 0 ? limit : Long.MAX_VALUE);
+    ScanPage page = cursor.next(pageSize);
+    if (!page.isComplete()) {
+      cursors.put(cursor.id, cursor);
+    }
+    return page;
+  }
+
+  /**
+   * Returns the next page of a scan.
+   *
+   * @param cursorId   the cursor returned in the first page.
+   * @param pageNumber the page wanted: the next one, or the last one again to resume.
+   * @param pageSize   the most entries to return.
+   * @return the page.
+   * @throws RemoteException if the cursor is unknown or the page number is out of order.
+   */
+  public ScanPage fetch(long cursorId, int pageNumber, int pageSize) throws RemoteException {
+    Cursor cursor = cursors.get(cursorId);
+    if (cursor == null) {
+      throw new RemoteException("Unknown or expired scan cursor " + cursorId);
+    }
+    synchronized (cursor) {
+      cursor.lastAccessNanos = System.nanoTime();
+      if (pageNumber == cursor.lastPage.getPageNumber()) {
+        return cursor.lastPage;
+      }
+      if (pageNumber != cursor.lastPage.getPageNumber() + 1) {
+        throw new RemoteException("Expected page " + (cursor.lastPage.getPageNumber() + 1)
+            + " of scan " + cursorId + " but got " + pageNumber);
+      }
+      return cursor.next(pageSize);
+    }
+  }
+
+  /**
+   * @return the number of scans with pages left to fetch.
+   */
+  public int openCursors() {
+    return cursors.size();
+  }
+
+  private void expireIdleCursors() {
+    long now = System.nanoTime();
+    cursors.values().removeIf(cursor -> now - cursor.lastAccessNanos > CURSOR_TIMEOUT_NANOS);
+  }
+
+  /**
+   * A scan's position in the range.
+   */
+  private static final class Cursor {
+    private final long id;
+    private final Iterator<Map.Entry<String, byte[]>> iterator;
+    private final Predicate<String> expired;
+    private long remaining;
+    private ScanPage lastPage;
+    private long lastAccessNanos = System.nanoTime();
+
+    Cursor(long id, Iterator<Map.Entry<String, byte[]>> iterator, Predicate<String> expired,
+        long limit) {
+      this.id = id;
+      this.iterator = iterator;
+      this.expired = expired;
+      this.remaining = limit;
+    }
+
+    ScanPage next(int pageSize) {
+      int size = (int) Math.min(Math.max(1, Math.min(pageSize, MAX_PAGE_ENTRIES)), remaining);
+      List<String> keys = new ArrayList<>(size);
+      List<byte[]> values = new ArrayList<>(size);
+      while (keys.size() < size && iterator.hasNext()) {
+        Map.Entry<String, byte[]> entry = iterator.next();
+        if (expired.test(entry.getKey())) {
+          continue;
+        }
+        keys.add(entry.getKey());
+        values.add(entry.getValue());
+      }
+      remaining -= keys.size();
+
+      int pageNumber = lastPage == null ? 0 : lastPage.getPageNumber() + 1;
+      lastPage = new ScanPage(id, pageNumber, remaining == 0 || !iterator.hasNext(),
+          keys.toArray(new String[0]), values.toArray(new byte[0][]));
+      return lastPage;
+    }
+  }
+}
@@ -0,0 +1,219 @@
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The ReadLeases class lets replicas answer linearizable reads from their own store, so that
+ * strong reads scale with the number of replicas instead of all going to the coordinator.
+ *
+ * <p>The coordinator periodically grants every registered replica a lease: a
+ * {@link ReplicationMessage#READ_LEASE} carrying its address, the last transaction it had
+ * applied, and a duration. A replica reads a key locally only while
+ * <ul>
+ *   <li>its lease has not expired, counted from when the lease was received,</li>
+ *   <li>it has applied at least the transaction the lease names, and</li>
+ *   <li>no transaction holds the key's prepare lock before and after the read. Every write is
+ *   prepared on every replica before the coordinator applies it, and the lock is only released
+ *   once the replica has applied it too, so an unlocked key cannot be behind the coordinator.</li>
+ * </ul>
+ * Any other read is forwarded to the coordinator, whose store is where writes take effect.
+ *
+ * <p>The lease covers what the lock cannot. A replica leaving the cluster keeps its lease until
+ * it expires, so the coordinator stops renewing it and waits for it to expire before committing
+ * writes without the replica. A commit that does not reach a replica leaves the key locked
+ * there, but if another prepare then takes the lapsed lock over and aborts, the key would look
+ * current. The coordinator therefore stops renewing leases when a commit fails, and only renews
+ * them again after an anti-entropy round has repaired every replica. The lease must expire
+ * before the lock lapses, which bounds it by the prepare lock lease minus the prepare and commit
+ * timeouts.
+ *
+ * <p>Lease expiry relies on the replica's and the coordinator's clocks advancing at the same
+ * rate; the replica counts from when it received the lease and the coordinator from when the
+ * replica acknowledged it, which is later.
+ */
+public class ReadLeases {
+  private final long leaseMillis;
+
+  // Coordinator side: the lease granted to each replica
+  private final Map<RemoteInterface, Grant> grants = new ConcurrentHashMap<>();
+  private final AtomicLong failedCommits = new AtomicLong();
+  private final AtomicLong repairedFailedCommits = new AtomicLong();
+
+  // Replica side: the lease last received from the coordinator, or null
+  private volatile Lease lease;
+
+  /**
+   * A lease held by a replica.
+   */
+  private static final class Lease {
+    final long expiresAtNanos;
+    final long appliedTransactionId;
+    final String coordinatorAddress;
+
+    Lease(long expiresAtNanos, long appliedTransactionId, String coordinatorAddress) {
+      this.expiresAtNanos = expiresAtNanos;
+      this.appliedTransactionId = appliedTransactionId;
+      this.coordinatorAddress = coordinatorAddress;
+    }
+  }
+
+  /**
+   * A lease granted by the coordinator. Guarded by its own monitor.
+   */
+  private static final class Grant {
+    long expiresAtNanos;
+    boolean inFlight;
+    boolean revoked;
+  }
+
+  /**
+   * Constructs a new ReadLeases instance.
+   *
+   * @param leaseMillis the duration of the leases granted, 0 to grant none.
+   */
+  public ReadLeases(long leaseMillis) {
+    this.leaseMillis = leaseMillis;
+  }
+
+  /**
+   * @return the duration of the leases granted, 0 if leases are disabled.
+   */
+  public long getLeaseMillis() {
+    return leaseMillis;
+  }
+
+  /**
+   * Grants or renews a replica's lease, unless leases are suspended, the replica's lease was
+   * revoked or it is no longer registered, or the previous grant has not been acknowledged yet.
+   *
+   * @param replica    the replica to grant the lease to.
+   * @param registered tells whether the replica is still registered.
+   * @param grant      sends the lease message, returning the replica's acknowledgment.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  public void renew(RemoteInterface replica, BooleanSupplier registered,
+      ReplicaFanOut.ReplicaCall grant) throws RemoteException {
+    Grant current = grants.computeIfAbsent(replica, r -> new Grant());
+    synchronized (current) {
+      if (current.inFlight || current.revoked || isSuspended()) {
+        return;
+      }
+      if (!registered.getAsBoolean()) {
+        grants.remove(replica, current);
+        return;
+      }
+      current.inFlight = true;
+    }
+    boolean granted = false;
+    try {
+      granted = grant.call(replica);
+    } finally {
+      synchronized (current) {
+        if (granted) {
+          current.expiresAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+        }
+        current.inFlight = false;
+        current.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Stops renewing a replica's lease and waits until it has expired, so that the replica can be
+   * unregistered without serving reads that miss the writes committed without it.
+   *
+   * @param replica the replica about to be unregistered.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public void revoke(RemoteInterface replica) throws InterruptedException {
+    Grant grant = grants.computeIfAbsent(replica, r -> new Grant());
+    long remaining;
+    synchronized (grant) {
+      grant.revoked = true;
+      while (grant.inFlight) {
+        grant.wait();
+      }
+      remaining = grant.expiresAtNanos - System.nanoTime();
+    }
+    if (remaining > 0) {
+      TimeUnit.NANOSECONDS.sleep(remaining);
+    }
+  }
+
+  /**
+   * Forgets the lease of an unregistered replica, so that it is granted a new one if it
+   * registers again.
+   *
+   * @param replica the unregistered replica.
+   */
+  public void forget(RemoteInterface replica) {
+    grants.remove(replica);
+  }
+
+  /**
+   * Records a commit that some replica may have missed, suspending lease renewals.
+   *
+   * @return true if leases were not already suspended.
+   */
+  public boolean commitFailed() {
+    return failedCommits.incrementAndGet() == repairedFailedCommits.get() + 1;
+  }
+
+  /**
+   * @return a token to pass to {@link #repaired(long)} once every replica has been repaired.
+   */
+  public long failedCommits() {
+    return failedCommits.get();
+  }
+
+  /**
+   * Resumes lease renewals if no commit has failed since the repair round started.
+   *
+   * @param failedCommitsAtStart the value of {@link #failedCommits()} when the round started.
+   */
+  public void repaired(long failedCommitsAtStart) {
+    repairedFailedCommits.accumulateAndGet(failedCommitsAtStart, Math::max);
+  }
+
+  /**
+   * @return true if a commit has failed since the last complete repair round.
+   */
+  public boolean isSuspended() {
+    return repairedFailedCommits.get() < failedCommits.get();
+  }
+
+  /**
+   * Accepts a lease from the coordinator.
+   *
+   * @param message the lease message.
+   */
+  public void accept(ReplicationMessage message) {
+    long expiresAtNanos = System.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(message.leaseMillis());
+    lease = new Lease(expiresAtNanos, message.getTransactionId(), message.keyAsString());
+  }
+
+  /**
+   * Tells whether this replica holds a lease that lets it read locally.
+   *
+   * @param appliedTransactionId the last transaction this replica applied.
+   * @return true if the lease has not expired and names no transaction this replica lacks.
+   */
+  public boolean isCurrent(long appliedTransactionId) {
+    Lease current = lease;
+    return current != null && System.nanoTime() - current.expiresAtNanos < 0
+        && appliedTransactionId >= current.appliedTransactionId;
+  }
+
+  /**
+   * @return the "host:port" address of the coordinator that last granted a lease, or null if
+   *         this replica has never been granted one.
+   */
+  public String coordinatorAddress() {
+    Lease current = lease;
+    return current == null ? null : current.coordinatorAddress;
+  }
+}
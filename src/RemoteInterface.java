@@ -19,6 +19,83 @@ public interface RemoteInterface extends Remote {
    */
   String processRequest(String request) throws RemoteException;
 
+  /**
+   * Commits a batch of PUTs and DELETEs atomically through a single two-phase commit round.
+   *
+   * @param batch the operations to commit, in order.
+   * @return true if every operation was committed, false if none was.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  boolean processBatch(WriteBatch batch) throws RemoteException;
+
+  /**
+   * Looks up the value of a key in this replica's key-value store while its read lease allows,
+   * and from the coordinator otherwise, so that the read is linearizable.
+   *
+   * @param key the key to look up.
+   * @return the value, or null if the key is not present.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  String get(String key) throws RemoteException;
+
+  /**
+   * Looks up the value of a key like {@link #get(String)}, returning the bytes stored without
+   * decoding them, so that values need not be text.
+   *
+   * @param key the key to look up.
+   * @return the value bytes, or null if the key is not present.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  byte[] getBytes(String key) throws RemoteException;
+
+  /**
+   * Puts a value like the "PUT key=value" request, storing the given bytes as they are, so that
+   * values need not be text and are neither trimmed nor re-encoded.
+   *
+   * @param key the key to put.
+   * @param value the value bytes to put.
+   * @return true if the PUT was committed, false otherwise.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  boolean putBytes(String key, byte[] value) throws RemoteException;
+
+  /**
+   * Starts a scan of the keys in a range of this replica's store, in key order. The replica
+   * keeps a cursor for the rest of the range, whose pages are fetched with
+   * {@link #fetchScanPage(long, int, int)} from the same replica.
+   *
+   * @param startKey the first key of the range, inclusive.
+   * @param endKey the key the range ends before, or null for no end.
+   * @param limit the most entries to return over all pages, 0 for no limit.
+   * @param pageSize the most entries to return per page.
+   * @return the first page.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  ScanPage openScan(String startKey, String endKey, int limit, int pageSize)
+      throws RemoteException;
+
+  /**
+   * Fetches a page of a scan. Asking for the previous page number again resends it, so a scan
+   * can resume after a lost response.
+   *
+   * @param cursorId the cursor returned in the first page.
+   * @param pageNumber the page wanted.
+   * @param pageSize the most entries to return.
+   * @return the requested page.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  ScanPage fetchScanPage(long cursorId, int pageNumber, int pageSize) throws RemoteException;
+
+  /**
+   * Commits a transaction's writes atomically through a single two-phase commit round, provided
+   * that every key in its read set still has the value the transaction read.
+   *
+   * @param transaction the transaction to commit.
+   * @return true if the writes were committed, false if none was.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  boolean commitTransaction(Transaction transaction) throws RemoteException;
+
   /**
    * Prepares to perform a PUT operation on the key-value store.
    *
@@ -121,9 +198,58 @@ public interface RemoteInterface extends Remote {
    *
    * @param newKeyValueStore the new key-value store to update.
    * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   * @deprecated ships the whole store in one call; use {@link #openStateTransfer(long, int)}.
    */
+  @Deprecated
   void updateKeyValueStore(Map<String, String> newKeyValueStore) throws RemoteException;
 
+  /**
+   * Starts bringing a replica up to date from this replica.
+   *
+   * @param knownTransactionId the highest transaction id the caller has applied, or 0 if none.
+   * @param maxEntries the most entries to return per chunk.
+   * @return a delta page if the caller can be caught up from recent changes alone, otherwise the
+   *         first chunk of a full transfer.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  StateChunk openStateTransfer(long knownTransactionId, int maxEntries) throws RemoteException;
+
+  /**
+   * Fetches a chunk of a full state transfer. Asking for the previous chunk number again resends
+   * it, so a transfer can resume after a lost response.
+   *
+   * @param sessionId the session returned in the first chunk.
+   * @param chunkNumber the chunk wanted.
+   * @param maxEntries the most entries to return.
+   * @return the requested chunk.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  StateChunk fetchStateChunk(long sessionId, int chunkNumber, int maxEntries)
+      throws RemoteException;
+
+  /**
+   * Fetches the changes committed on this replica from the given change sequence number on.
+   *
+   * @param sequence the first change sequence number wanted.
+   * @param maxEntries the most changes to return.
+   * @return the changes, or null if they are no longer retained and a full transfer is needed.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  StateChunk fetchChangesSince(long sequence, int maxEntries) throws RemoteException;
+
+  /**
+   * Waits until a change is committed on this replica from the given change sequence number on,
+   * so that a client can drop its cached copies of the keys written as soon as they commit.
+   *
+   * @param sequence the first change sequence number wanted, or -1 to only learn the next one.
+   * @param maxEntries the most changes to return.
+   * @param timeoutMillis how long to wait for a change before returning none.
+   * @return the changes, or null if some of them are no longer retained.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  StateChunk awaitChangesSince(long sequence, int maxEntries, long timeoutMillis)
+      throws RemoteException;
+
   /**
    * Receives a message with an ACK (acknowledgment) from another replica.
    *
@@ -133,6 +259,48 @@ public interface RemoteInterface extends Remote {
    */
   boolean receiveMessageWithACK(String message) throws RemoteException;
 
+  /**
+   * Receives a typed commit message from the coordinator and applies it to the key-value store.
+   *
+   * @param message the commit to be applied.
+   * @return {@code true} if the commit was applied and is acknowledged, {@code false} otherwise.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  boolean receiveReplicationMessage(ReplicationMessage message) throws RemoteException;
+
+  /**
+   * Returns the hashes of the given nodes of this replica's Merkle tree.
+   *
+   * @param nodes heap-numbered node indexes, the root being 1.
+   * @return the hash of each node, in the same order.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  long[] getMerkleNodeHashes(int[] nodes) throws RemoteException;
+
+  /**
+   * Returns this replica's entries that fall into the given Merkle tree leaves.
+   *
+   * @param leafNodes heap-numbered leaf node indexes.
+   * @return the entries in those leaves.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  StateChunk fetchMerkleLeafEntries(int[] leafNodes) throws RemoteException;
+
+  /**
+   * Applies anti-entropy repairs. Each key is only changed if its current value still equals
+   * the expected one, so repairs never overwrite a newer commit.
+   *
+   * @param keys the keys to repair.
+   * @param expectedValues the value each key is expected to have, null for absent.
+   * @param newValues the value to set, null to remove the key.
+   * @param newVersions the coordinator's version of each key.
+   * @param newExpiresAt when each key expires on the coordinator, or 0 if it does not.
+   * @return the number of keys repaired.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  int applyRepairs(String[] keys, byte[][] expectedValues, byte[][] newValues, long[] newVersions,
+      long[] newExpiresAt) throws RemoteException;
+
   /**
    * Receives a message without an ACK (acknowledgment) from another replica.
    *
@@ -141,6 +309,15 @@ public interface RemoteInterface extends Remote {
    */
   void receiveMessageWithoutACK(String message) throws RemoteException;
 
+  /**
+   * Returns the address this replica is served on, so that the coordinator recognises it when
+   * it registers again after a restart.
+   *
+   * @return the replica's address as "host:port", or null if it is not served to other processes.
+   * @throws RemoteException if a communication-related exception occurs during remote method invocation.
+   */
+  String getReplicaAddress() throws RemoteException;
+
   /**
    * Registers a replica server to the coordinator.
    *
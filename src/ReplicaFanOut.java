@@ -0,0 +1,214 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The ReplicaFanOut class issues the same remote call to every replica concurrently and gathers
+ * the boolean results, so that a 2PC phase costs the slowest replica's round trip instead of the
+ * sum of all of them.
+ *
+ * <p>Each phase is bounded by a timeout. The prepare phase fails as soon as any replica answers
+ * {@code false}, throws, or does not answer before the deadline; calls that have not started yet
+ * are cancelled at that point and the ones in flight are no longer waited for. The commit phase
+ * never cancels anything: once the decision is taken every replica must receive it, so each
+ * commit call runs to completion even after the phase has timed out or another replica failed,
+ * and the timeout only bounds how long the coordinator waits to learn whether all of them
+ * acknowledged.
+ *
+ * <p>At most a fixed number of calls are in flight to any one replica; further calls wait for
+ * one to finish, prepares within the phase's deadline and commits for as long as it takes. When
+ * the executor has no fixed number of threads, as with virtual threads, this is what keeps a
+ * slow replica from accumulating an unbounded number of calls.
+ */
+public class ReplicaFanOut {
+
+  /**
+   * A single remote call made against one replica.
+   */
+  @FunctionalInterface
+  public interface ReplicaCall {
+
+    /**
+     * Performs the call against the given replica.
+     *
+     * @param replica the replica to call.
+     * @return the replica's vote or acknowledgment.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    boolean call(RemoteInterface replica) throws RemoteException;
+  }
+
+  private final ExecutorService executor;
+  private final long prepareTimeoutMillis;
+  private final long commitTimeoutMillis;
+  private final int maxCallsPerReplica;
+  private final Map<RemoteInterface, Semaphore> callLimits = new ConcurrentHashMap<>();
+
+  /**
+   * Constructs a new ReplicaFanOut instance.
+   *
+   * @param executor             the executor the remote calls run on.
+   * @param prepareTimeoutMillis the time allowed for all replicas to vote in the prepare phase.
+   * @param commitTimeoutMillis  the time allowed for all replicas to ACK in the commit phase.
+   * @param maxCallsPerReplica   the most calls in flight to one replica, 0 for no limit.
+   */
+  public ReplicaFanOut(ExecutorService executor, long prepareTimeoutMillis,
+      long commitTimeoutMillis, int maxCallsPerReplica) {
+    this.executor = executor;
+    this.prepareTimeoutMillis = prepareTimeoutMillis;
+    this.commitTimeoutMillis = commitTimeoutMillis;
+    this.maxCallsPerReplica = maxCallsPerReplica;
+  }
+
+  /**
+   * Runs the prepare phase against all replicas.
+   *
+   * @param replicas the replicas to ask.
+   * @param prepare  the prepare call to make on each replica.
+   * @return true if every replica voted YES before the prepare timeout, false otherwise.
+   */
+  public boolean prepare(Collection<RemoteInterface> replicas, ReplicaCall prepare) {
+    return callAll(replicas, prepare, prepareTimeoutMillis);
+  }
+
+  /**
+   * Runs the commit phase against all replicas.
+   *
+   * @param replicas the replicas to send the commit to.
+   * @param commit   the commit call to make on each replica.
+   * @return true if every replica acknowledged before the commit timeout, false otherwise. The
+   *         calls still outstanding carry on either way.
+   */
+  public boolean commit(Collection<RemoteInterface> replicas, ReplicaCall commit) {
+    if (replicas.isEmpty()) {
+      return true;
+    }
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(commitTimeoutMillis);
+    List<Future<Boolean>> futures = new ArrayList<>(replicas.size());
+    for (RemoteInterface replica : replicas) {
+      futures.add(executor.submit(() -> callWithinLimit(replica, commit, Long.MAX_VALUE)));
+    }
+
+    // Wait for every ACK, not just up to the first failure, and never cancel a commit
+    boolean success = true;
+    for (Future<Boolean> future : futures) {
+      try {
+        long remaining = Math.max(0L, deadline - System.nanoTime());
+        if (!future.get(remaining, TimeUnit.NANOSECONDS)) {
+          success = false;
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      } catch (ExecutionException | TimeoutException e) {
+        success = false;
+      }
+    }
+    return success;
+  }
+
+  /**
+   * Issues the call to all replicas at once and waits until every replica has answered
+   * {@code true}, one has answered {@code false} or failed, or the deadline has passed. Used for
+   * the prepare phase only, as it cancels the calls that are left on failure.
+   *
+   * @param replicas      the replicas to call.
+   * @param call          the call to make on each replica.
+   * @param timeoutMillis the time allowed for the whole phase.
+   * @return true if all replicas answered {@code true} in time, false otherwise.
+   */
+  private boolean callAll(Collection<RemoteInterface> replicas, ReplicaCall call,
+      long timeoutMillis) {
+    if (replicas.isEmpty()) {
+      return true;
+    }
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    CompletionService<Boolean> completionService = new ExecutorCompletionService<>(executor);
+    List<Future<Boolean>> futures = new ArrayList<>(replicas.size());
+    for (RemoteInterface replica : replicas) {
+      futures.add(completionService.submit(() -> callWithinLimit(replica, call, deadline)));
+    }
+
+    boolean success = true;
+    try {
+      for (int received = 0; received < futures.size(); received++) {
+        long remaining = deadline - System.nanoTime();
+        Future<Boolean> result = completionService.poll(remaining, TimeUnit.NANOSECONDS);
+        if (result == null || !result.get()) {
+          success = false;
+          break;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      success = false;
+    } catch (ExecutionException e) {
+      success = false;
+    }
+
+    if (!success) {
+      for (Future<Boolean> future : futures) {
+        // Not interrupting: an interrupt closes a blocking NIO channel for good
+        future.cancel(false);
+      }
+    }
+    return success;
+  }
+
+  /**
+   * Forgets the call limit of a replica that left the cluster.
+   *
+   * @param replica the unregistered replica.
+   */
+  public void forget(RemoteInterface replica) {
+    callLimits.remove(replica);
+  }
+
+  /**
+   * @return the number of calls waiting for or holding a place under some replica's limit,
+   *         over all replicas.
+   */
+  public int callsInFlight() {
+    int inFlight = 0;
+    for (Semaphore limit : callLimits.values()) {
+      inFlight += maxCallsPerReplica - limit.availablePermits() + limit.getQueueLength();
+    }
+    return inFlight;
+  }
+
+  /**
+   * Makes the call once fewer than the limit of calls are in flight to the replica, failing it
+   * if that does not happen before the deadline, or waiting as long as it takes if the deadline
+   * is {@link Long#MAX_VALUE}.
+   */
+  private boolean callWithinLimit(RemoteInterface replica, ReplicaCall call, long deadline)
+      throws RemoteException, InterruptedException {
+    if (maxCallsPerReplica <= 0) {
+      return call.call(replica);
+    }
+    Semaphore limit = callLimits.computeIfAbsent(replica, r -> new Semaphore(maxCallsPerReplica));
+    if (deadline == Long.MAX_VALUE) {
+      limit.acquire();
+    } else if (!limit.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+      return false;
+    }
+    try {
+      return call.call(replica);
+    } finally {
+      limit.release();
+    }
+  }
+}
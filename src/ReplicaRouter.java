@@ -0,0 +1,636 @@
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * The ReplicaRouter class is the client side of the cluster: it spreads reads over all replicas,
+ * sends writes to the coordinator, and fails over when a replica stops responding, so that read
+ * throughput grows with the number of replicas without the caller choosing one.
+ *
+ * <p>The replica that serves a read is chosen by the {@link ReadPolicy} in the
+ * {@code kv.client.readPolicy} system property. A replica whose call throws a
+ * {@link RemoteException} is marked down and the read is retried on another one; a down replica
+ * is skipped for {@code kv.client.retryAfterMs} milliseconds, after which the next call to it
+ * reconnects first, so a restarted replica rejoins the rotation. Only when every replica is down
+ * are they tried anyway, in the order of the policy.
+ *
+ * <p>Writes are never retried, since a write whose reply was lost may still have been committed.
+ * The coordinator is the first replica; a write that fails marks it down like a read would, and
+ * the next write reconnects to it.
+ *
+ * <p>With a {@link NearCache}, enabled by {@code kv.client.nearCacheSize}, {@link #get(String)}
+ * answers hot keys without a remote call. Text writes drop their key from the cache when they
+ * return; callers of {@link #write(ReplicaCall)} drop the keys they wrote with
+ * {@link #invalidate(String)}.
+ *
+ * <p>Every operation also has an {@code ...Async} form returning a {@link CompletableFuture},
+ * with the same routing and failover. Over the binary transport these are pipelined on the one
+ * {@link NioClient} connection per replica, up to {@code kv.client.maxInFlight} requests each;
+ * RMI stubs cannot pipeline, so their calls run on a shared pool of that many threads.
+ */
+public class ReplicaRouter {
+
+  /**
+   * How the replica serving a read is chosen among the replicas that are up.
+   */
+  public enum ReadPolicy {
+    /** Each read goes to the next replica in turn. */
+    ROUND_ROBIN,
+    /** Of two randomly picked replicas, the one with fewer reads in flight from this router. */
+    LEAST_OUTSTANDING,
+    /**
+     * Of two randomly picked replicas, the one with the lowest average latency weighted by its
+     * reads in flight, so a slow or overloaded replica receives fewer reads.
+     */
+    LATENCY;
+
+    /**
+     * Reads the policy from the {@code kv.client.readPolicy} system property, defaulting to
+     * LATENCY.
+     *
+     * @return the configured read policy.
+     */
+    public static ReadPolicy fromSystemProperty() {
+      return valueOf(System.getProperty("kv.client.readPolicy", "latency").toUpperCase());
+    }
+  }
+
+  /**
+   * A single remote call made against one replica.
+   *
+   * @param <T> the result type of the call.
+   */
+  @FunctionalInterface
+  public interface ReplicaCall<T> {
+
+    /**
+     * Performs the call against the given replica.
+     *
+     * @param replica the replica to call.
+     * @return the result of the call.
+     * @throws RemoteException if a remote communication error occurs.
+     */
+    T call(RemoteInterface replica) throws RemoteException;
+  }
+
+  /**
+   * A single remote call made against one replica, whose result arrives later.
+   *
+   * @param <T> the result type of the call.
+   */
+  @FunctionalInterface
+  public interface AsyncReplicaCall<T> {
+
+    /**
+     * Starts the call against the given replica.
+     *
+     * @param replica the replica to call.
+     * @return the result of the call, or a RemoteException if it failed.
+     */
+    CompletableFuture<T> call(RemoteInterface replica);
+  }
+
+  private static final long RETRY_AFTER_NANOS =
+      TimeUnit.MILLISECONDS.toNanos(Long.getLong("kv.client.retryAfterMs", 1000L));
+  // Weight of the newest sample in each replica's latency average
+  private static final double LATENCY_DECAY = 0.2;
+  // How fast the average of a replica that is not being read from fades, so it gets probed again
+  private static final double IDLE_DECAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final int MAX_IN_FLIGHT = Integer.getInteger("kv.client.maxInFlight", 128);
+  private static final int SCAN_PAGE_ENTRIES =
+      Integer.getInteger("kv.client.scanPageEntries", 1000);
+  // Waits for the asynchronous calls made on RMI stubs; threads are only started when needed
+  private static final ExecutorService BLOCKING_CALLS = newBlockingCallExecutor();
+
+  private final IntFunction<RemoteInterface> connector;
+  private final Endpoint[] endpoints;
+  private final ReadPolicy readPolicy;
+  private final NearCache nearCache;
+  private final AtomicInteger nextReplica = new AtomicInteger();
+
+  /**
+   * Per-replica connection and load state.
+   */
+  private static final class Endpoint {
+    final int port;
+    volatile RemoteInterface stub;
+    final AtomicInteger outstanding = new AtomicInteger();
+    // Exponentially weighted moving average of successful read latencies
+    volatile double averageLatencyNanos;
+    volatile long lastReadNanos;
+    // When the replica may be tried again after a failure, or 0 while it is up
+    volatile long downUntilNanos;
+
+    Endpoint(int port, RemoteInterface stub) {
+      this.port = port;
+      this.stub = stub;
+      this.downUntilNanos = stub == null ? System.nanoTime() + RETRY_AFTER_NANOS : 0L;
+    }
+
+    boolean isUp(long now) {
+      long downUntil = downUntilNanos;
+      return downUntil == 0L || now - downUntil >= 0;
+    }
+  }
+
+  /**
+   * Constructs a new ReplicaRouter instance and connects to every replica. A replica that cannot
+   * be reached yet starts out down.
+   *
+   * @param connector    connects to the replica listening on a port, returning null on failure.
+   * @param replicaPorts the ports of the replicas, the coordinator first.
+   */
+  public ReplicaRouter(IntFunction<RemoteInterface> connector, List<Integer> replicaPorts) {
+    this(connector, replicaPorts, ReadPolicy.fromSystemProperty());
+  }
+
+  /**
+   * Constructs a new ReplicaRouter instance with the given read policy, and the near cache
+   * configured by the {@code kv.client.nearCacheSize} system property.
+   *
+   * @param connector    connects to the replica listening on a port, returning null on failure.
+   * @param replicaPorts the ports of the replicas, the coordinator first.
+   * @param readPolicy   how reads are spread over the replicas.
+   */
+  public ReplicaRouter(IntFunction<RemoteInterface> connector, List<Integer> replicaPorts,
+      ReadPolicy readPolicy) {
+    this(connector, replicaPorts, readPolicy, replicaPorts.isEmpty() ? null
+        : NearCache.fromSystemProperty(connector, replicaPorts.get(0)));
+  }
+
+  /**
+   * Constructs a new ReplicaRouter instance with the given read policy and near cache, which
+   * several routers may share.
+   *
+   * @param connector    connects to the replica listening on a port, returning null on failure.
+   * @param replicaPorts the ports of the replicas, the coordinator first.
+   * @param readPolicy   how reads are spread over the replicas.
+   * @param nearCache    the cache for {@link #get(String)}, or null to read every key remotely.
+   */
+  public ReplicaRouter(IntFunction<RemoteInterface> connector, List<Integer> replicaPorts,
+      ReadPolicy readPolicy, NearCache nearCache) {
+    if (replicaPorts.isEmpty()) {
+      throw new IllegalArgumentException("At least one replica is required");
+    }
+    this.connector = connector;
+    this.readPolicy = readPolicy;
+    this.nearCache = nearCache;
+    this.endpoints = new Endpoint[replicaPorts.size()];
+    for (int i = 0; i < endpoints.length; i++) {
+      int port = replicaPorts.get(i);
+      endpoints[i] = new Endpoint(port, connector.apply(port));
+    }
+  }
+
+  /**
+   * Runs a read on one replica chosen by the read policy, failing over to the others.
+   *
+   * @param read the read to run.
+   * @param <T>  the result type of the read.
+   * @return the result from the first replica that answered.
+   * @throws RemoteException the last failure, if no replica answered.
+   */
+  public <T> T read(ReplicaCall<T> read) throws RemoteException {
+    boolean[] tried = new boolean[endpoints.length];
+    RemoteException failure = null;
+    for (int attempt = 0; attempt < endpoints.length; attempt++) {
+      int index = choose(tried);
+      tried[index] = true;
+      try {
+        return call(endpoints[index], read, true);
+      } catch (RemoteException e) {
+        failure = e;
+      }
+    }
+    throw failure;
+  }
+
+  /**
+   * Sends a text request such as "GET key" to one replica chosen by the read policy.
+   *
+   * @param request the read-only request.
+   * @return the replica's response.
+   * @throws RemoteException if no replica answered.
+   */
+  public String read(String request) throws RemoteException {
+    return read(replica -> replica.processRequest(request));
+  }
+
+  /**
+   * Reads a key from the near cache, or from one replica chosen by the read policy.
+   *
+   * @param key the key to read.
+   * @return the value, or null if the key is absent.
+   * @throws RemoteException if no replica answered.
+   */
+  public String get(String key) throws RemoteException {
+    if (nearCache == null) {
+      return read(replica -> replica.get(key));
+    }
+    return nearCache.get(key, () -> read(replica -> replica.get(key)));
+  }
+
+  /**
+   * Streams the entries in a key range from one replica chosen by the read policy, a page at a
+   * time, through the replica's scan cursor. If the replica fails during the scan, the scan
+   * continues on another replica after the last key received, so no entry is passed on twice.
+   *
+   * @param startKey the first key of the range, inclusive.
+   * @param endKey   the key the range ends before, or null for no end.
+   * @param limit    the most entries to receive, 0 for no limit.
+   * @param consumer receives each key and value, in key order.
+   * @return the number of entries received.
+   * @throws RemoteException the last failure, if no replica could finish the scan.
+   */
+  public int scan(String startKey, String endKey, int limit, BiConsumer<String, byte[]> consumer)
+      throws RemoteException {
+    String[] resumeKey = {startKey};
+    int[] received = {0};
+    read(replica -> {
+      if (limit > 0 && received[0] >= limit) {
+        return null;
+      }
+      ScanPage page = replica.openScan(resumeKey[0], endKey,
+          limit > 0 ? limit - received[0] : 0, SCAN_PAGE_ENTRIES);
+      while (true) {
+        for (int i = 0; i < page.size(); i++) {
+          consumer.accept(page.getKey(i), page.getValue(i));
+          received[0]++;
+          // The smallest key after this one
+          resumeKey[0] = page.getKey(i) + '\0';
+        }
+        if (page.isComplete()) {
+          return null;
+        }
+        page = replica.fetchScanPage(page.getCursorId(), page.getPageNumber() + 1,
+            SCAN_PAGE_ENTRIES);
+      }
+    });
+    return received[0];
+  }
+
+  /**
+   * Runs a write on the coordinator. The write is not retried.
+   *
+   * @param write the write to run.
+   * @param <T>   the result type of the write.
+   * @return the result of the write.
+   * @throws RemoteException if the coordinator could not be reached or failed.
+   */
+  public <T> T write(ReplicaCall<T> write) throws RemoteException {
+    return call(endpoints[0], write, false);
+  }
+
+  /**
+   * Sends a text request such as "PUT key=value" to the coordinator.
+   *
+   * @param request the request.
+   * @return the coordinator's response.
+   * @throws RemoteException if the coordinator could not be reached or failed.
+   */
+  public String write(String request) throws RemoteException {
+    try {
+      return write(replica -> replica.processRequest(request));
+    } finally {
+      // Also when the write failed, since it may have committed anyway
+      invalidate(requestKey(request));
+    }
+  }
+
+  /**
+   * Drops a key written through this router from the near cache, so that the next read sees
+   * the write even before the coordinator's invalidation arrives.
+   *
+   * @param key the key written.
+   */
+  public void invalidate(String key) {
+    if (nearCache != null && key != null) {
+      nearCache.invalidate(key);
+    }
+  }
+
+  /**
+   * @return the near cache, or null if there is none.
+   */
+  public NearCache getNearCache() {
+    return nearCache;
+  }
+
+  /**
+   * Starts a read on one replica chosen by the read policy, failing over to the others.
+   *
+   * @param read the read to run.
+   * @param <T>  the result type of the read.
+   * @return the result from the first replica that answered, or the last RemoteException if no
+   *         replica answered.
+   */
+  public <T> CompletableFuture<T> readAsync(AsyncReplicaCall<T> read) {
+    return readAsync(read, new boolean[endpoints.length], 1);
+  }
+
+  /**
+   * Sends a text request such as "GET key" to one replica chosen by the read policy, without
+   * waiting for the response.
+   *
+   * @param request the read-only request.
+   * @return the replica's response.
+   */
+  public CompletableFuture<String> readAsync(String request) {
+    return readAsync(async(nio -> nio.processRequestAsync(request),
+        replica -> replica.processRequest(request)));
+  }
+
+  /**
+   * Reads a key from the near cache, or from one replica chosen by the read policy, without
+   * waiting for the response.
+   *
+   * @param key the key to read.
+   * @return the value, or null if the key is absent.
+   */
+  public CompletableFuture<String> getAsync(String key) {
+    if (nearCache == null) {
+      return readAsync(async(nio -> nio.getAsync(key), replica -> replica.get(key)));
+    }
+    return nearCache.getAsync(key,
+        () -> readAsync(async(nio -> nio.getAsync(key), replica -> replica.get(key))));
+  }
+
+  /**
+   * Starts a write on the coordinator. The write is not retried.
+   *
+   * @param write the write to run.
+   * @param <T>   the result type of the write.
+   * @return the result of the write, or a RemoteException if the coordinator could not be
+   *         reached or failed.
+   */
+  public <T> CompletableFuture<T> writeAsync(AsyncReplicaCall<T> write) {
+    return callAsync(endpoints[0], write, false);
+  }
+
+  /**
+   * Sends a text request such as "PUT key=value" to the coordinator without waiting for the
+   * response.
+   *
+   * @param request the request.
+   * @return the coordinator's response.
+   */
+  public CompletableFuture<String> writeAsync(String request) {
+    return writeAsync(async(nio -> nio.processRequestAsync(request),
+        replica -> replica.processRequest(request)))
+        .whenComplete((response, error) -> invalidate(requestKey(request)));
+  }
+
+  /**
+   * Adapts a call to the asynchronous methods: a {@link NioClient} pipelines it, while any other
+   * stub blocks for the result on a pool thread.
+   *
+   * @param pipelined the call on a binary-transport connection.
+   * @param blocking  the same call on any stub.
+   * @param <T>       the result type of the call.
+   * @return the asynchronous call.
+   */
+  public static <T> AsyncReplicaCall<T> async(Function<NioClient, CompletableFuture<T>> pipelined,
+      ReplicaCall<T> blocking) {
+    return replica -> {
+      if (replica instanceof NioClient) {
+        return pipelined.apply((NioClient) replica);
+      }
+      return CompletableFuture.supplyAsync(() -> {
+        try {
+          return blocking.call(replica);
+        } catch (RemoteException e) {
+          throw new CompletionException(e);
+        }
+      }, BLOCKING_CALLS);
+    };
+  }
+
+  /**
+   * @return the number of replicas this router spreads reads over.
+   */
+  public int replicaCount() {
+    return endpoints.length;
+  }
+
+  /**
+   * @return the policy reads are spread with.
+   */
+  public ReadPolicy getReadPolicy() {
+    return readPolicy;
+  }
+
+  /**
+   * Extracts the key from a text request the way {@link Server#processRequest(String)} does.
+   */
+  private static String requestKey(String request) {
+    String[] parts = request.split(" ", 2);
+    if (parts.length < 2) {
+      return null;
+    }
+    String command = parts[0].trim();
+    if (command.equalsIgnoreCase("GET") || command.equalsIgnoreCase("GETV")
+        || command.equalsIgnoreCase("DELETE")) {
+      return parts[1].trim();
+    }
+    String key = parts[1].split("=", 2)[0].trim();
+    if (command.equalsIgnoreCase("CAS") || command.equalsIgnoreCase("PUT-TTL")) {
+      key = key.substring(0, Math.max(key.lastIndexOf(' '), 0)).trim();
+    }
+    return key;
+  }
+
+  /**
+   * Picks the replica for the next read attempt: an untried replica that is up if there is one,
+   * otherwise any untried replica.
+   */
+  private int choose(boolean[] tried) {
+    long now = System.nanoTime();
+    int[] candidates = new int[endpoints.length];
+    int count = 0;
+    for (int i = 0; i < endpoints.length; i++) {
+      if (!tried[i] && endpoints[i].isUp(now)) {
+        candidates[count++] = i;
+      }
+    }
+    if (count == 0) {
+      for (int i = 0; i < endpoints.length; i++) {
+        if (!tried[i]) {
+          candidates[count++] = i;
+        }
+      }
+    }
+    if (count == 1) {
+      return candidates[0];
+    }
+
+    if (readPolicy == ReadPolicy.ROUND_ROBIN) {
+      return candidates[Math.floorMod(nextReplica.getAndIncrement(), count)];
+    }
+    // Power of two choices: comparing two random replicas avoids sending every read to the
+    // same momentarily best one, while still steering reads away from slow replicas
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int first = random.nextInt(count);
+    int second = random.nextInt(count - 1);
+    if (second >= first) {
+      second++;
+    }
+    return load(candidates[first], now) <= load(candidates[second], now)
+        ? candidates[first] : candidates[second];
+  }
+
+  private double load(int index, long now) {
+    Endpoint endpoint = endpoints[index];
+    int outstanding = endpoint.outstanding.get();
+    if (readPolicy == ReadPolicy.LEAST_OUTSTANDING) {
+      return outstanding;
+    }
+    // A replica that lost every comparison keeps the average it had then; fading it out lets
+    // the replica win again and refresh it, instead of being starved by one slow sample
+    double idle = now - endpoint.lastReadNanos;
+    return endpoint.averageLatencyNanos * Math.exp(-idle / IDLE_DECAY_NANOS) * (outstanding + 1);
+  }
+
+  private <T> CompletableFuture<T> readAsync(AsyncReplicaCall<T> read, boolean[] tried,
+      int attempt) {
+    int index = choose(tried);
+    tried[index] = true;
+    return callAsync(endpoints[index], read, true).handle((result, error) -> {
+      if (error == null) {
+        return CompletableFuture.completedFuture(result);
+      }
+      Throwable cause = unwrap(error);
+      if (attempt < endpoints.length && cause instanceof RemoteException) {
+        return readAsync(read, tried, attempt + 1);
+      }
+      return CompletableFuture.<T>failedFuture(cause);
+    }).thenCompose(Function.identity());
+  }
+
+  /**
+   * Calls one replica, reconnecting first if it was down, and records the outcome. Only reads
+   * feed the latency average, since writes also wait for the other replicas.
+   */
+  private <T> T call(Endpoint endpoint, ReplicaCall<T> call, boolean read)
+      throws RemoteException {
+    RemoteInterface stub = connected(endpoint);
+    endpoint.outstanding.incrementAndGet();
+    long start = System.nanoTime();
+    try {
+      T result = call.call(stub);
+      succeeded(endpoint, start, read);
+      return result;
+    } catch (RemoteException e) {
+      failed(endpoint);
+      throw e;
+    } finally {
+      endpoint.outstanding.decrementAndGet();
+    }
+  }
+
+  /**
+   * Starts a call on one replica like {@link #call(Endpoint, ReplicaCall, boolean)}, recording
+   * the outcome when it completes.
+   */
+  private <T> CompletableFuture<T> callAsync(Endpoint endpoint, AsyncReplicaCall<T> call,
+      boolean read) {
+    RemoteInterface stub;
+    try {
+      stub = connected(endpoint);
+    } catch (RemoteException e) {
+      return CompletableFuture.failedFuture(e);
+    }
+    endpoint.outstanding.incrementAndGet();
+    long start = System.nanoTime();
+    CompletableFuture<T> result;
+    try {
+      result = call.call(stub);
+    } catch (RuntimeException e) {
+      endpoint.outstanding.decrementAndGet();
+      throw e;
+    }
+    return result.whenComplete((value, error) -> {
+      endpoint.outstanding.decrementAndGet();
+      if (error == null) {
+        succeeded(endpoint, start, read);
+      } else if (unwrap(error) instanceof RemoteException) {
+        failed(endpoint);
+      }
+    });
+  }
+
+  private RemoteInterface connected(Endpoint endpoint) throws RemoteException {
+    RemoteInterface stub = endpoint.downUntilNanos == 0L ? endpoint.stub : reconnect(endpoint);
+    if (stub == null) {
+      throw new RemoteException("Unable to connect to replica on port " + endpoint.port);
+    }
+    return stub;
+  }
+
+  private static void succeeded(Endpoint endpoint, long start, boolean read) {
+    if (read) {
+      long finish = System.nanoTime();
+      long latency = finish - start;
+      double average = endpoint.averageLatencyNanos;
+      endpoint.averageLatencyNanos = average == 0.0
+          ? latency : average + LATENCY_DECAY * (latency - average);
+      endpoint.lastReadNanos = finish;
+    }
+    endpoint.downUntilNanos = 0L;
+  }
+
+  private static void failed(Endpoint endpoint) {
+    endpoint.downUntilNanos = System.nanoTime() + RETRY_AFTER_NANOS;
+  }
+
+  private static Throwable unwrap(Throwable error) {
+    while (error instanceof CompletionException && error.getCause() != null) {
+      error = error.getCause();
+    }
+    return error;
+  }
+
+  private static ExecutorService newBlockingCallExecutor() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_IN_FLIGHT, MAX_IN_FLIGHT,
+        60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+          Thread thread = new Thread(runnable, "replica-router-call");
+          thread.setDaemon(true);
+          return thread;
+        });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Replaces the stub of a replica that failed, since a restarted replica can only be reached
+   * through a new connection.
+   */
+  private RemoteInterface reconnect(Endpoint endpoint) {
+    synchronized (endpoint) {
+      if (endpoint.downUntilNanos == 0L) {
+        return endpoint.stub;
+      }
+      if (endpoint.stub instanceof NioClient) {
+        ((NioClient) endpoint.stub).close();
+      }
+      endpoint.stub = connector.apply(endpoint.port);
+      if (endpoint.stub == null) {
+        endpoint.downUntilNanos = System.nanoTime() + RETRY_AFTER_NANOS;
+      } else {
+        // Probed with a fresh latency sample rather than the one from before the failure
+        endpoint.averageLatencyNanos = 0.0;
+        endpoint.downUntilNanos = 0L;
+      }
+      return endpoint.stub;
+    }
+  }
+}
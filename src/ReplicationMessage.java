@@ -0,0 +1,531 @@
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The ReplicationMessage class is the typed form of a two-phase commit message sent from the
+ * coordinator to a replica, replacing the "DO_COMMIT_PUT key=value" and "DO_COMMIT_DELETE key"
+ * strings. Prepares, commits and aborts of one transaction share its transaction id, which the
+ * replica uses to own and release the key's prepare lock.
+ *
+ * <p>Keys are carried as raw UTF-8 bytes and values as the bytes stored, so they are never split
+ * or trimmed and may contain any character, or any byte for values. The message is
+ * {@link Externalizable} so that RMI writes just the fields instead of reflectively serializing
+ * the object graph.
+ */
+public final class ReplicationMessage implements Externalizable {
+  private static final long serialVersionUID = 1L;
+
+  /** Opcode for committing a PUT of {@link #getKey()} to {@link #getValue()}. */
+  public static final byte COMMIT_PUT = 1;
+
+  /** Opcode for committing a DELETE of {@link #getKey()}. */
+  public static final byte COMMIT_DELETE = 2;
+
+  /** Opcode for preparing a PUT: the replica reserves the key and votes. */
+  public static final byte PREPARE_PUT = 3;
+
+  /** Opcode for preparing a DELETE: the replica reserves the key and votes. */
+  public static final byte PREPARE_DELETE = 4;
+
+  /** Opcode for aborting a prepared transaction and releasing its key. */
+  public static final byte ABORT = 5;
+
+  /** Opcode for preparing a {@link WriteBatch}, encoded in the value: all its keys are reserved. */
+  public static final byte PREPARE_BATCH = 6;
+
+  /** Opcode for committing a {@link WriteBatch}, encoded in the value. */
+  public static final byte COMMIT_BATCH = 7;
+
+  /** Opcode for aborting a prepared {@link WriteBatch} and releasing all its keys. */
+  public static final byte ABORT_BATCH = 8;
+
+  /**
+   * Opcode for preparing a {@link Transaction}, encoded in the value: all keys it read or wrote
+   * are reserved and its read set is validated.
+   */
+  public static final byte PREPARE_TRANSACTION = 9;
+
+  /** Opcode for committing the writes of a {@link Transaction}, encoded in the value. */
+  public static final byte COMMIT_TRANSACTION = 10;
+
+  /** Opcode for aborting a prepared {@link Transaction} and releasing all its keys. */
+  public static final byte ABORT_TRANSACTION = 11;
+
+  /**
+   * Opcode for preparing a PUT that only commits if the key's version is the expected one: the
+   * replica reserves the key and votes. The value holds the expected version, then the value to
+   * put; the transaction commits with {@link #COMMIT_PUT} and aborts with {@link #ABORT}.
+   */
+  public static final byte PREPARE_CONDITIONAL_PUT = 12;
+
+  /**
+   * Opcode for granting a read lease to a replica. The transaction id is the last transaction
+   * the coordinator had applied, the key its "host:port" address, and the value the lease
+   * duration in milliseconds. See {@link ReadLeases}.
+   */
+  public static final byte READ_LEASE = 13;
+
+  /**
+   * Opcode for preparing a PUT whose key expires: the replica reserves the key and votes. The
+   * value holds the expiry deadline in epoch milliseconds, then the value to put; the transaction
+   * commits with {@link #COMMIT_EXPIRING_PUT} and aborts with {@link #ABORT}.
+   */
+  public static final byte PREPARE_EXPIRING_PUT = 14;
+
+  /** Opcode for committing a PUT whose key expires, with the deadline then the value. */
+  public static final byte COMMIT_EXPIRING_PUT = 15;
+
+  /**
+   * Opcode for preparing the deletion of a batch of expired keys, encoded in the value with the
+   * version each key had when it expired: all the keys are reserved.
+   */
+  public static final byte PREPARE_EXPIRY = 16;
+
+  /**
+   * Opcode for committing the deletion of a batch of expired keys. Each key is deleted only if
+   * it still has the version it expired at, so a key written again since is kept.
+   */
+  public static final byte COMMIT_EXPIRY = 17;
+
+  /** Opcode for aborting a prepared expiry batch and releasing all its keys. */
+  public static final byte ABORT_EXPIRY = 18;
+
+  private static final byte[] NO_VALUE = new byte[0];
+
+  private byte opcode;
+  private long transactionId;
+  private byte[] key;
+  private byte[] value;
+
+  /**
+   * Constructs an empty message. Required by {@link Externalizable}; use the factory methods.
+   */
+  public ReplicationMessage() {
+  }
+
+  /**
+   * Constructs a new ReplicationMessage instance.
+   *
+   * @param opcode        the message opcode.
+   * @param transactionId the coordinator-assigned id of the transaction being committed.
+   * @param key           the UTF-8 key bytes.
+   * @param value         the value bytes, empty for a DELETE.
+   */
+  public ReplicationMessage(byte opcode, long transactionId, byte[] key, byte[] value) {
+    this.opcode = opcode;
+    this.transactionId = transactionId;
+    this.key = key;
+    this.value = value;
+  }
+
+  /**
+   * Creates a message committing a PUT.
+   *
+   * @param transactionId the coordinator-assigned transaction id.
+   * @param key           the key to put.
+   * @param value         the value bytes to put.
+   * @return the commit message.
+   */
+  public static ReplicationMessage commitPut(long transactionId, String key, byte[] value) {
+    return new ReplicationMessage(COMMIT_PUT, transactionId, key.getBytes(StandardCharsets.UTF_8),
+        value);
+  }
+
+  /**
+   * Creates a message committing a DELETE.
+   *
+   * @param transactionId the coordinator-assigned transaction id.
+   * @param key           the key to delete.
+   * @return the commit message.
+   */
+  public static ReplicationMessage commitDelete(long transactionId, String key) {
+    return new ReplicationMessage(COMMIT_DELETE, transactionId,
+        key.getBytes(StandardCharsets.UTF_8), NO_VALUE);
+  }
+
+  /**
+   * Creates a message preparing a PUT.
+   *
+   * @param transactionId the coordinator-assigned transaction id.
+   * @param key           the key to put.
+   * @param value         the value bytes to put.
+   * @return the prepare message.
+   */
+  public static ReplicationMessage preparePut(long transactionId, String key, byte[] value) {
+    return new ReplicationMessage(PREPARE_PUT, transactionId, key.getBytes(StandardCharsets.UTF_8),
+        value);
+  }
+
+  /**
+   * Creates a message preparing a DELETE.
+   *
+   * @param transactionId the coordinator-assigned transaction id.
+   * @param key           the key to delete.
+   * @return the prepare message.
+   */
+  public static ReplicationMessage prepareDelete(long transactionId, String key) {
+    return new ReplicationMessage(PREPARE_DELETE, transactionId,
+        key.getBytes(StandardCharsets.UTF_8), NO_VALUE);
+  }
+
+  /**
+   * Creates a message preparing a conditional PUT.
+   *
+   * @param transactionId   the coordinator-assigned transaction id.
+   * @param key             the key to put.
+   * @param value           the value bytes to put.
+   * @param expectedVersion the version the key must have, see {@link Server#ANY_VERSION},
+   *                        {@link Server#EXISTING_VERSION} and {@link Server#ABSENT_VERSION}.
+   * @return the prepare message.
+   */
+  public static ReplicationMessage prepareConditionalPut(long transactionId, String key,
+      byte[] value, long expectedVersion) {
+    return new ReplicationMessage(PREPARE_CONDITIONAL_PUT, transactionId,
+        key.getBytes(StandardCharsets.UTF_8),
+        ByteBuffer.allocate(8 + value.length).putLong(expectedVersion).put(value).array());
+  }
+
+  /**
+   * Creates a message committing a PUT whose key expires.
+   *
+   * @param transactionId the coordinator-assigned transaction id.
+   * @param key           the key to put.
+   * @param value         the value bytes to put.
+   * @param expiresAt     when the key expires, in epoch milliseconds.
+   * @return the commit message.
+   */
+  public static ReplicationMessage commitExpiringPut(long transactionId, String key,
+      byte[] value, long expiresAt) {
+    return decide(prepareExpiringPut(transactionId, key, value, expiresAt), true);
+  }
+
+  /**
+   * Creates a message preparing a PUT whose key expires.
+   *
+   * @param transactionId the coordinator-assigned transaction id.
+   * @param key           the key to put.
+   * @param value         the value bytes to put.
+   * @param expiresAt     when the key expires, in epoch milliseconds.
+   * @return the prepare message.
+   */
+  public static ReplicationMessage prepareExpiringPut(long transactionId, String key,
+      byte[] value, long expiresAt) {
+    return new ReplicationMessage(PREPARE_EXPIRING_PUT, transactionId,
+        key.getBytes(StandardCharsets.UTF_8),
+        ByteBuffer.allocate(8 + value.length).putLong(expiresAt).put(value).array());
+  }
+
+  /**
+   * Creates a message preparing the deletion of expired keys.
+   *
+   * @param transactionId the coordinator-assigned transaction id.
+   * @param versions      each key to delete, in order, with the version it expired at.
+   * @return the prepare message.
+   */
+  public static ReplicationMessage prepareExpiry(long transactionId, Map<String, Long> versions) {
+    byte[][] keys = new byte[versions.size()][];
+    int size = 4;
+    int index = 0;
+    for (String key : versions.keySet()) {
+      keys[index] = key.getBytes(StandardCharsets.UTF_8);
+      size += 4 + keys[index].length + 8;
+      index++;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(size).putInt(keys.length);
+    index = 0;
+    for (long version : versions.values()) {
+      buffer.putInt(keys[index].length).put(keys[index]).putLong(version);
+      index++;
+    }
+    return new ReplicationMessage(PREPARE_EXPIRY, transactionId, NO_VALUE, buffer.array());
+  }
+
+  /**
+   * Creates a message aborting a prepared transaction.
+   *
+   * @param transactionId the transaction to abort.
+   * @param key           the key it reserved.
+   * @return the abort message.
+   */
+  public static ReplicationMessage abort(long transactionId, String key) {
+    return new ReplicationMessage(ABORT, transactionId, key.getBytes(StandardCharsets.UTF_8),
+        NO_VALUE);
+  }
+
+  /**
+   * Creates a message granting a read lease.
+   *
+   * @param appliedTransactionId the last transaction the coordinator had applied.
+   * @param coordinatorAddress   the "host:port" address of the coordinator.
+   * @param leaseMillis          how long the lease lasts from when it is received.
+   * @return the lease message.
+   */
+  public static ReplicationMessage readLease(long appliedTransactionId,
+      String coordinatorAddress, long leaseMillis) {
+    return new ReplicationMessage(READ_LEASE, appliedTransactionId,
+        coordinatorAddress.getBytes(StandardCharsets.UTF_8),
+        ByteBuffer.allocate(8).putLong(leaseMillis).array());
+  }
+
+  /**
+   * Creates a message preparing a batch.
+   *
+   * @param transactionId the coordinator-assigned transaction id.
+   * @param batch         the batch to prepare.
+   * @return the prepare message.
+   */
+  public static ReplicationMessage prepareBatch(long transactionId, WriteBatch batch) {
+    return new ReplicationMessage(PREPARE_BATCH, transactionId, NO_VALUE, batch.toBytes());
+  }
+
+  /**
+   * Creates a message preparing a transaction.
+   *
+   * @param transactionId the coordinator-assigned transaction id.
+   * @param transaction   the transaction to prepare.
+   * @return the prepare message.
+   */
+  public static ReplicationMessage prepareTransaction(long transactionId,
+      Transaction transaction) {
+    return new ReplicationMessage(PREPARE_TRANSACTION, transactionId, NO_VALUE,
+        transaction.toBytes());
+  }
+
+  /**
+   * Creates the commit or abort message for a prepared transaction, with the same payload.
+   *
+   * @param prepare the prepare message of the transaction.
+   * @param commit  true for the commit, false for the abort.
+   * @return the commit or abort message.
+   */
+  public static ReplicationMessage decide(ReplicationMessage prepare, boolean commit) {
+    byte opcode;
+    switch (prepare.opcode) {
+      case PREPARE_PUT:
+        opcode = commit ? COMMIT_PUT : ABORT;
+        break;
+      case PREPARE_DELETE:
+        opcode = commit ? COMMIT_DELETE : ABORT;
+        break;
+      case PREPARE_BATCH:
+        opcode = commit ? COMMIT_BATCH : ABORT_BATCH;
+        break;
+      case PREPARE_TRANSACTION:
+        opcode = commit ? COMMIT_TRANSACTION : ABORT_TRANSACTION;
+        break;
+      case PREPARE_EXPIRY:
+        opcode = commit ? COMMIT_EXPIRY : ABORT_EXPIRY;
+        break;
+      case PREPARE_EXPIRING_PUT:
+        opcode = commit ? COMMIT_EXPIRING_PUT : ABORT;
+        break;
+      case PREPARE_CONDITIONAL_PUT:
+        return commit
+            ? new ReplicationMessage(COMMIT_PUT, prepare.transactionId, prepare.key,
+                Arrays.copyOfRange(prepare.value, 8, prepare.value.length))
+            : new ReplicationMessage(ABORT, prepare.transactionId, prepare.key, NO_VALUE);
+      default:
+        throw new IllegalArgumentException("Not a prepare message: " + prepare);
+    }
+    return new ReplicationMessage(opcode, prepare.transactionId, prepare.key,
+        opcode == ABORT ? NO_VALUE : prepare.value);
+  }
+
+  public byte getOpcode() {
+    return opcode;
+  }
+
+  public long getTransactionId() {
+    return transactionId;
+  }
+
+  public byte[] getKey() {
+    return key;
+  }
+
+  public byte[] getValue() {
+    return value;
+  }
+
+  /**
+   * @return true if this message commits writes, which a replica logs and syncs before it ACKs.
+   */
+  public boolean isCommit() {
+    switch (opcode) {
+      case COMMIT_PUT:
+      case COMMIT_DELETE:
+      case COMMIT_BATCH:
+      case COMMIT_TRANSACTION:
+      case COMMIT_EXPIRING_PUT:
+      case COMMIT_EXPIRY:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Decodes the key bytes.
+   *
+   * @return the key as a string.
+   */
+  public String keyAsString() {
+    return new String(key, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Decodes the value bytes.
+   *
+   * @return the value as a string.
+   */
+  public String valueAsString() {
+    return new String(value, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Reads the expected version of a conditional PUT prepare message.
+   *
+   * @return the version the key must have.
+   */
+  public long expectedVersion() {
+    return ByteBuffer.wrap(value).getLong();
+  }
+
+  /**
+   * Reads the deadline of an expiring PUT message, prepare or commit.
+   *
+   * @return when the key expires, in epoch milliseconds.
+   */
+  public long expiresAt() {
+    return ByteBuffer.wrap(value).getLong();
+  }
+
+  /**
+   * Reads the value to put of an expiring PUT message, prepare or commit.
+   *
+   * @return the value bytes.
+   */
+  public byte[] expiringValue() {
+    return Arrays.copyOfRange(value, 8, value.length);
+  }
+
+  /**
+   * Decodes the keys of an expiry message.
+   *
+   * @return each key, in order, with the version it expired at.
+   */
+  public Map<String, Long> expiredVersions() {
+    ByteBuffer buffer = ByteBuffer.wrap(value);
+    // Each key takes at least its length and version
+    int count = BinaryProtocol.getCount(buffer, 12);
+    Map<String, Long> versions = new LinkedHashMap<>(count * 2);
+    for (int i = 0; i < count; i++) {
+      byte[] keyBytes = new byte[BinaryProtocol.getCount(buffer, 1)];
+      buffer.get(keyBytes);
+      versions.put(new String(keyBytes, StandardCharsets.UTF_8), buffer.getLong());
+    }
+    return versions;
+  }
+
+  /**
+   * Reads the duration of a read lease message.
+   *
+   * @return the lease duration in milliseconds.
+   */
+  public long leaseMillis() {
+    return ByteBuffer.wrap(value).getLong();
+  }
+
+  /**
+   * Decodes the batch carried in the value of a batch message.
+   *
+   * @return the batch.
+   */
+  public WriteBatch batch() {
+    return WriteBatch.fromBytes(value);
+  }
+
+  /**
+   * Decodes the transaction carried in the value of a transaction message.
+   *
+   * @return the transaction.
+   */
+  public Transaction transaction() {
+    return Transaction.fromBytes(value);
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    out.writeByte(opcode);
+    out.writeLong(transactionId);
+    out.writeInt(key.length);
+    out.write(key);
+    out.writeInt(value.length);
+    out.write(value);
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException {
+    opcode = in.readByte();
+    transactionId = in.readLong();
+    key = new byte[in.readInt()];
+    in.readFully(key);
+    value = new byte[in.readInt()];
+    in.readFully(value);
+  }
+
+  @Override
+  public String toString() {
+    return opcodeName() + " " + transactionId + " " + keyAsString();
+  }
+
+  private String opcodeName() {
+    switch (opcode) {
+      case COMMIT_PUT:
+        return "COMMIT_PUT";
+      case COMMIT_DELETE:
+        return "COMMIT_DELETE";
+      case PREPARE_PUT:
+        return "PREPARE_PUT";
+      case PREPARE_DELETE:
+        return "PREPARE_DELETE";
+      case ABORT:
+        return "ABORT";
+      case PREPARE_BATCH:
+        return "PREPARE_BATCH";
+      case COMMIT_BATCH:
+        return "COMMIT_BATCH";
+      case ABORT_BATCH:
+        return "ABORT_BATCH";
+      case PREPARE_TRANSACTION:
+        return "PREPARE_TRANSACTION";
+      case COMMIT_TRANSACTION:
+        return "COMMIT_TRANSACTION";
+      case ABORT_TRANSACTION:
+        return "ABORT_TRANSACTION";
+      case PREPARE_CONDITIONAL_PUT:
+        return "PREPARE_CONDITIONAL_PUT";
+      case READ_LEASE:
+        return "READ_LEASE";
+      case PREPARE_EXPIRING_PUT:
+        return "PREPARE_EXPIRING_PUT";
+      case COMMIT_EXPIRING_PUT:
+        return "COMMIT_EXPIRING_PUT";
+      case PREPARE_EXPIRY:
+        return "PREPARE_EXPIRY";
+      case COMMIT_EXPIRY:
+        return "COMMIT_EXPIRY";
+      case ABORT_EXPIRY:
+        return "ABORT_EXPIRY";
+      default:
+        return "UNKNOWN(" + opcode + ")";
+    }
+  }
+}
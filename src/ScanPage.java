@@ -0,0 +1,88 @@
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * The ScanPage class is one page of a range scan, sent by
+ * {@link RemoteInterface#openScan(String, String, int, int)} and
+ * {@link RemoteInterface#fetchScanPage(long, int, int)}.
+ *
+ * <p>The entries are in key order, with values as the replica stores them. Until a page is
+ * {@link #isComplete() complete}, the next one is fetched from the scan's cursor on the same
+ * replica.
+ */
+public class ScanPage implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final long cursorId;
+  private final int pageNumber;
+  private final boolean complete;
+  private final String[] keys;
+  private final byte[][] values;
+
+  /**
+   * Constructs a new ScanPage instance.
+   *
+   * @param cursorId   the cursor the page was read from.
+   * @param pageNumber the position of this page within its scan.
+   * @param complete   whether this is the last page of the scan.
+   * @param keys       the keys.
+   * @param values     the values.
+   */
+  public ScanPage(long cursorId, int pageNumber, boolean complete, String[] keys,
+      byte[][] values) {
+    this.cursorId = cursorId;
+    this.pageNumber = pageNumber;
+    this.complete = complete;
+    this.keys = keys;
+    this.values = values;
+  }
+
+  public long getCursorId() {
+    return cursorId;
+  }
+
+  public int getPageNumber() {
+    return pageNumber;
+  }
+
+  public boolean isComplete() {
+    return complete;
+  }
+
+  public int size() {
+    return keys.length;
+  }
+
+  public String getKey(int index) {
+    return keys[index];
+  }
+
+  public byte[] getValue(int index) {
+    return values[index];
+  }
+
+  /**
+   * Writes the page into a binary protocol frame.
+   *
+   * @param frame the frame to append to.
+   */
+  public void writeTo(BinaryProtocol.FrameBuilder frame) {
+    frame.putLong(cursorId).putInt(pageNumber).putBoolean(complete).putStringArray(keys)
+        .putBytesArray(values);
+  }
+
+  /**
+   * Reads a page written by {@link #writeTo(BinaryProtocol.FrameBuilder)}.
+   *
+   * @param buffer the frame body positioned at the page.
+   * @return the decoded page.
+   */
+  public static ScanPage readFrom(ByteBuffer buffer) {
+    long cursorId = buffer.getLong();
+    int pageNumber = buffer.getInt();
+    boolean complete = BinaryProtocol.getBoolean(buffer);
+    String[] keys = BinaryProtocol.getStringArray(buffer);
+    byte[][] values = BinaryProtocol.getBytesArray(buffer);
+    return new ScanPage(cursorId, pageNumber, complete, keys, values);
+  }
+}
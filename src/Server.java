@@ -1,22 +1,176 @@
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * The Server class represents a replica server in a distributed key-value store system.
  * It implements the {@link RemoteInterface} for remote method invocation.
  */
 public class Server implements RemoteInterface {
+  // Fan-out tuning, overridable with -Dkv.* system properties
+  private static final int REPLICA_CALL_THREADS = Integer.getInteger("kv.replicaCallThreads",
+      Math.max(4, Runtime.getRuntime().availableProcessors() * 2));
+  private static final int MAX_CALLS_PER_REPLICA = Integer.getInteger("kv.maxCallsPerReplica",
+      256);
+  private static final long PREPARE_TIMEOUT_MS = Long.getLong("kv.prepareTimeoutMs", 2000L);
+  private static final long COMMIT_TIMEOUT_MS = Long.getLong("kv.commitTimeoutMs", 5000L);
+  private static final long PREPARE_LOCK_LEASE_MS = Long.getLong("kv.prepareLockLeaseMs",
+      10000L);
+  private static final String DATA_DIR = System.getProperty("kv.dataDir", "data");
+  private static final long WAL_SYNC_INTERVAL_MS = Long.getLong("kv.walSyncIntervalMs", 100L);
+  private static final long SNAPSHOT_INTERVAL_MS = Long.getLong("kv.snapshotIntervalMs", 60000L);
+  private static final int CHANGE_LOG_CAPACITY = Integer.getInteger("kv.changeLogCapacity",
+      100000);
+  private static final int TRANSFER_CHUNK_ENTRIES = Integer.getInteger("kv.transferChunkEntries",
+      10000);
+  private static final int TRANSFER_ATTEMPTS = 3;
+  private static final int MERKLE_DEPTH = Integer.getInteger("kv.merkleDepth", 12);
+  private static final long ANTI_ENTROPY_INTERVAL_MS = Long.getLong("kv.antiEntropyIntervalMs",
+      30000L);
+  private static final int SCAN_PAGE_ENTRIES = Integer.getInteger("kv.scanPageEntries", 100);
+  // How often expired keys are collected, and the most deleted per two-phase commit
+  private static final long TTL_TICK_MS = Math.max(1L, Long.getLong("kv.ttlTickMs", 100L));
+  private static final int EXPIRY_BATCH_KEYS = Math.max(1,
+      Integer.getInteger("kv.ttlExpiryBatchSize", 1000));
+  // A read lease must expire before the prepare lock of a commit it missed can lapse
+  private static final long READ_LEASE_MS = Math.max(0L, Math.min(
+      Long.getLong("kv.readLeaseMs", 2000L),
+      PREPARE_LOCK_LEASE_MS - PREPARE_TIMEOUT_MS - COMMIT_TIMEOUT_MS));
+  /** Expected version of a conditional PUT that commits whatever the key's version is. */
+  static final long ANY_VERSION = -1L;
+
+  /** Expected version of a conditional PUT that only commits if the key is present. */
+  static final long EXISTING_VERSION = -2L;
+
+  /** Expected version of a conditional PUT that only commits if the key is absent. */
+  static final long ABSENT_VERSION = 0L;
+
+  /** Deadline of a key that does not expire. */
+  static final long NO_EXPIRY = 0L;
+
+  private static final int NIO_EVENT_LOOPS = Integer.getInteger("kv.nioEventLoops",
+      Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+  /**
+   * The transports a replica can be served over.
+   * RMI is the original compatibility mode; NIO serves the {@link BinaryProtocol}.
+   */
+  public enum Transport {
+    RMI,
+    NIO;
+
+    /**
+     * Reads the transport from the {@code kv.transport} system property, defaulting to RMI.
+     *
+     * @return the configured transport.
+     */
+    public static Transport fromSystemProperty() {
+      return valueOf(System.getProperty("kv.transport", "rmi").toUpperCase());
+    }
+  }
+
+  /**
+   * The kind of threads that run binary-transport requests and outbound replica calls.
+   */
+  public enum ThreadMode {
+    /** Bounded pools of platform threads. */
+    PLATFORM,
+    /** A virtual thread per task, on Java 21 and later; platform threads on older runtimes. */
+    VIRTUAL;
+
+    /**
+     * Reads the thread mode from the {@code kv.threads} system property, defaulting to PLATFORM.
+     *
+     * @return the configured thread mode.
+     */
+    public static ThreadMode fromSystemProperty() {
+      return valueOf(System.getProperty("kv.threads", "platform").toUpperCase());
+    }
+  }
+
+  private static final ThreadMode THREAD_MODE = ThreadMode.fromSystemProperty();
+  // Executors.newVirtualThreadPerTaskExecutor, or null when platform threads are used
+  private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutorFactory();
+
   // Private fields for the server
-  private Map<String, String> keyValueStore;
+  private final StorageEngine keyValueStore;
+  // The transaction id of each key's last write, which is the same on every replica
+  private final Map<String, Long> keyVersions = new ConcurrentHashMap<>();
+  // When each expiring key expires, in epoch milliseconds, which is the same on every replica
+  private final Map<String, Long> expiryDeadlines = new ConcurrentHashMap<>();
+  // Expiring keys by deadline; the coordinator deletes them in batches as they fall due
+  private final TimingWheel<String> expiryWheel =
+      new TimingWheel<>(TTL_TICK_MS, System.currentTimeMillis());
   private Set<RemoteInterface> replicaServers;
+  // The registered replicas by the address they are served on
+  private final Map<String, RemoteInterface> replicaAddresses = new ConcurrentHashMap<>();
   private static List<RemoteInterface> replicaStubs;
   private static List<Integer> replicaRegistryPorts;
-  private boolean isCoordinator;
+  // Written on request threads, read by the maintenance scheduler
+  private volatile boolean isCoordinator;
+  private final ExecutorService replicaExecutor;
+  private final ReplicaFanOut replicaFanOut;
+  private final AtomicLong nextTransactionId = new AtomicLong();
+  private final AtomicLong lastAppliedTransactionId = new AtomicLong();
+  private final PrepareLockTable prepareLocks = new PrepareLockTable(PREPARE_LOCK_LEASE_MS);
+  private final ReadLeases readLeases = new ReadLeases(READ_LEASE_MS);
+  // The coordinator that reads are forwarded to when they cannot be served locally
+  private final Object leaseCoordinatorLock = new Object();
+  private volatile RemoteInterface leaseCoordinator;
+  private volatile String leaseCoordinatorAddress;
+  private int registryPort;
+  private WriteAheadLog writeAheadLog;
+  private Path dataDirectory;
+  private ScheduledExecutorService maintenanceScheduler;
+  private ScheduledExecutorService expiryScheduler;
+  private volatile long lastSnapshotLsn;
+  private final ChangeLog changeLog = new ChangeLog(CHANGE_LOG_CAPACITY);
+  private final StateTransfer stateTransfer;
+  private final MerkleTree merkleTree = new MerkleTree(MERKLE_DEPTH);
+  private final AntiEntropy antiEntropy;
+  private final RangeScans rangeScans;
+  // While catching up, the transaction id of the newest write applied to each key
+  private volatile Map<String, Long> catchUpVersions;
+  // Commits hold the read lock; a snapshot briefly takes the write lock to cut the log
+  private final ReadWriteLock commitLock = new ReentrantReadWriteLock();
+  private final Metrics metrics = new Metrics();
+  private final LatencyHistogram getLatency = metrics.histogram("op.get");
+  private final LatencyHistogram putLatency = metrics.histogram("op.put");
+  private final LatencyHistogram deleteLatency = metrics.histogram("op.delete");
+  private final LatencyHistogram batchLatency = metrics.histogram("op.batch");
+  private final LatencyHistogram transactionLatency = metrics.histogram("op.transaction");
+  private final LatencyHistogram conditionalPutLatency = metrics.histogram("op.conditionalPut");
+  private final LatencyHistogram scanLatency = metrics.histogram("op.scan");
+  private final LatencyHistogram expiringPutLatency = metrics.histogram("op.expiringPut");
+  private final LatencyHistogram expiryLatency = metrics.histogram("ttl.expiryBatch");
+  private final LatencyHistogram prepareLatency = metrics.histogram("2pc.prepare");
+  private final LatencyHistogram commitLatency = metrics.histogram("2pc.commit");
+  private final LongAdder aborts = metrics.counter("2pc.aborts");
+  private final LongAdder localRejects = metrics.counter("2pc.localRejects");
+  private final LongAdder failedCommits = metrics.counter("2pc.failedAcks");
+  private final LongAdder forwardedReads = metrics.counter("reads.forwarded");
+  private final LongAdder expiredKeys = metrics.counter("ttl.expired");
+  private final Map<RemoteInterface, LatencyHistogram> replicaRoundTrips =
+      new ConcurrentHashMap<>();
+  private final AtomicLong nextReplicaLabel = new AtomicLong();
 
   /**
    * Constructs a new Server instance.
@@ -24,11 +178,90 @@ public class Server implements RemoteInterface {
    * Sets the initial state of this server as a non-coordinator.
    */
   public Server() {
-    keyValueStore = new ConcurrentHashMap<>();
+    keyValueStore = StorageEngine.fromSystemProperty();
     replicaServers = ConcurrentHashMap.newKeySet();
     replicaStubs = new ArrayList<>();
     replicaRegistryPorts = new ArrayList<>();
     isCoordinator = false;
+    replicaExecutor = newReplicaExecutor();
+    replicaFanOut = new ReplicaFanOut(replicaExecutor, PREPARE_TIMEOUT_MS, COMMIT_TIMEOUT_MS,
+        MAX_CALLS_PER_REPLICA);
+    stateTransfer = new StateTransfer(changeLog, () -> keyValueStore, this::versionOf,
+        this::expiresAtOf);
+    antiEntropy = new AntiEntropy(merkleTree, () -> keyValueStore, this::versionOf,
+        this::expiresAtOf);
+    rangeScans = new RangeScans(() -> keyValueStore, this::isExpired);
+    metrics.gauge("store.size", () -> keyValueStore.size());
+    metrics.gauge("store.offHeapBytes", () -> keyValueStore.offHeapBytes());
+    metrics.gauge("store.diskBytes", () -> keyValueStore.diskBytes());
+    metrics.gauge("scan.cursors", rangeScans::openCursors);
+    metrics.gauge("ttl.keys", expiryDeadlines::size);
+    metrics.gauge("ttl.scheduled", expiryWheel::size);
+    metrics.gauge("replicas", () -> replicaServers.size());
+    metrics.gauge("2pc.lockedKeys", prepareLocks::size);
+    metrics.gauge("2pc.replicaCallsInFlight", replicaFanOut::callsInFlight);
+    metrics.gauge("transactions.lastApplied", lastAppliedTransactionId::get);
+    metrics.gauge("wal.lastLsn", () -> writeAheadLog == null ? 0L : writeAheadLog.lastLsn());
+  }
+
+  /**
+   * Creates the executor used to fan out prepare and commit calls to the replicas: a virtual
+   * thread per call in the VIRTUAL thread mode, so that a coordinator can wait on many slow
+   * replicas at once, and otherwise a bounded pool. Threads are daemons so that an idle pool
+   * never keeps the JVM alive.
+   *
+   * @return the executor for outbound replica calls.
+   */
+  private static ExecutorService newReplicaExecutor() {
+    ExecutorService virtual = newVirtualThreadExecutor();
+    if (virtual != null) {
+      return virtual;
+    }
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(REPLICA_CALL_THREADS,
+        REPLICA_CALL_THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+          Thread thread = new Thread(runnable, "replica-call");
+          thread.setDaemon(true);
+          return thread;
+        });
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  /**
+   * Creates an executor that starts a virtual thread per task, if the VIRTUAL thread mode is
+   * configured and the runtime supports it.
+   *
+   * @return the executor, or null to use platform threads.
+   */
+  static ExecutorService newVirtualThreadExecutor() {
+    if (NEW_VIRTUAL_THREAD_EXECUTOR == null) {
+      return null;
+    }
+    try {
+      return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException("Unable to create a virtual thread executor", e);
+    }
+  }
+
+  /**
+   * Looks up the virtual thread executor factory reflectively, so that the server still builds
+   * and runs on runtimes without virtual threads, where it falls back to platform threads.
+   *
+   * @return the factory, or null if the PLATFORM thread mode is configured or the runtime has no
+   *         virtual threads.
+   */
+  private static Method findVirtualThreadExecutorFactory() {
+    if (THREAD_MODE != ThreadMode.VIRTUAL) {
+      return null;
+    }
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      Log.warn("Virtual threads need Java 21 or later, using platform threads on Java {}",
+          Runtime.version().feature());
+      return null;
+    }
   }
 
   /**
@@ -37,12 +270,20 @@ public class Server implements RemoteInterface {
    * @param args command-line arguments.
    */
   public static void main(String[] args) {
+    Integer joinPort = Integer.getInteger("kv.joinPort");
+    if (joinPort != null) {
+      joinCluster(joinPort, Integer.getInteger("kv.port", joinPort + 100),
+          Transport.fromSystemProperty());
+      return;
+    }
+
     System.out.println("Enter the number of replicas:");
     Scanner sc = new Scanner(System.in);
     int numReplicas = sc.nextInt();
     sc.close();
 
     Server coordinator = null;
+    Transport transport = Transport.fromSystemProperty();
 
     for (int i = 1; i <= numReplicas; i++) {
       Server server = new Server();
@@ -50,23 +291,96 @@ public class Server implements RemoteInterface {
       if (i == 1) {
         coordinator = server;
         coordinator.isCoordinator = true;
-        System.out.println("-------------------------------------");
-        System.out.println("The Replica " + i + " is the Coordinator.");
+        Log.info("The Replica {} is the Coordinator.", i);
       }
 
       int registryPort = 1009 + i;
-      startServer(server, registryPort, coordinator);
+      startServer(server, registryPort, coordinator, transport);
+    }
+  }
+
+  /**
+   * Starts a single new replica and adds it to a running cluster. The replica first copies the
+   * coordinator's state in chunks, registers itself with the coordinator so that it receives
+   * new commits, and then fetches the changes committed while it was registering.
+   *
+   * @param coordinatorPort the registry port of the coordinator.
+   * @param registryPort    the registry port for the new replica.
+   * @param transport       the transport the cluster is served over.
+   */
+  private static void joinCluster(int coordinatorPort, int registryPort, Transport transport) {
+    String host = System.getProperty("kv.host", "localhost");
+    Server server = new Server();
+    // A joining replica has no coordinator in this process
+    startServer(server, registryPort, server, transport);
+
+    try {
+      RemoteInterface coordinatorStub = connectToReplica(host, coordinatorPort, transport);
+      RemoteInterface selfStub = transport == Transport.NIO
+          ? NioClient.unconnected(host, registryPort)
+          : connectToReplica(host, registryPort, transport);
+
+      long sequence = server.catchUpFrom(coordinatorStub);
+      coordinatorStub.registerReplicaServer(selfStub);
+      server.catchUpChanges(coordinatorStub, sequence);
+      server.finishCatchUp();
+      Log.info("Replica {} joined with {} keys.", registryPort, server.keyValueStore.size());
+    } catch (Exception e) {
+      Log.error("Replica {} failed to join the cluster", registryPort, e);
+    }
+  }
+
+  /**
+   * Looks up a replica over the given transport.
+   *
+   * @param host         the replica host.
+   * @param registryPort the replica's registry port.
+   * @param transport    the transport the replica is served over.
+   * @return the replica stub.
+   * @throws Exception if the replica cannot be reached.
+   */
+  private static RemoteInterface connectToReplica(String host, int registryPort,
+      Transport transport) throws Exception {
+    if (transport == Transport.NIO) {
+      return NioClient.connect(host, registryPort);
     }
+    Registry registry = LocateRegistry.getRegistry(host, registryPort);
+    return (RemoteInterface) registry.lookup("RemoteInterface");
   }
 
   /**
    * Starts the replica server with the provided registry port and coordinator instance.
+   * With the NIO transport the binary protocol is served on the registry port instead of RMI.
    *
    * @param server        the server instance to be started.
    * @param registryPort  the registry port for RMI communication.
    * @param coordinator   the coordinator instance for coordinating replicas.
+   * @param transport     the transport to serve the replica over.
    */
-  private static void startServer(Server server, int registryPort, Server coordinator) {
+  private static void startServer(Server server, int registryPort, Server coordinator,
+      Transport transport) {
+    try {
+      server.recover(registryPort);
+    } catch (IOException e) {
+      Log.error("Failed to recover replica {}", registryPort, e);
+      return;
+    }
+    try {
+      server.metrics.publish(registryPort);
+    } catch (Exception e) {
+      Log.error("Failed to publish metrics for replica {}", registryPort, e);
+    }
+
+    if (transport == Transport.NIO) {
+      try {
+        new NioServer(server, registryPort, NIO_EVENT_LOOPS).start();
+        Log.info("Server started on port: {} (binary protocol)", registryPort);
+      } catch (Exception e) {
+        Log.error("Failed to serve replica {} over the binary protocol", registryPort, e);
+      }
+      return;
+    }
+
     try {
       RemoteInterface replicaStub = (RemoteInterface) UnicastRemoteObject.exportObject(server,
           registryPort);
@@ -80,10 +394,10 @@ public class Server implements RemoteInterface {
 
       registry.rebind("RemoteInterface", replicaStub);
 
-      System.out.println("Server started on port: " + registryPort);
+      Log.info("Server started on port: {}", registryPort);
 
       if (coordinator == null) {
-        System.out.println("Replica " + registryPort + " is the Coordinator.");
+        Log.info("Replica {} is the Coordinator.", registryPort);
       } else {
         if (coordinator != server) {
           try {
@@ -97,23 +411,259 @@ public class Server implements RemoteInterface {
               }
             }
           } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("Replica {} failed to register the coordinator", registryPort, e);
           }
         }
       }
     } catch (Exception e) {
-      e.printStackTrace();
+      Log.error("Failed to serve replica {} over RMI", registryPort, e);
+    }
+  }
+
+  /**
+   * Rebuilds the key-value store from this replica's latest snapshot and the write-ahead log
+   * written after it, keeps the log open for subsequent commits and starts periodic snapshots.
+   * Must be called before the replica starts serving requests.
+   *
+   * @param registryPort the registry port identifying this replica's data directory.
+   * @throws IOException if the snapshot or log cannot be read.
+   */
+  void recover(int registryPort) throws IOException {
+    this.registryPort = registryPort;
+    dataDirectory = Paths.get(DATA_DIR, "replica-" + registryPort);
+    keyValueStore.open(dataDirectory.resolve("store"));
+
+    long snapshotLsn = 0L;
+    SnapshotFile snapshot = SnapshotFile.latest(dataDirectory);
+    if (snapshot != null) {
+      int loaded = snapshot.loadInto(keyValueStore, keyVersions, expiryDeadlines);
+      snapshotLsn = snapshot.getLsn();
+      lastSnapshotLsn = snapshotLsn;
+      nextTransactionId.accumulateAndGet(snapshot.getLastTransactionId(), Math::max);
+      lastAppliedTransactionId.accumulateAndGet(snapshot.getLastTransactionId(), Math::max);
+      Log.info("Loaded {} keys from {}", loaded, snapshot.getPath());
+    }
+
+    writeAheadLog = new WriteAheadLog(dataDirectory.resolve("wal"),
+        WriteAheadLog.Durability.fromSystemProperty(), WAL_SYNC_INTERVAL_MS, snapshotLsn,
+        (lsn, message) -> {
+          long transactionId = message.getTransactionId();
+          if (message.getOpcode() == ReplicationMessage.COMMIT_BATCH) {
+            WriteBatch batch = message.batch();
+            for (int i = 0; i < batch.size(); i++) {
+              replayToStore(batch.getKey(i), batch.getValue(i), transactionId, NO_EXPIRY);
+            }
+          } else if (message.getOpcode() == ReplicationMessage.COMMIT_PUT) {
+            replayToStore(message.keyAsString(), message.getValue(), transactionId, NO_EXPIRY);
+          } else if (message.getOpcode() == ReplicationMessage.COMMIT_EXPIRING_PUT) {
+            replayToStore(message.keyAsString(), message.expiringValue(), transactionId,
+                message.expiresAt());
+          } else if (message.getOpcode() == ReplicationMessage.COMMIT_EXPIRY) {
+            message.expiredVersions().forEach((key, version) -> {
+              if (hasExpiredVersion(key, version)) {
+                replayToStore(key, null, transactionId, NO_EXPIRY);
+              }
+            });
+          } else {
+            replayToStore(message.keyAsString(), null, transactionId, NO_EXPIRY);
+          }
+          nextTransactionId.accumulateAndGet(message.getTransactionId(), Math::max);
+          lastAppliedTransactionId.accumulateAndGet(message.getTransactionId(), Math::max);
+        });
+    if (!keyValueStore.isEmpty()) {
+      Log.info("Recovered {} keys in {}", keyValueStore.size(), dataDirectory);
+    }
+    merkleTree.rebuild(keyValueStore);
+    expiryDeadlines.forEach((key, deadline) -> expiryWheel.schedule(deadline, key));
+
+    maintenanceScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "maintenance-" + registryPort);
+      thread.setDaemon(true);
+      return thread;
+    });
+    if (SNAPSHOT_INTERVAL_MS > 0) {
+      maintenanceScheduler.scheduleWithFixedDelay(() -> {
+        try {
+          takeSnapshot();
+        } catch (IOException e) {
+          Log.error("Failed to snapshot replica {}", registryPort, e);
+        }
+      }, SNAPSHOT_INTERVAL_MS, SNAPSHOT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+    if (ANTI_ENTROPY_INTERVAL_MS > 0) {
+      maintenanceScheduler.scheduleWithFixedDelay(this::runAntiEntropy, ANTI_ENTROPY_INTERVAL_MS,
+          ANTI_ENTROPY_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+    if (READ_LEASE_MS > 0) {
+      // Renewed well before expiry, so that one slow or lost grant does not interrupt the lease
+      long renewInterval = Math.max(1L, READ_LEASE_MS / 3);
+      maintenanceScheduler.scheduleWithFixedDelay(this::renewReadLeases, renewInterval,
+          renewInterval, TimeUnit.MILLISECONDS);
+    }
+    // Its own thread, since an expiry commit may wait on slow replicas for seconds
+    expiryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "expiry-" + registryPort);
+      thread.setDaemon(true);
+      return thread;
+    });
+    expiryScheduler.scheduleWithFixedDelay(this::expireKeys, TTL_TICK_MS, TTL_TICK_MS,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Deletes the keys whose deadline has passed, through one two-phase commit per batch of up to
+   * {@code kv.ttlExpiryBatchSize} keys rather than one per key. Every replica moves its timing
+   * wheel along, but only the coordinator deletes; the other replicas hide their expired keys
+   * until its deletes arrive. A batch that fails is retried on the next tick.
+   */
+  void expireKeys() {
+    long now = System.currentTimeMillis();
+    List<String> due = expiryWheel.advance(now);
+    if (due.isEmpty() || !isCoordinator) {
+      return;
+    }
+    Map<String, Long> batch = new LinkedHashMap<>();
+    for (String key : due) {
+      // A key written since it was scheduled no longer expires, or was scheduled again
+      Long deadline = expiryDeadlines.get(key);
+      long version = versionOf(key);
+      if (deadline == null || deadline > now || version == ABSENT_VERSION) {
+        continue;
+      }
+      batch.put(key, version);
+      if (batch.size() == EXPIRY_BATCH_KEYS) {
+        commitExpiry(batch, now);
+        batch = new LinkedHashMap<>();
+      }
+    }
+    if (!batch.isEmpty()) {
+      commitExpiry(batch, now);
+    }
+  }
+
+  /**
+   * Deletes a batch of expired keys on every replica, each only if it still has the version it
+   * expired at, or reschedules the batch for the next tick if it cannot be committed.
+   *
+   * @param versions each key with the version it expired at.
+   * @param now      the time the keys were found expired.
+   */
+  private void commitExpiry(Map<String, Long> versions, long now) {
+    long start = System.nanoTime();
+    boolean committed;
+    try {
+      committed = runTwoPhaseCommit(
+          ReplicationMessage.prepareExpiry(nextTransactionId.incrementAndGet(), versions));
+    } catch (RemoteException e) {
+      Log.warn("Failed to expire {} keys: {}", versions.size(), e.getMessage());
+      committed = false;
+    }
+    Log.info(committed ? "Expired {} keys." : "Failed to expire {} keys.", versions.size());
+    expiryLatency.record(System.nanoTime() - start);
+    if (!committed) {
+      // Keys already deleted locally are skipped on the retry
+      for (String key : versions.keySet()) {
+        expiryWheel.schedule(now, key);
+      }
+    }
+  }
+
+  /**
+   * Grants every registered replica a read lease naming the last transaction applied here.
+   * Only the coordinator has registered replicas, so this is a no-op elsewhere. The grants are
+   * sent concurrently, so an unreachable replica does not delay the others' leases.
+   */
+  void renewReadLeases() {
+    if (!isCoordinator || replicaServers.isEmpty()) {
+      return;
+    }
+    ReplicationMessage lease = ReplicationMessage.readLease(lastAppliedTransactionId.get(),
+        getReplicaAddress(), READ_LEASE_MS);
+    for (RemoteInterface replica : replicaServers) {
+      replicaExecutor.execute(() -> {
+        try {
+          readLeases.renew(replica, () -> replicaServers.contains(replica),
+              r -> sendMessageWithACK(r, lease));
+        } catch (RemoteException e) {
+          Log.warn("Failed to renew a read lease: {}", e.getMessage());
+        }
+      });
+    }
+  }
+
+  /**
+   * Records a commit that did not reach every replica. Read leases are no longer renewed until
+   * anti-entropy has repaired the replicas, which starts right away.
+   */
+  private void commitFailed() {
+    failedCommits.increment();
+    if (readLeases.commitFailed() && maintenanceScheduler != null) {
+      maintenanceScheduler.execute(this::runAntiEntropy);
+    }
+  }
+
+  /**
+   * Compares every registered replica against this server's store and repairs the keys that
+   * differ. Only the coordinator has registered replicas, so this is a no-op elsewhere.
+   * A replica that cannot be reached is skipped until the next round. Once a round has repaired
+   * every replica, read leases suspended by failed commits before the round are renewed again.
+   */
+  void runAntiEntropy() {
+    long failedCommitsAtStart = readLeases.failedCommits();
+    boolean allRepaired = true;
+    for (RemoteInterface replica : replicaServers) {
+      try {
+        int repaired = antiEntropy.repair(replica);
+        if (repaired > 0) {
+          Log.info("Anti-entropy repaired {} keys on a replica.", repaired);
+        }
+      } catch (RemoteException e) {
+        allRepaired = false;
+        Log.warn("Anti-entropy skipped a replica: {}", e.getMessage());
+      }
+    }
+    if (allRepaired) {
+      readLeases.repaired(failedCommitsAtStart);
+    }
+  }
+
+  /**
+   * Writes a snapshot of the key-value store and drops the log segments it covers.
+   * Commits are only paused while the log is cut; the store is copied while they continue.
+   * Nothing is written if there have been no commits since the last snapshot.
+   *
+   * @throws IOException if the snapshot cannot be written.
+   */
+  void takeSnapshot() throws IOException {
+    if (writeAheadLog.lastLsn() == lastSnapshotLsn) {
+      return;
+    }
+
+    long lsn;
+    long transactionId;
+    commitLock.writeLock().lock();
+    try {
+      lsn = writeAheadLog.rollSegment();
+      transactionId = lastAppliedTransactionId.get();
+    } finally {
+      commitLock.writeLock().unlock();
     }
+
+    SnapshotFile snapshot = SnapshotFile.write(dataDirectory, lsn, transactionId, keyValueStore,
+        keyVersions, expiryDeadlines);
+    SnapshotFile.deleteOlderThan(dataDirectory, snapshot);
+    writeAheadLog.deleteSegmentsThrough(lsn);
+    lastSnapshotLsn = lsn;
   }
 
   /**
    * Gets the current timestamp in the UTC time zone.
+   * The formatting is cached per second, see {@link Log#formatTimestamp(long)}.
    *
    * @return a string representing the current timestamp in the format "[Time: MM-dd-yyyy HH:mm:ss.SSS]".
    */
-  private String getCurrentTimestamp() {
-    SimpleDateFormat sdf = new SimpleDateFormat("MM-dd-yyyy HH:mm:ss.SSS");
-    return "[Time: " + sdf.format(new Date()) + "] ";
+  String getCurrentTimestamp() {
+    return "[Time: " + Log.formatTimestamp(System.currentTimeMillis()) + "] ";
   }
 
   /**
@@ -121,6 +671,15 @@ public class Server implements RemoteInterface {
    * If the command is "PUT", it prepares and performs the PUT operation on the key-value store.
    * If the command is "GET", it retrieves the value for the given key from the key-value store.
    * If the command is "DELETE", it prepares and performs the DELETE operation on the key-value store.
+   * If the command is "UPDATE", "PUT-IF-ABSENT" or "REPLACE", it puts the value whatever the
+   * key's state, only if the key is absent, or only if it is present, in one two-phase commit.
+   * If the command is "GETV", it returns the key's version along with its value, and "CAS KEY
+   * VERSION=VALUE" then puts the value only if the key still has that version.
+   * If the command is "SCAN START END [LIMIT]" or "SCAN-PREFIX PREFIX [LIMIT]", it returns the
+   * first page of the keys in the range, "*" standing for no start or no end, and "SCAN-NEXT
+   * CURSOR PAGE" returns the following pages.
+   * If the command is "PUT-TTL KEY MILLIS=VALUE", it puts the value whatever the key's state,
+   * and the key expires once the given number of milliseconds has passed.
    *
    * @param request the client request in the format "COMMAND KEY=VALUE" or "COMMAND KEY".
    * @return a response message indicating the success or failure of the request.
@@ -136,18 +695,14 @@ public class Server implements RemoteInterface {
       String key = keyValue[0].trim();
       String value = keyValue[1].trim();
 
-      boolean prepareResult = preparePut(key, value);
-
-      if (prepareResult) {
-        performCommitPut(key, value);
+      if (processPut(key, encode(value))) {
         return getCurrentTimestamp() + "Request processed";
       } else {
         return getCurrentTimestamp() + "Failed to process request";
       }
     } else if (command.equalsIgnoreCase("GET")) {
       String key = parts[1].trim();
-      String value = keyValueStore.get(key);
-      System.out.println(getCurrentTimestamp() + "GET request processed");
+      String value = processGet(key);
 
       if (value != null) {
         return "Value: " + value;
@@ -157,149 +712,533 @@ public class Server implements RemoteInterface {
     } else if (command.equalsIgnoreCase("DELETE")) {
       String key = parts[1].trim();
 
-      boolean prepareResult = prepareDelete(key);
+      if (processDelete(key)) {
+        return getCurrentTimestamp() + "Request processed";
+      } else {
+        return getCurrentTimestamp() + "Failed to process request";
+      }
+    } else if (command.equalsIgnoreCase("GETV")) {
+      String key = parts[1].trim();
+      String[] versioned = getVersioned(key);
+
+      if (versioned != null) {
+        return "Version: " + versioned[0] + " Value: " + versioned[1];
+      } else {
+        return "Key not found";
+      }
+    } else if (command.equalsIgnoreCase("UPDATE") || command.equalsIgnoreCase("PUT-IF-ABSENT")
+        || command.equalsIgnoreCase("REPLACE") || command.equalsIgnoreCase("CAS")) {
+      String[] keyValue = parts[1].split("=", 2);
+      String key = keyValue[0].trim();
+      String value = keyValue[1].trim();
+      long expectedVersion;
+      if (command.equalsIgnoreCase("UPDATE")) {
+        expectedVersion = ANY_VERSION;
+      } else if (command.equalsIgnoreCase("PUT-IF-ABSENT")) {
+        expectedVersion = ABSENT_VERSION;
+      } else if (command.equalsIgnoreCase("REPLACE")) {
+        expectedVersion = EXISTING_VERSION;
+      } else {
+        int space = key.lastIndexOf(' ');
+        try {
+          expectedVersion = Long.parseLong(key.substring(space + 1));
+        } catch (NumberFormatException e) {
+          return getCurrentTimestamp() + "Invalid command";
+        }
+        key = key.substring(0, Math.max(space, 0)).trim();
+        if (key.isEmpty() || expectedVersion < ABSENT_VERSION) {
+          return getCurrentTimestamp() + "Invalid command";
+        }
+      }
+
+      if (processConditionalPut(key, value, expectedVersion)) {
+        return getCurrentTimestamp() + "Request processed";
+      } else {
+        return getCurrentTimestamp() + "Failed to process request";
+      }
+    } else if (command.equalsIgnoreCase("PUT-TTL")) {
+      String[] keyValue = parts[1].split("=", 2);
+      String key = keyValue[0].trim();
+      String value = keyValue[1].trim();
+      int space = key.lastIndexOf(' ');
+      long ttlMillis;
+      try {
+        ttlMillis = Long.parseLong(key.substring(space + 1));
+      } catch (NumberFormatException e) {
+        return getCurrentTimestamp() + "Invalid command";
+      }
+      key = key.substring(0, Math.max(space, 0)).trim();
+      if (key.isEmpty() || ttlMillis <= 0) {
+        return getCurrentTimestamp() + "Invalid command";
+      }
 
-      if (prepareResult) {
-        performCommitDelete(key);
+      if (processExpiringPut(key, encode(value), ttlMillis)) {
         return getCurrentTimestamp() + "Request processed";
       } else {
         return getCurrentTimestamp() + "Failed to process request";
       }
+    } else if (command.equalsIgnoreCase("SCAN") || command.equalsIgnoreCase("SCAN-PREFIX")
+        || command.equalsIgnoreCase("SCAN-NEXT")) {
+      String[] arguments = parts.length > 1 ? parts[1].trim().split("\\s+") : new String[0];
+      boolean prefix = command.equalsIgnoreCase("SCAN-PREFIX");
+      int required = prefix ? 1 : 2;
+      if (arguments.length < required || arguments.length > required + 1
+          || arguments[0].isEmpty()) {
+        return getCurrentTimestamp() + "Invalid command";
+      }
+      ScanPage page;
+      try {
+        if (command.equalsIgnoreCase("SCAN-NEXT")) {
+          page = fetchScanPage(Long.parseLong(arguments[0]), Integer.parseInt(arguments[1]),
+              SCAN_PAGE_ENTRIES);
+        } else {
+          int limit = arguments.length > required ? Integer.parseInt(arguments[required]) : 0;
+          if (prefix) {
+            page = openScan(arguments[0], RangeScans.prefixEnd(arguments[0]), limit,
+                SCAN_PAGE_ENTRIES);
+          } else {
+            page = openScan(arguments[0].equals("*") ? "" : arguments[0],
+                arguments[1].equals("*") ? null : arguments[1], limit, SCAN_PAGE_ENTRIES);
+          }
+        }
+      } catch (NumberFormatException e) {
+        return getCurrentTimestamp() + "Invalid command";
+      } catch (RemoteException e) {
+        return getCurrentTimestamp() + "Failed to process request: " + e.getMessage();
+      }
+      return formatScanPage(page);
     }
 
     return getCurrentTimestamp() + "Invalid command";
   }
 
   /**
-   * Sends a message with acknowledgment (ACK) to the provided replica server.
+   * Formats a scan page for the text API: the number of entries, one "key=value" line per
+   * entry, and the request for the next page unless this is the last.
+   */
+  private static String formatScanPage(ScanPage page) {
+    StringBuilder response = new StringBuilder("Entries: ").append(page.size());
+    for (int i = 0; i < page.size(); i++) {
+      response.append('\n').append(page.getKey(i)).append('=').append(decode(page.getValue(i)));
+    }
+    if (page.isComplete()) {
+      response.append("\nEnd of scan");
+    } else {
+      response.append("\nNext: SCAN-NEXT ").append(page.getCursorId()).append(' ')
+          .append(page.getPageNumber() + 1);
+    }
+    return response.toString();
+  }
+
+  /**
+   * Looks up the value for the given key. The read is linearizable: a replica other than the
+   * coordinator answers from its local key-value store only while its {@link ReadLeases read
+   * lease} allows, and forwards the read to the coordinator otherwise.
    *
-   * @param replica the replica server to which the message is sent.
-   * @param message the message to be sent.
-   * @return true if the ACK is received from the replica, false otherwise.
-   * @throws RemoteException if a remote communication error occurs.
+   * @param key the key to look up.
+   * @return the value for the key, or null if the key is not present.
+   * @throws RemoteException if the read had to be forwarded and the coordinator failed.
    */
-  private boolean sendMessageWithACK(RemoteInterface replica, String message)
-      throws RemoteException {
-    boolean ackReceived = replica.receiveMessageWithACK(message);
-    return ackReceived;
+  String processGet(String key) throws RemoteException {
+    return decode(processGetBytes(key));
   }
 
   /**
-   * Prepares the PUT operation by checking if the key-value pair can be committed.
+   * Looks up the value bytes for the given key, see {@link #processGet(String)}. The binary
+   * transport sends them as they are stored, without decoding them.
    *
-   * @param key   the key for the new key-value pair.
-   * @param value the value for the new key-value pair.
-   * @return true if the PUT operation can be prepared and committed, false otherwise.
-   * @throws RemoteException if a remote communication error occurs.
+   * @param key the key to look up.
+   * @return the value bytes for the key, or null if the key is not present.
+   * @throws RemoteException if the read had to be forwarded and the coordinator failed.
    */
-  @Override
-  public boolean preparePut(String key, String value) throws RemoteException {
-    if (canCommitPut(key, value)) {
-      performCommitPut(key, value);
-      return true;
+  byte[] processGetBytes(String key) throws RemoteException {
+    long start = System.nanoTime();
+    byte[] value;
+    if (!readsUnderLease()) {
+      value = liveValue(key);
+    } else {
+      value = leaseRead(key);
     }
-    return false;
+    Log.info("GET request processed");
+    getLatency.record(System.nanoTime() - start);
+    return value;
   }
 
   /**
-   * Receives a prepare PUT request from another replica server and checks if the key-value pair
-   * can be committed.
+   * Tells whether a read of the key is answered from the local store without waiting for
+   * another replica, so that the binary transport can answer it on its event loop.
    *
-   * @param key   the key for the new key-value pair.
-   * @param value the value for the new key-value pair.
-   * @return true if the PUT operation can be prepared and committed, false otherwise.
-   * @throws RemoteException if a remote communication error occurs.
+   * @param key the key to look up.
+   * @return false if the read will most likely be forwarded to the coordinator.
    */
-  @Override
-  public boolean receivePreparePutRequest(String key, String value) throws RemoteException {
-    return canCommitPut(key, value);
+  boolean readsLocally(String key) {
+    return !readsUnderLease()
+        || readLeases.isCurrent(lastAppliedTransactionId.get()) && !prepareLocks.isReserved(key);
   }
 
   /**
-   * Receives the response to the prepare PUT request from another replica server.
-   * If the response is positive (canCommit=true), it sends ACKs to all replicas to commit the PUT.
-   *
-   * @param key       the key for the new key-value pair.
-   * @param value     the value for the new key-value pair.
-   * @param canCommit true if the PUT operation can be committed, false otherwise.
-   * @return true if all ACKs are received and the PUT is committed successfully, false otherwise.
-   * @throws RemoteException if a remote communication error occurs.
+   * Replicas that were granted a read lease serve linearizable reads. The coordinator, where
+   * writes take effect, and a replica that has not joined a cluster yet read their own store.
    */
-  @Override
-  public boolean receivePreparePutResponse(String key, String value, boolean canCommit)
-      throws RemoteException {
-    if (!canCommit) {
-      return false;
-    }
+  private boolean readsUnderLease() {
+    return READ_LEASE_MS > 0 && !isCoordinator && readLeases.coordinatorAddress() != null;
+  }
 
-    for (RemoteInterface replica : replicaServers) {
-      if (!sendMessageWithACK(replica, "DO_COMMIT_PUT " + key + "=" + value)) {
-        return false;
+  /**
+   * Reads a key locally if the read lease is current and the key is not being written,
+   * otherwise from the coordinator. The key's version is compared before and after reading the
+   * value, since a prepare and its commit may both happen while the value is read.
+   */
+  private byte[] leaseRead(String key) throws RemoteException {
+    if (readLeases.isCurrent(lastAppliedTransactionId.get()) && !prepareLocks.isReserved(key)) {
+      long version = versionOf(key);
+      byte[] value = liveValue(key);
+      if (!prepareLocks.isReserved(key) && versionOf(key) == version) {
+        return value;
       }
     }
+    forwardedReads.increment();
+    RemoteInterface coordinator = leaseCoordinator(readLeases.coordinatorAddress());
+    try {
+      return coordinator.getBytes(key);
+    } catch (RemoteException e) {
+      // Reconnect on the next forwarded read, in case the coordinator was restarted
+      leaseCoordinator = null;
+      throw e;
+    }
+  }
 
-    return true;
+  /**
+   * Returns a connection to the coordinator at the given address, opening it if needed.
+   */
+  private RemoteInterface leaseCoordinator(String address) throws RemoteException {
+    RemoteInterface coordinator = leaseCoordinator;
+    if (coordinator != null && address.equals(leaseCoordinatorAddress)) {
+      return coordinator;
+    }
+    synchronized (leaseCoordinatorLock) {
+      if (leaseCoordinator == null || !address.equals(leaseCoordinatorAddress)) {
+        int colon = address.lastIndexOf(':');
+        try {
+          leaseCoordinator = connectToReplica(address.substring(0, colon),
+              Integer.parseInt(address.substring(colon + 1)), Transport.fromSystemProperty());
+        } catch (Exception e) {
+          throw new RemoteException("Unable to reach the coordinator at " + address, e);
+        }
+        leaseCoordinatorAddress = address;
+      }
+      return leaseCoordinator;
+    }
   }
 
   /**
-   * Checks if the PUT operation for the provided key-value pair can be committed.
-   * The PUT can be committed if the key is not present in the key-value store.
+   * Looks up the value for the given key, see {@link #processGet(String)}.
    *
-   * @param key   the key for the new key-value pair.
-   * @param value the value for the new key-value pair.
-   * @return true if the PUT operation can be committed, false otherwise.
+   * @param key the key to look up.
+   * @return the value for the key, or null if the key is not present.
    * @throws RemoteException if a remote communication error occurs.
    */
   @Override
-  public boolean canCommitPut(String key, String value) throws RemoteException {
-    boolean canCommit = !keyValueStore.containsKey(key);
-    return canCommit;
+  public String get(String key) throws RemoteException {
+    return processGet(key);
   }
 
   /**
-   * Performs the commit operation for the PUT request.
-   * It sends prepare PUT requests to all replicas and waits for their responses.
-   * If all replicas can commit, it performs the PUT operation in the key-value store
-   * and sends ACKs to all replicas to commit the PUT.
+   * Looks up the value bytes for the given key, see {@link #processGet(String)}.
    *
-   * @param key   the key for the new key-value pair.
-   * @param value the value for the new key-value pair.
+   * @param key the key to look up.
+   * @return the value bytes for the key, or null if the key is not present.
    * @throws RemoteException if a remote communication error occurs.
    */
   @Override
-  public void performCommitPut(String key, String value) throws RemoteException {
-    boolean allCanCommit = true;
-    for (RemoteInterface replica : replicaServers) {
-      if (!replica.receivePreparePutRequest(key, value)) {
-        allCanCommit = false;
-        break;
-      }
-    }
-
-    if (allCanCommit) {
-      keyValueStore.put(key, value);
-      List<Boolean> ackResults = new ArrayList<>();
-      for (RemoteInterface replica : replicaServers) {
-        sendMessageWithACK(replica, "DO_COMMIT_PUT " + key + "=" + value);
-        ackResults.add(true);
-      }
-
-      boolean allACKsReceived = ackResults.stream().allMatch(result -> result);
-      if (allACKsReceived) {
-        System.out.println(getCurrentTimestamp() + "PUT request processed.");
-      } else {
-        System.out.println(getCurrentTimestamp() + "Failed to process PUT request.");
-      }
-    } else {
-      System.out.println(getCurrentTimestamp() + "Failed to process PUT request.");
-    }
+  public byte[] getBytes(String key) throws RemoteException {
+    return processGetBytes(key);
   }
 
   /**
-   * Sends a message to the provided replica without waiting for an acknowledgment (ACK).
+   * Puts the given value bytes as they are, see {@link #processPut(String, byte[])}.
    *
-   * @param replica the replica server to which the message is sent.
-   * @param message the message to be sent.
+   * @param key   the key for the new key-value pair.
+   * @param value the value bytes for the new key-value pair.
+   * @return true if the PUT was prepared and committed, false otherwise.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  @Override
+  public boolean putBytes(String key, byte[] value) throws RemoteException {
+    return processPut(key, value);
+  }
+
+  /**
+   * Starts a scan of a key range of the local key-value store, see {@link RangeScans}. Like
+   * GETV, a scan reads this replica's own store, so a replica other than the coordinator may
+   * return values older than the last commits.
+   *
+   * @param startKey the first key of the range, inclusive.
+   * @param endKey   the key the range ends before, or null for no end.
+   * @param limit    the most entries to return over all pages, 0 for no limit.
+   * @param pageSize the most entries to return per page.
+   * @return the first page.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  @Override
+  public ScanPage openScan(String startKey, String endKey, int limit, int pageSize)
+      throws RemoteException {
+    long start = System.nanoTime();
+    ScanPage page = rangeScans.open(startKey, endKey, limit, pageSize);
+    Log.info("SCAN request processed");
+    scanLatency.record(System.nanoTime() - start);
+    return page;
+  }
+
+  /**
+   * Returns the requested page of a scan.
+   *
+   * @param cursorId   the scan's cursor.
+   * @param pageNumber the page wanted.
+   * @param pageSize   the most entries to return.
+   * @return the page.
+   * @throws RemoteException if the cursor is unknown or the page is out of order.
+   */
+  @Override
+  public ScanPage fetchScanPage(long cursorId, int pageNumber, int pageSize)
+      throws RemoteException {
+    long start = System.nanoTime();
+    ScanPage page = rangeScans.fetch(cursorId, pageNumber, pageSize);
+    scanLatency.record(System.nanoTime() - start);
+    return page;
+  }
+
+  /**
+   * Looks up the value and version of the given key in the local key-value store. The version
+   * is read first, so it is never newer than the value; a CAS with it fails rather than
+   * overwriting a write the caller has not seen.
+   *
+   * @param key the key to look up.
+   * @return the version and the value, or null if the key is not present.
+   */
+  String[] getVersioned(String key) {
+    long start = System.nanoTime();
+    long version = versionOf(key);
+    byte[] value = liveValue(key);
+    Log.info("GETV request processed");
+    getLatency.record(System.nanoTime() - start);
+    return value == null ? null : new String[] {Long.toString(version), decode(value)};
+  }
+
+  /**
+   * Puts a value through a single two-phase commit round if the key has the expected version on
+   * every replica. Every replica checks the version while holding the key's prepare lock, so no
+   * other write can slip in between the check and the commit.
+   *
+   * @param key             the key to put.
+   * @param value           the value to put.
+   * @param expectedVersion the version the key must have, {@link #ABSENT_VERSION} for a key that
+   *                        must be absent, {@link #EXISTING_VERSION} for one that must be
+   *                        present, or {@link #ANY_VERSION}.
+   * @return true if the PUT was committed and every replica acknowledged it, false otherwise.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  boolean processConditionalPut(String key, String value, long expectedVersion)
+      throws RemoteException {
+    long start = System.nanoTime();
+    boolean committed = runTwoPhaseCommit(ReplicationMessage.prepareConditionalPut(
+        nextTransactionId.incrementAndGet(), key, encode(value), expectedVersion));
+    Log.info(committed ? "Conditional PUT request processed."
+        : "Failed to process conditional PUT request.");
+    conditionalPutLatency.record(System.nanoTime() - start);
+    return committed;
+  }
+
+  /**
+   * Puts a value that expires, whatever the key's state, in a single two-phase commit round.
+   * The deadline is fixed here and committed with the value, so every replica hides the key at
+   * the same time, give or take the difference between their clocks.
+   *
+   * @param key       the key to put.
+   * @param value     the value bytes to put.
+   * @param ttlMillis how long the key lives, in milliseconds.
+   * @return true if the PUT was committed and every replica acknowledged it, false otherwise.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  boolean processExpiringPut(String key, byte[] value, long ttlMillis) throws RemoteException {
+    long start = System.nanoTime();
+    boolean committed = runTwoPhaseCommit(ReplicationMessage.prepareExpiringPut(
+        nextTransactionId.incrementAndGet(), key, value, System.currentTimeMillis() + ttlMillis));
+    Log.info(committed ? "PUT-TTL request processed." : "Failed to process PUT-TTL request.");
+    expiringPutLatency.record(System.nanoTime() - start);
+    return committed;
+  }
+
+  /**
+   * Prepares and performs a PUT operation for the given key-value pair.
+   * Shared by {@link #processRequest(String)} and the binary transport.
+   *
+   * @param key   the key for the new key-value pair.
+   * @param value the value bytes for the new key-value pair.
+   * @return true if the PUT was committed and every replica acknowledged it, false otherwise.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  boolean processPut(String key, byte[] value) throws RemoteException {
+    long start = System.nanoTime();
+    boolean committed = preparePut(key, value);
+    putLatency.record(System.nanoTime() - start);
+    return committed;
+  }
+
+  /**
+   * Prepares and performs a DELETE operation for the given key.
+   * Shared by {@link #processRequest(String)} and the binary transport.
+   *
+   * @param key the key to be deleted.
+   * @return true if the DELETE was committed and every replica acknowledged it, false otherwise.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  boolean processDelete(String key) throws RemoteException {
+    long start = System.nanoTime();
+    boolean committed = prepareDelete(key);
+    deleteLatency.record(System.nanoTime() - start);
+    return committed;
+  }
+
+  /**
+   * Sends a typed two-phase commit message with acknowledgment (ACK) to the provided replica
+   * server. For a prepare, the ACK is the replica's vote.
+   *
+   * @param replica the replica server to which the message is sent.
+   * @param message the prepare, commit or abort message to be sent.
+   * @return true if the ACK is received from the replica, false otherwise.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  private boolean sendMessageWithACK(RemoteInterface replica, ReplicationMessage message)
+      throws RemoteException {
+    long start = System.nanoTime();
+    boolean ackReceived = replica.receiveReplicationMessage(message);
+    replicaRoundTrip(replica).record(System.nanoTime() - start);
+    return ackReceived;
+  }
+
+  /**
+   * Returns the round-trip histogram of a replica. Binary-protocol replicas are named by
+   * address; RMI stubs do not expose theirs, so they are numbered in order of first use.
+   */
+  private LatencyHistogram replicaRoundTrip(RemoteInterface replica) {
+    return replicaRoundTrips.computeIfAbsent(replica, r -> metrics.histogram("replica."
+        + (r instanceof NioClient ? ((NioClient) r).getAddress()
+            : "rmi-" + nextReplicaLabel.incrementAndGet())
+        + ".rtt"));
+  }
+
+  /**
+   * Prepares the PUT operation by checking if the key-value pair can be committed, and if so
+   * commits it with {@link #performCommitPut(String, String)}.
+   *
+   * @param key   the key for the new key-value pair.
+   * @param value the value for the new key-value pair.
+   * @return true if the PUT was committed and every replica acknowledged it, false otherwise.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  @Override
+  public boolean preparePut(String key, String value) throws RemoteException {
+    return preparePut(key, encode(value));
+  }
+
+  private boolean preparePut(String key, byte[] value) throws RemoteException {
+    // A key that is already present would only be refused by the local prepare
+    return canCommitPut(key) && twoPhaseCommitPut(key, value);
+  }
+
+  /**
+   * Receives a prepare PUT request from another replica server and checks if the key-value pair
+   * can be committed. Unlike a typed prepare, this does not reserve the key.
+   *
+   * @param key   the key for the new key-value pair.
+   * @param value the value for the new key-value pair.
+   * @return true if the PUT operation can be prepared and committed, false otherwise.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  @Override
+  public boolean receivePreparePutRequest(String key, String value) throws RemoteException {
+    return canCommitPut(key, value);
+  }
+
+  /**
+   * Receives the response to the prepare PUT request from another replica server.
+   * If the response is positive (canCommit=true), it sends ACKs to all replicas to commit the PUT.
+   *
+   * @param key       the key for the new key-value pair.
+   * @param value     the value for the new key-value pair.
+   * @param canCommit true if the PUT operation can be committed, false otherwise.
+   * @return true if all ACKs are received and the PUT is committed successfully, false otherwise.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  @Override
+  public boolean receivePreparePutResponse(String key, String value, boolean canCommit)
+      throws RemoteException {
+    if (!canCommit) {
+      return false;
+    }
+
+    // preparePut has already committed the PUT; resending it with the key's current version,
+    // rather than a new transaction id, keeps the replicas' versions equal to this server's
+    ReplicationMessage message = ReplicationMessage.commitPut(versionOf(key), key,
+        encode(value));
+    return replicaFanOut.commit(replicaServers, replica -> sendMessageWithACK(replica, message));
+  }
+
+  /**
+   * Checks if the PUT operation for the provided key-value pair can be committed.
+   * The PUT can be committed if the key is not present in the key-value store.
+   *
+   * @param key   the key for the new key-value pair.
+   * @param value the value for the new key-value pair.
+   * @return true if the PUT operation can be committed, false otherwise.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  @Override
+  public boolean canCommitPut(String key, String value) throws RemoteException {
+    return canCommitPut(key);
+  }
+
+  private boolean canCommitPut(String key) {
+    boolean canCommit = !isLive(key);
+    return canCommit;
+  }
+
+  /**
+   * Performs the commit operation for the PUT request.
+   * It reserves the key locally, then sends prepare PUT messages to all replicas concurrently,
+   * each of which reserves the key and votes, aborting on the first NO or when the prepare
+   * timeout expires. If all replicas can commit, it performs the PUT operation in the key-value
+   * store and sends the commit to all replicas concurrently; otherwise it releases the key
+   * everywhere.
+   *
+   * @param key   the key for the new key-value pair.
+   * @param value the value for the new key-value pair.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  @Override
+  public void performCommitPut(String key, String value) throws RemoteException {
+    twoPhaseCommitPut(key, encode(value));
+  }
+
+  /**
+   * Runs the two-phase commit of a PUT once, see {@link #performCommitPut(String, String)}.
+   *
+   * @return true if the PUT was committed and every replica acknowledged it, false if it was
+   *         aborted or a replica missed the commit.
+   */
+  private boolean twoPhaseCommitPut(String key, byte[] value) throws RemoteException {
+    boolean committed = runTwoPhaseCommit(
+        ReplicationMessage.preparePut(nextTransactionId.incrementAndGet(), key, value));
+    Log.info(committed ? "PUT request processed." : "Failed to process PUT request.");
+    return committed;
+  }
+
+  /**
+   * Sends a message to the provided replica without waiting for an acknowledgment (ACK).
+   *
+   * @param replica the replica server to which the message is sent.
+   * @param message the message to be sent.
    * @throws RemoteException if a remote communication error occurs.
    */
   private void sendMessageWithoutACK(RemoteInterface replica, String message)
@@ -321,29 +1260,28 @@ public class Server implements RemoteInterface {
 
     if (command.equalsIgnoreCase("DO_COMMIT_DELETE")) {
       String key = parts[1].trim();
-      keyValueStore.remove(key);
+      applyCommittedDelete(key, 0L);
     }
   }
 
   /**
-   * Prepares the DELETE operation by checking if the key exists in the key-value store.
+   * Prepares the DELETE operation by checking if the key exists in the key-value store, and if
+   * so commits it with {@link #performCommitDelete(String)}.
    *
    * @param key the key to be deleted.
-   * @return true if the DELETE operation can be prepared and committed, false otherwise.
+   * @return true if the DELETE was committed and every replica acknowledged it, false otherwise.
    * @throws RemoteException if a remote communication error occurs.
    */
   @Override
   public boolean prepareDelete(String key) throws RemoteException {
-    if (canCommitDelete(key)) {
-      performCommitDelete(key);
-      return true;
-    }
-    return false;
+    // A key that is absent would only be refused by the local prepare
+    return canCommitDelete(key) && twoPhaseCommitDelete(key);
   }
 
   /**
    * Receives a prepare DELETE request from another replica and checks if the key exists
-   * in the key-value store and can be deleted.
+   * in the key-value store and can be deleted. Unlike a typed prepare, this does not reserve
+   * the key.
    *
    * @param key the key to be deleted.
    * @return true if the DELETE operation can be prepared and committed, false otherwise.
@@ -370,13 +1308,9 @@ public class Server implements RemoteInterface {
       return false;
     }
 
-    for (RemoteInterface replica : replicaServers) {
-      if (!sendMessageWithACK(replica, "DO_COMMIT_DELETE " + key)) {
-        return false;
-      }
-    }
-
-    return true;
+    ReplicationMessage message =
+        ReplicationMessage.commitDelete(nextTransactionId.incrementAndGet(), key);
+    return replicaFanOut.commit(replicaServers, replica -> sendMessageWithACK(replica, message));
   }
 
   /**
@@ -389,57 +1323,462 @@ public class Server implements RemoteInterface {
    */
   @Override
   public boolean canCommitDelete(String key) throws RemoteException {
-    boolean canCommit = keyValueStore.containsKey(key);
+    boolean canCommit = isLive(key);
     return canCommit;
   }
 
   /**
    * Performs the commit operation for the DELETE request.
-   * It sends prepare DELETE requests to all replicas and waits for their responses.
-   * If all replicas can commit, it removes the key from the key-value store
-   * and sends ACKs to all replicas to commit the DELETE.
+   * It reserves the key locally, then sends prepare DELETE messages to all replicas
+   * concurrently, each of which reserves the key and votes, aborting on the first NO or when
+   * the prepare timeout expires. If all replicas can commit, it removes the key from the
+   * key-value store and sends the commit to all replicas concurrently; otherwise it releases
+   * the key everywhere.
    *
    * @param key the key to be deleted.
    * @throws RemoteException if a remote communication error occurs.
    */
   @Override
   public void performCommitDelete(String key) throws RemoteException {
-    boolean allCanCommit = true;
-    for (RemoteInterface replica : replicaServers) {
-      if (!replica.receivePrepareDeleteRequest(key)) {
-        allCanCommit = false;
+    twoPhaseCommitDelete(key);
+  }
+
+  /**
+   * Runs the two-phase commit of a DELETE once, see {@link #performCommitDelete(String)}.
+   *
+   * @return true if the DELETE was committed and every replica acknowledged it, false if it was
+   *         aborted or a replica missed the commit.
+   */
+  private boolean twoPhaseCommitDelete(String key) throws RemoteException {
+    boolean committed = runTwoPhaseCommit(
+        ReplicationMessage.prepareDelete(nextTransactionId.incrementAndGet(), key));
+    Log.info(committed ? "DELETE request processed." : "Failed to process DELETE request.");
+    return committed;
+  }
+
+  /**
+   * Reserves the key of a prepare message for its transaction and votes on it.
+   * The key stays reserved on a YES vote until the transaction commits or aborts, or the
+   * reservation lapses.
+   *
+   * @param prepare the prepare message.
+   * @return true if the key is reserved and the operation can be committed, false otherwise.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  private boolean prepareLocally(ReplicationMessage prepare) throws RemoteException {
+    List<String> keys = keysOf(prepare);
+    long transactionId = prepare.getTransactionId();
+    if (!prepareLocks.tryLockAll(keys, transactionId)) {
+      return false;
+    }
+    boolean canCommit;
+    switch (prepare.getOpcode()) {
+      case ReplicationMessage.PREPARE_PUT:
+        canCommit = canCommitPut(prepare.keyAsString());
         break;
-      }
+      case ReplicationMessage.PREPARE_DELETE:
+        canCommit = canCommitDelete(prepare.keyAsString());
+        break;
+      case ReplicationMessage.PREPARE_TRANSACTION:
+        canCommit = canCommitTransaction(prepare.transaction());
+        break;
+      case ReplicationMessage.PREPARE_CONDITIONAL_PUT:
+        canCommit = canCommitConditionalPut(prepare.keyAsString(), prepare.expectedVersion());
+        break;
+      case ReplicationMessage.PREPARE_EXPIRING_PUT:
+      case ReplicationMessage.PREPARE_EXPIRY:
+        // Each expired key is checked against its version when the commit is applied
+        canCommit = true;
+        break;
+      default:
+        canCommit = canCommitBatch(prepare.batch());
+        break;
+    }
+    if (!canCommit) {
+      prepareLocks.unlockAll(keys, transactionId);
     }
+    return canCommit;
+  }
 
-    if (allCanCommit) {
-      keyValueStore.remove(key);
+  /**
+   * Releases a transaction's keys locally and on every replica. Replicas that cannot be reached
+   * release them when the reservation lapses. If this server already voted NO, the replicas
+   * were never asked and nothing is held.
+   *
+   * @param prepare         the prepare message of the transaction to abort.
+   * @param preparedLocally whether this server reserved the keys and asked the replicas.
+   */
+  private void abort(ReplicationMessage prepare, boolean preparedLocally) {
+    if (!preparedLocally) {
+      localRejects.increment();
+      return;
+    }
+    aborts.increment();
+    prepareLocks.unlockAll(keysOf(prepare), prepare.getTransactionId());
+    ReplicationMessage message = ReplicationMessage.decide(prepare, false);
+    replicaFanOut.commit(replicaServers, replica -> sendMessageWithACK(replica, message));
+  }
+
+  /**
+   * @return the keys a prepare, commit or abort message reserves or releases.
+   */
+  private static List<String> keysOf(ReplicationMessage message) {
+    switch (message.getOpcode()) {
+      case ReplicationMessage.PREPARE_BATCH:
+      case ReplicationMessage.COMMIT_BATCH:
+      case ReplicationMessage.ABORT_BATCH:
+        return keysOf(message.batch(), new ArrayList<>());
+      case ReplicationMessage.PREPARE_TRANSACTION:
+      case ReplicationMessage.COMMIT_TRANSACTION:
+      case ReplicationMessage.ABORT_TRANSACTION:
+        Transaction transaction = message.transaction();
+        return keysOf(transaction.getWrites(), new ArrayList<>(transaction.getReadSet().keySet()));
+      case ReplicationMessage.PREPARE_EXPIRY:
+      case ReplicationMessage.COMMIT_EXPIRY:
+      case ReplicationMessage.ABORT_EXPIRY:
+        return new ArrayList<>(message.expiredVersions().keySet());
+      default:
+        return Collections.singletonList(message.keyAsString());
+    }
+  }
+
+  private static List<String> keysOf(WriteBatch batch, List<String> keys) {
+    for (int i = 0; i < batch.size(); i++) {
+      keys.add(batch.getKey(i));
+    }
+    return keys;
+  }
 
-      List<Boolean> ackResults = new ArrayList<>();
-      for (RemoteInterface replica : replicaServers) {
-        sendMessageWithACK(replica, "DO_COMMIT_DELETE " + key);
+  /**
+   * Checks if every operation of a batch can be committed, in order: each PUT needs its key to
+   * be absent and each DELETE needs it to be present, after the batch's earlier operations.
+   *
+   * @param batch the batch to check.
+   * @return true if the whole batch can be committed, false otherwise.
+   */
+  private boolean canCommitBatch(WriteBatch batch) {
+    Map<String, Boolean> present = new HashMap<>();
+    for (int i = 0; i < batch.size(); i++) {
+      String key = batch.getKey(i);
+      Boolean known = present.get(key);
+      boolean exists = known != null ? known : isLive(key);
+      boolean isPut = batch.getValue(i) != null;
+      if (exists == isPut) {
+        return false;
       }
+      present.put(key, isPut);
+    }
+    return true;
+  }
 
-      boolean allAcksReceived = ackResults.stream().allMatch(result -> result);
-      if (allAcksReceived) {
-        System.out.println(getCurrentTimestamp() + "DELETE request processed.");
-      } else {
-        System.out.println(getCurrentTimestamp() + "Failed to process DELETE request.");
+  /**
+   * Checks if a key has the version a conditional PUT expects.
+   *
+   * @param key             the key to put.
+   * @param expectedVersion the expected version, or one of {@link #ANY_VERSION},
+   *                        {@link #EXISTING_VERSION} and {@link #ABSENT_VERSION}.
+   * @return true if the PUT can be committed, false otherwise.
+   */
+  private boolean canCommitConditionalPut(String key, long expectedVersion) {
+    if (expectedVersion == ANY_VERSION) {
+      return true;
+    }
+    boolean present = isLive(key);
+    if (expectedVersion == EXISTING_VERSION) {
+      return present;
+    }
+    if (expectedVersion == ABSENT_VERSION) {
+      return !present;
+    }
+    return present && versionOf(key) == expectedVersion;
+  }
+
+  /**
+   * Checks if a transaction's read set is still current: every key it read must still have the
+   * value it read, or still be absent.
+   *
+   * @param transaction the transaction to check.
+   * @return true if the transaction's writes can be committed, false otherwise.
+   */
+  private boolean canCommitTransaction(Transaction transaction) {
+    for (Map.Entry<String, String> read : transaction.getReadSet().entrySet()) {
+      if (!Arrays.equals(liveValue(read.getKey()), encode(read.getValue()))) {
+        return false;
       }
-    } else {
-      System.out.println(getCurrentTimestamp() + "Failed to process DELETE request.");
     }
+    return true;
+  }
+
+  /**
+   * Commits a batch of PUTs and DELETEs through a single two-phase commit round.
+   * The batch's keys are reserved locally and on every replica in one prepare message, and the
+   * whole batch is applied in one commit message, so either every operation is applied on every
+   * replica or none is.
+   *
+   * @param batch the operations to commit.
+   * @return true if the batch was committed and every replica acknowledged it.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  @Override
+  public boolean processBatch(WriteBatch batch) throws RemoteException {
+    if (batch.size() == 0) {
+      return true;
+    }
+    long start = System.nanoTime();
+    boolean committed = runTwoPhaseCommit(
+        ReplicationMessage.prepareBatch(nextTransactionId.incrementAndGet(), batch));
+    Log.info(committed ? "BATCH request of {} operations processed."
+        : "Failed to process BATCH request of {} operations.", batch.size());
+    batchLatency.record(System.nanoTime() - start);
+    return committed;
+  }
+
+  /**
+   * Commits a transaction through a single two-phase commit round. The keys it read or wrote
+   * are reserved locally and on every replica in one prepare message, and each replica votes YES
+   * only if the transaction's read set is still current there. The writes are then applied in
+   * one commit message. A transaction without writes is only validated locally.
+   *
+   * @param transaction the transaction to commit.
+   * @return true if the transaction was committed and every replica acknowledged it, false if
+   *         its read set was stale or a replica could not prepare it.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  @Override
+  public boolean commitTransaction(Transaction transaction) throws RemoteException {
+    if (transaction.getWrites().size() == 0) {
+      return canCommitTransaction(transaction);
+    }
+    long start = System.nanoTime();
+    boolean committed = runTwoPhaseCommit(
+        ReplicationMessage.prepareTransaction(nextTransactionId.incrementAndGet(), transaction));
+    Log.info(committed ? "Transaction of {} reads and {} writes committed."
+            : "Failed to commit transaction of {} reads and {} writes.",
+        transaction.getReadSet().size(), transaction.getWrites().size());
+    transactionLatency.record(System.nanoTime() - start);
+    return committed;
+  }
+
+  /**
+   * Runs both phases of a two-phase commit for a batch or transaction prepare message: reserves
+   * its keys and votes locally and on every replica, then applies the commit locally and sends
+   * it to every replica, or aborts everywhere. The change log treats the transaction as still
+   * being replicated until the commit has been sent, so a replica that rejoins meanwhile catches
+   * up from before it.
+   *
+   * @param prepare the prepare message.
+   * @return true if the transaction was committed and every replica acknowledged it.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  private boolean runTwoPhaseCommit(ReplicationMessage prepare) throws RemoteException {
+    long prepareStart = System.nanoTime();
+    boolean preparedLocally = prepareLocally(prepare);
+    boolean allCanCommit = preparedLocally
+        && replicaFanOut.prepare(replicaServers, replica -> sendMessageWithACK(replica, prepare));
+    prepareLatency.record(System.nanoTime() - prepareStart);
+
+    if (!allCanCommit) {
+      abort(prepare, preparedLocally);
+      return false;
+    }
+    ReplicationMessage message = ReplicationMessage.decide(prepare, true);
+    long commitStart = System.nanoTime();
+    boolean committed;
+    changeLog.replicating(message.getTransactionId());
+    try {
+      receiveReplicationMessage(message);
+      committed = replicaFanOut.commit(replicaServers,
+          replica -> sendMessageWithACK(replica, message));
+    } finally {
+      changeLog.replicated(message.getTransactionId());
+    }
+    commitLatency.record(System.nanoTime() - commitStart);
+    if (!committed) {
+      commitFailed();
+    }
+    return committed;
   }
 
   /**
    * Updates the local key-value store with a new key-value store provided by the coordinator.
+   * Kept for compatibility; replicas now catch up with {@link #catchUpFrom(RemoteInterface)}.
    *
    * @param newKeyValueStore the new key-value store to update.
    * @throws RemoteException if a remote communication error occurs.
    */
   @Override
+  @Deprecated
   public void updateKeyValueStore(Map<String, String> newKeyValueStore) throws RemoteException {
-    keyValueStore = new ConcurrentHashMap<>(newKeyValueStore);
+    keyValueStore.clear();
+    newKeyValueStore.forEach((key, value) -> keyValueStore.put(key, encode(value)));
+    keyVersions.clear();
+    expiryDeadlines.clear();
+    merkleTree.rebuild(keyValueStore);
+  }
+
+  /**
+   * Returns the hashes of the given nodes of this replica's Merkle tree.
+   *
+   * @param nodes heap-numbered node indexes, the root being 1.
+   * @return the hash of each node, in the same order.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  @Override
+  public long[] getMerkleNodeHashes(int[] nodes) throws RemoteException {
+    return merkleTree.nodeHashes(nodes);
+  }
+
+  /**
+   * Returns this replica's entries that fall into the given Merkle tree leaves.
+   *
+   * @param leafNodes heap-numbered leaf node indexes.
+   * @return the entries in those leaves.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  @Override
+  public StateChunk fetchMerkleLeafEntries(int[] leafNodes) throws RemoteException {
+    Map<String, byte[]> entries = merkleTree.entriesIn(keyValueStore, leafNodes);
+    String[] keys = entries.keySet().toArray(new String[0]);
+    byte[][] values = new byte[keys.length][];
+    long[] versions = new long[keys.length];
+    long[] expiresAt = new long[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      values[i] = entries.get(keys[i]);
+      versions[i] = versionOf(keys[i]);
+      expiresAt[i] = expiresAtOf(keys[i]);
+    }
+    return new StateChunk(0L, 0, true, 0L, true, keys, values, versions, expiresAt);
+  }
+
+  /**
+   * Applies anti-entropy repairs from the coordinator. A key is only changed if it still holds
+   * the value the coordinator compared against; a commit that arrived since then wins.
+   * Repairs are logged like commits, with the coordinator's version of the key as their
+   * transaction id and its deadline, so that the key keeps both after a restart.
+   *
+   * @param keys           the keys to repair.
+   * @param expectedValues the value each key is expected to have, null for absent.
+   * @param newValues      the value to set, null to remove the key.
+   * @param newVersions    the coordinator's version of each key.
+   * @param newExpiresAt   when each key expires on the coordinator, or {@link #NO_EXPIRY}.
+   * @return the number of keys repaired.
+   * @throws RemoteException if a repair could not be logged.
+   */
+  @Override
+  public int applyRepairs(String[] keys, byte[][] expectedValues, byte[][] newValues,
+      long[] newVersions, long[] newExpiresAt) throws RemoteException {
+    int repaired = 0;
+    commitLock.readLock().lock();
+    try {
+      for (int i = 0; i < keys.length; i++) {
+        String key = keys[i];
+        byte[] expected = expectedValues[i];
+        byte[] value = newValues[i];
+        boolean applied;
+        if (expected == null) {
+          applied = value != null && keyValueStore.putIfAbsent(key, value) == null;
+        } else if (value == null) {
+          applied = keyValueStore.remove(key, expected);
+        } else {
+          applied = keyValueStore.replace(key, expected, value);
+        }
+        if (!applied) {
+          continue;
+        }
+        long expiresAt = value == null ? NO_EXPIRY : newExpiresAt[i];
+        if (value == null) {
+          keyVersions.remove(key);
+        } else {
+          keyVersions.put(key, newVersions[i]);
+        }
+        if (expiresAt == NO_EXPIRY) {
+          expiryDeadlines.remove(key);
+        } else {
+          expiryDeadlines.put(key, expiresAt);
+          expiryWheel.schedule(expiresAt, key);
+        }
+        merkleTree.update(key, expected, value);
+        changeLog.append(newVersions[i], key, value, expiresAt);
+        if (value == null) {
+          logCommit(ReplicationMessage.COMMIT_DELETE, newVersions[i], key, null);
+        } else if (expiresAt == NO_EXPIRY) {
+          logCommit(ReplicationMessage.COMMIT_PUT, newVersions[i], key, value);
+        } else {
+          logCommit(ReplicationMessage.COMMIT_EXPIRING_PUT, newVersions[i], key,
+              ReplicationMessage.commitExpiringPut(newVersions[i], key, value, expiresAt)
+                  .getValue());
+        }
+        repaired++;
+      }
+    } finally {
+      commitLock.readLock().unlock();
+    }
+    return repaired;
+  }
+
+  /**
+   * Starts a chunked state transfer to a new or lagging replica.
+   *
+   * @param knownTransactionId the highest transaction id the caller has applied, or 0.
+   * @param maxEntries         the most entries to return per chunk.
+   * @return a delta page or the first chunk of a full transfer.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  @Override
+  public StateChunk openStateTransfer(long knownTransactionId, int maxEntries)
+      throws RemoteException {
+    return stateTransfer.open(knownTransactionId, maxEntries);
+  }
+
+  /**
+   * Returns the requested chunk of a full state transfer.
+   *
+   * @param sessionId   the transfer session.
+   * @param chunkNumber the chunk wanted.
+   * @param maxEntries  the most entries to return.
+   * @return the chunk.
+   * @throws RemoteException if the session is unknown or the chunk is out of order.
+   */
+  @Override
+  public StateChunk fetchStateChunk(long sessionId, int chunkNumber, int maxEntries)
+      throws RemoteException {
+    return stateTransfer.fetch(sessionId, chunkNumber, maxEntries);
+  }
+
+  /**
+   * Returns the changes committed on this replica from the given sequence number on.
+   *
+   * @param sequence   the first change sequence number wanted.
+   * @param maxEntries the most changes to return.
+   * @return the changes, or null if they are no longer retained.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  @Override
+  public StateChunk fetchChangesSince(long sequence, int maxEntries) throws RemoteException {
+    return stateTransfer.changesSince(sequence, maxEntries);
+  }
+
+  /**
+   * Waits for a change committed on this replica from the given sequence number on. Every
+   * commit wakes the waiting clients, which is how they learn which cached keys to invalidate.
+   *
+   * @param sequence      the first change sequence number wanted, or -1 to only learn the next
+   *                      one.
+   * @param maxEntries    the most changes to return.
+   * @param timeoutMillis how long to wait for a change.
+   * @return the changes, empty if none was committed in time, or null if they are no longer
+   *         retained.
+   * @throws RemoteException if interrupted while waiting.
+   */
+  @Override
+  public StateChunk awaitChangesSince(long sequence, int maxEntries, long timeoutMillis)
+      throws RemoteException {
+    try {
+      return changeLog.awaitChangesSince(sequence, maxEntries, timeoutMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RemoteException("Interrupted while waiting for changes", e);
+    }
   }
 
   /**
@@ -460,42 +1799,540 @@ public class Server implements RemoteInterface {
       String key = keyValue[0].trim();
       String value = keyValue[1].trim();
 
-      keyValueStore.put(key, value);
+      applyCommittedPut(key, encode(value), 0L);
 
       return true;
     } else if (command.equalsIgnoreCase("DO_COMMIT_DELETE")) {
       String key = parts[1].trim();
 
-      keyValueStore.remove(key);
+      applyCommittedDelete(key, 0L);
       return true;
     }
 
     return false;
   }
 
+  /**
+   * Receives a typed two-phase commit message from the coordinator. A prepare reserves the key
+   * and returns the vote, a commit is applied to the key-value store, and an abort releases the
+   * key. Unlike {@link #receiveMessageWithACK(String)}, nothing is parsed or trimmed, so keys
+   * and values may contain any character.
+   *
+   * @param message the message to be handled.
+   * @return the vote for a prepare, otherwise true once handled; false for an unknown opcode.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  @Override
+  public boolean receiveReplicationMessage(ReplicationMessage message) throws RemoteException {
+    switch (message.getOpcode()) {
+      case ReplicationMessage.PREPARE_PUT:
+      case ReplicationMessage.PREPARE_DELETE:
+      case ReplicationMessage.PREPARE_BATCH:
+      case ReplicationMessage.PREPARE_TRANSACTION:
+      case ReplicationMessage.PREPARE_CONDITIONAL_PUT:
+      case ReplicationMessage.PREPARE_EXPIRING_PUT:
+      case ReplicationMessage.PREPARE_EXPIRY:
+        return prepareLocally(message);
+      case ReplicationMessage.ABORT:
+      case ReplicationMessage.ABORT_BATCH:
+      case ReplicationMessage.ABORT_TRANSACTION:
+      case ReplicationMessage.ABORT_EXPIRY:
+        prepareLocks.abortAll(keysOf(message), message.getTransactionId());
+        return true;
+      case ReplicationMessage.COMMIT_BATCH:
+        applyCommittedBatch(message.batch(), message.getTransactionId(), message.getValue());
+        return true;
+      case ReplicationMessage.COMMIT_TRANSACTION:
+        WriteBatch writes = message.transaction().getWrites();
+        try {
+          applyCommittedBatch(writes, message.getTransactionId(), writes.toBytes());
+        } finally {
+          // The keys that were only read are reserved too
+          prepareLocks.unlockAll(keysOf(message), message.getTransactionId());
+        }
+        return true;
+      case ReplicationMessage.COMMIT_PUT:
+        applyCommittedPut(message.keyAsString(), message.getValue(), message.getTransactionId());
+        return true;
+      case ReplicationMessage.COMMIT_DELETE:
+        applyCommittedDelete(message.keyAsString(), message.getTransactionId());
+        return true;
+      case ReplicationMessage.COMMIT_EXPIRING_PUT:
+        applyCommittedExpiringPut(message);
+        return true;
+      case ReplicationMessage.COMMIT_EXPIRY:
+        applyCommittedExpiry(message);
+        return true;
+      case ReplicationMessage.READ_LEASE:
+        readLeases.accept(message);
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Applies a committed PUT to the local key-value store, after recording it in the
+   * write-ahead log, and releases the key's prepare lock. Every committed write, on the
+   * coordinator and on replicas, goes through here.
+   *
+   * @param key           the key to put.
+   * @param value         the value to put.
+   * @param transactionId the coordinator-assigned transaction id, or 0 for legacy messages.
+   * @throws RemoteException if the write could not be logged.
+   */
+  private void applyCommittedPut(String key, byte[] value, long transactionId)
+      throws RemoteException {
+    commitLock.readLock().lock();
+    try {
+      logCommit(ReplicationMessage.COMMIT_PUT, transactionId, key, value);
+      storeCommitted(key, value, transactionId, NO_EXPIRY);
+    } finally {
+      commitLock.readLock().unlock();
+      prepareLocks.unlock(key, transactionId);
+    }
+  }
+
+  /**
+   * Applies a committed batch to the local key-value store, after recording it in the
+   * write-ahead log as a single record so that recovery replays all of it or none of it, and
+   * releases the batch's prepare locks.
+   *
+   * @param batch         the batch to apply.
+   * @param transactionId the coordinator-assigned transaction id.
+   * @param encodedBatch  the batch as encoded by {@link WriteBatch#toBytes()}.
+   * @throws RemoteException if the batch could not be logged.
+   */
+  private void applyCommittedBatch(WriteBatch batch, long transactionId, byte[] encodedBatch)
+      throws RemoteException {
+    // Listed before anything can fail, so that the keys are released even if logging fails
+    List<String> keys = keysOf(batch, new ArrayList<>(batch.size()));
+    commitLock.readLock().lock();
+    try {
+      if (writeAheadLog != null) {
+        try {
+          writeAheadLog.append(ReplicationMessage.COMMIT_BATCH, transactionId, new byte[0],
+              encodedBatch);
+        } catch (IOException e) {
+          throw new RemoteException("Failed to log batch " + transactionId, e);
+        }
+      }
+      for (int i = 0; i < batch.size(); i++) {
+        storeCommitted(batch.getKey(i), batch.getValue(i), transactionId, NO_EXPIRY);
+      }
+    } finally {
+      commitLock.readLock().unlock();
+      prepareLocks.unlockAll(keys, transactionId);
+    }
+  }
+
+  /**
+   * Applies a committed DELETE to the local key-value store, after recording it in the
+   * write-ahead log, and releases the key's prepare lock. Every committed delete, on the
+   * coordinator and on replicas, goes through here.
+   *
+   * @param key           the key to delete.
+   * @param transactionId the coordinator-assigned transaction id, or 0 for legacy messages.
+   * @throws RemoteException if the delete could not be logged.
+   */
+  private void applyCommittedDelete(String key, long transactionId) throws RemoteException {
+    commitLock.readLock().lock();
+    try {
+      logCommit(ReplicationMessage.COMMIT_DELETE, transactionId, key, null);
+      storeCommitted(key, null, transactionId, NO_EXPIRY);
+    } finally {
+      commitLock.readLock().unlock();
+      prepareLocks.unlock(key, transactionId);
+    }
+  }
+
+  /**
+   * Applies a committed PUT of an expiring key to the local key-value store, after recording it
+   * in the write-ahead log with its deadline, and releases the key's prepare lock.
+   *
+   * @param message the commit message, carrying the deadline and the value.
+   * @throws RemoteException if the write could not be logged.
+   */
+  private void applyCommittedExpiringPut(ReplicationMessage message) throws RemoteException {
+    String key = message.keyAsString();
+    long transactionId = message.getTransactionId();
+    commitLock.readLock().lock();
+    try {
+      logCommit(ReplicationMessage.COMMIT_EXPIRING_PUT, transactionId, key, message.getValue());
+      storeCommitted(key, message.expiringValue(), transactionId, message.expiresAt());
+    } finally {
+      commitLock.readLock().unlock();
+      prepareLocks.unlock(key, transactionId);
+    }
+  }
+
+  /**
+   * Applies a committed batch of expired keys to the local key-value store, after recording it
+   * in the write-ahead log as a single record, and releases the batch's prepare locks. A key is
+   * only deleted if no write newer than the version it expired at has reached it; versions are
+   * the same on every replica, so every replica deletes the same keys. While catching up, a key
+   * not transferred yet is deleted too, so that the transfer does not bring it back.
+   *
+   * @param message the commit message, carrying each key with the version it expired at.
+   * @throws RemoteException if the batch could not be logged.
+   */
+  private void applyCommittedExpiry(ReplicationMessage message) throws RemoteException {
+    Map<String, Long> versions = message.expiredVersions();
+    long transactionId = message.getTransactionId();
+    commitLock.readLock().lock();
+    try {
+      if (writeAheadLog != null) {
+        try {
+          writeAheadLog.append(ReplicationMessage.COMMIT_EXPIRY, transactionId, new byte[0],
+              message.getValue());
+        } catch (IOException e) {
+          throw new RemoteException("Failed to log expiry " + transactionId, e);
+        }
+      }
+      for (Map.Entry<String, Long> expired : versions.entrySet()) {
+        String key = expired.getKey();
+        if (hasExpiredVersion(key, expired.getValue())
+            || catchUpVersions != null && versionOf(key) == ABSENT_VERSION) {
+          storeCommitted(key, null, transactionId, NO_EXPIRY);
+          expiredKeys.increment();
+        }
+      }
+      lastAppliedTransactionId.accumulateAndGet(transactionId, Math::max);
+    } finally {
+      commitLock.readLock().unlock();
+      prepareLocks.unlockAll(new ArrayList<>(versions.keySet()), transactionId);
+    }
+  }
+
+  /**
+   * @return true if a key is present and has not been written since the version it expired at.
+   */
+  private boolean hasExpiredVersion(String key, long expiredVersion) {
+    long version = versionOf(key);
+    return version != ABSENT_VERSION && version <= expiredVersion;
+  }
+
+  /**
+   * Applies a logged commit to memory and records it in the change log.
+   * While the replica is catching up, the write is also remembered so that older transferred
+   * state for the same key does not overwrite it.
+   *
+   * @param key           the key written.
+   * @param value         the value written, or null for a DELETE.
+   * @param transactionId the coordinator-assigned transaction id.
+   * @param expiresAt     when the key expires, or {@link #NO_EXPIRY}.
+   */
+  private void storeCommitted(String key, byte[] value, long transactionId, long expiresAt) {
+    Map<String, Long> versions = catchUpVersions;
+    if (versions == null) {
+      applyToStore(key, value, transactionId, expiresAt);
+    } else {
+      versions.compute(key, (k, known) -> {
+        applyToStore(key, value, transactionId, expiresAt);
+        return known == null ? transactionId : Math.max(known, transactionId);
+      });
+    }
+    changeLog.append(transactionId, key, value, expiresAt);
+    lastAppliedTransactionId.accumulateAndGet(transactionId, Math::max);
+  }
+
+  /**
+   * Writes a key and its version. The value is written before the version, and
+   * {@link #getVersioned(String)} reads them in the opposite order, so a reader never pairs a
+   * version with an older value. A new deadline is set before the value and an old one removed
+   * after it, so a value is never read past its own deadline.
+   */
+  private void applyToStore(String key, byte[] value, long version, long expiresAt) {
+    if (expiresAt != NO_EXPIRY) {
+      expiryDeadlines.put(key, expiresAt);
+      expiryWheel.schedule(expiresAt, key);
+    }
+    byte[] previous;
+    if (value == null) {
+      previous = keyValueStore.remove(key);
+      keyVersions.remove(key);
+    } else {
+      previous = keyValueStore.put(key, value);
+      keyVersions.put(key, version);
+    }
+    if (expiresAt == NO_EXPIRY && !expiryDeadlines.isEmpty()) {
+      expiryDeadlines.remove(key);
+    }
+    merkleTree.update(key, previous, value);
+  }
+
+  /**
+   * Writes a key and its version while replaying the write-ahead log, before the Merkle tree is
+   * rebuilt and the expiring keys are scheduled.
+   */
+  private void replayToStore(String key, byte[] value, long version, long expiresAt) {
+    if (value == null) {
+      keyValueStore.remove(key);
+      keyVersions.remove(key);
+    } else {
+      keyValueStore.put(key, value);
+      keyVersions.put(key, version);
+    }
+    if (expiresAt == NO_EXPIRY) {
+      expiryDeadlines.remove(key);
+    } else {
+      expiryDeadlines.put(key, expiresAt);
+    }
+  }
+
+  /**
+   * Tells whether a key has passed its deadline. It stays in the store until the coordinator's
+   * expiry batch deletes it, but reads and the checks of conditional writes treat it as absent.
+   *
+   * @param key the key.
+   * @return true if the key expires and its deadline has passed.
+   */
+  private boolean isExpired(String key) {
+    if (expiryDeadlines.isEmpty()) {
+      return false;
+    }
+    Long deadline = expiryDeadlines.get(key);
+    return deadline != null && deadline <= System.currentTimeMillis();
+  }
+
+  /**
+   * @return true if the key is present and has not expired.
+   */
+  private boolean isLive(String key) {
+    return keyValueStore.containsKey(key) && !isExpired(key);
+  }
+
+  /**
+   * @return the value of a key, or null if it is absent or has expired.
+   */
+  private byte[] liveValue(String key) {
+    byte[] value = keyValueStore.get(key);
+    return value == null || isExpired(key) ? null : value;
+  }
+
+  /**
+   * @return the version of a key, the transaction id of its last write, or 0 if it is absent.
+   */
+  private long versionOf(String key) {
+    return keyVersions.getOrDefault(key, ABSENT_VERSION);
+  }
+
+  /**
+   * @return when a key expires, or {@link #NO_EXPIRY} if it does not or is absent.
+   */
+  private long expiresAtOf(String key) {
+    return expiryDeadlines.getOrDefault(key, NO_EXPIRY);
+  }
+
+  /**
+   * @return the UTF-8 bytes the store keeps for a value given as text, or null for null.
+   */
+  private static byte[] encode(String value) {
+    return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return the text of stored value bytes, or null for null.
+   */
+  private static String decode(byte[] value) {
+    return value == null ? null : new String(value, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Copies the donor's state into this replica in chunks. If the donor still has every change
+   * since this replica's last applied transaction, only those changes are fetched; otherwise
+   * the local store is replaced by a full chunked copy.
+   *
+   * @param donor the replica to copy from.
+   * @return the donor's change sequence number to continue from with
+   *         {@link #catchUpChanges(RemoteInterface, long)}.
+   * @throws RemoteException if the transfer fails.
+   */
+  long catchUpFrom(RemoteInterface donor) throws RemoteException {
+    catchUpVersions = new ConcurrentHashMap<>();
+    StateChunk chunk = donor.openStateTransfer(lastAppliedTransactionId.get(),
+        TRANSFER_CHUNK_ENTRIES);
+
+    if (!chunk.isDelta()) {
+      keyValueStore.clear();
+      keyVersions.clear();
+      expiryDeadlines.clear();
+      merkleTree.rebuild(keyValueStore);
+      applyTransferredChunk(chunk);
+      while (!chunk.isComplete()) {
+        chunk = fetchStateChunkWithRetry(donor, chunk.getSessionId(), chunk.getChunkNumber() + 1);
+        applyTransferredChunk(chunk);
+      }
+      return catchUpChanges(donor, chunk.getNextSequence());
+    }
+
+    applyTransferredChunk(chunk);
+    return chunk.isComplete() ? chunk.getNextSequence()
+        : catchUpChanges(donor, chunk.getNextSequence());
+  }
+
+  /**
+   * Fetches and applies the donor's changes from the given sequence number until none are left.
+   *
+   * @param donor    the replica to copy from.
+   * @param sequence the donor's change sequence number to start at.
+   * @return the sequence number following the last change applied.
+   * @throws RemoteException if the donor no longer retains the changes or the transfer fails.
+   */
+  long catchUpChanges(RemoteInterface donor, long sequence) throws RemoteException {
+    while (true) {
+      StateChunk changes = donor.fetchChangesSince(sequence, TRANSFER_CHUNK_ENTRIES);
+      if (changes == null) {
+        throw new RemoteException("Donor no longer retains changes since sequence " + sequence
+            + "; a full transfer is needed");
+      }
+      applyTransferredChunk(changes);
+      sequence = changes.getNextSequence();
+      if (changes.isComplete()) {
+        return sequence;
+      }
+    }
+  }
+
+  /**
+   * Ends catch-up and snapshots the transferred state, which was not written to the log.
+   *
+   * @throws IOException if the snapshot cannot be written.
+   */
+  void finishCatchUp() throws IOException {
+    catchUpVersions = null;
+    if (writeAheadLog != null) {
+      lastSnapshotLsn = -1L;
+      takeSnapshot();
+    }
+  }
+
+  private StateChunk fetchStateChunkWithRetry(RemoteInterface donor, long sessionId,
+      int chunkNumber) throws RemoteException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return donor.fetchStateChunk(sessionId, chunkNumber, TRANSFER_CHUNK_ENTRIES);
+      } catch (RemoteException e) {
+        if (attempt == TRANSFER_ATTEMPTS) {
+          throw e;
+        }
+        try {
+          Thread.sleep(100L * attempt);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Applies transferred entries, skipping any key that already saw a newer write.
+   */
+  private void applyTransferredChunk(StateChunk chunk) {
+    Map<String, Long> versions = catchUpVersions;
+    for (int i = 0; i < chunk.size(); i++) {
+      String key = chunk.getKey(i);
+      byte[] value = chunk.getValue(i);
+      long transactionId = chunk.getTransactionId(i);
+      long expiresAt = chunk.getExpiresAt(i);
+      versions.compute(key, (k, known) -> {
+        if (known != null && known > transactionId) {
+          return known;
+        }
+        applyToStore(key, value, transactionId, expiresAt);
+        return transactionId;
+      });
+      lastAppliedTransactionId.accumulateAndGet(transactionId, Math::max);
+      nextTransactionId.accumulateAndGet(transactionId, Math::max);
+    }
+  }
+
+  /**
+   * Appends a commit to the write-ahead log, if this replica has one.
+   *
+   * @param opcode        the commit opcode.
+   * @param transactionId the coordinator-assigned transaction id.
+   * @param key           the key written.
+   * @param value         the value written, or null for a DELETE.
+   * @throws RemoteException if the commit could not be logged.
+   */
+  private void logCommit(byte opcode, long transactionId, String key, byte[] value)
+      throws RemoteException {
+    if (writeAheadLog == null) {
+      return;
+    }
+    try {
+      writeAheadLog.append(opcode, transactionId, key, value);
+    } catch (IOException e) {
+      throw new RemoteException("Failed to log commit for key " + key, e);
+    }
+  }
+
+  /**
+   * Returns the address this replica is served on, once it has recovered its data and
+   * been started on its registry port.
+   *
+   * @return the replica's address as "host:port", or null if it is not served on a port.
+   */
+  @Override
+  public String getReplicaAddress() {
+    return registryPort == 0 ? null
+        : System.getProperty("kv.host", "localhost") + ":" + registryPort;
+  }
+
   /**
    * Registers a new replica server and adds it to the set of replica servers.
    * If it's the first replica server, it becomes the coordinator.
+   * A replica that registers again from the same address has restarted, so its previous
+   * registration, which only reaches the process that is gone, is dropped and closed.
    *
    * @param replicaServer the replica server to be registered.
+   * @throws RemoteException if the replica's address cannot be read.
    */
   @Override
-  public void registerReplicaServer(RemoteInterface replicaServer) {
+  public void registerReplicaServer(RemoteInterface replicaServer) throws RemoteException {
+    String address = replicaServer.getReplicaAddress();
+    RemoteInterface previous = address == null ? null
+        : replicaAddresses.put(address, replicaServer);
+    if (previous != null && previous != replicaServer) {
+      // Removed before the new one is added, since a binary transport replica equals its
+      // previous registration
+      replicaServers.remove(previous);
+      readLeases.forget(previous);
+      replicaFanOut.forget(previous);
+      if (previous instanceof NioClient) {
+        ((NioClient) previous).close();
+      }
+      Log.info("Replica {} registered again; dropped its previous registration", address);
+    }
     replicaServers.add(replicaServer);
-    if (replicaServers.size() == 1) {
+    if (replicaServers.size() == 1 && !isCoordinator) {
       isCoordinator = true;
+      // Keys that fell due while this was a replica were dropped from the wheel
+      expiryDeadlines.forEach((key, deadline) -> expiryWheel.schedule(deadline, key));
     }
   }
 
   /**
    * Unregisters a replica server and removes it from the set of replica servers.
    * If there are no remaining replica servers, it resigns as the coordinator.
+   * The replica is only removed once its read lease has expired, since it would otherwise
+   * serve local reads that miss the writes committed without it.
    *
    * @param replicaServer the replica server to be unregistered.
    */
   @Override
   public void unregisterReplicaServer(RemoteInterface replicaServer) {
+    try {
+      readLeases.revoke(replicaServer);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
     replicaServers.remove(replicaServer);
+    replicaAddresses.values().remove(replicaServer);
+    readLeases.forget(replicaServer);
+    replicaFanOut.forget(replicaServer);
     if (replicaServers.size() == 0) {
       isCoordinator = false;
     }
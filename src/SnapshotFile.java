@@ -0,0 +1,311 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * The SnapshotFile class writes and loads point-in-time copies of a replica's key-value store.
+ * Together with the {@link WriteAheadLog} tail written after it, a snapshot lets a replica
+ * restart without replaying its whole history or re-replicating from the coordinator.
+ *
+ * <p>The file is a sequence of independently checksummed chunks followed by an index, so that
+ * each chunk can be memory-mapped and decoded on its own thread at startup:
+ * <pre>
+ *   header   int magic, int version, long lsn, long lastTransactionId
+ *   chunks   repeated (int keyLength, key, int valueLength, value, long version,
+ *            long expiresAt), UTF-8
+ *   index    per chunk: long offset, int length, int entries, int crc32
+ *   footer   long indexOffset, int chunkCount, int entryCount, int magic
+ * </pre>
+ * The version of an entry is the transaction id of the key's last write, and expiresAt the
+ * epoch milliseconds at which the key expires, or 0 if it does not. Version 1 snapshots, written
+ * before entries had versions, are still loaded with every version 0, and version 2 snapshots,
+ * written before keys could expire, with no key expiring.
+ * Snapshots are written to a temporary file and atomically renamed into place, so a crash while
+ * snapshotting leaves the previous snapshot intact.
+ */
+public final class SnapshotFile {
+  private static final int MAGIC = 0x4B56534E;
+  private static final int VERSION = 3;
+  private static final int UNVERSIONED = 1;
+  private static final int WITHOUT_EXPIRY = 2;
+  private static final int HEADER_BYTES = 24;
+  private static final int INDEX_ENTRY_BYTES = 20;
+  private static final int FOOTER_BYTES = 20;
+  private static final int CHUNK_BYTES = 8 * 1024 * 1024;
+  private static final String PREFIX = "snapshot-";
+  private static final String SUFFIX = ".snap";
+
+  private final Path path;
+  private final int formatVersion;
+  private final long lsn;
+  private final long lastTransactionId;
+
+  private SnapshotFile(Path path, int formatVersion, long lsn, long lastTransactionId) {
+    this.path = path;
+    this.formatVersion = formatVersion;
+    this.lsn = lsn;
+    this.lastTransactionId = lastTransactionId;
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  /**
+   * @return the last write-ahead log sequence number the snapshot is guaranteed to include.
+   */
+  public long getLsn() {
+    return lsn;
+  }
+
+  /**
+   * @return the highest coordinator transaction id applied when the snapshot was taken.
+   */
+  public long getLastTransactionId() {
+    return lastTransactionId;
+  }
+
+  /**
+   * Writes a snapshot of the given store. The store may be modified concurrently; the snapshot
+   * then also holds some later writes, which is harmless because the log tail after {@code lsn}
+   * is replayed over it in order.
+   *
+   * @param directory         the directory to write the snapshot into.
+   * @param lsn               the log sequence number every write up to which is in the store.
+   * @param lastTransactionId the highest coordinator transaction id applied so far.
+   * @param store             the store to copy.
+   * @param versions          the version of each key in the store.
+   * @param deadlines         when each expiring key in the store expires.
+   * @return the written snapshot.
+   * @throws IOException if the snapshot cannot be written.
+   */
+  public static SnapshotFile write(Path directory, long lsn, long lastTransactionId,
+      StorageEngine store, Map<String, Long> versions, Map<String, Long> deadlines)
+      throws IOException {
+    Files.createDirectories(directory);
+    Path target = directory.resolve(String.format("%s%020d%s", PREFIX, lsn, SUFFIX));
+    Path temp = directory.resolve(target.getFileName() + ".tmp");
+
+    try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+      header.putInt(MAGIC).putInt(VERSION).putLong(lsn).putLong(lastTransactionId).flip();
+      writeFully(out, header);
+
+      ByteBuffer chunk = ByteBuffer.allocate(CHUNK_BYTES);
+      ByteBuffer index = ByteBuffer.allocate(1024);
+      int chunkEntries = 0;
+      int entryCount = 0;
+      int chunkCount = 0;
+
+      for (Map.Entry<String, byte[]> entry : store) {
+        byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+        byte[] value = entry.getValue();
+        long version = versions.getOrDefault(entry.getKey(), 0L);
+        long expiresAt = deadlines.getOrDefault(entry.getKey(), 0L);
+        int entryBytes = 24 + key.length + value.length;
+
+        if (chunk.remaining() < entryBytes && chunkEntries > 0) {
+          index = appendChunk(out, chunk, chunkEntries, index);
+          chunkCount++;
+          chunkEntries = 0;
+        }
+        if (chunk.capacity() < entryBytes) {
+          chunk = ByteBuffer.allocate(entryBytes);
+        }
+        chunk.putInt(key.length).put(key).putInt(value.length).put(value).putLong(version)
+            .putLong(expiresAt);
+        chunkEntries++;
+        entryCount++;
+      }
+      if (chunkEntries > 0) {
+        index = appendChunk(out, chunk, chunkEntries, index);
+        chunkCount++;
+      }
+
+      long indexOffset = out.position();
+      index.flip();
+      writeFully(out, index);
+      ByteBuffer footer = ByteBuffer.allocate(FOOTER_BYTES);
+      footer.putLong(indexOffset).putInt(chunkCount).putInt(entryCount).putInt(MAGIC).flip();
+      writeFully(out, footer);
+      out.force(true);
+    }
+
+    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    return new SnapshotFile(target, VERSION, lsn, lastTransactionId);
+  }
+
+  /**
+   * Finds the most recent snapshot in the directory.
+   *
+   * @param directory the directory snapshots are written to.
+   * @return the latest snapshot, or null if there is none.
+   * @throws IOException if the directory cannot be read.
+   */
+  public static SnapshotFile latest(Path directory) throws IOException {
+    List<SnapshotFile> snapshots = list(directory);
+    return snapshots.isEmpty() ? null : snapshots.get(snapshots.size() - 1);
+  }
+
+  /**
+   * Deletes every snapshot in the directory older than the given one.
+   *
+   * @param directory the directory snapshots are written to.
+   * @param keep      the snapshot to keep.
+   * @throws IOException if a snapshot cannot be deleted.
+   */
+  public static void deleteOlderThan(Path directory, SnapshotFile keep) throws IOException {
+    for (SnapshotFile snapshot : list(directory)) {
+      if (snapshot.lsn < keep.lsn) {
+        Files.deleteIfExists(snapshot.path);
+      }
+    }
+  }
+
+  /**
+   * Loads the snapshot into the given store. Each chunk is memory-mapped and decoded in
+   * parallel, so the store and maps must be safe for concurrent puts.
+   *
+   * @param store     the store to load into.
+   * @param versions  the map to load each key's version into.
+   * @param deadlines the map to load the deadline of each expiring key into.
+   * @return the number of entries loaded.
+   * @throws IOException if the snapshot is truncated or a chunk fails its checksum.
+   */
+  public int loadInto(StorageEngine store, Map<String, Long> versions,
+      Map<String, Long> deadlines) throws IOException {
+    try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+      long size = in.size();
+      if (size < HEADER_BYTES + FOOTER_BYTES) {
+        throw new IOException("Snapshot " + path + " is truncated");
+      }
+      ByteBuffer footer = in.map(FileChannel.MapMode.READ_ONLY, size - FOOTER_BYTES,
+          FOOTER_BYTES);
+      long indexOffset = footer.getLong();
+      int chunkCount = footer.getInt();
+      int entryCount = footer.getInt();
+      if (footer.getInt() != MAGIC) {
+        throw new IOException("Snapshot " + path + " has no valid footer");
+      }
+
+      ByteBuffer index = in.map(FileChannel.MapMode.READ_ONLY, indexOffset,
+          (long) chunkCount * INDEX_ENTRY_BYTES);
+      MappedByteBuffer[] chunks = new MappedByteBuffer[chunkCount];
+      int[] crcs = new int[chunkCount];
+      for (int i = 0; i < chunkCount; i++) {
+        long offset = index.getLong();
+        int length = index.getInt();
+        index.getInt();
+        crcs[i] = index.getInt();
+        chunks[i] = in.map(FileChannel.MapMode.READ_ONLY, offset, length);
+      }
+
+      boolean allValid = IntStream.range(0, chunkCount).parallel()
+          .allMatch(i -> loadChunk(chunks[i], crcs[i], store, versions, deadlines));
+      if (!allValid) {
+        throw new IOException("Snapshot " + path + " has a corrupt chunk");
+      }
+      return entryCount;
+    }
+  }
+
+  private boolean loadChunk(ByteBuffer chunk, int expectedCrc, StorageEngine store,
+      Map<String, Long> versions, Map<String, Long> deadlines) {
+    CRC32 crc = new CRC32();
+    crc.update(chunk.duplicate());
+    if ((int) crc.getValue() != expectedCrc) {
+      return false;
+    }
+    byte[] scratch = new byte[256];
+    while (chunk.hasRemaining()) {
+      int keyLength = chunk.getInt();
+      scratch = ensureScratch(scratch, keyLength);
+      chunk.get(scratch, 0, keyLength);
+      String key = new String(scratch, 0, keyLength, StandardCharsets.UTF_8);
+      byte[] value = new byte[chunk.getInt()];
+      chunk.get(value);
+      store.put(key, value);
+      versions.put(key, formatVersion == UNVERSIONED ? 0L : chunk.getLong());
+      long expiresAt = formatVersion == VERSION ? chunk.getLong() : 0L;
+      if (expiresAt != 0L) {
+        deadlines.put(key, expiresAt);
+      }
+    }
+    return true;
+  }
+
+  private static byte[] ensureScratch(byte[] scratch, int length) {
+    return scratch.length >= length ? scratch : new byte[Math.max(length, scratch.length * 2)];
+  }
+
+  private static ByteBuffer appendChunk(FileChannel out, ByteBuffer chunk, int entries,
+      ByteBuffer index) throws IOException {
+    chunk.flip();
+    long offset = out.position();
+    int length = chunk.remaining();
+    CRC32 crc = new CRC32();
+    crc.update(chunk.duplicate());
+    writeFully(out, chunk);
+    chunk.clear();
+
+    if (index.remaining() < INDEX_ENTRY_BYTES) {
+      ByteBuffer grown = ByteBuffer.allocate(index.capacity() * 2);
+      index.flip();
+      grown.put(index);
+      index = grown;
+    }
+    index.putLong(offset).putInt(length).putInt(entries).putInt((int) crc.getValue());
+    return index;
+  }
+
+  private static void writeFully(FileChannel out, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      out.write(buffer);
+    }
+  }
+
+  private static List<SnapshotFile> list(Path directory) throws IOException {
+    List<SnapshotFile> snapshots = new ArrayList<>();
+    if (!Files.isDirectory(directory)) {
+      return snapshots;
+    }
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+        PREFIX + "*" + SUFFIX)) {
+      for (Path path : stream) {
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+          ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+          while (header.hasRemaining()) {
+            if (in.read(header) < 0) {
+              break;
+            }
+          }
+          header.flip();
+          if (header.remaining() != HEADER_BYTES || header.getInt() != MAGIC) {
+            continue;
+          }
+          int formatVersion = header.getInt();
+          if (formatVersion == VERSION || formatVersion == WITHOUT_EXPIRY
+              || formatVersion == UNVERSIONED) {
+            snapshots.add(new SnapshotFile(path, formatVersion, header.getLong(),
+                header.getLong()));
+          }
+        }
+      }
+    }
+    snapshots.sort((a, b) -> Long.compare(a.lsn, b.lsn));
+    return snapshots;
+  }
+}
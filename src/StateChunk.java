@@ -0,0 +1,136 @@
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * The StateChunk class is one page of a state transfer between replicas, sent by
+ * {@link RemoteInterface#openStateTransfer(long, int)},
+ * {@link RemoteInterface#fetchStateChunk(long, int, int)} and
+ * {@link RemoteInterface#fetchChangesSince(long, int)}.
+ *
+ * <p>A chunk is either part of the full copy of the donor's store or a page of the donor's
+ * {@link ChangeLog}. Each entry carries the transaction id it reflects and the key's expiry
+ * deadline; a null value is a DELETE. Values are the bytes the donor stores, sent as they are. {@link #getNextSequence()}
+ * is where the following delta page starts.
+ */
+public class StateChunk implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  private final long sessionId;
+  private final int chunkNumber;
+  private final boolean delta;
+  private final long nextSequence;
+  private final boolean complete;
+  private final String[] keys;
+  private final byte[][] values;
+  private final long[] transactionIds;
+  private final long[] expiresAt;
+
+  /**
+   * Constructs a new StateChunk instance.
+   *
+   * @param sessionId      the transfer session, 0 for delta pages.
+   * @param chunkNumber    the position of this chunk within its session.
+   * @param delta          whether the entries are changes rather than a copy of the store.
+   * @param nextSequence   the change sequence number the next delta page starts at.
+   * @param complete       whether this is the last chunk of its phase.
+   * @param keys           the keys.
+   * @param values         the values, null for a DELETE.
+   * @param transactionIds the transaction id each entry reflects.
+   * @param expiresAt      when each key expires, or 0 if it does not.
+   */
+  public StateChunk(long sessionId, int chunkNumber, boolean delta, long nextSequence,
+      boolean complete, String[] keys, byte[][] values, long[] transactionIds,
+      long[] expiresAt) {
+    this.sessionId = sessionId;
+    this.chunkNumber = chunkNumber;
+    this.delta = delta;
+    this.nextSequence = nextSequence;
+    this.complete = complete;
+    this.keys = keys;
+    this.values = values;
+    this.transactionIds = transactionIds;
+    this.expiresAt = expiresAt;
+  }
+
+  public long getSessionId() {
+    return sessionId;
+  }
+
+  public int getChunkNumber() {
+    return chunkNumber;
+  }
+
+  public boolean isDelta() {
+    return delta;
+  }
+
+  public long getNextSequence() {
+    return nextSequence;
+  }
+
+  public boolean isComplete() {
+    return complete;
+  }
+
+  public int size() {
+    return keys.length;
+  }
+
+  public String getKey(int index) {
+    return keys[index];
+  }
+
+  public byte[] getValue(int index) {
+    return values[index];
+  }
+
+  public long getTransactionId(int index) {
+    return transactionIds[index];
+  }
+
+  public long getExpiresAt(int index) {
+    return expiresAt[index];
+  }
+
+  /**
+   * Writes the chunk into a binary protocol frame.
+   *
+   * @param frame the frame to append to.
+   */
+  public void writeTo(BinaryProtocol.FrameBuilder frame) {
+    frame.putLong(sessionId).putInt(chunkNumber).putBoolean(delta).putLong(nextSequence)
+        .putBoolean(complete).putInt(keys.length);
+    for (int i = 0; i < keys.length; i++) {
+      frame.putString(keys[i]).putBytes(values[i]).putLong(transactionIds[i])
+          .putLong(expiresAt[i]);
+    }
+  }
+
+  /**
+   * Reads a chunk written by {@link #writeTo(BinaryProtocol.FrameBuilder)}.
+   *
+   * @param buffer the frame body positioned at the chunk.
+   * @return the decoded chunk.
+   */
+  public static StateChunk readFrom(ByteBuffer buffer) {
+    long sessionId = buffer.getLong();
+    int chunkNumber = buffer.getInt();
+    boolean delta = BinaryProtocol.getBoolean(buffer);
+    long nextSequence = buffer.getLong();
+    boolean complete = BinaryProtocol.getBoolean(buffer);
+    // Each entry takes at least its key and value lengths, transaction id and deadline
+    int size = BinaryProtocol.getCount(buffer, 24);
+    String[] keys = new String[size];
+    byte[][] values = new byte[size][];
+    long[] transactionIds = new long[size];
+    long[] expiresAt = new long[size];
+    for (int i = 0; i < size; i++) {
+      keys[i] = BinaryProtocol.getString(buffer);
+      values[i] = BinaryProtocol.getBytes(buffer);
+      transactionIds[i] = buffer.getLong();
+      expiresAt[i] = buffer.getLong();
+    }
+    return new StateChunk(sessionId, chunkNumber, delta, nextSequence, complete, keys, values,
+        transactionIds, expiresAt);
+  }
+}
@@ -0,0 +1,172 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * The StateTransfer class is the donor side of bringing a new or lagging replica up to date in
+ * bounded pages instead of shipping the whole store in one
+ * {@link RemoteInterface#updateKeyValueStore(Map)} call.
+ *
+ * <p>A transfer has two phases. The full phase walks the donor's store with a weakly consistent
+ * iterator, one chunk per request, so neither side ever holds more than a chunk in flight.
+ * The delta phase then pages through the {@link ChangeLog} from the sequence number recorded
+ * when the full phase started, which covers every write the iterator may have missed. A replica
+ * whose last applied transaction is still covered by the change log skips the full phase and
+ * resumes from {@link ChangeLog#resumeSequence(long)}, which also covers the transactions with
+ * lower ids that were committed after it.
+ * Entries of the full phase carry their key's version, the transaction id of its last write,
+ * which the receiver keeps as its own version and uses to tell them apart from newer writes.
+ * Entries of both phases carry the key's expiry deadline, so the receiver expires it on time.
+ *
+ * <p>The donor remembers the last chunk of every session, so a receiver that lost a response
+ * can ask for the same chunk number again and resume where it left off.
+ */
+public class StateTransfer {
+  private static final long SESSION_TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+  private final ChangeLog changeLog;
+  private final Supplier<StorageEngine> store;
+  private final ToLongFunction<String> versionOf;
+  private final ToLongFunction<String> expiresAtOf;
+  private final Map<Long, Session> sessions = new ConcurrentHashMap<>();
+  private final AtomicLong nextSessionId = new AtomicLong();
+
+  /**
+   * Constructs a new StateTransfer instance.
+   *
+   * @param changeLog the donor's recent changes.
+   * @param store     supplies the donor's current store.
+   * @param versionOf   returns the version of a key in the donor's store.
+   * @param expiresAtOf returns when a key in the donor's store expires, or 0 if it does not.
+   */
+  public StateTransfer(ChangeLog changeLog, Supplier<StorageEngine> store,
+      ToLongFunction<String> versionOf, ToLongFunction<String> expiresAtOf) {
+    this.changeLog = changeLog;
+    this.store = store;
+    this.versionOf = versionOf;
+    this.expiresAtOf = expiresAtOf;
+  }
+
+  /**
+   * Starts a transfer for a replica.
+   *
+   * @param knownTransactionId the highest transaction id the replica has applied, or 0.
+   * @param maxEntries         the most entries to return per chunk.
+   * @return the first delta page if the change log still covers the replica, otherwise the
+   *         first chunk of a new full-transfer session.
+   */
+  public StateChunk open(long knownTransactionId, int maxEntries) {
+    expireIdleSessions();
+
+    long resumeSequence = changeLog.resumeSequence(knownTransactionId);
+    if (resumeSequence >= 0) {
+      StateChunk delta = changeLog.changesSince(resumeSequence, maxEntries);
+      if (delta != null) {
+        return delta;
+      }
+    }
+
+    long startSequence = changeLog.nextSequence();
+    Session session = new Session(nextSessionId.incrementAndGet(), startSequence,
+        store.get().iterator(), versionOf, expiresAtOf);
+    sessions.put(session.id, session);
+    return session.next(maxEntries);
+  }
+
+  /**
+   * Returns a chunk of a full-transfer session.
+   *
+   * @param sessionId   the session returned by {@link #open(long, int)}.
+   * @param chunkNumber the chunk wanted: the next one, or the last one again to resume.
+   * @param maxEntries  the most entries to return.
+   * @return the chunk.
+   * @throws RemoteException if the session is unknown or the chunk number is out of order.
+   */
+  public StateChunk fetch(long sessionId, int chunkNumber, int maxEntries)
+      throws RemoteException {
+    Session session = sessions.get(sessionId);
+    if (session == null) {
+      throw new RemoteException("Unknown or expired state transfer session " + sessionId);
+    }
+    synchronized (session) {
+      session.lastAccessNanos = System.nanoTime();
+      if (chunkNumber == session.lastChunk.getChunkNumber()) {
+        return session.lastChunk;
+      }
+      if (chunkNumber != session.lastChunk.getChunkNumber() + 1) {
+        throw new RemoteException("Expected chunk " + (session.lastChunk.getChunkNumber() + 1)
+            + " of session " + sessionId + " but got " + chunkNumber);
+      }
+      return session.next(maxEntries);
+    }
+  }
+
+  /**
+   * Returns a delta page of the change log.
+   *
+   * @param sequence   the first change sequence number wanted.
+   * @param maxEntries the most changes to return.
+   * @return the changes, or null if they are no longer retained.
+   */
+  public StateChunk changesSince(long sequence, int maxEntries) {
+    return changeLog.changesSince(sequence, maxEntries);
+  }
+
+  private void expireIdleSessions() {
+    long now = System.nanoTime();
+    sessions.values().removeIf(session -> now - session.lastAccessNanos > SESSION_TIMEOUT_NANOS);
+  }
+
+  /**
+   * A full-transfer cursor over the donor's store.
+   */
+  private static final class Session {
+    private final long id;
+    private final long startSequence;
+    private final Iterator<Map.Entry<String, byte[]>> iterator;
+    private final ToLongFunction<String> versionOf;
+    private final ToLongFunction<String> expiresAtOf;
+    private StateChunk lastChunk;
+    private long lastAccessNanos = System.nanoTime();
+
+    Session(long id, long startSequence, Iterator<Map.Entry<String, byte[]>> iterator,
+        ToLongFunction<String> versionOf, ToLongFunction<String> expiresAtOf) {
+      this.id = id;
+      this.startSequence = startSequence;
+      this.iterator = iterator;
+      this.versionOf = versionOf;
+      this.expiresAtOf = expiresAtOf;
+    }
+
+    StateChunk next(int maxEntries) {
+      List<String> keys = new ArrayList<>(maxEntries);
+      List<byte[]> values = new ArrayList<>(maxEntries);
+      while (keys.size() < maxEntries && iterator.hasNext()) {
+        Map.Entry<String, byte[]> entry = iterator.next();
+        keys.add(entry.getKey());
+        values.add(entry.getValue());
+      }
+      // A write racing the iterator may make a version newer than its value; the delta phase
+      // replays that write, with the same transaction id, after this chunk
+      long[] transactionIds = new long[keys.size()];
+      long[] expiresAt = new long[keys.size()];
+      for (int i = 0; i < transactionIds.length; i++) {
+        transactionIds[i] = versionOf.applyAsLong(keys.get(i));
+        expiresAt[i] = expiresAtOf.applyAsLong(keys.get(i));
+      }
+
+      int chunkNumber = lastChunk == null ? 0 : lastChunk.getChunkNumber() + 1;
+      lastChunk = new StateChunk(id, chunkNumber, false, startSequence, !iterator.hasNext(),
+          keys.toArray(new String[0]), values.toArray(new byte[0][]), transactionIds,
+          expiresAt);
+      return lastChunk;
+    }
+  }
+}
@@ -0,0 +1,171 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * The StorageEngine interface is where a replica keeps its key-value pairs. The rest of the
+ * server only reads and writes keys through it, so the engine can be chosen per replica with the
+ * {@code kv.storageEngine} system property without changing how requests, two-phase commit,
+ * snapshots or state transfer work.
+ *
+ * <p>Values are UTF-8 or raw binary bytes, kept as they arrive from the replication messages and
+ * the write-ahead log, and sent back as they are. An engine may return the array it holds, so
+ * callers must not modify the arrays they pass in or get back. Values are compared by content.
+ *
+ * <p>Engines are safe for concurrent use. Iteration is weakly consistent: it never fails because
+ * of concurrent writes and returns every key that was present, unchanged, for the whole
+ * iteration, but may or may not reflect writes made while iterating.
+ *
+ * <p>Besides the lookup by key, every engine keeps its keys in order, so that
+ * {@link #range(String, String)} reads a range of keys without visiting the others.
+ */
+public interface StorageEngine extends Iterable<Map.Entry<String, byte[]>> {
+
+  /**
+   * The available storage engines.
+   */
+  enum Kind {
+    /** Keys and values in a {@link java.util.concurrent.ConcurrentHashMap} on the Java heap. */
+    HEAP,
+    /** Keys and values as UTF-8 bytes outside the Java heap; see {@link OffHeapStorageEngine}. */
+    OFFHEAP,
+    /** A log-structured merge tree of sorted files on disk; see {@link LsmStorageEngine}. */
+    LSM;
+
+    /**
+     * Reads the engine from the {@code kv.storageEngine} system property, defaulting to HEAP.
+     *
+     * @return the configured engine.
+     */
+    public static Kind fromSystemProperty() {
+      return valueOf(System.getProperty("kv.storageEngine", "heap").toUpperCase());
+    }
+  }
+
+  /**
+   * Creates an empty engine of the kind configured by the {@code kv.storageEngine} system
+   * property.
+   *
+   * @return the new engine.
+   */
+  static StorageEngine fromSystemProperty() {
+    switch (Kind.fromSystemProperty()) {
+      case OFFHEAP:
+        return new OffHeapStorageEngine();
+      case LSM:
+        return new LsmStorageEngine();
+      case HEAP:
+      default:
+        return new HeapStorageEngine();
+    }
+  }
+
+  /**
+   * Gives the engine a directory of its own for any files it keeps. Called once, by recovery,
+   * before the store is loaded.
+   *
+   * @param directory the directory, created if needed.
+   * @throws IOException if the directory cannot be prepared.
+   */
+  default void open(Path directory) throws IOException {
+  }
+
+  /**
+   * @param key the key to look up.
+   * @return the value of the key, or null if it is absent.
+   */
+  byte[] get(String key);
+
+  /**
+   * @param key the key to look up.
+   * @return true if the key is present.
+   */
+  boolean containsKey(String key);
+
+  /**
+   * Sets the value of a key.
+   *
+   * @param key   the key to write.
+   * @param value the new value.
+   * @return the previous value, or null if the key was absent.
+   */
+  byte[] put(String key, byte[] value);
+
+  /**
+   * Sets the value of a key only if it is absent.
+   *
+   * @param key   the key to write.
+   * @param value the new value.
+   * @return the current value if the key was present, or null if the value was set.
+   */
+  byte[] putIfAbsent(String key, byte[] value);
+
+  /**
+   * Replaces the value of a key only if it still has the expected value.
+   *
+   * @param key           the key to write.
+   * @param expectedValue the value the key must have.
+   * @param value         the new value.
+   * @return true if the value was replaced.
+   */
+  boolean replace(String key, byte[] expectedValue, byte[] value);
+
+  /**
+   * Removes a key.
+   *
+   * @param key the key to remove.
+   * @return the removed value, or null if the key was absent.
+   */
+  byte[] remove(String key);
+
+  /**
+   * Removes a key only if it still has the expected value.
+   *
+   * @param key           the key to remove.
+   * @param expectedValue the value the key must have.
+   * @return true if the key was removed.
+   */
+  boolean remove(String key, byte[] expectedValue);
+
+  /**
+   * Returns the entries whose keys are in the given range, in key order. Like iteration, the
+   * range is weakly consistent.
+   *
+   * @param fromKey the first key of the range, inclusive.
+   * @param toKey   the key the range ends before, or null for no end.
+   * @return the entries in the range.
+   */
+  Iterator<Map.Entry<String, byte[]>> range(String fromKey, String toKey);
+
+  /**
+   * @return the number of keys.
+   */
+  int size();
+
+  /**
+   * @return true if there are no keys.
+   */
+  default boolean isEmpty() {
+    return size() == 0;
+  }
+
+  /**
+   * Removes every key.
+   */
+  void clear();
+
+  /**
+   * @return the bytes this engine holds outside the Java heap.
+   */
+  default long offHeapBytes() {
+    return 0L;
+  }
+
+  /**
+   * @return the bytes this engine holds in files on disk.
+   */
+  default long diskBytes() {
+    return 0L;
+  }
+}
@@ -0,0 +1,147 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The TimingWheel class is a hierarchical timing wheel: it schedules items to fall due at a
+ * deadline in constant time, however many are scheduled, and hands back all the items that fell
+ * due since the last call in one batch.
+ *
+ * <p>Time is cut into ticks of {@code tickMillis}. The lowest wheel has a slot for each of the
+ * next {@value #SLOTS} ticks, and each wheel above it a slot for {@value #SLOTS} times as long
+ * a span as the one below. An item goes into the lowest wheel whose span reaches its deadline.
+ * Each time the lower wheel completes a turn, the current slot of the wheel above is emptied
+ * into the wheels below it, so an item moves down at most once per level before it falls due.
+ * Deadlines beyond the top wheel wait in its farthest slot and are placed again when it comes
+ * round.
+ *
+ * <p>Items cannot be cancelled; an item that no longer applies is ignored by the caller when it
+ * falls due. The wheel is safe for concurrent use.
+ *
+ * @param <T> the type of the items scheduled.
+ */
+public class TimingWheel<T> {
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int LEVELS = 4;
+  // The farthest tick the wheels can tell apart from the current one
+  private static final long MAX_DELTA = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+  private final long tickMillis;
+  private final List<Entry<T>>[][] slots;
+  // Items whose deadline had passed when they were scheduled
+  private List<T> due = new ArrayList<>();
+  private long currentTick;
+  private int size;
+
+  /**
+   * Constructs a new, empty TimingWheel instance.
+   *
+   * @param tickMillis the resolution of the wheel in milliseconds.
+   * @param nowMillis  the current time in milliseconds.
+   */
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  public TimingWheel(long tickMillis, long nowMillis) {
+    this.tickMillis = Math.max(1L, tickMillis);
+    this.slots = new List[LEVELS][SLOTS];
+    this.currentTick = Math.floorDiv(nowMillis, this.tickMillis);
+  }
+
+  /**
+   * Schedules an item. It falls due at the end of the tick its deadline is in, so at most one
+   * tick late.
+   *
+   * @param deadlineMillis when the item falls due, in milliseconds.
+   * @param item           the item.
+   */
+  public synchronized void schedule(long deadlineMillis, T item) {
+    place(new Entry<>(Math.floorDiv(deadlineMillis, tickMillis) + 1, item));
+    size++;
+  }
+
+  /**
+   * Moves the wheels to the given time.
+   *
+   * @param nowMillis the current time in milliseconds.
+   * @return the items that fell due since the last call, in no particular order.
+   */
+  public synchronized List<T> advance(long nowMillis) {
+    List<T> expired = due;
+    due = new ArrayList<>();
+    long targetTick = Math.floorDiv(nowMillis, tickMillis);
+    while (currentTick < targetTick) {
+      currentTick++;
+      // Cascade from each wheel whose lower wheel has just completed a turn
+      for (int level = 1; level < LEVELS; level++) {
+        if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) != 0) {
+          break;
+        }
+        List<Entry<T>> cascaded = take(level, slotOf(currentTick, level));
+        if (cascaded != null) {
+          for (Entry<T> entry : cascaded) {
+            place(entry);
+          }
+        }
+      }
+      List<Entry<T>> entries = take(0, slotOf(currentTick, 0));
+      if (entries != null) {
+        for (Entry<T> entry : entries) {
+          expired.add(entry.item);
+        }
+      }
+      // Entries placed in the due list by cascading
+      expired.addAll(due);
+      due.clear();
+    }
+    size -= expired.size();
+    return expired;
+  }
+
+  /**
+   * @return the number of items scheduled and not yet due.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  private void place(Entry<T> entry) {
+    long delta = entry.tick - currentTick;
+    if (delta <= 0) {
+      due.add(entry.item);
+      return;
+    }
+    // Too far out for the top wheel: park it in the slot that comes round last
+    long tick = delta > MAX_DELTA ? currentTick + MAX_DELTA : entry.tick;
+    int level = 0;
+    while (level < LEVELS - 1 && (tick >>> (SLOT_BITS * (level + 1)))
+        != (currentTick >>> (SLOT_BITS * (level + 1)))) {
+      level++;
+    }
+    int slot = slotOf(tick, level);
+    List<Entry<T>> entries = slots[level][slot];
+    if (entries == null) {
+      entries = new ArrayList<>();
+      slots[level][slot] = entries;
+    }
+    entries.add(entry);
+  }
+
+  private List<Entry<T>> take(int level, int slot) {
+    List<Entry<T>> entries = slots[level][slot];
+    slots[level][slot] = null;
+    return entries;
+  }
+
+  private static int slotOf(long tick, int level) {
+    return (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+  }
+
+  private static final class Entry<T> {
+    private final long tick;
+    private final T item;
+
+    Entry(long tick, T item) {
+      this.tick = tick;
+      this.item = item;
+    }
+  }
+}
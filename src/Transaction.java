@@ -0,0 +1,175 @@
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The Transaction class groups reads and writes of several keys into one atomic unit, committed
+ * by the coordinator through a single two-phase commit round with optimistic concurrency
+ * control.
+ *
+ * <p>Reads go straight to a replica and are remembered in the transaction's read set, along with
+ * the value seen (or its absence). Writes are buffered locally and only sent on commit; a read
+ * of a key the transaction wrote returns the buffered value. On commit, every replica reserves
+ * the keys of both sets and votes YES only if each key of the read set still has the value that
+ * was read, so the writes are conditional on nothing the transaction depended on having changed
+ * in between. A transaction that fails validation applies nothing and can simply be retried.
+ *
+ * <p>Unlike a {@link WriteBatch}, writes are unconditional on their own: a PUT overwrites any
+ * existing value and a DELETE of an absent key does nothing. To insert only if absent, read the
+ * key first.
+ *
+ * <pre>
+ *   Transaction transaction = Transaction.begin(coordinator);
+ *   long balance = Long.parseLong(transaction.get("alice"));
+ *   transaction.put("alice", Long.toString(balance - 10));
+ *   transaction.put("bob", Long.toString(Long.parseLong(transaction.get("bob")) + 10));
+ *   boolean committed = transaction.commit();
+ * </pre>
+ */
+public class Transaction implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  // Only needed on the client side, to read and to commit
+  private final transient RemoteInterface store;
+  // The value read for each key, or null if the key was absent
+  private final Map<String, String> readSet = new LinkedHashMap<>();
+  private final WriteBatch writes = new WriteBatch();
+
+  private Transaction(RemoteInterface store) {
+    this.store = store;
+  }
+
+  /**
+   * Begins a transaction.
+   *
+   * @param store the replica to read from and the coordinator to commit through.
+   * @return the new transaction.
+   */
+  public static Transaction begin(RemoteInterface store) {
+    return new Transaction(store);
+  }
+
+  /**
+   * Reads a key and adds it to the read set. The transaction's own writes are visible, and a key
+   * read twice returns the same value both times.
+   *
+   * @param key the key to read.
+   * @return the value, or null if the key is absent.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  public String get(String key) throws RemoteException {
+    for (int i = writes.size() - 1; i >= 0; i--) {
+      if (writes.getKey(i).equals(key)) {
+        return decode(writes.getValue(i));
+      }
+    }
+    if (readSet.containsKey(key)) {
+      return readSet.get(key);
+    }
+    String value = store.get(key);
+    readSet.put(key, value);
+    return value;
+  }
+
+  /**
+   * Buffers a PUT, overwriting any existing value when committed.
+   *
+   * @param key   the key to put.
+   * @param value the value to put.
+   * @return this transaction.
+   */
+  public Transaction put(String key, String value) {
+    writes.put(key, value);
+    return this;
+  }
+
+  /**
+   * Buffers a DELETE.
+   *
+   * @param key the key to delete.
+   * @return this transaction.
+   */
+  public Transaction delete(String key) {
+    writes.delete(key);
+    return this;
+  }
+
+  /**
+   * Commits the transaction through the store it was begun on.
+   *
+   * @return true if the read set was still current and the writes were committed, false if
+   *         nothing was applied.
+   * @throws RemoteException if a remote communication error occurs.
+   */
+  public boolean commit() throws RemoteException {
+    return store.commitTransaction(this);
+  }
+
+  /**
+   * @return the value read for each key, or null for keys that were absent.
+   */
+  public Map<String, String> getReadSet() {
+    return Collections.unmodifiableMap(readSet);
+  }
+
+  /**
+   * @return the buffered writes, in order.
+   */
+  public WriteBatch getWrites() {
+    return writes;
+  }
+
+  /**
+   * Encodes the read set followed by the writes, both in the {@link WriteBatch} format. In the
+   * read set, a PUT stands for a key read with that value and a DELETE for a key read as absent.
+   *
+   * @return the encoded transaction.
+   */
+  public byte[] toBytes() {
+    WriteBatch reads = new WriteBatch();
+    readSet.forEach((key, value) -> {
+      if (value == null) {
+        reads.delete(key);
+      } else {
+        reads.put(key, value);
+      }
+    });
+    byte[] encodedReads = reads.toBytes();
+    byte[] encodedWrites = writes.toBytes();
+    return ByteBuffer.allocate(encodedReads.length + encodedWrites.length)
+        .put(encodedReads).put(encodedWrites).array();
+  }
+
+  /**
+   * Decodes a transaction written by {@link #toBytes()}. The result can be validated and
+   * applied, but not read from or committed.
+   *
+   * @param bytes the encoded transaction.
+   * @return the transaction.
+   */
+  public static Transaction fromBytes(byte[] bytes) {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    Transaction transaction = new Transaction(null);
+    WriteBatch reads = WriteBatch.read(buffer);
+    for (int i = 0; i < reads.size(); i++) {
+      transaction.readSet.put(reads.getKey(i), decode(reads.getValue(i)));
+    }
+    WriteBatch writes = WriteBatch.read(buffer);
+    for (int i = 0; i < writes.size(); i++) {
+      if (writes.getValue(i) == null) {
+        transaction.writes.delete(writes.getKey(i));
+      } else {
+        transaction.writes.put(writes.getKey(i), writes.getValue(i));
+      }
+    }
+    return transaction;
+  }
+
+  private static String decode(byte[] value) {
+    return value == null ? null : new String(value, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,473 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * The WriteAheadLog class is an append-only log of committed writes kept by each replica, so that
+ * a restarted replica can rebuild its key-value store locally instead of relying on
+ * {@link RemoteInterface#updateKeyValueStore(java.util.Map)}.
+ *
+ * <p>Appends use group commit: callers queue their record and block, while a single writer
+ * thread drains everything queued so far, writes it with one gathering write and, depending on
+ * the {@link Durability} mode, issues one fsync for the whole batch. Many concurrent commits
+ * therefore share a single fsync.
+ *
+ * <p>The log is split into segment files named after the first log sequence number they hold.
+ * {@link #rollSegment()} starts a new segment so that, once a snapshot covers everything before
+ * it, the older segments can be removed with {@link #deleteSegmentsThrough(long)}.
+ *
+ * <p>Each record is laid out as:
+ * <pre>
+ *   int   length   number of bytes after the checksum
+ *   int   crc32    checksum of those bytes
+ *   long  lsn      log sequence number, assigned by the log
+ *   byte  opcode   {@link ReplicationMessage#COMMIT_PUT} or {@link ReplicationMessage#COMMIT_DELETE}
+ *   long  txId     the coordinator's transaction id
+ *   int + bytes    UTF-8 key
+ *   int + bytes    UTF-8 value, empty for a DELETE
+ * </pre>
+ * A torn or corrupt record at the tail is treated as the end of the log and truncated on open.
+ */
+public class WriteAheadLog implements AutoCloseable {
+  private static final int RECORD_HEADER_BYTES = 8;
+  private static final int MIN_BODY_BYTES = 25;
+  private static final int MAX_BATCH_RECORDS = 4096;
+  private static final String SEGMENT_PREFIX = "wal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  /**
+   * When appended records are forced to disk.
+   */
+  public enum Durability {
+    /** Every batch is fsynced before its appenders return. */
+    FSYNC_BATCH,
+    /** Appenders return once written; the log is fsynced on a fixed interval. */
+    PERIODIC,
+    /** Appenders return once written; fsync is left to the operating system. */
+    NONE;
+
+    /**
+     * Reads the mode from the {@code kv.walDurability} system property, defaulting to
+     * FSYNC_BATCH.
+     *
+     * @return the configured durability mode.
+     */
+    public static Durability fromSystemProperty() {
+      return valueOf(System.getProperty("kv.walDurability", "fsync_batch").toUpperCase());
+    }
+  }
+
+  /**
+   * Receives the records found while replaying the log.
+   */
+  @FunctionalInterface
+  public interface ReplayHandler {
+
+    /**
+     * Applies one replayed record.
+     *
+     * @param lsn     the record's log sequence number.
+     * @param message the commit the record holds.
+     */
+    void apply(long lsn, ReplicationMessage message);
+  }
+
+  private final Path directory;
+  private final Durability durability;
+  private final BlockingQueue<PendingRecord> pending = new LinkedBlockingQueue<>();
+  private final Thread writerThread;
+  private final ScheduledExecutorService syncScheduler;
+  private final Object segmentLock = new Object();
+  private FileChannel channel;
+  private long nextLsn;
+  private volatile boolean closed;
+
+  /**
+   * Opens the log, replaying every intact record after {@code replayAfterLsn} to the handler
+   * before any append is accepted.
+   *
+   * @param directory          the directory holding the segment files, created if missing.
+   * @param durability         when appends are forced to disk.
+   * @param syncIntervalMillis the fsync interval for {@link Durability#PERIODIC}.
+   * @param replayAfterLsn     records up to and including this sequence number are skipped,
+   *                           typically because a snapshot already covers them.
+   * @param handler            receives the records already in the log.
+   * @throws IOException if the log cannot be opened or read.
+   */
+  public WriteAheadLog(Path directory, Durability durability, long syncIntervalMillis,
+      long replayAfterLsn, ReplayHandler handler) throws IOException {
+    this.directory = directory;
+    this.durability = durability;
+    Files.createDirectories(directory);
+
+    List<Path> segments = listSegments();
+    long lastLsn = replayAfterLsn;
+    for (int i = 0; i < segments.size(); i++) {
+      lastLsn = Math.max(lastLsn,
+          replay(segments.get(i), replayAfterLsn, handler, i == segments.size() - 1));
+    }
+    nextLsn = lastLsn + 1;
+
+    if (segments.isEmpty()) {
+      channel = openSegment(nextLsn);
+    } else {
+      Path active = segments.get(segments.size() - 1);
+      channel = FileChannel.open(active, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    writerThread = new Thread(this::writeLoop, "wal-writer-" + directory);
+    writerThread.setDaemon(true);
+    writerThread.start();
+
+    if (durability == Durability.PERIODIC) {
+      syncScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "wal-sync-" + directory);
+        thread.setDaemon(true);
+        return thread;
+      });
+      syncScheduler.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMillis,
+          syncIntervalMillis, TimeUnit.MILLISECONDS);
+    } else {
+      syncScheduler = null;
+    }
+  }
+
+  public Path getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Appends a committed PUT or DELETE and blocks until it is written, and fsynced when the
+   * durability mode requires it.
+   *
+   * @param opcode        {@link ReplicationMessage#COMMIT_PUT} or
+   *                      {@link ReplicationMessage#COMMIT_DELETE}.
+   * @param transactionId the coordinator's transaction id.
+   * @param key           the key written.
+   * @param value         the value written, or null for a DELETE.
+   * @return the log sequence number assigned to the record.
+   * @throws IOException if the record could not be written.
+   */
+  public long append(byte opcode, long transactionId, String key, byte[] value)
+      throws IOException {
+    return append(opcode, transactionId, key.getBytes(StandardCharsets.UTF_8),
+        value == null ? new byte[0] : value);
+  }
+
+  /**
+   * Appends a committed record with a raw key and value, such as a
+   * {@link ReplicationMessage#COMMIT_BATCH} whose value is the encoded batch, and blocks until
+   * it is written.
+   *
+   * @param opcode        the commit opcode.
+   * @param transactionId the coordinator's transaction id.
+   * @param keyBytes      the key bytes.
+   * @param valueBytes    the value bytes.
+   * @return the log sequence number assigned to the record.
+   * @throws IOException if the record could not be written.
+   */
+  public long append(byte opcode, long transactionId, byte[] keyBytes, byte[] valueBytes)
+      throws IOException {
+    if (closed) {
+      throw new IOException("Write-ahead log " + directory + " is closed");
+    }
+
+    int bodyLength = MIN_BODY_BYTES + keyBytes.length + valueBytes.length;
+    ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + bodyLength);
+    record.putInt(bodyLength);
+    record.putInt(0);
+    record.putLong(0L);
+    record.put(opcode);
+    record.putLong(transactionId);
+    record.putInt(keyBytes.length);
+    record.put(keyBytes);
+    record.putInt(valueBytes.length);
+    record.put(valueBytes);
+    record.flip();
+
+    PendingRecord pendingRecord = new PendingRecord(record);
+    pending.add(pendingRecord);
+    try {
+      return pendingRecord.done.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the write-ahead log", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to append to write-ahead log " + directory, e.getCause());
+    }
+  }
+
+  /**
+   * @return the sequence number of the last record written, or 0 if nothing has been written.
+   */
+  public long lastLsn() {
+    synchronized (segmentLock) {
+      return nextLsn - 1;
+    }
+  }
+
+  /**
+   * Closes the active segment and starts a new one. Every record appended before this call is
+   * in a closed segment; every record appended after it lands in the new one.
+   *
+   * @return the sequence number of the last record in the closed segments.
+   * @throws IOException if the active segment cannot be synced or the new one created.
+   */
+  public long rollSegment() throws IOException {
+    synchronized (segmentLock) {
+      channel.force(false);
+      channel.close();
+      channel = openSegment(nextLsn);
+      return nextLsn - 1;
+    }
+  }
+
+  /**
+   * Deletes the closed segments whose records all have sequence numbers up to {@code lsn}.
+   *
+   * @param lsn the last sequence number no longer needed for recovery.
+   * @throws IOException if the directory cannot be listed or a segment deleted.
+   */
+  public void deleteSegmentsThrough(long lsn) throws IOException {
+    List<Path> segments = listSegments();
+    for (int i = 0; i < segments.size() - 1; i++) {
+      long nextSegmentFirstLsn = firstLsnOf(segments.get(i + 1));
+      if (nextSegmentFirstLsn > lsn + 1) {
+        break;
+      }
+      Files.deleteIfExists(segments.get(i));
+    }
+  }
+
+  /**
+   * Forces everything written so far to disk.
+   *
+   * @throws IOException if the fsync fails.
+   */
+  public void sync() throws IOException {
+    synchronized (segmentLock) {
+      channel.force(false);
+    }
+  }
+
+  /**
+   * Stops the writer thread and closes the active segment.
+   *
+   * @throws IOException if the final fsync or close fails.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    writerThread.interrupt();
+    if (syncScheduler != null) {
+      syncScheduler.shutdownNow();
+    }
+    try {
+      writerThread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (segmentLock) {
+      if (channel.isOpen()) {
+        channel.force(false);
+        channel.close();
+      }
+    }
+  }
+
+  /**
+   * Drains queued records in batches, writes each batch at once and completes its appenders.
+   */
+  private void writeLoop() {
+    List<PendingRecord> batch = new ArrayList<>();
+    while (!closed) {
+      try {
+        batch.add(pending.take());
+      } catch (InterruptedException e) {
+        break;
+      }
+      pending.drainTo(batch, MAX_BATCH_RECORDS - 1);
+
+      synchronized (segmentLock) {
+        long firstLsn = nextLsn;
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+          buffers[i] = seal(batch.get(i).record, firstLsn + i);
+        }
+
+        try {
+          long remaining = 0;
+          for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+          }
+          while (remaining > 0) {
+            remaining -= channel.write(buffers);
+          }
+          if (durability == Durability.FSYNC_BATCH) {
+            channel.force(false);
+          }
+          nextLsn += batch.size();
+          for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).done.complete(firstLsn + i);
+          }
+        } catch (IOException e) {
+          for (PendingRecord record : batch) {
+            record.done.completeExceptionally(e);
+          }
+        }
+      }
+      batch.clear();
+    }
+
+    IOException closedException = new IOException("Write-ahead log " + directory + " is closed");
+    PendingRecord record;
+    while ((record = pending.poll()) != null) {
+      record.done.completeExceptionally(closedException);
+    }
+  }
+
+  /**
+   * Fills in the record's log sequence number and checksum.
+   */
+  private static ByteBuffer seal(ByteBuffer record, long lsn) {
+    record.putLong(RECORD_HEADER_BYTES, lsn);
+    CRC32 crc = new CRC32();
+    ByteBuffer body = record.duplicate();
+    body.position(RECORD_HEADER_BYTES);
+    crc.update(body);
+    record.putInt(4, (int) crc.getValue());
+    return record;
+  }
+
+  private void syncQuietly() {
+    try {
+      sync();
+    } catch (IOException e) {
+      Log.error("Failed to sync write-ahead log {}", directory, e);
+    }
+  }
+
+  private FileChannel openSegment(long firstLsn) throws IOException {
+    Path segment = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstLsn,
+        SEGMENT_SUFFIX));
+    return FileChannel.open(segment, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND);
+  }
+
+  private static long firstLsnOf(Path segment) {
+    String name = segment.getFileName().toString();
+    return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+        name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  private List<Path> listSegments() throws IOException {
+    List<Path> segments = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+        SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      for (Path segment : stream) {
+        segments.add(segment);
+      }
+    }
+    segments.sort((a, b) -> Long.compare(firstLsnOf(a), firstLsnOf(b)));
+    return segments;
+  }
+
+  /**
+   * Reads every intact record of one segment, passing those after {@code replayAfterLsn} to the
+   * handler. Anything after the last intact record of the active segment is truncated.
+   *
+   * @param segment        the segment file.
+   * @param replayAfterLsn records up to and including this sequence number are skipped.
+   * @param handler        receives each replayed record.
+   * @param active         whether this is the segment appends will continue in.
+   * @return the highest log sequence number found, or 0 for an empty segment.
+   * @throws IOException if the segment cannot be read.
+   */
+  private long replay(Path segment, long replayAfterLsn, ReplayHandler handler, boolean active)
+      throws IOException {
+    long lastLsn = 0;
+    long validEnd = 0;
+    try (FileChannel in = FileChannel.open(segment, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      long size = in.size();
+      ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+
+      while (validEnd + RECORD_HEADER_BYTES <= size) {
+        header.clear();
+        readFully(in, header, validEnd);
+        int bodyLength = header.getInt(0);
+        int expectedCrc = header.getInt(4);
+        if (bodyLength < MIN_BODY_BYTES || validEnd + RECORD_HEADER_BYTES + bodyLength > size) {
+          break;
+        }
+
+        ByteBuffer body = ByteBuffer.allocate(bodyLength);
+        readFully(in, body, validEnd + RECORD_HEADER_BYTES);
+        body.flip();
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != expectedCrc) {
+          break;
+        }
+
+        long lsn = body.getLong();
+        if (lsn > replayAfterLsn) {
+          byte opcode = body.get();
+          long transactionId = body.getLong();
+          byte[] key = new byte[body.getInt()];
+          body.get(key);
+          byte[] value = new byte[body.getInt()];
+          body.get(value);
+          handler.apply(lsn, new ReplicationMessage(opcode, transactionId, key, value));
+        }
+
+        lastLsn = lsn;
+        validEnd += RECORD_HEADER_BYTES + bodyLength;
+      }
+
+      if (validEnd < size) {
+        Log.warn("Ignoring {} bytes of incomplete records in {}", size - validEnd, segment);
+        if (active) {
+          in.truncate(validEnd);
+        }
+      }
+    }
+    return lastLsn;
+  }
+
+  private static void readFully(FileChannel in, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (in.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of write-ahead log segment");
+      }
+    }
+  }
+
+  /**
+   * A record waiting for the writer thread, and the future its appender blocks on.
+   */
+  private static final class PendingRecord {
+    private final ByteBuffer record;
+    private final CompletableFuture<Long> done = new CompletableFuture<>();
+
+    PendingRecord(ByteBuffer record) {
+      this.record = record;
+    }
+  }
+}
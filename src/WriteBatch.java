@@ -0,0 +1,146 @@
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The WriteBatch class is an ordered list of PUTs and DELETEs that the coordinator commits
+ * through a single two-phase commit round, all or nothing.
+ *
+ * <p>Each operation keeps the semantics of its single-key form: a PUT needs the key to be absent
+ * and a DELETE needs it to be present, taking earlier operations of the same batch into
+ * account. If any operation cannot be applied, none is.
+ */
+public class WriteBatch implements Serializable {
+  private static final long serialVersionUID = 2L;
+
+  private final List<String> keys = new ArrayList<>();
+  // A null value is a DELETE
+  private final List<byte[]> values = new ArrayList<>();
+
+  /**
+   * Adds a PUT of a string value, stored as its UTF-8 bytes.
+   *
+   * @param key   the key to put.
+   * @param value the value to put.
+   * @return this batch.
+   */
+  public WriteBatch put(String key, String value) {
+    if (value == null) {
+      throw new IllegalArgumentException("PUT of " + key + " needs a value");
+    }
+    return put(key, value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Adds a PUT of value bytes, stored as they are.
+   *
+   * @param key   the key to put.
+   * @param value the value bytes to put.
+   * @return this batch.
+   */
+  public WriteBatch put(String key, byte[] value) {
+    if (value == null) {
+      throw new IllegalArgumentException("PUT of " + key + " needs a value");
+    }
+    keys.add(key);
+    values.add(value);
+    return this;
+  }
+
+  /**
+   * Adds a DELETE.
+   *
+   * @param key the key to delete.
+   * @return this batch.
+   */
+  public WriteBatch delete(String key) {
+    keys.add(key);
+    values.add(null);
+    return this;
+  }
+
+  public int size() {
+    return keys.size();
+  }
+
+  public String getKey(int index) {
+    return keys.get(index);
+  }
+
+  /**
+   * @param index the operation's position in the batch.
+   * @return the value bytes to put, or null if the operation is a DELETE.
+   */
+  public byte[] getValue(int index) {
+    return values.get(index);
+  }
+
+  /**
+   * Encodes the batch as [count] followed by [key length][key][value length or -1][value] per
+   * operation, for replication messages and the write-ahead log.
+   *
+   * @return the encoded batch.
+   */
+  public byte[] toBytes() {
+    List<byte[]> encoded = new ArrayList<>(keys.size() * 2);
+    int length = 4;
+    for (int i = 0; i < keys.size(); i++) {
+      byte[] key = keys.get(i).getBytes(StandardCharsets.UTF_8);
+      byte[] value = values.get(i);
+      encoded.add(key);
+      encoded.add(value);
+      length += 8 + key.length + (value == null ? 0 : value.length);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    buffer.putInt(keys.size());
+    for (int i = 0; i < encoded.size(); i += 2) {
+      byte[] key = encoded.get(i);
+      byte[] value = encoded.get(i + 1);
+      buffer.putInt(key.length).put(key);
+      if (value == null) {
+        buffer.putInt(-1);
+      } else {
+        buffer.putInt(value.length).put(value);
+      }
+    }
+    return buffer.array();
+  }
+
+  /**
+   * Decodes a batch written by {@link #toBytes()}.
+   *
+   * @param bytes the encoded batch.
+   * @return the batch.
+   */
+  public static WriteBatch fromBytes(byte[] bytes) {
+    return read(ByteBuffer.wrap(bytes));
+  }
+
+  /**
+   * Decodes a batch written by {@link #toBytes()} from the buffer's position, leaving the
+   * position after it.
+   *
+   * @param buffer the buffer holding the encoded batch.
+   * @return the batch.
+   */
+  static WriteBatch read(ByteBuffer buffer) {
+    WriteBatch batch = new WriteBatch();
+    // Each entry takes at least its key and value lengths
+    int count = BinaryProtocol.getCount(buffer, 8);
+    for (int i = 0; i < count; i++) {
+      byte[] key = new byte[BinaryProtocol.getCount(buffer, 1)];
+      buffer.get(key);
+      int valueLength = BinaryProtocol.getLength(buffer, 1);
+      if (valueLength < 0) {
+        batch.delete(new String(key, StandardCharsets.UTF_8));
+      } else {
+        byte[] value = new byte[valueLength];
+        buffer.get(value);
+        batch.put(new String(key, StandardCharsets.UTF_8), value);
+      }
+    }
+    return batch;
+  }
+}
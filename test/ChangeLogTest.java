@@ -0,0 +1,106 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests where {@link ChangeLog#resumeSequence(long)} lets a rejoining replica resume its delta
+ * catch-up, when transactions are logged out of order or were still being replicated.
+ */
+class ChangeLogTest {
+
+  @Test
+  void resumesAtTheTransactionWhenLoggedInOrder() {
+    ChangeLog log = new ChangeLog(8);
+    log.append(1, "a", null, 0L);
+    log.append(2, "b", null, 0L);
+    log.append(3, "c", null, 0L);
+
+    // Sending the replica's last transaction again is harmless, as commits are idempotent
+    assertEquals(0, log.resumeSequence(1));
+    assertEquals(1, log.resumeSequence(2));
+  }
+
+  @Test
+  void resumesAtAnEarlierTransactionCommittedAfterIt() {
+    ChangeLog log = new ChangeLog(8);
+    log.replicating(9);
+    log.replicating(10);
+    log.append(10, "b", null, 0L);
+    log.replicated(10);
+    log.append(9, "a", null, 0L);
+    log.replicated(9);
+
+    // A replica that applied 10 may not have 9, which was logged after it
+    assertEquals(0, log.resumeSequence(10));
+  }
+
+  @Test
+  void resumesAtATransactionStillReplicatingWhenItWasLogged() {
+    ChangeLog log = new ChangeLog(8);
+    log.replicating(9);
+    log.append(9, "a", null, 0L);
+    log.replicating(10);
+    log.append(10, "b", null, 0L);
+    log.replicated(10);
+    log.replicated(9);
+
+    assertEquals(0, log.resumeSequence(10));
+  }
+
+  @Test
+  void resumesAtTheFirstLaterTransaction() {
+    ChangeLog log = new ChangeLog(8);
+    log.append(11, "c", null, 0L);
+    log.append(10, "b", null, 0L);
+    log.append(12, "d", null, 0L);
+
+    assertEquals(0, log.resumeSequence(10));
+    assertEquals(2, log.resumeSequence(12));
+  }
+
+  @Test
+  void cannotResumeFromATransactionOutsideTheRing() {
+    ChangeLog log = new ChangeLog(4);
+    log.append(11, "c", null, 0L);
+    log.append(12, "d", null, 0L);
+
+    assertEquals(-1, log.resumeSequence(0));
+    assertEquals(-1, log.resumeSequence(5));
+
+    for (long transactionId = 13; transactionId < 16; transactionId++) {
+      log.append(transactionId, "k", null, 0L);
+    }
+    // 11 was dropped, so a replica at 11 may lack changes the ring no longer holds
+    assertEquals(-1, log.resumeSequence(11));
+    assertEquals(2, log.resumeSequence(13));
+  }
+
+  @Test
+  void cannotResumeWhenTheOldestChangeInFlightWasDropped() {
+    ChangeLog log = new ChangeLog(3);
+    log.replicating(1);
+    log.append(1, "x", null, 0L);
+    for (long transactionId = 2; transactionId < 5; transactionId++) {
+      log.append(transactionId, "k", null, 0L);
+    }
+
+    assertEquals(-1, log.resumeSequence(4));
+  }
+
+  @Test
+  void listsTheChangesFromTheResumeSequence() {
+    ChangeLog log = new ChangeLog(8);
+    log.append(1, "a", "1".getBytes(StandardCharsets.UTF_8), 0L);
+    log.append(2, "b", null, 0L);
+    log.append(3, "c", "3".getBytes(StandardCharsets.UTF_8), 42L);
+
+    StateChunk chunk = log.changesSince(log.resumeSequence(2), 10);
+
+    assertEquals(2, chunk.size());
+    assertEquals("b", chunk.getKey(0));
+    assertEquals("c", chunk.getKey(1));
+    assertEquals(42L, chunk.getExpiresAt(1));
+    assertEquals(3, chunk.getNextSequence());
+  }
+}
@@ -0,0 +1,26 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * Clears the data directory of the replicas the tests recover, so that every test starts from
+ * an empty store and log.
+ */
+final class ReplicaData {
+
+  private ReplicaData() {
+  }
+
+  static void clear(int registryPort) throws IOException {
+    Path directory = Paths.get(System.getProperty("kv.dataDir", "data"),
+        "replica-" + registryPort);
+    if (Files.exists(directory)) {
+      try (Stream<Path> paths = Files.walk(directory)) {
+        paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+      }
+    }
+  }
+}
@@ -0,0 +1,116 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.BindException;
+import java.nio.charset.StandardCharsets;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Set;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that a replica that restarts and registers again from the same address replaces its
+ * previous registration, and receives the writes committed after it rejoined.
+ */
+class ReplicaRejoinTest {
+  private static final int COORDINATOR_PORT = 47200;
+  private static final int REPLICA_PORT = 47201;
+  private static final int RMI_REPLICA_PORT = 47202;
+
+  @BeforeEach
+  void clearDataDirectory() throws IOException {
+    ReplicaData.clear(RMI_REPLICA_PORT);
+  }
+
+  @Test
+  void replacesARestartedBinaryTransportReplica() throws Exception {
+    Server coordinator = new Server();
+    NioServer coordinatorServer = new NioServer(coordinator, COORDINATOR_PORT, 1);
+    coordinatorServer.start();
+    NioClient coordinatorClient = NioClient.connect("localhost", COORDINATOR_PORT);
+    try {
+      Server first = new Server();
+      NioServer firstServer = new NioServer(first, REPLICA_PORT, 1);
+      firstServer.start();
+      coordinatorClient.registerReplicaServer(NioClient.unconnected("localhost", REPLICA_PORT));
+      assertTrue(coordinator.processPut("a", bytes("1")));
+      firstServer.stop();
+
+      Server restarted = new Server();
+      NioServer restartedServer = startOnReleasedPort(restarted, REPLICA_PORT);
+      try {
+        coordinatorClient.registerReplicaServer(
+            NioClient.unconnected("localhost", REPLICA_PORT));
+
+        assertEquals(1, replicaServers(coordinator).size());
+        assertTrue(coordinator.processPut("b", bytes("2")));
+        assertTrue(restarted.canCommitDelete("b"));
+      } finally {
+        restartedServer.stop();
+      }
+    } finally {
+      coordinatorClient.close();
+      coordinatorServer.stop();
+    }
+  }
+
+  @Test
+  void replacesARestartedRmiReplica() throws Exception {
+    Server coordinator = new Server();
+    Server first = new Server();
+    first.recover(RMI_REPLICA_PORT);
+    coordinator.registerReplicaServer(
+        (RemoteInterface) UnicastRemoteObject.exportObject(first, 0));
+    assertTrue(coordinator.processPut("a", bytes("1")));
+    // Calls to the stub now fail with "no such object in table", as after a restart
+    UnicastRemoteObject.unexportObject(first, true);
+    assertFalse(coordinator.processPut("lost", bytes("0")));
+
+    Server restarted = new Server();
+    restarted.recover(RMI_REPLICA_PORT);
+    try {
+      coordinator.registerReplicaServer(
+          (RemoteInterface) UnicastRemoteObject.exportObject(restarted, 0));
+
+      assertEquals(1, replicaServers(coordinator).size());
+      assertTrue(coordinator.processPut("b", bytes("2")));
+      assertTrue(restarted.canCommitDelete("b"));
+    } finally {
+      UnicastRemoteObject.unexportObject(restarted, true);
+    }
+  }
+
+  /**
+   * Starts a server on a port that a stopped server may not have released yet, since its
+   * socket is only closed once its accept thread returns.
+   */
+  private static NioServer startOnReleasedPort(Server server, int port) throws Exception {
+    for (int attempt = 1; ; attempt++) {
+      NioServer nioServer = new NioServer(server, port, 1);
+      try {
+        nioServer.start();
+        return nioServer;
+      } catch (BindException e) {
+        if (attempt == 50) {
+          throw e;
+        }
+        Thread.sleep(20);
+      }
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Set<RemoteInterface> replicaServers(Server server)
+      throws ReflectiveOperationException {
+    Field field = Server.class.getDeclaredField("replicaServers");
+    field.setAccessible(true);
+    return (Set<RemoteInterface>) field.get(server);
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}
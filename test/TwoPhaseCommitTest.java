@@ -0,0 +1,150 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that each PUT and DELETE runs one two-phase commit round against in-process replicas,
+ * and that its caller learns whether the round committed.
+ */
+class TwoPhaseCommitTest {
+  private static final int LOG_FAILURE_PORT = 47300;
+
+  /**
+   * A replica that holds its vote on a PUT until released, so that a second writer can try the
+   * same key while the first one is preparing.
+   */
+  private static class SlowReplica extends Server {
+    final CountDownLatch preparing = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+
+    @Override
+    public boolean receiveReplicationMessage(ReplicationMessage message)
+        throws RemoteException {
+      if (message.getOpcode() == ReplicationMessage.PREPARE_PUT) {
+        preparing.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return super.receiveReplicationMessage(message);
+    }
+  }
+
+  @Test
+  void reportsACommittedPutAndDelete() throws Exception {
+    Server coordinator = new Server();
+    Server replica = new Server();
+    coordinator.registerReplicaServer(replica);
+
+    assertTrue(coordinator.processRequest("PUT a=1").endsWith("Request processed"));
+    assertEquals("1", coordinator.processGet("a"));
+    assertTrue(replica.canCommitDelete("a"));
+
+    assertTrue(coordinator.processRequest("DELETE a").endsWith("Request processed"));
+    assertFalse(coordinator.canCommitDelete("a"));
+    assertFalse(replica.canCommitDelete("a"));
+  }
+
+  @Test
+  void usesOneTransactionPerWriteAndRejectsNoneLocally() throws Exception {
+    Server coordinator = new Server();
+    coordinator.registerReplicaServer(new Server());
+
+    assertTrue(coordinator.processPut("a", bytes("1")));
+    assertTrue(coordinator.processDelete("a"));
+
+    assertEquals(2L, ((AtomicLong) field(coordinator, "nextTransactionId")).get());
+    assertEquals(0L, metric(coordinator, "2pc.localRejects"));
+    assertEquals(0L, metric(coordinator, "2pc.aborts"));
+  }
+
+  @Test
+  void reportsAPutTheReplicaVotesAgainst() throws Exception {
+    Server coordinator = new Server();
+    Server replica = new Server();
+    coordinator.registerReplicaServer(replica);
+    // Only the replica has the key, so it votes NO to a PUT of it
+    replica.receiveReplicationMessage(ReplicationMessage.commitPut(1, "a", bytes("0")));
+
+    assertTrue(coordinator.processRequest("PUT a=1").endsWith("Failed to process request"));
+    assertFalse(coordinator.canCommitDelete("a"));
+  }
+
+  @Test
+  void reportsAWriteTheKeysStateRefuses() throws Exception {
+    Server coordinator = new Server();
+    coordinator.registerReplicaServer(new Server());
+
+    assertTrue(coordinator.processRequest("DELETE a").endsWith("Failed to process request"));
+    assertTrue(coordinator.processRequest("PUT a=1").endsWith("Request processed"));
+    assertTrue(coordinator.processRequest("PUT a=2").endsWith("Failed to process request"));
+    assertEquals("1", coordinator.processGet("a"));
+  }
+
+  @Test
+  void commitsOnlyOneOfTwoConcurrentPutsOfAKey() throws Exception {
+    Server coordinator = new Server();
+    SlowReplica replica = new SlowReplica();
+    coordinator.registerReplicaServer(replica);
+    ExecutorService writers = Executors.newSingleThreadExecutor();
+    try {
+      Future<Boolean> first = writers.submit(() -> coordinator.processPut("a", bytes("1")));
+      replica.preparing.await();
+
+      // The first PUT holds the key, so the second one aborts without waiting for it
+      assertFalse(coordinator.processPut("a", bytes("2")));
+      replica.release.countDown();
+      assertTrue(first.get());
+    } finally {
+      replica.release.countDown();
+      writers.shutdown();
+    }
+    assertEquals("1", coordinator.processGet("a"));
+    assertTrue(replica.canCommitDelete("a"));
+    assertEquals(1L, metric(coordinator, "2pc.localRejects"));
+  }
+
+  @Test
+  void releasesABatchsKeysWhenItCannotBeLogged() throws Exception {
+    ReplicaData.clear(LOG_FAILURE_PORT);
+    Server replica = new Server();
+    replica.recover(LOG_FAILURE_PORT);
+    ReplicationMessage prepare =
+        ReplicationMessage.prepareBatch(1, new WriteBatch().put("a", "1").put("b", "2"));
+    assertTrue(replica.receiveReplicationMessage(prepare));
+    ((WriteAheadLog) field(replica, "writeAheadLog")).close();
+
+    assertThrows(RemoteException.class,
+        () -> replica.receiveReplicationMessage(ReplicationMessage.decide(prepare, true)));
+
+    assertTrue(replica.receiveReplicationMessage(
+        ReplicationMessage.prepareBatch(2, new WriteBatch().put("a", "1").put("b", "2"))));
+  }
+
+  private static Object field(Server server, String name) throws ReflectiveOperationException {
+    Field field = Server.class.getDeclaredField(name);
+    field.setAccessible(true);
+    return field.get(server);
+  }
+
+  private static long metric(Server server, String name) throws Exception {
+    return (Long) ((Metrics) field(server, "metrics")).getAttribute(name);
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}
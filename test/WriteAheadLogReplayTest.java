@@ -0,0 +1,86 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that a replica recovers its committed writes from the write-ahead log, alone and on top
+ * of a snapshot. Each test recovers a fresh replica from the directory the first one wrote.
+ */
+class WriteAheadLogReplayTest {
+  private static final int PORT = 47100;
+
+  @BeforeEach
+  void clearDataDirectory() throws IOException {
+    ReplicaData.clear(PORT);
+  }
+
+  @Test
+  void replaysCommittedPutsAndDeletes() throws Exception {
+    Server server = new Server();
+    server.recover(PORT);
+    server.receiveReplicationMessage(ReplicationMessage.commitPut(1, "a", bytes("1")));
+    server.receiveReplicationMessage(ReplicationMessage.commitPut(2, "b", bytes("2")));
+    server.receiveReplicationMessage(ReplicationMessage.commitDelete(3, "a"));
+
+    Server recovered = new Server();
+    recovered.recover(PORT);
+
+    assertNull(recovered.processGet("a"));
+    assertEquals("2", recovered.processGet("b"));
+  }
+
+  @Test
+  void replaysABatchAsOneRecord() throws Exception {
+    Server server = new Server();
+    server.recover(PORT);
+    server.receiveReplicationMessage(ReplicationMessage.commitPut(1, "gone", bytes("x")));
+    assertTrue(server.processBatch(new WriteBatch().put("a", "1").put("b", "2").delete("gone")));
+
+    Server recovered = new Server();
+    recovered.recover(PORT);
+
+    assertEquals("1", recovered.processGet("a"));
+    assertEquals("2", recovered.processGet("b"));
+    assertNull(recovered.processGet("gone"));
+  }
+
+  @Test
+  void replaysBatchValueBytesAsTheyWereCommitted() throws Exception {
+    byte[] value = {(byte) 0xff, 0, (byte) 0xc3};
+    Server server = new Server();
+    server.recover(PORT);
+    assertTrue(server.processBatch(new WriteBatch().put("a", value)));
+    assertArrayEquals(value, server.getBytes("a"));
+
+    Server recovered = new Server();
+    recovered.recover(PORT);
+
+    assertArrayEquals(value, recovered.getBytes("a"));
+  }
+
+  @Test
+  void replaysOnlyTheLogAfterTheSnapshot() throws Exception {
+    Server server = new Server();
+    server.recover(PORT);
+    server.receiveReplicationMessage(ReplicationMessage.commitPut(1, "a", bytes("1")));
+    server.takeSnapshot();
+    server.receiveReplicationMessage(ReplicationMessage.commitPut(2, "b", bytes("2")));
+    server.receiveReplicationMessage(ReplicationMessage.commitDelete(3, "a"));
+
+    Server recovered = new Server();
+    recovered.recover(PORT);
+
+    assertNull(recovered.processGet("a"));
+    assertEquals("2", recovered.processGet("b"));
+  }
+
+  private static byte[] bytes(String value) {
+    return value.getBytes(StandardCharsets.UTF_8);
+  }
+}
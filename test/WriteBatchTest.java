@@ -0,0 +1,34 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that a {@link WriteBatch} keeps its value bytes as they are through its encoding.
+ */
+class WriteBatchTest {
+
+  @Test
+  void encodesPutsAndDeletesInOrder() {
+    WriteBatch batch = WriteBatch.fromBytes(
+        new WriteBatch().put("a", "1").delete("b").put("c", "").toBytes());
+
+    assertEquals(3, batch.size());
+    assertEquals("a", batch.getKey(0));
+    assertArrayEquals("1".getBytes(StandardCharsets.UTF_8), batch.getValue(0));
+    assertEquals("b", batch.getKey(1));
+    assertNull(batch.getValue(1));
+    assertArrayEquals(new byte[0], batch.getValue(2));
+  }
+
+  @Test
+  void keepsValueBytesThatAreNotUtf8() {
+    byte[] value = {(byte) 0xff, 0, (byte) 0xc3};
+
+    WriteBatch batch = WriteBatch.fromBytes(new WriteBatch().put("a", value).toBytes());
+
+    assertArrayEquals(value, batch.getValue(0));
+  }
+}